@@ -37,8 +37,8 @@ import java.math.BigInteger;
 public interface Crai {
     public CraiRandom getPRNG();
 
-    public CraiPrivateKey makePrivateRSAKey(BigInteger n, BigInteger d,
-            BigInteger p, BigInteger q);
+    public CraiPrivateKey makePrivateRSAKey(BigInteger n, BigInteger e,
+            BigInteger d, BigInteger p, BigInteger q);
 
     public CraiPrivateKey makePrivateDSAKey(BigInteger x, BigInteger p,
             BigInteger q, BigInteger g);
@@ -52,16 +52,45 @@ public interface Crai {
 
     public CraiKeyPair generateDSAKeyPair(int bits);
 
+    public CraiPrivateKey makePrivateEd25519Key(byte[] seed);
+
+    public CraiPublicKey makePublicEd25519Key(byte[] key);
+
+    public CraiKeyPair generateEd25519KeyPair() throws CraiException;
+
+    // curves are named as in SSH: "nistp256", "nistp384", or "nistp521"
+    public CraiPrivateKey makePrivateECDSAKey(String curve, BigInteger d);
+
+    public CraiPublicKey makePublicECDSAKey(String curve, byte[] point);
+
+    public CraiKeyPair generateECDSAKeyPair(String curve) throws CraiException;
+
     public CraiDigest makeSHA1();
 
     public CraiDigest makeMD5();
 
+    public CraiDigest makeSHA256();
+
+    public CraiDigest makeSHA384();
+
+    public CraiDigest makeSHA512();
+
     public CraiDigest makeSHA1HMAC(byte[] key);
 
     public CraiDigest makeMD5HMAC(byte[] key);
 
+    public CraiDigest makeSHA256HMAC(byte[] key);
+
+    public CraiDigest makeSHA512HMAC(byte[] key);
+
     public CraiCipher getCipher(CraiCipherAlgorithm algorithm)
             throws CraiException;
 
+    public CraiAEADCipher getAEADCipher(CraiCipherAlgorithm algorithm)
+            throws CraiException;
+
+    public CraiKeyAgreement getKeyAgreement(
+            CraiKeyAgreementAlgorithm algorithm) throws CraiException;
+
     public BigInteger modPow(BigInteger b, BigInteger e, BigInteger m);
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2005-2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package net.lag.crai;
+
+/**
+ * A cipher that authenticates as well as encrypts, so that packets don't need
+ * a separate MAC. Each call seals or opens one whole SSH packet, laid out as
+ * the 4-byte packet length followed by the padding length, payload, and
+ * padding. How the length field is protected depends on the cipher: it may be
+ * sent in the clear but authenticated, or encrypted under a key of its own.
+ */
+public interface CraiAEADCipher {
+    public void initEncrypt(byte[] key, byte[] iv) throws CraiException;
+
+    public void initDecrypt(byte[] key, byte[] iv) throws CraiException;
+
+    /**
+     * Return the size (in bytes) of the authentication tag sent after each
+     * packet.
+     */
+    public int getTagSize();
+
+    /**
+     * Recover the packet length from the first 4 bytes of an incoming packet,
+     * before the rest of it has arrived. The bytes themselves are left alone,
+     * since they're still needed to open the packet.
+     * 
+     * @param sequence
+     *            the packet's sequence number
+     * @param buf
+     *            the buffer holding the first 4 bytes of the packet
+     * @param off
+     *            where the packet starts in <code>buf</code>
+     * @return the packet length
+     */
+    public int decryptLength(int sequence, byte[] buf, int off)
+            throws CraiException;
+
+    /**
+     * Encrypt a packet in place and compute its tag.
+     * 
+     * @param sequence
+     *            the packet's sequence number
+     * @param buf
+     *            the buffer holding the packet
+     * @param off
+     *            where the packet (starting with its length) begins
+     * @param len
+     *            the length of the packet, including the length field
+     * @param tag
+     *            where to write the tag
+     * @param tagOff
+     *            offset into <code>tag</code>
+     */
+    public void seal(int sequence, byte[] buf, int off, int len, byte[] tag,
+            int tagOff) throws CraiException;
+
+    /**
+     * Check the tag of a packet and, only if it matches, decrypt the packet
+     * in place.
+     * 
+     * @param sequence
+     *            the packet's sequence number
+     * @param buf
+     *            the buffer holding the packet
+     * @param off
+     *            where the packet (starting with its length) begins
+     * @param len
+     *            the length of the packet, including the length field
+     * @param tag
+     *            the buffer holding the tag that arrived with the packet
+     * @param tagOff
+     *            offset into <code>tag</code>
+     * @throws CraiException
+     *             if the tag doesn't match
+     */
+    public void open(int sequence, byte[] buf, int off, int len, byte[] tag,
+            int tagOff) throws CraiException;
+}
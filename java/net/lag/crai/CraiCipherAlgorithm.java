@@ -27,7 +27,7 @@ package net.lag.crai;
 
 public final class CraiCipherAlgorithm {
     private CraiCipherAlgorithm(String name) {
-        // pass
+        mName = name;
     }
 
     @Override
@@ -43,4 +43,12 @@ public final class CraiCipherAlgorithm {
             "AES_CBC");
     public final static CraiCipherAlgorithm BLOWFISH_CBC = new CraiCipherAlgorithm(
             "BLOWFISH_CBC");
+    public final static CraiCipherAlgorithm AES_CTR = new CraiCipherAlgorithm(
+            "AES_CTR");
+
+    // authenticated ciphers, from Crai.getAEADCipher
+    public final static CraiCipherAlgorithm AES_GCM = new CraiCipherAlgorithm(
+            "AES_GCM");
+    public final static CraiCipherAlgorithm CHACHA20_POLY1305 = new CraiCipherAlgorithm(
+            "CHACHA20_POLY1305");
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2005-2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package net.lag.crai;
+
+/**
+ * One side of an elliptic-curve Diffie-Hellman exchange. Public values are
+ * passed around in the form SSH sends them: the 32 raw bytes of the
+ * u-coordinate for X25519, or an uncompressed point (0x04 || x || y) for the
+ * NIST curves.
+ */
+public interface CraiKeyAgreement {
+    /**
+     * Generate a new ephemeral key pair, keeping the private half.
+     * 
+     * @return our public value
+     */
+    public byte[] generateKey() throws CraiException;
+
+    /**
+     * Combine our private key with the other side's public value. The public
+     * value is checked before it's used, and rejected if it isn't a valid
+     * point on the curve.
+     * 
+     * @param peerKey
+     *            the other side's public value
+     * @return the raw shared secret
+     */
+    public byte[] computeSecret(byte[] peerKey) throws CraiException;
+}
@@ -28,7 +28,8 @@ package net.lag.crai;
 import java.math.BigInteger;
 
 /**
- * Abstract representation for a private key (of type RSA or DSA). Objects of
+ * Abstract representation for a private key (of type RSA, DSA, Ed25519, or
+ * ECDSA). Objects of
  * this type can be used to sign data and retrieve the underlying key contents.
  */
 public interface CraiPrivateKey {
@@ -65,6 +66,48 @@ public interface CraiPrivateKey {
         public BigInteger getX();
     }
 
+    /**
+     * The private contents of an Ed25519 key: the 32-byte seed that the
+     * signing scalar and prefix are hashed from.
+     */
+    public static interface Ed25519Contents extends Contents {
+        public byte[] getSeed();
+    }
+
+    /**
+     * The private contents of an ECDSA key.
+     */
+    public static interface ECDSAContents extends Contents {
+        public String getCurve();
+
+        public BigInteger getD();
+    }
+
+    /**
+     * An RSA private key, which can sign with one of the SHA-2 hashes as well
+     * as the SHA-1 used by {@link CraiPrivateKey#sign}.
+     */
+    public static interface RSASigner extends CraiPrivateKey {
+        /**
+         * Sign data with this private key, using the given hash.
+         * 
+         * @param hash
+         *            the hash to sign with: "SHA1", "SHA256", or "SHA512"
+         * @param data
+         *            the data to sign
+         * @param off
+         *            offset into the data to begin signing
+         * @param len
+         *            number of bytes to sign
+         * @return a signature for this block of data
+         * @throws CraiException
+         *             if the hash isn't supported, or the underlying crypto
+         *             library throws an exception
+         */
+        public byte[] sign(String hash, byte[] data, int off, int len)
+                throws CraiException;
+    }
+
     /**
      * Sign data with this private key.
      * 
@@ -61,6 +61,52 @@ public interface CraiPublicKey {
         public BigInteger getY();
     }
 
+    /**
+     * The public contents of an Ed25519 key: the 32-byte encoded point.
+     */
+    public static interface Ed25519Contents extends Contents {
+        public byte[] getKey();
+    }
+
+    /**
+     * The public contents of an ECDSA key, with the point encoded
+     * uncompressed (0x04 || x || y).
+     */
+    public static interface ECDSAContents extends Contents {
+        public String getCurve();
+
+        public byte[] getPoint();
+    }
+
+    /**
+     * An RSA public key, which can verify signatures made with one of the
+     * SHA-2 hashes as well as the SHA-1 used by {@link CraiPublicKey#verify}.
+     */
+    public static interface RSAVerifier extends CraiPublicKey {
+        /**
+         * Verify that a signature of a block of data, made with the given
+         * hash, actually came from this key.
+         * 
+         * @param hash
+         *            the hash the data was signed with: "SHA1", "SHA256", or
+         *            "SHA512"
+         * @param data
+         *            the data that was signed
+         * @param off
+         *            offset into the data that was signed
+         * @param len
+         *            number of bytes signed
+         * @param signature
+         *            the signature
+         * @return true if the signature verifies; false otherwise
+         * @throws CraiException
+         *             if the hash isn't supported, or the underlying crypto
+         *             library throws an exception
+         */
+        public boolean verify(String hash, byte[] data, int off, int len,
+                byte[] signature) throws CraiException;
+    }
+
     /**
      * Verify that a signature of a block of data actually came from this key.
      * 
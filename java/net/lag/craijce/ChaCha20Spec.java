@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2005-2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package net.lag.craijce;
+
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.spec.ChaCha20ParameterSpec;
+
+/**
+ * The one java 11 class the JCE glue needs, kept in a file of its own. The
+ * build compiles everything else against the java 8 API, so nothing there can
+ * quietly depend on a newer JVM. On an older JVM, ChaCha20 itself is missing,
+ * so chacha20-poly1305 is turned off before this is ever loaded.
+ */
+/* package */final class ChaCha20Spec {
+    private ChaCha20Spec() {
+        // static only
+    }
+
+    /**
+     * Make the parameters for a ChaCha20 cipher starting at block 0.
+     * 
+     * @param nonce
+     *            the 12-byte nonce
+     * @return the parameters to init the cipher with
+     */
+    public static AlgorithmParameterSpec make(byte[] nonce) {
+        return new ChaCha20ParameterSpec(nonce, 0);
+    }
+}
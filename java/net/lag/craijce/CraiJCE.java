@@ -42,21 +42,41 @@ import java.security.interfaces.DSAPublicKey;
 import java.security.interfaces.RSAPrivateCrtKey;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
 import java.security.spec.DSAPrivateKeySpec;
 import java.security.spec.DSAPublicKeySpec;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPrivateKeySpec;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
 import java.security.spec.RSAPrivateKeySpec;
 import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
 import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import net.lag.crai.Crai;
+import net.lag.crai.CraiAEADCipher;
 import net.lag.crai.CraiCipher;
 import net.lag.crai.CraiCipherAlgorithm;
 import net.lag.crai.CraiDigest;
 import net.lag.crai.CraiException;
+import net.lag.crai.CraiKeyAgreement;
+import net.lag.crai.CraiKeyAgreementAlgorithm;
 import net.lag.crai.CraiKeyPair;
 import net.lag.crai.CraiPrivateKey;
 import net.lag.crai.CraiPublicKey;
@@ -79,24 +99,34 @@ public class CraiJCE implements Crai {
         public SecureRandom mRandom;
     }
 
-    private class JCEPrivateRSAKey implements CraiPrivateKey {
-        public JCEPrivateRSAKey(BigInteger n, BigInteger d, BigInteger p,
-                BigInteger q) {
+    // the JCE name of an RSA signature with one of the hashes ssh uses
+    private static String rsaAlgorithm(String hash) throws CraiException {
+        if (!hash.equals("SHA1") && !hash.equals("SHA256")
+                && !hash.equals("SHA512")) {
+            throw new CraiException("unknown RSA signature hash " + hash);
+        }
+        return hash + "withRSA";
+    }
+
+    private class JCEPrivateRSAKey implements CraiPrivateKey.RSASigner {
+        public JCEPrivateRSAKey(BigInteger n, BigInteger e, BigInteger d,
+                BigInteger p, BigInteger q) {
             mN = n;
+            mE = e;
             mD = d;
             mP = p;
             mQ = q;
         }
 
         public byte[] sign(byte[] b, int off, int len) throws CraiException {
+            return sign("SHA1", b, off, len);
+        }
+
+        public byte[] sign(String hash, byte[] b, int off, int len)
+                throws CraiException {
             try {
-                // HOLY FREAKING MOTHER OF A GOAT SCROAT WHY DOES JAVA MAKE THIS
-                // SO PAINFUL?!?!?!
-                Signature s = Signature.getInstance("SHA1withRSA");
-                KeyFactory keyFac = KeyFactory.getInstance("RSA");
-                PrivateKey key = keyFac.generatePrivate(new RSAPrivateKeySpec(
-                        mN, mD));
-                s.initSign(key, ((JCERandom) mCraiRandom).mRandom);
+                Signature s = getSignature(rsaAlgorithm(hash));
+                s.initSign(getKey(), ((JCERandom) mCraiRandom).mRandom);
                 s.update(b, off, len);
                 return s.sign();
             } catch (Exception e) {
@@ -105,6 +135,29 @@ public class CraiJCE implements Crai {
             }
         }
 
+        private PrivateKey getKey() throws GeneralSecurityException {
+            if (mKey == null) {
+                // HOLY FREAKING MOTHER OF A GOAT SCROAT WHY DOES JAVA MAKE THIS
+                // SO PAINFUL?!?!?!
+                KeyFactory keyFac = KeyFactory.getInstance("RSA");
+                if ((mE == null) || (mP == null) || (mQ == null)) {
+                    mKey = keyFac.generatePrivate(new RSAPrivateKeySpec(mN, mD));
+                } else {
+                    /*
+                     * with p and q we can sign by the chinese remainder
+                     * theorem, which is several times faster. (java wants e
+                     * too, for blinding.)
+                     */
+                    BigInteger p1 = mP.subtract(BigInteger.ONE);
+                    BigInteger q1 = mQ.subtract(BigInteger.ONE);
+                    mKey = keyFac.generatePrivate(new RSAPrivateCrtKeySpec(mN,
+                            mE, mD, mP, mQ, mD.mod(p1), mD.mod(q1), mQ
+                                    .modInverse(mP)));
+                }
+            }
+            return mKey;
+        }
+
         public CraiPrivateKey.Contents getContents() {
             return new CraiPrivateKey.RSAContents() {
                 public BigInteger getN() {
@@ -126,9 +179,11 @@ public class CraiJCE implements Crai {
         }
 
         private BigInteger mN;
+        private BigInteger mE;
         private BigInteger mD;
         private BigInteger mP;
         private BigInteger mQ;
+        private volatile PrivateKey mKey;
     }
 
     private class JCEPrivateDSAKey implements CraiPrivateKey {
@@ -142,13 +197,13 @@ public class CraiJCE implements Crai {
 
         public byte[] sign(byte[] b, int off, int len) throws CraiException {
             try {
-                // HOLY FREAKING MOTHER OF A GOAT SCROAT WHY DOES JAVA MAKE THIS
-                // SO PAINFUL?!?!?!
-                Signature s = Signature.getInstance("SHA1withDSA");
-                KeyFactory keyFac = KeyFactory.getInstance("DSA");
-                PrivateKey key = keyFac.generatePrivate(new DSAPrivateKeySpec(
-                        mX, mP, mQ, mG));
-                s.initSign(key, ((JCERandom) mCraiRandom).mRandom);
+                Signature s = getSignature("SHA1withDSA");
+                if (mKey == null) {
+                    KeyFactory keyFac = KeyFactory.getInstance("DSA");
+                    mKey = keyFac.generatePrivate(new DSAPrivateKeySpec(mX,
+                            mP, mQ, mG));
+                }
+                s.initSign(mKey, ((JCERandom) mCraiRandom).mRandom);
                 s.update(b, off, len);
                 byte[] sig = s.sign();
 
@@ -196,9 +251,10 @@ public class CraiJCE implements Crai {
         private BigInteger mP;
         private BigInteger mQ;
         private BigInteger mG;
+        private volatile PrivateKey mKey;
     }
 
-    private class JCEPublicRSAKey implements CraiPublicKey {
+    private class JCEPublicRSAKey implements CraiPublicKey.RSAVerifier {
         public JCEPublicRSAKey(BigInteger n, BigInteger e) {
             mN = n;
             mE = e;
@@ -206,13 +262,19 @@ public class CraiJCE implements Crai {
 
         public boolean verify(byte[] data, int off, int len, byte[] signature)
                 throws CraiException {
+            return verify("SHA1", data, off, len, signature);
+        }
+
+        public boolean verify(String hash, byte[] data, int off, int len,
+                byte[] signature) throws CraiException {
             try {
-                Signature s = Signature.getInstance("SHA1withRSA");
-                KeyFactory keyFac = KeyFactory.getInstance("RSA");
-                PublicKey key = keyFac.generatePublic(new RSAPublicKeySpec(mN,
-                        mE));
-                s.initVerify(key);
-                s.update(data);
+                Signature s = getSignature(rsaAlgorithm(hash));
+                if (mKey == null) {
+                    KeyFactory keyFac = KeyFactory.getInstance("RSA");
+                    mKey = keyFac.generatePublic(new RSAPublicKeySpec(mN, mE));
+                }
+                s.initVerify(mKey);
+                s.update(data, off, len);
                 return s.verify(signature);
             } catch (Exception e) {
                 throw new CraiException("error verifying RSA signature: " + e);
@@ -233,6 +295,7 @@ public class CraiJCE implements Crai {
 
         private BigInteger mN;
         private BigInteger mE;
+        private volatile PublicKey mKey;
     }
 
     private class JCEPublicDSAKey implements CraiPublicKey {
@@ -265,11 +328,13 @@ public class CraiJCE implements Crai {
             System.arraycopy(signature, 20, argh, 28, 20);
 
             try {
-                Signature s = Signature.getInstance("SHA1withDSA");
-                KeyFactory keyFac = KeyFactory.getInstance("DSA");
-                PublicKey key = keyFac.generatePublic(new DSAPublicKeySpec(mY,
-                        mP, mQ, mG));
-                s.initVerify(key);
+                Signature s = getSignature("SHA1withDSA");
+                if (mKey == null) {
+                    KeyFactory keyFac = KeyFactory.getInstance("DSA");
+                    mKey = keyFac.generatePublic(new DSAPublicKeySpec(mY, mP,
+                            mQ, mG));
+                }
+                s.initVerify(mKey);
                 s.update(data, off, len);
                 return s.verify(argh);
             } catch (Exception e) {
@@ -301,6 +366,7 @@ public class CraiJCE implements Crai {
         private BigInteger mP;
         private BigInteger mQ;
         private BigInteger mG;
+        private volatile PublicKey mKey;
     }
 
     private static class JCEDigest implements CraiDigest {
@@ -362,6 +428,7 @@ public class CraiJCE implements Crai {
     private static class JCECipher implements CraiCipher {
         public JCECipher(String javaName) throws CraiException {
             mJavaName = javaName;
+            mAlgName = javaName.split("/")[0];
             try {
                 mCipher = Cipher.getInstance(javaName);
             } catch (GeneralSecurityException x) {
@@ -371,14 +438,9 @@ public class CraiJCE implements Crai {
         }
 
         public void initEncrypt(byte[] key, byte[] iv) throws CraiException {
-            // isn't this insane?
-            String algName = mJavaName.split("/")[0];
             try {
-                AlgorithmParameters param = AlgorithmParameters
-                        .getInstance(algName);
-                param.init(new IvParameterSpec(iv));
                 mCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key,
-                        algName), param);
+                        mAlgName), new IvParameterSpec(iv));
             } catch (GeneralSecurityException x) {
                 throw new CraiException("cipher " + mJavaName
                         + " encrypt init error: " + x);
@@ -389,13 +451,9 @@ public class CraiJCE implements Crai {
         }
 
         public void initDecrypt(byte[] key, byte[] iv) throws CraiException {
-            String algName = mJavaName.split("/")[0];
             try {
-                AlgorithmParameters param = AlgorithmParameters
-                        .getInstance(algName);
-                param.init(new IvParameterSpec(iv));
                 mCipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key,
-                        algName), param);
+                        mAlgName), new IvParameterSpec(iv));
             } catch (GeneralSecurityException x) {
                 throw new CraiException("cipher " + mJavaName
                         + " decrypt init error: " + x);
@@ -416,16 +474,634 @@ public class CraiJCE implements Crai {
         }
 
         private String mJavaName;
+        private String mAlgName;
         private Cipher mCipher;
     }
 
+    /*
+     * AES-GCM as openssh does it (RFC 5647, more or less): the packet length
+     * goes in the clear as additional authenticated data, and the 12-byte
+     * nonce is a fixed 4-byte field followed by a 64-bit counter that's
+     * bumped after every packet. JCE won't let a GCM cipher run on past
+     * doFinal, so it's re-initialized with the next nonce for each packet.
+     */
+    private static class JCEGCMCipher implements CraiAEADCipher {
+        public JCEGCMCipher() throws CraiException {
+            try {
+                mCipher = Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException x) {
+                throw new CraiException("cipher AES/GCM not found: " + x);
+            }
+        }
+
+        public void initEncrypt(byte[] key, byte[] iv) throws CraiException {
+            init(Cipher.ENCRYPT_MODE, key, iv);
+        }
+
+        public void initDecrypt(byte[] key, byte[] iv) throws CraiException {
+            init(Cipher.DECRYPT_MODE, key, iv);
+        }
+
+        private void init(int mode, byte[] key, byte[] iv)
+                throws CraiException {
+            if (iv.length != NONCE_SIZE) {
+                throw new CraiException("cipher AES/GCM needs a "
+                        + NONCE_SIZE + "-byte nonce");
+            }
+            mMode = mode;
+            mKey = new SecretKeySpec(key, "AES");
+            mNonce = new byte[NONCE_SIZE];
+            System.arraycopy(iv, 0, mNonce, 0, NONCE_SIZE);
+            // check the key now, rather than on the first packet
+            start();
+        }
+
+        public int getTagSize() {
+            return TAG_SIZE;
+        }
+
+        public int decryptLength(int sequence, byte[] buf, int off) {
+            return ((buf[off] & 0xff) << 24) | ((buf[off + 1] & 0xff) << 16)
+                    | ((buf[off + 2] & 0xff) << 8) | (buf[off + 3] & 0xff);
+        }
+
+        public void seal(int sequence, byte[] buf, int off, int len,
+                byte[] tag, int tagOff) throws CraiException {
+            try {
+                mCipher.updateAAD(buf, off, 4);
+                int n = mCipher.update(buf, off + 4, len - 4, buf, off + 4);
+                // whatever the cipher held back comes out ahead of the tag
+                byte[] rest = mCipher.doFinal();
+                int held = rest.length - TAG_SIZE;
+                System.arraycopy(rest, 0, buf, off + 4 + n, held);
+                System.arraycopy(rest, held, tag, tagOff, TAG_SIZE);
+            } catch (GeneralSecurityException x) {
+                throw new CraiException("cipher AES/GCM encrypt error: " + x);
+            }
+            nextPacket();
+        }
+
+        public void open(int sequence, byte[] buf, int off, int len,
+                byte[] tag, int tagOff) throws CraiException {
+            try {
+                mCipher.updateAAD(buf, off, 4);
+                // nothing is released until the tag has been checked
+                int n = mCipher.update(buf, off + 4, len - 4, buf, off + 4);
+                mCipher.doFinal(tag, tagOff, TAG_SIZE, buf, off + 4 + n);
+            } catch (GeneralSecurityException x) {
+                throw new CraiException("cipher AES/GCM decrypt error: " + x);
+            }
+            nextPacket();
+        }
+
+        // bump the invocation counter and get ready for the next packet
+        private void nextPacket() throws CraiException {
+            for (int i = NONCE_SIZE - 1; i >= 4; i--) {
+                if (++mNonce[i] != 0) {
+                    break;
+                }
+            }
+            start();
+        }
+
+        private void start() throws CraiException {
+            try {
+                mCipher.init(mMode, mKey, new GCMParameterSpec(TAG_SIZE * 8,
+                        mNonce));
+            } catch (GeneralSecurityException x) {
+                throw new CraiException("cipher AES/GCM init error: " + x);
+            }
+        }
+
+        private static final int NONCE_SIZE = 12;
+        private static final int TAG_SIZE = 16;
+
+        private Cipher mCipher;
+        private int mMode;
+        private SecretKeySpec mKey;
+        private byte[] mNonce;
+    }
+
+    /*
+     * chacha20-poly1305@openssh.com: the 64-byte key is two chacha20 keys.
+     * the second encrypts the packet length on its own, so a reader can find
+     * the end of the packet without decrypting the rest. the first, at block
+     * 0, gives the one-time poly1305 key for the packet, and from block 1 on
+     * encrypts the body. the nonce is the sequence number. openssh uses the
+     * original 64-bit-nonce chacha20, which is JCE's 96-bit-nonce flavor with
+     * the top half of the block counter (always zero here) as the first 4
+     * bytes of the nonce.
+     */
+    private static class JCEChaChaPolyCipher implements CraiAEADCipher {
+        public JCEChaChaPolyCipher() throws CraiException {
+            try {
+                mMain = Cipher.getInstance("ChaCha20");
+                mHeader = Cipher.getInstance("ChaCha20");
+            } catch (GeneralSecurityException x) {
+                throw new CraiException("cipher ChaCha20 not found: " + x);
+            }
+            mNonce = new byte[12];
+            mPolyKey = new byte[64];
+            mTag = new byte[Poly1305.TAG_SIZE];
+            mLength = new byte[4];
+        }
+
+        public void initEncrypt(byte[] key, byte[] iv) throws CraiException {
+            init(Cipher.ENCRYPT_MODE, key);
+        }
+
+        public void initDecrypt(byte[] key, byte[] iv) throws CraiException {
+            init(Cipher.DECRYPT_MODE, key);
+        }
+
+        private void init(int mode, byte[] key) throws CraiException {
+            if (key.length != 64) {
+                throw new CraiException("cipher ChaCha20 needs a 64-byte key");
+            }
+            mMode = mode;
+            mMainKey = new SecretKeySpec(key, 0, 32, "ChaCha20");
+            mHeaderKey = new SecretKeySpec(key, 32, 32, "ChaCha20");
+        }
+
+        public int getTagSize() {
+            return Poly1305.TAG_SIZE;
+        }
+
+        public int decryptLength(int sequence, byte[] buf, int off)
+                throws CraiException {
+            start(mHeader, mHeaderKey, sequence);
+            process(mHeader, buf, off, 4, mLength, 0);
+            return ((mLength[0] & 0xff) << 24) | ((mLength[1] & 0xff) << 16)
+                    | ((mLength[2] & 0xff) << 8) | (mLength[3] & 0xff);
+        }
+
+        public void seal(int sequence, byte[] buf, int off, int len,
+                byte[] tag, int tagOff) throws CraiException {
+            start(mHeader, mHeaderKey, sequence);
+            process(mHeader, buf, off, 4, buf, off);
+            startBody(sequence);
+            process(mMain, buf, off + 4, len - 4, buf, off + 4);
+            Poly1305.mac(mPolyKey, buf, off, len, tag, tagOff);
+        }
+
+        public void open(int sequence, byte[] buf, int off, int len,
+                byte[] tag, int tagOff) throws CraiException {
+            startBody(sequence);
+            Poly1305.mac(mPolyKey, buf, off, len, mTag, 0);
+            int diff = 0;
+            for (int i = 0; i < Poly1305.TAG_SIZE; i++) {
+                diff |= mTag[i] ^ tag[tagOff + i];
+            }
+            if (diff != 0) {
+                throw new CraiException("cipher ChaCha20 tag mismatch");
+            }
+            // the length field is left as it arrived
+            process(mMain, buf, off + 4, len - 4, buf, off + 4);
+        }
+
+        // derive this packet's poly1305 key, leaving mMain at block 1
+        private void startBody(int sequence) throws CraiException {
+            start(mMain, mMainKey, sequence);
+            for (int i = 0; i < 64; i++) {
+                mPolyKey[i] = 0;
+            }
+            process(mMain, mPolyKey, 0, 64, mPolyKey, 0);
+        }
+
+        private void start(Cipher cipher, SecretKeySpec key, int sequence)
+                throws CraiException {
+            mNonce[8] = (byte) (sequence >>> 24);
+            mNonce[9] = (byte) (sequence >>> 16);
+            mNonce[10] = (byte) (sequence >>> 8);
+            mNonce[11] = (byte) sequence;
+            try {
+                cipher.init(mMode, key, ChaCha20Spec.make(mNonce));
+            } catch (GeneralSecurityException x) {
+                throw new CraiException("cipher ChaCha20 init error: " + x);
+            }
+        }
+
+        private void process(Cipher cipher, byte[] in, int off, int len,
+                byte[] out, int outOff) throws CraiException {
+            try {
+                cipher.update(in, off, len, out, outOff);
+            } catch (GeneralSecurityException x) {
+                throw new CraiException("cipher ChaCha20 process error: " + x);
+            }
+        }
+
+        private Cipher mMain;
+        private Cipher mHeader;
+        private int mMode;
+        private SecretKeySpec mMainKey;
+        private SecretKeySpec mHeaderKey;
+        private byte[] mNonce;
+        private byte[] mPolyKey;
+        private byte[] mTag;
+        private byte[] mLength;
+    }
+
+    /*
+     * Signature objects aren't thread-safe, but looking one up goes through
+     * the provider list every time, so each thread keeps one of each kind
+     * around. initSign/initVerify resets whatever state it was left in.
+     */
+    private static Signature getSignature(String algorithm)
+            throws NoSuchAlgorithmException {
+        Map<String, Signature> cache = sSignatures.get();
+        Signature s = cache.get(algorithm);
+        if (s == null) {
+            s = Signature.getInstance(algorithm);
+            cache.put(algorithm, s);
+        }
+        return s;
+    }
+
+    /*
+     * lets JCE key generators draw from our PRNG (which may not be a
+     * JCERandom, in tests).
+     */
+    private static class CraiSecureRandom extends SecureRandom {
+        public CraiSecureRandom(CraiRandom random) {
+            mRandom = random;
+        }
+
+        @Override
+        public void nextBytes(byte[] b) {
+            mRandom.getBytes(b);
+        }
+
+        private CraiRandom mRandom;
+        private static final long serialVersionUID = 0;
+    }
+
+    private SecureRandom getSecureRandom() {
+        if (mCraiRandom instanceof JCERandom) {
+            return ((JCERandom) mCraiRandom).mRandom;
+        }
+        return new CraiSecureRandom(mCraiRandom);
+    }
+
+    /*
+     * X25519 keys travel as 32 raw bytes. rather than convert them through
+     * the XEC key classes (and their little-endian BigIntegers), wrap and
+     * unwrap them in their X.509 encoding, which is a fixed prefix followed
+     * by those same 32 bytes.
+     */
+    private class JCEX25519 implements CraiKeyAgreement {
+        public byte[] generateKey() throws CraiException {
+            try {
+                KeyPairGenerator generator = KeyPairGenerator
+                        .getInstance("X25519");
+                generator.initialize(255, getSecureRandom());
+                KeyPair pair = generator.generateKeyPair();
+                mPrivateKey = pair.getPrivate();
+                return tail(pair.getPublic().getEncoded(), 32);
+            } catch (GeneralSecurityException x) {
+                throw new CraiException("X25519 not available: " + x);
+            }
+        }
+
+        public byte[] computeSecret(byte[] peerKey) throws CraiException {
+            if (peerKey.length != 32) {
+                throw new CraiException("invalid X25519 public key");
+            }
+            byte[] secret;
+            try {
+                PublicKey key = KeyFactory.getInstance("X25519")
+                        .generatePublic(new X509EncodedKeySpec(concat(
+                                X25519_PREFIX, peerKey)));
+                KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+                agreement.init(mPrivateKey);
+                agreement.doPhase(key, true);
+                secret = agreement.generateSecret();
+            } catch (GeneralSecurityException x) {
+                throw new CraiException("X25519 agreement failed: " + x);
+            }
+
+            // a low-order point from the peer gives an all-zero secret
+            int bits = 0;
+            for (int i = 0; i < secret.length; i++) {
+                bits |= secret[i];
+            }
+            if (bits == 0) {
+                throw new CraiException("invalid X25519 public key");
+            }
+            return secret;
+        }
+
+        private PrivateKey mPrivateKey;
+    }
+
+    private class JCEECDH implements CraiKeyAgreement {
+        public JCEECDH(String curveName) {
+            mCurveName = curveName;
+        }
+
+        public byte[] generateKey() throws CraiException {
+            try {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+                generator.initialize(new ECGenParameterSpec(mCurveName),
+                        getSecureRandom());
+                KeyPair pair = generator.generateKeyPair();
+                ECPublicKey pub = (ECPublicKey) pair.getPublic();
+                mPrivateKey = pair.getPrivate();
+                mParams = pub.getParams();
+                return encodePoint(pub.getW(), mParams);
+            } catch (GeneralSecurityException x) {
+                throw new CraiException("ECDH " + mCurveName
+                        + " not available: " + x);
+            }
+        }
+
+        public byte[] computeSecret(byte[] peerKey) throws CraiException {
+            ECPoint point = decodePoint(peerKey, mParams);
+            try {
+                PublicKey key = KeyFactory.getInstance("EC").generatePublic(
+                        new ECPublicKeySpec(point, mParams));
+                KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+                agreement.init(mPrivateKey);
+                agreement.doPhase(key, true);
+                return agreement.generateSecret();
+            } catch (GeneralSecurityException x1) {
+                throw new CraiException("ECDH agreement failed: " + x1);
+            }
+        }
+
+        private String mCurveName;
+        private PrivateKey mPrivateKey;
+        private ECParameterSpec mParams;
+    }
+
+    // encode a point uncompressed, as 0x04 || x || y
+    private static byte[] encodePoint(ECPoint point, ECParameterSpec params) {
+        int size = fieldSize(params);
+        byte[] out = new byte[1 + 2 * size];
+        out[0] = 4;
+        putUnsigned(point.getAffineX(), out, 1, size);
+        putUnsigned(point.getAffineY(), out, 1 + size, size);
+        return out;
+    }
+
+    private static ECPoint decodePoint(byte[] data, ECParameterSpec params)
+            throws CraiException {
+        int size = fieldSize(params);
+        if ((data.length != 1 + 2 * size) || (data[0] != 4)) {
+            throw new CraiException("invalid EC point");
+        }
+        byte[] buf = new byte[size];
+        System.arraycopy(data, 1, buf, 0, size);
+        BigInteger x = new BigInteger(1, buf);
+        System.arraycopy(data, 1 + size, buf, 0, size);
+        BigInteger y = new BigInteger(1, buf);
+
+        // the point must be on the curve: y^2 = x^3 + ax + b (mod p)
+        EllipticCurve curve = params.getCurve();
+        BigInteger p = ((ECFieldFp) curve.getField()).getP();
+        if ((x.compareTo(p) >= 0) || (y.compareTo(p) >= 0)
+                || !y.multiply(y).mod(p).equals(
+                        x.multiply(x).add(curve.getA()).multiply(x).add(
+                                curve.getB()).mod(p))) {
+            throw new CraiException("invalid EC point");
+        }
+        return new ECPoint(x, y);
+    }
+
+    private static int fieldSize(ECParameterSpec params) {
+        return (params.getCurve().getField().getFieldSize() + 7) / 8;
+    }
+
+    // map an SSH curve name to its JCE parameters
+    private static ECParameterSpec curveParams(String curve)
+            throws CraiException {
+        String name = sCurveNames.get(curve);
+        if (name == null) {
+            throw new CraiException("unknown curve " + curve);
+        }
+        try {
+            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
+            params.init(new ECGenParameterSpec(name));
+            return params.getParameterSpec(ECParameterSpec.class);
+        } catch (GeneralSecurityException x) {
+            throw new CraiException("curve " + curve + " not available: " + x);
+        }
+    }
+
+    // the hash that goes with each curve (RFC 5656 section 6.2.1)
+    private static String ecdsaAlgorithm(String curve) {
+        if (curve.equals("nistp384")) {
+            return "SHA384withECDSA";
+        } else if (curve.equals("nistp521")) {
+            return "SHA512withECDSA";
+        }
+        return "SHA256withECDSA";
+    }
+
+    private class JCEPrivateEd25519Key implements CraiPrivateKey {
+        public JCEPrivateEd25519Key(byte[] seed) {
+            mSeed = seed;
+        }
+
+        public byte[] sign(byte[] b, int off, int len) throws CraiException {
+            try {
+                Signature s = getSignature("Ed25519");
+                if (mKey == null) {
+                    mKey = KeyFactory.getInstance("Ed25519").generatePrivate(
+                            new PKCS8EncodedKeySpec(concat(ED25519_PRIVATE_PREFIX,
+                                    mSeed)));
+                }
+                s.initSign(mKey);
+                s.update(b, off, len);
+                return s.sign();
+            } catch (Exception e) {
+                throw new CraiException("error performing Ed25519 signature: "
+                        + e);
+            }
+        }
+
+        public CraiPrivateKey.Contents getContents() {
+            return new CraiPrivateKey.Ed25519Contents() {
+                public byte[] getSeed() {
+                    return mSeed;
+                }
+            };
+        }
+
+        private byte[] mSeed;
+        private volatile PrivateKey mKey;
+    }
+
+    private class JCEPublicEd25519Key implements CraiPublicKey {
+        public JCEPublicEd25519Key(byte[] key) {
+            mPublicKey = key;
+        }
+
+        public boolean verify(byte[] data, int off, int len, byte[] signature)
+                throws CraiException {
+            try {
+                Signature s = getSignature("Ed25519");
+                if (mKey == null) {
+                    mKey = KeyFactory.getInstance("Ed25519").generatePublic(
+                            new X509EncodedKeySpec(concat(ED25519_PUBLIC_PREFIX,
+                                    mPublicKey)));
+                }
+                s.initVerify(mKey);
+                s.update(data, off, len);
+                return s.verify(signature);
+            } catch (Exception e) {
+                throw new CraiException("error verifying Ed25519 signature: "
+                        + e);
+            }
+        }
+
+        public CraiPublicKey.Contents getContents() {
+            return new CraiPublicKey.Ed25519Contents() {
+                public byte[] getKey() {
+                    return mPublicKey;
+                }
+            };
+        }
+
+        private byte[] mPublicKey;
+        private volatile PublicKey mKey;
+    }
+
+    /*
+     * ECDSA signatures are passed around as r || s, each padded to the size
+     * of the curve's field, rather than java's ber sequence.
+     */
+    private class JCEPrivateECDSAKey implements CraiPrivateKey {
+        public JCEPrivateECDSAKey(String curve, BigInteger d) {
+            mCurve = curve;
+            mD = d;
+        }
+
+        public byte[] sign(byte[] b, int off, int len) throws CraiException {
+            try {
+                Signature s = getSignature(ecdsaAlgorithm(mCurve));
+                if (mKey == null) {
+                    mParams = curveParams(mCurve);
+                    mKey = KeyFactory.getInstance("EC").generatePrivate(
+                            new ECPrivateKeySpec(mD, mParams));
+                }
+                s.initSign(mKey, getSecureRandom());
+                s.update(b, off, len);
+
+                BigInteger[] rs = Util.decodeBERSequence(s.sign());
+                int size = fieldSize(mParams);
+                byte[] sig = new byte[2 * size];
+                putUnsigned(rs[0], sig, 0, size);
+                putUnsigned(rs[1], sig, size, size);
+                return sig;
+            } catch (Exception e) {
+                throw new CraiException("error performing ECDSA signature: "
+                        + e);
+            }
+        }
+
+        public CraiPrivateKey.Contents getContents() {
+            return new CraiPrivateKey.ECDSAContents() {
+                public String getCurve() {
+                    return mCurve;
+                }
+
+                public BigInteger getD() {
+                    return mD;
+                }
+            };
+        }
+
+        private String mCurve;
+        private BigInteger mD;
+        private ECParameterSpec mParams;
+        private volatile PrivateKey mKey;
+    }
+
+    private class JCEPublicECDSAKey implements CraiPublicKey {
+        public JCEPublicECDSAKey(String curve, byte[] point) {
+            mCurve = curve;
+            mPoint = point;
+        }
+
+        public boolean verify(byte[] data, int off, int len, byte[] signature)
+                throws CraiException {
+            try {
+                Signature s = getSignature(ecdsaAlgorithm(mCurve));
+                if (mKey == null) {
+                    mParams = curveParams(mCurve);
+                    mKey = KeyFactory.getInstance("EC").generatePublic(
+                            new ECPublicKeySpec(decodePoint(mPoint, mParams),
+                                    mParams));
+                }
+                int size = fieldSize(mParams);
+                if (signature.length != 2 * size) {
+                    return false;
+                }
+                byte[] buf = new byte[size];
+                System.arraycopy(signature, 0, buf, 0, size);
+                BigInteger r = new BigInteger(1, buf);
+                System.arraycopy(signature, size, buf, 0, size);
+                BigInteger sv = new BigInteger(1, buf);
+
+                s.initVerify(mKey);
+                s.update(data, off, len);
+                return s.verify(Util.encodeBERSequence(new BigInteger[] { r,
+                        sv }));
+            } catch (Exception e) {
+                throw new CraiException("error verifying ECDSA signature: " + e);
+            }
+        }
+
+        public CraiPublicKey.Contents getContents() {
+            return new CraiPublicKey.ECDSAContents() {
+                public String getCurve() {
+                    return mCurve;
+                }
+
+                public byte[] getPoint() {
+                    return mPoint;
+                }
+            };
+        }
+
+        private String mCurve;
+        private byte[] mPoint;
+        private ECParameterSpec mParams;
+        private volatile PublicKey mKey;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = new byte[a.length + b.length];
+        System.arraycopy(a, 0, out, 0, a.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    // the last n bytes of a
+    private static byte[] tail(byte[] a, int n) {
+        byte[] out = new byte[n];
+        System.arraycopy(a, a.length - n, out, 0, n);
+        return out;
+    }
+
+    // write n as exactly len unsigned big-endian bytes
+    private static void putUnsigned(BigInteger n, byte[] out, int off, int len) {
+        byte[] b = n.toByteArray();
+        if (b.length > len) {
+            // drop the sign byte
+            System.arraycopy(b, b.length - len, out, off, len);
+        } else {
+            System.arraycopy(b, 0, out, off + len - b.length, b.length);
+        }
+    }
+
     public CraiRandom getPRNG() {
         return mCraiRandom;
     }
 
-    public CraiPrivateKey makePrivateRSAKey(BigInteger n, BigInteger d,
-            BigInteger p, BigInteger q) {
-        return new JCEPrivateRSAKey(n, d, p, q);
+    public CraiPrivateKey makePrivateRSAKey(BigInteger n, BigInteger e,
+            BigInteger d, BigInteger p, BigInteger q) {
+        return new JCEPrivateRSAKey(n, e, d, p, q);
     }
 
     public CraiPrivateKey makePrivateDSAKey(BigInteger x, BigInteger p,
@@ -468,7 +1144,58 @@ public class CraiJCE implements Crai {
         BigInteger q = (priv instanceof RSAPrivateCrtKey) ? ((RSAPrivateCrtKey) priv)
                 .getPrimeQ() : null;
         return new CraiKeyPair(new JCEPublicRSAKey(n, e), new JCEPrivateRSAKey(
-                n, d, p, q));
+                n, e, d, p, q));
+    }
+
+    public CraiPrivateKey makePrivateEd25519Key(byte[] seed) {
+        return new JCEPrivateEd25519Key(seed);
+    }
+
+    public CraiPublicKey makePublicEd25519Key(byte[] key) {
+        return new JCEPublicEd25519Key(key);
+    }
+
+    public CraiKeyPair generateEd25519KeyPair() throws CraiException {
+        KeyPair pair;
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("Ed25519");
+            generator.initialize(255, getSecureRandom());
+            pair = generator.generateKeyPair();
+        } catch (GeneralSecurityException x) {
+            throw new CraiException("Ed25519 not available: " + x);
+        }
+
+        // the raw keys are the tails of their PKCS#8 and X.509 encodings
+        byte[] seed = tail(pair.getPrivate().getEncoded(), 32);
+        byte[] pub = tail(pair.getPublic().getEncoded(), 32);
+        return new CraiKeyPair(new JCEPublicEd25519Key(pub),
+                new JCEPrivateEd25519Key(seed));
+    }
+
+    public CraiPrivateKey makePrivateECDSAKey(String curve, BigInteger d) {
+        return new JCEPrivateECDSAKey(curve, d);
+    }
+
+    public CraiPublicKey makePublicECDSAKey(String curve, byte[] point) {
+        return new JCEPublicECDSAKey(curve, point);
+    }
+
+    public CraiKeyPair generateECDSAKeyPair(String curve) throws CraiException {
+        ECParameterSpec params = curveParams(curve);
+        KeyPair pair;
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(params, getSecureRandom());
+            pair = generator.generateKeyPair();
+        } catch (GeneralSecurityException x) {
+            throw new CraiException("ECDSA " + curve + " not available: " + x);
+        }
+
+        BigInteger d = ((ECPrivateKey) pair.getPrivate()).getS();
+        byte[] point = encodePoint(((ECPublicKey) pair.getPublic()).getW(),
+                params);
+        return new CraiKeyPair(new JCEPublicECDSAKey(curve, point),
+                new JCEPrivateECDSAKey(curve, d));
     }
 
     public CraiKeyPair generateDSAKeyPair(int bits) {
@@ -511,6 +1238,26 @@ public class CraiJCE implements Crai {
         }
     }
 
+    public CraiDigest makeSHA256() {
+        return makeDigest("SHA-256");
+    }
+
+    public CraiDigest makeSHA384() {
+        return makeDigest("SHA-384");
+    }
+
+    public CraiDigest makeSHA512() {
+        return makeDigest("SHA-512");
+    }
+
+    private CraiDigest makeDigest(String name) {
+        try {
+            return new JCEDigest(MessageDigest.getInstance(name));
+        } catch (NoSuchAlgorithmException x) {
+            throw new RuntimeException("Unable to find " + name + " algorithm");
+        }
+    }
+
     public CraiDigest makeSHA1HMAC(byte[] key) {
         try {
             Mac mac = Mac.getInstance("HmacSHA1");
@@ -531,6 +1278,26 @@ public class CraiJCE implements Crai {
         }
     }
 
+    public CraiDigest makeSHA256HMAC(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return new JCEHMAC(mac);
+        } catch (GeneralSecurityException x) {
+            throw new RuntimeException("Unable to find SHA-256 HMAC algorithm");
+        }
+    }
+
+    public CraiDigest makeSHA512HMAC(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA512");
+            mac.init(new SecretKeySpec(key, "HmacSHA512"));
+            return new JCEHMAC(mac);
+        } catch (GeneralSecurityException x) {
+            throw new RuntimeException("Unable to find SHA-512 HMAC algorithm");
+        }
+    }
+
     public CraiCipher getCipher(CraiCipherAlgorithm algorithm)
             throws CraiException {
         if (algorithm == CraiCipherAlgorithm.DES3_CBC) {
@@ -539,14 +1306,70 @@ public class CraiJCE implements Crai {
             return new JCECipher("AES/CBC/NoPadding");
         } else if (algorithm == CraiCipherAlgorithm.BLOWFISH_CBC) {
             return new JCECipher("Blowfish/CBC/NoPadding");
+        } else if (algorithm == CraiCipherAlgorithm.AES_CTR) {
+            return new JCECipher("AES/CTR/NoPadding");
         } else {
             throw new CraiException("cipher algorithm not implemented");
         }
     }
 
+    public CraiAEADCipher getAEADCipher(CraiCipherAlgorithm algorithm)
+            throws CraiException {
+        try {
+            if (algorithm == CraiCipherAlgorithm.AES_GCM) {
+                return new JCEGCMCipher();
+            } else if (algorithm == CraiCipherAlgorithm.CHACHA20_POLY1305) {
+                return new JCEChaChaPolyCipher();
+            }
+        } catch (LinkageError x) {
+            // GCMParameterSpec only arrived in java 7, and ChaCha20 in 11
+            throw new CraiException("cipher algorithm not available: " + x);
+        }
+        throw new CraiException("cipher algorithm not implemented");
+    }
+
+    public CraiKeyAgreement getKeyAgreement(
+            CraiKeyAgreementAlgorithm algorithm) throws CraiException {
+        if (algorithm == CraiKeyAgreementAlgorithm.X25519) {
+            return new JCEX25519();
+        } else if (algorithm == CraiKeyAgreementAlgorithm.ECDH_P256) {
+            return new JCEECDH("secp256r1");
+        } else if (algorithm == CraiKeyAgreementAlgorithm.ECDH_P384) {
+            return new JCEECDH("secp384r1");
+        } else if (algorithm == CraiKeyAgreementAlgorithm.ECDH_P521) {
+            return new JCEECDH("secp521r1");
+        }
+        throw new CraiException("key agreement algorithm not implemented");
+    }
+
     public BigInteger modPow(BigInteger b, BigInteger e, BigInteger m) {
         return b.modPow(e, m);
     }
 
     public CraiRandom mCraiRandom = new JCERandom();
+
+    // X.509 SubjectPublicKeyInfo header for a raw X25519 key (RFC 8410)
+    private static final byte[] X25519_PREFIX = Util
+            .decodeHex("302A300506032B656E032100");
+
+    // and the same for Ed25519 keys, public and private (PKCS#8)
+    private static final byte[] ED25519_PUBLIC_PREFIX = Util
+            .decodeHex("302A300506032B6570032100");
+    private static final byte[] ED25519_PRIVATE_PREFIX = Util
+            .decodeHex("302E020100300506032B657004220420");
+
+    private static Map<String, String> sCurveNames = new HashMap<String, String>();
+
+    static {
+        sCurveNames.put("nistp256", "secp256r1");
+        sCurveNames.put("nistp384", "secp384r1");
+        sCurveNames.put("nistp521", "secp521r1");
+    }
+
+    private static ThreadLocal<Map<String, Signature>> sSignatures = new ThreadLocal<Map<String, Signature>>() {
+        @Override
+        protected Map<String, Signature> initialValue() {
+            return new HashMap<String, Signature>();
+        }
+    };
 }
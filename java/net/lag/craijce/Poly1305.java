@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2005-2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package net.lag.craijce;
+
+/**
+ * The Poly1305 one-time authenticator, which JCE doesn't expose on its own.
+ * This is the 26-bit limb arrangement from poly1305-donna: no table lookups
+ * and no data-dependent branches, so it runs in constant time.
+ */
+/* package */final class Poly1305 {
+    public static final int KEY_SIZE = 32;
+    public static final int TAG_SIZE = 16;
+
+    private Poly1305() {
+        // static only
+    }
+
+    /**
+     * Compute the tag of a message under a one-time key.
+     * 
+     * @param key
+     *            the 32-byte key (r, then s)
+     * @param msg
+     *            the buffer holding the message
+     * @param off
+     *            where the message starts
+     * @param len
+     *            the length of the message
+     * @param out
+     *            where to write the 16-byte tag
+     * @param outOff
+     *            offset into <code>out</code>
+     */
+    public static void mac(byte[] key, byte[] msg, int off, int len,
+            byte[] out, int outOff) {
+        // r is clamped as the spec requires
+        long r0 = le32(key, 0) & 0x3ffffff;
+        long r1 = (le32(key, 3) >>> 2) & 0x3ffff03;
+        long r2 = (le32(key, 6) >>> 4) & 0x3ffc0ff;
+        long r3 = (le32(key, 9) >>> 6) & 0x3f03fff;
+        long r4 = (le32(key, 12) >>> 8) & 0x00fffff;
+        long s1 = r1 * 5;
+        long s2 = r2 * 5;
+        long s3 = r3 * 5;
+        long s4 = r4 * 5;
+
+        long h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0;
+        byte[] last = null;
+        int end = off + len;
+        while (off < end) {
+            byte[] m = msg;
+            int p = off;
+            long hibit = 1 << 24;
+            if (end - off < 16) {
+                // a short final block is padded with a 1 and then zeros
+                last = new byte[16];
+                System.arraycopy(msg, off, last, 0, end - off);
+                last[end - off] = 1;
+                m = last;
+                p = 0;
+                hibit = 0;
+            }
+
+            h0 += le32(m, p) & 0x3ffffff;
+            h1 += (le32(m, p + 3) >>> 2) & 0x3ffffff;
+            h2 += (le32(m, p + 6) >>> 4) & 0x3ffffff;
+            h3 += (le32(m, p + 9) >>> 6) & 0x3ffffff;
+            h4 += (le32(m, p + 12) >>> 8) | hibit;
+
+            // h *= r, mod 2^130 - 5
+            long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+            long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+            long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+            long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+            long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+            long c = d0 >>> 26;
+            h0 = d0 & 0x3ffffff;
+            d1 += c;
+            c = d1 >>> 26;
+            h1 = d1 & 0x3ffffff;
+            d2 += c;
+            c = d2 >>> 26;
+            h2 = d2 & 0x3ffffff;
+            d3 += c;
+            c = d3 >>> 26;
+            h3 = d3 & 0x3ffffff;
+            d4 += c;
+            c = d4 >>> 26;
+            h4 = d4 & 0x3ffffff;
+            h0 += c * 5;
+            c = h0 >>> 26;
+            h0 &= 0x3ffffff;
+            h1 += c;
+
+            off += 16;
+        }
+
+        // fully carry h
+        long c = h1 >>> 26;
+        h1 &= 0x3ffffff;
+        h2 += c;
+        c = h2 >>> 26;
+        h2 &= 0x3ffffff;
+        h3 += c;
+        c = h3 >>> 26;
+        h3 &= 0x3ffffff;
+        h4 += c;
+        c = h4 >>> 26;
+        h4 &= 0x3ffffff;
+        h0 += c * 5;
+        c = h0 >>> 26;
+        h0 &= 0x3ffffff;
+        h1 += c;
+
+        // compute h - p, and keep it only if it didn't go negative
+        long g0 = h0 + 5;
+        c = g0 >>> 26;
+        g0 &= 0x3ffffff;
+        long g1 = h1 + c;
+        c = g1 >>> 26;
+        g1 &= 0x3ffffff;
+        long g2 = h2 + c;
+        c = g2 >>> 26;
+        g2 &= 0x3ffffff;
+        long g3 = h3 + c;
+        c = g3 >>> 26;
+        g3 &= 0x3ffffff;
+        long g4 = h4 + c - (1 << 26);
+
+        long keepH = g4 >> 63;
+        h0 = (h0 & keepH) | (g0 & ~keepH);
+        h1 = (h1 & keepH) | (g1 & ~keepH);
+        h2 = (h2 & keepH) | (g2 & ~keepH);
+        h3 = (h3 & keepH) | (g3 & ~keepH);
+        h4 = (h4 & keepH) | (g4 & ~keepH);
+
+        // h + s, mod 2^128
+        long f0 = ((h0) | (h1 << 26)) & 0xffffffffL;
+        long f1 = ((h1 >>> 6) | (h2 << 20)) & 0xffffffffL;
+        long f2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+        long f3 = ((h3 >>> 18) | (h4 << 8)) & 0xffffffffL;
+
+        f0 += le32(key, 16);
+        f1 += le32(key, 20) + (f0 >>> 32);
+        f2 += le32(key, 24) + (f1 >>> 32);
+        f3 += le32(key, 28) + (f2 >>> 32);
+
+        putLE32(out, outOff, f0);
+        putLE32(out, outOff + 4, f1);
+        putLE32(out, outOff + 8, f2);
+        putLE32(out, outOff + 12, f3);
+    }
+
+    private static long le32(byte[] b, int off) {
+        return (b[off] & 0xffL) | ((b[off + 1] & 0xffL) << 8)
+                | ((b[off + 2] & 0xffL) << 16) | ((b[off + 3] & 0xffL) << 24);
+    }
+
+    private static void putLE32(byte[] b, int off, long n) {
+        b[off] = (byte) n;
+        b[off + 1] = (byte) (n >>> 8);
+        b[off + 2] = (byte) (n >>> 16);
+        b[off + 3] = (byte) (n >>> 24);
+    }
+}
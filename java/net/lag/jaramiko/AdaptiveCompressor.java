@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2005-2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package net.lag.jaramiko;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wraps the outbound compressor, keeping count of how well it's doing. In
+ * adaptive mode, it also samples the compression ratio of each channel's
+ * data, and sends channels that don't compress (data that's already gzipped,
+ * for example) at level 0. Level 0 still goes through the compressor, as
+ * stored blocks, so the stream stays valid and the peer never knows. Every
+ * so often, a bypassed channel is sampled again, in case its data has
+ * changed.
+ *
+ * <p>
+ * The same wrapper is kept across key exchanges, with a fresh compressor
+ * inside each time, so the counts cover the whole session.
+ */
+/* package */class AdaptiveCompressor implements Compressor {
+    private static class Sample {
+        public boolean mBypass;
+        public int mIn; // bytes in the current sample, or bypassed so far
+        public int mOut;
+    }
+
+    public AdaptiveCompressor(boolean adaptive) {
+        mAdaptive = adaptive;
+        mSamples = new HashMap<Integer, Sample>();
+    }
+
+    // start a fresh stream after a key exchange
+    public void setCompressor(Compressor compressor) {
+        mCompressor = compressor;
+        mCompressor.setCompressionLevel(mLevel);
+        mCurrentLevel = mLevel;
+    }
+
+    public void setCompressionLevel(int level) {
+        mLevel = level;
+        if (mCompressor != null) {
+            mCompressor.setCompressionLevel(level);
+        }
+        mCurrentLevel = level;
+    }
+
+    public int compressBound(int length) {
+        // a level change can add a few bytes, so assume there'll be one
+        return mCompressor.compressBound(length) + LEVEL_CHANGE_SLACK;
+    }
+
+    public int compress(byte[] data, int offset, int length, byte[] out,
+            int outOffset) {
+        Sample sample = mAdaptive ? getSample(data, offset, length) : null;
+        int level = ((sample != null) && sample.mBypass) ? 0 : mLevel;
+        if (level != mCurrentLevel) {
+            mCompressor.setCompressionLevel(level);
+            mCurrentLevel = level;
+        }
+        int n = mCompressor.compress(data, offset, length, out, outOffset);
+
+        synchronized (this) {
+            mBytesIn += length;
+            mBytesOut += n;
+            if (level == 0) {
+                mBytesBypassed += length;
+            }
+        }
+        if (sample != null) {
+            update(sample, length, n);
+        }
+        return n;
+    }
+
+    public int uncompress(byte[] data, int offset, int length, byte[] out,
+            int outOffset, int outLength) throws SSHException {
+        return mCompressor.uncompress(data, offset, length, out, outOffset,
+                outLength);
+    }
+
+    public synchronized long getBytesIn() {
+        return mBytesIn;
+    }
+
+    public synchronized long getBytesOut() {
+        return mBytesOut;
+    }
+
+    public synchronized long getBytesBypassed() {
+        return mBytesBypassed;
+    }
+
+    /*
+     * find the sample for the channel this packet is for. only channel data
+     * is sampled: everything else is small, and always compressed. a channel
+     * that's closing is forgotten.
+     */
+    private Sample getSample(byte[] data, int offset, int length) {
+        if (length < 5) {
+            return null;
+        }
+        byte ptype = data[offset];
+        if ((ptype != MessageType.CHANNEL_DATA)
+                && (ptype != MessageType.CHANNEL_EXTENDED_DATA)
+                && (ptype != MessageType.CHANNEL_CLOSE)) {
+            return null;
+        }
+        Integer chanID = Integer.valueOf(((data[offset + 1] & 0xff) << 24)
+                | ((data[offset + 2] & 0xff) << 16)
+                | ((data[offset + 3] & 0xff) << 8) | (data[offset + 4] & 0xff));
+        if (ptype == MessageType.CHANNEL_CLOSE) {
+            mSamples.remove(chanID);
+            return null;
+        }
+        Sample sample = mSamples.get(chanID);
+        if (sample == null) {
+            sample = new Sample();
+            mSamples.put(chanID, sample);
+        }
+        return sample;
+    }
+
+    private void update(Sample sample, int in, int out) {
+        sample.mIn += in;
+        if (sample.mBypass) {
+            if (sample.mIn >= PROBE_BYTES) {
+                // try compressing again
+                sample.mBypass = false;
+                sample.mIn = 0;
+                sample.mOut = 0;
+            }
+            return;
+        }
+        sample.mOut += out;
+        if (sample.mIn >= SAMPLE_BYTES) {
+            // bypass if compression saved less than 5%
+            sample.mBypass = ((long) sample.mOut * 20 > (long) sample.mIn * 19);
+            sample.mIn = 0;
+            sample.mOut = 0;
+        }
+    }
+
+    // channel data to compress before deciding whether it's worth it
+    private static final int SAMPLE_BYTES = 32768;
+    // channel data to send at level 0 before sampling again
+    private static final int PROBE_BYTES = 1024 * 1024;
+    private static final int LEVEL_CHANGE_SLACK = 16;
+
+    private Compressor mCompressor;
+    private boolean mAdaptive;
+    private int mLevel = SecurityOptions.DEFAULT_COMPRESSION_LEVEL;
+    private int mCurrentLevel = SecurityOptions.DEFAULT_COMPRESSION_LEVEL;
+    private Map<Integer, Sample> mSamples;
+
+    private long mBytesIn;
+    private long mBytesOut;
+    private long mBytesBypassed;
+}
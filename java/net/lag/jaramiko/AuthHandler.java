@@ -28,6 +28,7 @@ package net.lag.jaramiko;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.lag.crai.Crai;
 
@@ -48,6 +49,7 @@ class AuthHandler implements MessageHandler {
         mCrai = crai;
         mAuthenticated = false;
         mFailCount = 0;
+        mLock = new ReentrantLock();
     }
 
     /* package */void useServerMode(ServerInterface server, String banner) {
@@ -70,45 +72,57 @@ class AuthHandler implements MessageHandler {
     }
 
     public void authNone(String username, Event event) throws IOException {
-        synchronized (this) {
+        mLock.lock();
+        try {
             mAuthEvent = event;
             mAuthMethod = "none";
             mUsername = username;
             requestAuth();
+        } finally {
+            mLock.unlock();
         }
     }
 
     public void authPassword(String username, String password, Event event)
             throws IOException {
-        synchronized (this) {
+        mLock.lock();
+        try {
             mAuthEvent = event;
             mAuthMethod = "password";
             mUsername = username;
             mPassword = password;
             requestAuth();
+        } finally {
+            mLock.unlock();
         }
     }
 
     public void authPrivateKey(String username, PKey key, Event event)
             throws IOException {
-        synchronized (this) {
+        mLock.lock();
+        try {
             mAuthEvent = event;
             mAuthMethod = "publickey";
             mUsername = username;
             mPrivateKey = key;
             requestAuth();
+        } finally {
+            mLock.unlock();
         }
     }
 
     public void authInteractive(String username, InteractiveHandler handler,
             Event event, String[] submethods) throws IOException {
-        synchronized (this) {
+        mLock.lock();
+        try {
             mAuthEvent = event;
             mAuthMethod = "keyboard-interactive";
             mUsername = username;
             mInteractiveHandler = handler;
             mSubmethods = submethods;
             requestAuth();
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -162,7 +176,8 @@ class AuthHandler implements MessageHandler {
         mTransport.sendMessage(m);
     }
 
-    private byte[] getSessionBlob(PKey key, String service, String username) {
+    private byte[] getSessionBlob(String algorithm, PKey key, String service,
+            String username) {
         Message m = new Message();
         m.putByteString(mTransport.getSessionID());
         m.putByte(MessageType.USERAUTH_REQUEST);
@@ -170,11 +185,28 @@ class AuthHandler implements MessageHandler {
         m.putString(service);
         m.putString("publickey");
         m.putBoolean(true);
-        m.putString(key.getSSHName());
+        m.putString(algorithm);
         m.putByteString(key.toByteArray());
         return m.toByteArray();
     }
 
+    /*
+     * use the best signature algorithm the server says it takes. servers that
+     * don't send a list (in EXT_INFO) only know the key's own name.
+     */
+    private String getSignatureAlgorithm(PKey key) {
+        List<String> accepted = mTransport.mServerSigAlgs;
+        if (accepted != null) {
+            String[] algorithms = key.getSignatureAlgorithms();
+            for (int i = 0; i < algorithms.length; i++) {
+                if (accepted.contains(algorithms[i])) {
+                    return algorithms[i];
+                }
+            }
+        }
+        return key.getSSHName();
+    }
+
     private void parseServiceAccept(Message m) throws IOException {
         String service = m.getString();
         if (!service.equals("ssh-userauth")) {
@@ -192,12 +224,14 @@ class AuthHandler implements MessageHandler {
             m.putBoolean(false);
             m.putString(mPassword);
         } else if (mAuthMethod.equals("publickey")) {
+            String algorithm = getSignatureAlgorithm(mPrivateKey);
             m.putBoolean(true);
-            m.putString(mPrivateKey.getSSHName());
+            m.putString(algorithm);
             m.putByteString(mPrivateKey.toByteArray());
-            byte[] blob = getSessionBlob(mPrivateKey, "ssh-connection",
-                    mUsername);
-            m.putByteString(mPrivateKey.signSSHData(mCrai, blob).toByteArray());
+            byte[] blob = getSessionBlob(algorithm, mPrivateKey,
+                    "ssh-connection", mUsername);
+            m.putByteString(mPrivateKey.signSSHData(mCrai, blob, algorithm)
+                    .toByteArray());
         } else if (mAuthMethod.equals("keyboard-interactive")) {
             m.putString("");
             if (mSubmethods == null) {
@@ -464,8 +498,10 @@ class AuthHandler implements MessageHandler {
                     return;
                 }
                 Message sig = new Message(m.getByteString());
-                byte[] blob = getSessionBlob(key, service, username);
-                if (!key.verifySSHSignature(mCrai, blob, sig)) {
+                byte[] blob = getSessionBlob(keyType, key, service, username);
+                boolean sameType = sig.getString().equals(keyType);
+                sig.rewind();
+                if (!sameType || !key.verifySSHSignature(mCrai, blob, sig)) {
                     logger.info("Auth rejected: invalid signature");
                     result = AuthError.FAILED;
                 }
@@ -497,6 +533,9 @@ class AuthHandler implements MessageHandler {
     private static final int DISCONNECT_NO_MORE_AUTH_METHODS_AVAILABLE = 14;
 
     private BaseTransport mTransport;
+    // held across sending the request; not a monitor, so that it doesn't
+    // pin a virtual thread
+    private ReentrantLock mLock;
     private Crai mCrai;
     private BannerListener mBannerListener;
     private String mBanner;
@@ -33,13 +33,20 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.math.BigInteger;
 import java.net.Socket;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.lag.crai.Crai;
+import net.lag.crai.CraiAEADCipher;
 import net.lag.crai.CraiCipher;
 import net.lag.crai.CraiCipherAlgorithm;
 import net.lag.crai.CraiDigest;
@@ -73,6 +80,7 @@ abstract class BaseTransport implements Transport {
         mActive = false;
         mInKex = false;
         mClearToSend = new Event();
+        mClearToSendLock = new ReentrantLock();
 
         mSocket = socket;
         mInStream = mSocket.getInputStream();
@@ -164,6 +172,32 @@ abstract class BaseTransport implements Transport {
         return mMaxPacketSize;
     }
 
+    /**
+     * Set the most outbound data that will be collected into a single socket
+     * write. When a channel has a lot of data to send and the remote window
+     * is open, several packets (and their MACs) are encrypted together and
+     * handed to the socket at once, rather than with two writes per packet.
+     * Packets are never held back waiting for more data: each batch is
+     * written as soon as it's built. Smaller values trade more system calls
+     * for less buffering.
+     * 
+     * @param size
+     *            the batch size (in bytes); the default is 64kB
+     */
+    public void setWriteBatchSize(int size) {
+        mPacketizer.setWriteBatchSize(size);
+    }
+
+    /**
+     * Return the current write batch size. (see
+     * {@link #setWriteBatchSize(int)})
+     * 
+     * @return the batch size (in bytes)
+     */
+    public int getWriteBatchSize() {
+        return mPacketizer.getWriteBatchSize();
+    }
+
     public SecurityOptions getSecurityOptions() {
         return mSecurityOptions;
     }
@@ -200,6 +234,7 @@ abstract class BaseTransport implements Transport {
      * @param compress
      *            true to ask the remote client/server to compress trafic; false
      *            to refuse compression
+     * @see SecurityOptions#setCompressionLevel
      */
     public void useCompression(boolean compress) {
         if (compress) {
@@ -210,6 +245,67 @@ abstract class BaseTransport implements Transport {
         }
     }
 
+    /**
+     * Return how much outbound compression has shrunk the data sent so far:
+     * the compressed size divided by the original size. Returns 1.0 if
+     * compression is off, or nothing has been compressed yet.
+     * 
+     * @return the outbound compression ratio
+     * @see SecurityOptions#setAdaptiveCompression
+     */
+    public double getCompressionRatio() {
+        AdaptiveCompressor c = mOutboundCompressor;
+        if ((c == null) || (c.getBytesIn() == 0)) {
+            return 1.0;
+        }
+        return (double) c.getBytesOut() / c.getBytesIn();
+    }
+
+    /**
+     * Return the number of bytes of channel data that adaptive compression
+     * decided not to compress, because they didn't seem to be compressible.
+     * 
+     * @return the number of bytes sent at level 0
+     */
+    public long getCompressionBypassedBytes() {
+        AdaptiveCompressor c = mOutboundCompressor;
+        return (c == null) ? 0 : c.getBytesBypassed();
+    }
+
+    /**
+     * Drive this transport from a shared {@link EventLoop} instead of giving
+     * it a feeder thread of its own. This must be called before starting the
+     * transport, and the transport's socket must have been created from a
+     * {@link SocketChannel}. Once started, the socket is switched into
+     * non-blocking mode.
+     *
+     * @param loop
+     *            the event loop that should read from this transport's socket
+     */
+    public void setEventLoop(EventLoop loop) {
+        if ((loop != null) && (mSocket.getChannel() == null)) {
+            throw new IllegalArgumentException(
+                    "An event loop needs a socket created from a SocketChannel");
+        }
+        mEventLoop = loop;
+    }
+
+    /**
+     * Set the factory used to create this transport's feeder thread. By
+     * default, a new platform thread is created for each transport. On JDK 21
+     * or later, passing <code>Thread.ofVirtual().factory()</code> runs the
+     * feeder on a virtual thread instead, which is much cheaper for servers
+     * holding many idle sessions. This must be called before starting the
+     * transport, and has no effect if an {@link EventLoop} is in use.
+     * 
+     * @param factory
+     *            the factory for the feeder thread, or null to use a plain
+     *            {@link Thread}
+     */
+    public void setThreadFactory(ThreadFactory factory) {
+        mThreadFactory = factory;
+    }
+
     public void renegotiateKeys(int timeout_ms) throws IOException {
         mCompletionEvent = new Event();
         sendKexInit();
@@ -260,11 +356,14 @@ abstract class BaseTransport implements Transport {
     public void close() {
         Channel[] chans;
 
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             mActive = false;
             mPacketizer.close();
             chans = mChannels;
             mChannels = new Channel[16];
+        } finally {
+            mLock.unlock();
         }
 
         for (int i = 0; i < chans.length; i++) {
@@ -302,16 +401,22 @@ abstract class BaseTransport implements Transport {
     }
 
     /* package */void saveException(IOException x) {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             mSavedException = x;
+        } finally {
+            mLock.unlock();
         }
     }
 
     /* package */IOException getException() {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             IOException x = mSavedException;
             mSavedException = null;
             return x;
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -322,9 +427,25 @@ abstract class BaseTransport implements Transport {
         }
     }
 
+    /* package */void sendMessages(List<Message> msgs) throws IOException {
+        mPacketizer.write(msgs);
+        if (mPacketizer.needRekey() && !mInKex) {
+            sendKexInit();
+        }
+    }
+
     /* package */final void setKH(BigInteger k, byte[] h) {
+        setKH(k, h, null);
+    }
+
+    /*
+     * the session keys are derived with the same hash as the exchange hash
+     * (SHA-1 if none is given).
+     */
+    /* package */final void setKH(BigInteger k, byte[] h, CraiDigest hash) {
         mK = k;
         mH = h;
+        mKexHash = hash;
         if (mSessionID == null) {
             mSessionID = h;
         }
@@ -337,7 +458,7 @@ abstract class BaseTransport implements Transport {
     /* package */final byte[] computeKey(byte id, int nbytes) {
         byte[] out = new byte[nbytes];
         int sofar = 0;
-        CraiDigest sha = sCrai.makeSHA1();
+        CraiDigest sha = (mKexHash != null) ? mKexHash : sCrai.makeSHA1();
 
         while (sofar < nbytes) {
             Message m = new Message();
@@ -364,6 +485,18 @@ abstract class BaseTransport implements Transport {
         return out;
     }
 
+    // make the hmac described by mdesc, keyed with key
+    /* package */static CraiDigest makeMac(MacDescription mdesc, byte[] key) {
+        if (mdesc.mName.equals("MD5")) {
+            return sCrai.makeMD5HMAC(key);
+        } else if (mdesc.mName.equals("SHA256")) {
+            return sCrai.makeSHA256HMAC(key);
+        } else if (mdesc.mName.equals("SHA512")) {
+            return sCrai.makeSHA512HMAC(key);
+        }
+        return sCrai.makeSHA1HMAC(key);
+    }
+
     private void startInboundCompression() {
         logger.debug("Switching on inbound compression ...");
 
@@ -386,8 +519,14 @@ abstract class BaseTransport implements Transport {
                 .get(mDescription.mLocalCompression);
         if (compressClass != null) {
             try {
-                Compressor compress = compressClass.newInstance();
-                mPacketizer.setOutboundCompressor(compress);
+                if (mOutboundCompressor == null) {
+                    mOutboundCompressor = new AdaptiveCompressor(
+                            mSecurityOptions.getAdaptiveCompression());
+                    mOutboundCompressor.setCompressionLevel(mSecurityOptions
+                            .getCompressionLevel());
+                }
+                mOutboundCompressor.setCompressor(compressClass.newInstance());
+                mPacketizer.setOutboundCompressor(mOutboundCompressor);
             } catch (Exception x) {
                 throw new RuntimeException("Internal java error: " + x);
             }
@@ -413,15 +552,30 @@ abstract class BaseTransport implements Transport {
     /* package */final void activateOutbound() throws IOException {
         Message m = new Message();
         m.putByte(MessageType.NEW_KEYS);
-        sendMessage(m);
 
-        CipherDescription desc = mDescription.mLocalCipher;
-        MacDescription mdesc = mDescription.mLocalMac;
-        activateOutbound(desc, mdesc);
+        // the server may get here on a handshake thread, while the feeder is
+        // still writing: nothing else can go out between NEW_KEYS and the
+        // switch to new keys
+        mPacketizer.lockWrites();
+        try {
+            sendMessage(m);
 
-        if ((mDescription.mLocalCompression != null)
-                && (!mDescription.mLocalCompression.equals("zlib@openssh.com") || isAuthenticated())) {
-            startOutboundCompression();
+            CipherDescription desc = mDescription.mLocalCipher;
+            MacDescription mdesc = mDescription.mLocalMac;
+            activateOutbound(desc, mdesc);
+
+            if ((mDescription.mLocalCompression != null)
+                    && (!mDescription.mLocalCompression.equals("zlib@openssh.com") || isAuthenticated())) {
+                startOutboundCompression();
+            }
+        } finally {
+            mPacketizer.unlockWrites();
+        }
+
+        if (mPeerWantsExtInfo) {
+            // only ever sent right after our first NEW_KEYS
+            mPeerWantsExtInfo = false;
+            sendExtInfo();
         }
 
         if (!mPacketizer.needRekey()) {
@@ -461,11 +615,45 @@ abstract class BaseTransport implements Transport {
     /* package */void sendUserMessage(Message m, int timeout_ms)
             throws IOException {
         while (true) {
-            synchronized (mClearToSend) {
+            mClearToSendLock.lock();
+            try {
                 if (mClearToSend.isSet()) {
                     sendMessage(m);
                     return;
                 }
+            } finally {
+                mClearToSendLock.unlock();
+            }
+            if (!waitForEvent(mClearToSend, timeout_ms)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send a batch of messages, in order, with as few socket writes as
+     * possible. Like {@link #sendUserMessage}, this blocks until any key
+     * negotiation is finished.
+     * 
+     * @param msgs
+     *            the messages to send
+     * @param timeout_ms
+     *            maximum time (in milliseconds) to wait for the key exchange to
+     *            finish, if it's ongoing
+     * @throws IOException
+     *             if there's an I/O exception on the socket
+     */
+    /* package */void sendUserMessages(List<Message> msgs, int timeout_ms)
+            throws IOException {
+        while (true) {
+            mClearToSendLock.lock();
+            try {
+                if (mClearToSend.isSet()) {
+                    sendMessages(msgs);
+                    return;
+                }
+            } finally {
+                mClearToSendLock.unlock();
             }
             if (!waitForEvent(mClearToSend, timeout_ms)) {
                 return;
@@ -538,6 +726,29 @@ abstract class BaseTransport implements Transport {
             throw new SSHException("Indecipherable protocol version '" + line
                     + "'");
         }
+        checkVersion(line);
+    }
+
+    // non-blocking version of checkBanner: returns true once the version line
+    // has arrived
+    private boolean pollBanner() throws IOException {
+        String line;
+        while ((line = mPacketizer.pollLine()) != null) {
+            if (line.startsWith("SSH-")) {
+                checkVersion(line);
+                return true;
+            }
+            logger.debug("Banner: {}", line);
+            if (++mBannerLines >= 5) {
+                throw new SSHException("Indecipherable protocol version '"
+                        + line + "'");
+            }
+            mBannerDeadline = System.currentTimeMillis() + BANNER_TIMEOUT;
+        }
+        return false;
+    }
+
+    private void checkVersion(String line) throws IOException {
         mRemoteVersion = line;
 
         // pull off any attached comment
@@ -561,17 +772,25 @@ abstract class BaseTransport implements Transport {
     private void sendKexInit() throws IOException {
         sendKexInitHook();
 
-        synchronized (mClearToSend) {
+        mClearToSendLock.lock();
+        try {
             mClearToSend.clear();
+        } finally {
+            mClearToSendLock.unlock();
         }
 
         byte[] rand = new byte[16];
         sCrai.getPRNG().getBytes(rand);
 
+        List<String> kex = mSecurityOptions.getKex();
+        if (!mInitialKexDone && (getExtInfoSignal() != null)) {
+            kex.add(getExtInfoSignal());
+        }
+
         Message m = new Message();
         m.putByte(MessageType.KEX_INIT);
         m.putBytes(rand);
-        m.putList(mSecurityOptions.getKex());
+        m.putList(kex);
         m.putList(mSecurityOptions.getKeys());
         m.putList(mSecurityOptions.getCiphers());
         m.putList(mSecurityOptions.getCiphers());
@@ -594,6 +813,44 @@ abstract class BaseTransport implements Transport {
         // pass
     }
 
+    /*
+     * the pseudo-algorithm added to our first kex list to say that we'll take
+     * an EXT_INFO message (RFC 8308). only clients want one.
+     */
+    /* package */String getExtInfoSignal() {
+        return null;
+    }
+
+    // tell the client which signature algorithms we'll take for user auth
+    private void sendExtInfo() throws IOException {
+        List<String> algorithms = new ArrayList<String>();
+        for (int i = 0; i < KNOWN_KEYS.length; i++) {
+            if (sKeyMap.containsKey(KNOWN_KEYS[i])) {
+                algorithms.add(KNOWN_KEYS[i]);
+            }
+        }
+
+        Message m = new Message();
+        m.putByte(MessageType.EXT_INFO);
+        m.putInt(1);
+        m.putString("server-sig-algs");
+        m.putList(algorithms);
+        sendMessage(m);
+    }
+
+    private void parseExtInfo(Message m) {
+        int count = m.getInt();
+        for (int i = 0; i < count; i++) {
+            String name = m.getString();
+            if (name.equals("server-sig-algs")) {
+                mServerSigAlgs = m.getList();
+                logger.debug("Server signature algorithms: {}", mServerSigAlgs);
+            } else {
+                m.getByteString(); // unknown extension
+            }
+        }
+    }
+
     // return the first string from localPrefs that's in remotePrefs
     // (server mode overrides this to reverse the sense)
     /* package */String filter(List<String> localPrefs, List<String> remotePrefs) {
@@ -673,63 +930,115 @@ abstract class BaseTransport implements Transport {
                 if (m == null) {
                     break;
                 }
+                handlePacket(m);
+            }
+        } catch (SSHException x) {
+            if (!isSessionEnded()) {
+                logger.error("Exception: ", x);
+                logStackTrace(x);
+                saveException(x);
+            }
+        } catch (IOException x) {
+            if (!isSessionEnded()) {
+                logger.error("I/O exception in feeder thread: ", x);
+                saveException(x);
+            }
+        }
 
-                byte ptype = m.getByte();
-                switch (ptype) {
-                case MessageType.IGNORE:
-                    continue;
-                case MessageType.DISCONNECT:
-                    parseDisconnect(m);
-                    mActive = false;
-                    mPacketizer.close();
-                    continue;
-                case MessageType.DEBUG:
-                    parseDebug(m);
-                    continue;
-                }
+        endSession();
+    }
 
-                if (mExpectedPacket1 != 0) {
-                    if ((ptype != mExpectedPacket1)
-                            && (ptype != mExpectedPacket2)) {
-                        if (mExpectedPacket2 != 0) {
-                            throw new SSHException(
-                                    "Expecting packet "
-                                            + MessageType
-                                                    .getDescription(mExpectedPacket1)
-                                            + " or "
-                                            + MessageType
-                                                    .getDescription(mExpectedPacket2)
-                                            + ", got "
-                                            + MessageType.getDescription(ptype));
-                        } else {
-                            throw new SSHException(
-                                    "Expecting packet "
-                                            + MessageType
-                                                    .getDescription(mExpectedPacket1)
-                                            + ", got "
-                                            + MessageType.getDescription(ptype));
-                        }
-                    }
-                    mExpectedPacket1 = 0;
-                    mExpectedPacket2 = 0;
-                }
+    private void handlePacket(Message m) throws IOException {
+        byte ptype = m.getByte();
+        switch (ptype) {
+        case MessageType.IGNORE:
+            return;
+        case MessageType.DISCONNECT:
+            parseDisconnect(m);
+            mActive = false;
+            mPacketizer.close();
+            return;
+        case MessageType.DEBUG:
+            parseDebug(m);
+            return;
+        }
+
+        // a handshake task may still be finishing our half of a key exchange
+        // (and setting up what we expect next), so wait for it
+        mKexLock.lock();
+        try {
+            dispatchPacket(ptype, m);
+        } finally {
+            mKexLock.unlock();
+        }
+    }
+
+    /*
+     * mark a handshake task as started or finished. while one is running, an
+     * event loop leaves this transport's inbound packets queued rather than
+     * block its thread in handlePacket, and picks them up again when the task
+     * is done.
+     */
+    /* package */void setKexTaskRunning(boolean running) {
+        mKexLock.lock();
+        try {
+            mKexTaskRunning = running;
+        } finally {
+            mKexLock.unlock();
+        }
+        if (!running && (mLoopWorker != null)) {
+            mLoopWorker.update(this);
+        }
+    }
 
-                if (!parsePacket(ptype, m)) {
-                    logger.warn("Oops, unhandled packet type {}",
-                                MessageType.getDescription(ptype));
-                    Message resp = new Message();
-                    resp.putByte(MessageType.UNIMPLEMENTED);
-                    resp.putInt(m.getSequence());
-                    sendMessage(resp);
+    /* package */boolean isInboundParked() {
+        mKexLock.lock();
+        try {
+            return mKexTaskRunning;
+        } finally {
+            mKexLock.unlock();
+        }
+    }
+
+    private void dispatchPacket(byte ptype, Message m) throws IOException {
+        if (mExpectedPacket1 != 0) {
+            if ((ptype != mExpectedPacket1) && (ptype != mExpectedPacket2)) {
+                if (mExpectedPacket2 != 0) {
+                    throw new SSHException("Expecting packet "
+                            + MessageType.getDescription(mExpectedPacket1)
+                            + " or "
+                            + MessageType.getDescription(mExpectedPacket2)
+                            + ", got " + MessageType.getDescription(ptype));
+                } else {
+                    throw new SSHException("Expecting packet "
+                            + MessageType.getDescription(mExpectedPacket1)
+                            + ", got " + MessageType.getDescription(ptype));
                 }
             }
-        } catch (SSHException x) {
-            logger.error("Exception: ", x);
-            logStackTrace(x);
-            saveException(x);
-        } catch (IOException x) {
-            logger.error("I/O exception in feeder thread: ", x);
-            saveException(x);
+            mExpectedPacket1 = 0;
+            mExpectedPacket2 = 0;
+        }
+
+        if (!parsePacket(ptype, m)) {
+            logger.warn("Oops, unhandled packet type {}",
+                        MessageType.getDescription(ptype));
+            Message resp = new Message();
+            resp.putByte(MessageType.UNIMPLEMENTED);
+            resp.putInt(m.getSequence());
+            sendMessage(resp);
+        }
+    }
+
+    // tear down the session once the feeder (or event loop) is done with it
+    private void endSession() {
+        mLock.lock();
+        try {
+            if (mSessionEnded) {
+                return;
+            }
+            mSessionEnded = true;
+        } finally {
+            mLock.unlock();
         }
 
         for (int i = 0; i < mChannels.length; i++) {
@@ -756,8 +1065,243 @@ abstract class BaseTransport implements Transport {
             }
         }
         try {
+            if (mChannelOut != null) {
+                // sends what it can of the queue, and wakes any writers
+                mChannelOut.close();
+            }
             mSocket.close();
         } catch (IOException x) {}
+        endSessionHook();
+    }
+
+    /* package */void endSessionHook() {
+        // pass
+    }
+
+    /*
+     * true once the session has been torn down. a handshake task that fails
+     * ends the session from its own thread, and the feeder's complaints about
+     * the socket closing under it shouldn't replace the real reason.
+     */
+    private boolean isSessionEnded() {
+        mLock.lock();
+        try {
+            return mSessionEnded;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // the server's half of a key exchange failed on a handshake thread
+    /* package */void kexTaskFailed(IOException x) {
+        logger.error("Exception in key exchange: ", x);
+        logStackTrace(x);
+        saveException(x);
+        endSession();
+    }
+
+    /* package */void startEventLoop() throws IOException {
+        SocketChannel channel = mSocket.getChannel();
+        channel.configureBlocking(false);
+        // picked first, so that anything queued from here on can wake it
+        mLoopWorker = mEventLoop.nextWorker();
+        mChannelOut = new SocketChannelOutputStream(channel, new Runnable() {
+            public void run() {
+                mLoopWorker.update(BaseTransport.this);
+            }
+        });
+        mOutStream = mChannelOut;
+        mPacketizer.setNonBlocking(mOutStream);
+        mBannerLines = 0;
+        mBannerDeadline = System.currentTimeMillis() + mInitialBannerTimeout;
+        mPacketizer.writeline(mLocalVersion + "\r\n");
+        mLoopWorker.add(this);
+    }
+
+    /* package */SocketChannel getSocketChannel() {
+        return mSocket.getChannel();
+    }
+
+    /*
+     * called by the event loop when the socket has data waiting. reads
+     * whatever has arrived and handles every complete packet. returns false
+     * once the session is over and the socket should be dropped.
+     */
+    /* package */boolean handleReadable(ByteBuffer buffer) {
+        if (!mActive) {
+            // closed locally; the socket is already gone
+            endSession();
+            return false;
+        }
+        try {
+            // through Buffer: ByteBuffer's own clear() only exists from java 9
+            ((Buffer) buffer).clear();
+            int n = mSocket.getChannel().read(buffer);
+            if (n < 0) {
+                endSession();
+                return false;
+            }
+            mPacketizer.feed(buffer.array(), buffer.arrayOffset(), n);
+
+            if (mRemoteVersion == null) {
+                if (!pollBanner()) {
+                    return true;
+                }
+                sendKexInit();
+                mExpectedPacket1 = MessageType.KEX_INIT;
+            }
+            handleQueued();
+        } catch (IOException x) {
+            eventLoopException(x);
+        } catch (RuntimeException x) {
+            eventLoopException(x);
+        }
+        return checkEventLoopSession();
+    }
+
+    /*
+     * called by the event loop once a handshake task has finished, to handle
+     * the packets that arrived while it ran, or when output is first queued.
+     * returns false once the session is over.
+     */
+    /* package */boolean handleUpdate() {
+        try {
+            if (mActive && (mRemoteVersion != null)) {
+                handleQueued();
+            }
+        } catch (IOException x) {
+            eventLoopException(x);
+        } catch (RuntimeException x) {
+            eventLoopException(x);
+        }
+        return checkEventLoopSession();
+    }
+
+    /*
+     * called by the event loop when the socket has room for more of the
+     * queued output. returns false once the session is over.
+     */
+    /* package */boolean handleWritable() {
+        try {
+            mChannelOut.drain();
+        } catch (IOException x) {
+            eventLoopException(x);
+        } catch (RuntimeException x) {
+            eventLoopException(x);
+        }
+        return checkEventLoopSession();
+    }
+
+    /*
+     * called when the event loop worker stops (because the loop was closed,
+     * or the worker itself failed) with this transport still on it. nothing
+     * would read the socket again, so the session ends here.
+     */
+    /* package */void eventLoopStopped(IOException x) {
+        if (isSessionEnded()) {
+            return;
+        }
+        if (mActive) {
+            saveException(x);
+        }
+        endSession();
+    }
+
+    /* package */boolean hasQueuedOutput() {
+        return (mChannelOut != null) && mChannelOut.hasQueued();
+    }
+
+    /* package */boolean isOutputBacklogged() {
+        return (mChannelOut != null) && !EventLoop.inLoopThread()
+                && mChannelOut.isBacklogged();
+    }
+
+    /*
+     * on an event loop, wait until the peer has read most of what's queued
+     * for it. the caller mustn't hold any lock the loop needs to make
+     * progress (the transport's, a channel's, or the packetizer's).
+     */
+    /* package */void waitForOutputRoom() throws IOException {
+        if ((mChannelOut != null) && !EventLoop.inLoopThread()) {
+            mChannelOut.waitForRoom();
+        }
+    }
+
+    // handle every complete packet, until a handshake task parks us
+    private void handleQueued() throws IOException {
+        Message m;
+        while (mActive && !isInboundParked()
+                && ((m = mPacketizer.poll()) != null)) {
+            handlePacket(m);
+        }
+        if (mActive && mPacketizer.needRekey() && !mInKex) {
+            sendKexInit();
+        }
+    }
+
+    /*
+     * called by the event loop every tenth of a second or so, to do the
+     * housekeeping that the feeder thread does between reads.
+     */
+    /* package */boolean handleTick() {
+        try {
+            if (mActive && (mRemoteVersion == null)) {
+                if (System.currentTimeMillis() >= mBannerDeadline) {
+                    throw new SSHException(
+                            "Timeout waiting for SSH protocol banner");
+                }
+            } else if (mActive) {
+                if (mPacketizer.needRekey() && !mInKex) {
+                    sendKexInit();
+                }
+                mPacketizer.checkKeepAlive();
+            }
+        } catch (IOException x) {
+            eventLoopException(x);
+        } catch (RuntimeException x) {
+            eventLoopException(x);
+        }
+        return checkEventLoopSession();
+    }
+
+    /* package */void eventLoopException(Exception x) {
+        if (isSessionEnded()) {
+            // already torn down by a failed handshake task
+            return;
+        }
+        if (x instanceof SSHException) {
+            logger.error("Exception: ", x);
+            logStackTrace(x);
+            saveException((SSHException) x);
+        } else if (x instanceof IOException) {
+            logger.error("I/O exception in event loop: ", x);
+            saveException((IOException) x);
+        } else {
+            logger.error("Exception from event loop! ", x);
+            StringWriter buffer = new StringWriter();
+            x.printStackTrace(new PrintWriter(buffer));
+            logger.debug(buffer.toString());
+        }
+        endSession();
+    }
+
+    private boolean checkEventLoopSession() {
+        if (!mActive) {
+            endSession();
+            return false;
+        }
+        return true;
+    }
+
+    /* package */void startFeeder(Runnable feeder, String name) {
+        Thread t;
+        if (mThreadFactory != null) {
+            t = mThreadFactory.newThread(feeder);
+            t.setName(name);
+        } else {
+            t = new Thread(feeder, name);
+        }
+        t.start();
     }
 
     /* package */void transportRun() {
@@ -819,6 +1363,9 @@ abstract class BaseTransport implements Transport {
         case MessageType.KEX_INIT:
             parseKexInit(m);
             return true;
+        case MessageType.EXT_INFO:
+            parseExtInfo(m);
+            return true;
         }
         return false;
     }
@@ -845,6 +1392,7 @@ abstract class BaseTransport implements Transport {
         mRemoteKexInit = null;
         mKexEngine = null;
         mK = null;
+        mKexHash = null;
 
         // give ServerTransport a chance to set up an AuthHandler hook:
         parseNewKeysHook();
@@ -860,8 +1408,11 @@ abstract class BaseTransport implements Transport {
         if (!mPacketizer.needRekey()) {
             mInKex = false;
         }
-        synchronized (mClearToSend) {
+        mClearToSendLock.lock();
+        try {
             mClearToSend.set();
+        } finally {
+            mClearToSendLock.unlock();
         }
     }
 
@@ -900,8 +1451,11 @@ abstract class BaseTransport implements Transport {
 
     private void parseKexInit(Message m) throws IOException {
         // okay, no sending requests until kex init is done
-        synchronized (mClearToSend) {
+        mClearToSendLock.lock();
+        try {
             mClearToSend.clear();
+        } finally {
+            mClearToSendLock.unlock();
         }
         if (mLocalKexInit == null) {
             // send ours too
@@ -923,6 +1477,10 @@ abstract class BaseTransport implements Transport {
         m.getBoolean(); // kex follows
         m.getInt(); // unused
 
+        if (!mInitialKexDone) {
+            mPeerWantsExtInfo = kexAlgorithmList.contains("ext-info-c");
+        }
+
         String agreedLocalCompression = filter(
                 mSecurityOptions.getCompressions(), clientCompressAlgorithmList);
         String agreedRemoteCompression = filter(
@@ -1005,7 +1563,8 @@ abstract class BaseTransport implements Transport {
 
     private void parseRequestSuccess(Message m) throws IOException {
         logger.debug("Global request successful.");
-        mGlobalResponse = m;
+        // the caller reads this after the packet buffer has moved on
+        mGlobalResponse = m.copy();
         if (mCompletionEvent != null) {
             mCompletionEvent.set();
         }
@@ -1025,7 +1584,8 @@ abstract class BaseTransport implements Transport {
         int serverWindowSize = m.getInt();
         int serverMaxPacketSize = m.getInt();
 
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             Channel c = mChannels[chanID];
             if (c == null) {
                 logger.warn("Success for unrequested channel! [??]");
@@ -1038,6 +1598,8 @@ abstract class BaseTransport implements Transport {
                 mChannelEvents[chanID].set();
                 mChannelEvents[chanID] = null;
             }
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -1050,13 +1612,16 @@ abstract class BaseTransport implements Transport {
         logger.info("Secsh channel {} open FAILED: {}: {}",
                     new Object[] { chanID, reasonStr, reasonText });
 
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             saveException(new ChannelException(reason));
             mChannels[chanID] = null;
             if (mChannelEvents[chanID] != null) {
                 mChannelEvents[chanID].set();
                 mChannelEvents[chanID] = null;
             }
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -1110,8 +1675,11 @@ abstract class BaseTransport implements Transport {
     }
 
     protected void unlinkChannel(int chanID) {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             mChannels[chanID] = null;
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -1122,29 +1690,86 @@ abstract class BaseTransport implements Transport {
         }
     }
 
+    // don't offer anything detectUnsupportedCiphers turned off
+    private void dropUnsupported() {
+        List<String> ciphers = mSecurityOptions.getCiphers();
+        ciphers.retainAll(sCipherMap.keySet());
+        mSecurityOptions.setCiphers(ciphers);
+        List<String> kex = mSecurityOptions.getKex();
+        kex.retainAll(sKexMap.keySet());
+        mSecurityOptions.setKex(kex);
+        List<String> keys = mSecurityOptions.getKeys();
+        keys.retainAll(sKeyMap.keySet());
+        mSecurityOptions.setKeys(keys);
+    }
+
     /*
      * try to generate each of the ciphers in sCipherMap, and remove the ones
      * that throw exceptions. different JVMs may have implement different
      * subsets. also, many versions of java (including the sun JVM!) are
-     * crippled and can't use 256-bit ciphers. amazing.
+     * crippled and can't use 256-bit ciphers. amazing. the same goes for the
+     * elliptic curves in sKexMap, and the newer key types in sKeyMap.
      */
     /* package */void detectUnsupportedCiphers() {
         if (sCheckedCiphers) {
+            dropUnsupported();
             return;
         }
 
         boolean giveAdvice = false;
 
         synchronized (BaseTransport.class) {
+            for (Iterator<Map.Entry<String, Class<? extends Kex>>> i = sKexMap
+                    .entrySet().iterator(); i.hasNext();) {
+                Map.Entry<String, Class<? extends Kex>> entry = i.next();
+                boolean supported;
+                try {
+                    Kex kex = entry.getValue().newInstance();
+                    supported = !(kex instanceof KexECDH)
+                            || ((KexECDH) kex).isSupported(sCrai);
+                } catch (Exception x) {
+                    supported = false;
+                }
+                if (!supported) {
+                    logger.info("Turning off unsupported kex: {}",
+                                entry.getKey());
+                    i.remove();
+                }
+            }
+
+            for (Iterator<Map.Entry<String, Class<? extends PKey>>> i = sKeyMap
+                    .entrySet().iterator(); i.hasNext();) {
+                Map.Entry<String, Class<? extends PKey>> entry = i.next();
+                boolean supported;
+                try {
+                    supported = entry.getValue().newInstance().isSupported(
+                            sCrai);
+                } catch (Exception x) {
+                    supported = false;
+                }
+                if (!supported) {
+                    logger.info("Turning off unsupported key type: {}",
+                                entry.getKey());
+                    i.remove();
+                }
+            }
+
             for (Iterator<Map.Entry<String, CipherDescription>> i = sCipherMap
                     .entrySet().iterator(); i.hasNext();) {
                 Map.Entry<String, CipherDescription> entry = i.next();
                 String name = entry.getKey();
                 CipherDescription desc = entry.getValue();
                 try {
-                    CraiCipher cipher = sCrai.getCipher(desc.mAlgorithm);
-                    cipher.initEncrypt(new byte[desc.mKeySize],
-                            new byte[desc.mBlockSize]);
+                    if (desc.mAEAD) {
+                        CraiAEADCipher cipher = sCrai
+                                .getAEADCipher(desc.mAlgorithm);
+                        cipher.initEncrypt(new byte[desc.mKeySize],
+                                new byte[desc.mIVSize]);
+                    } else {
+                        CraiCipher cipher = sCrai.getCipher(desc.mAlgorithm);
+                        cipher.initEncrypt(new byte[desc.mKeySize],
+                                new byte[desc.mIVSize]);
+                    }
                 } catch (CraiException x) {
                     logger.info("Turning off unsupported encryption: {}",
                                 name);
@@ -1157,6 +1782,7 @@ abstract class BaseTransport implements Transport {
 
             sCheckedCiphers = true;
         }
+        dropUnsupported();
 
         if (giveAdvice) {
             logger.info("Your java installation lacks support for 256-bit encryption.  "
@@ -1197,29 +1823,67 @@ abstract class BaseTransport implements Transport {
                 CraiCipherAlgorithm.AES_CBC, 32, 16));
         sCipherMap.put("3des-cbc", new CipherDescription(
                 CraiCipherAlgorithm.DES3_CBC, 24, 8));
+        sCipherMap.put("aes128-ctr", new CipherDescription(
+                CraiCipherAlgorithm.AES_CTR, 16, 16));
+        sCipherMap.put("aes256-ctr", new CipherDescription(
+                CraiCipherAlgorithm.AES_CTR, 32, 16));
+        sCipherMap.put("aes128-gcm@openssh.com", new CipherDescription(
+                CraiCipherAlgorithm.AES_GCM, 16, 16, 12, true));
+        sCipherMap.put("aes256-gcm@openssh.com", new CipherDescription(
+                CraiCipherAlgorithm.AES_GCM, 32, 16, 12, true));
+        sCipherMap.put("chacha20-poly1305@openssh.com", new CipherDescription(
+                CraiCipherAlgorithm.CHACHA20_POLY1305, 64, 8, 0, true));
 
         sMacMap.put("hmac-sha1", new MacDescription("SHA1", 20, 20));
         sMacMap.put("hmac-sha1-96", new MacDescription("SHA1", 12, 20));
         sMacMap.put("hmac-md5", new MacDescription("MD5", 16, 16));
         sMacMap.put("hmac-md5-96", new MacDescription("MD5", 12, 16));
+        sMacMap.put("hmac-sha2-256", new MacDescription("SHA256", 32, 32));
+        sMacMap.put("hmac-sha2-512", new MacDescription("SHA512", 64, 64));
+        sMacMap.put("hmac-sha2-256-etm@openssh.com", new MacDescription(
+                "SHA256", 32, 32, true));
+        sMacMap.put("hmac-sha2-512-etm@openssh.com", new MacDescription(
+                "SHA512", 64, 64, true));
 
         sKeyMap.put("ssh-rsa", RSAKey.class);
+        sKeyMap.put("rsa-sha2-256", RSAKey.class);
+        sKeyMap.put("rsa-sha2-512", RSAKey.class);
         sKeyMap.put("ssh-dss", DSSKey.class);
-
+        sKeyMap.put("ssh-ed25519", Ed25519Key.class);
+        sKeyMap.put("ecdsa-sha2-nistp256", ECDSAKey.class);
+        sKeyMap.put("ecdsa-sha2-nistp384", ECDSAKey.class);
+        sKeyMap.put("ecdsa-sha2-nistp521", ECDSAKey.class);
+
+        sKexMap.put("curve25519-sha256", KexECDH.Curve25519.class);
+        sKexMap.put("curve25519-sha256@libssh.org",
+                KexECDH.Curve25519LibSSH.class);
+        sKexMap.put("ecdh-sha2-nistp256", KexECDH.NistP256.class);
+        sKexMap.put("ecdh-sha2-nistp384", KexECDH.NistP384.class);
+        sKexMap.put("ecdh-sha2-nistp521", KexECDH.NistP521.class);
         sKexMap.put("diffie-hellman-group1-sha1", KexGroup1.class);
         sKexMap.put("diffie-hellman-group-exchange-sha1", KexGex.class);
 
-        sCompressMap.put("zlib", ZlibCompressor.class);
-        sCompressMap.put("zlib@openssh.com", ZlibCompressor.class);
+        // jzlib is only for JVMs whose Deflater can't flush (before java 7)
+        Class<? extends Compressor> zlib = DeflaterCompressor.isSupported()
+                ? DeflaterCompressor.class : ZlibCompressor.class;
+        sCompressMap.put("zlib", zlib);
+        sCompressMap.put("zlib@openssh.com", zlib);
     }
 
-    private final String[] KNOWN_CIPHERS = { "aes128-cbc", "blowfish-cbc",
+    private final String[] KNOWN_CIPHERS = { "aes128-ctr", "aes256-ctr",
+            "aes128-gcm@openssh.com", "aes256-gcm@openssh.com",
+            "chacha20-poly1305@openssh.com", "aes128-cbc", "blowfish-cbc",
             "aes256-cbc", "3des-cbc" };
-    private final String[] KNOWN_MACS = { "hmac-sha1", "hmac-md5",
-            "hmac-sha1-96", "hmac-md5-96" };
-    private final String[] KNOWN_KEYS = { "ssh-rsa", "ssh-dss" };
-    private final String[] KNOWN_KEX = { "diffie-hellman-group1-sha1",
-            "diffie-hellman-group-exchange-sha1" };
+    private final String[] KNOWN_MACS = { "hmac-sha2-256-etm@openssh.com",
+            "hmac-sha2-512-etm@openssh.com", "hmac-sha2-256", "hmac-sha2-512",
+            "hmac-sha1", "hmac-md5", "hmac-sha1-96", "hmac-md5-96" };
+    private final String[] KNOWN_KEYS = { "ssh-ed25519",
+            "ecdsa-sha2-nistp256", "ecdsa-sha2-nistp384", "ecdsa-sha2-nistp521",
+            "rsa-sha2-512", "rsa-sha2-256", "ssh-rsa", "ssh-dss" };
+    private final String[] KNOWN_KEX = { "curve25519-sha256",
+            "curve25519-sha256@libssh.org", "ecdh-sha2-nistp256",
+            "ecdh-sha2-nistp384", "ecdh-sha2-nistp521",
+            "diffie-hellman-group1-sha1", "diffie-hellman-group-exchange-sha1" };
     private final String[] KNOWN_COMPRESSIONS = { "zlib@openssh.com", "zlib",
             "none" };
 
@@ -1236,9 +1900,17 @@ abstract class BaseTransport implements Transport {
     private Socket mSocket;
     private InputStream mInStream;
     private OutputStream mOutStream;
+    private SocketChannelOutputStream mChannelOut; // on an event loop
+    /* package */EventLoop mEventLoop;
+    private volatile EventLoop.Worker mLoopWorker;
+    private ThreadFactory mThreadFactory;
+    private boolean mSessionEnded;
+    private int mBannerLines;
+    private long mBannerDeadline;
     /* package */SecurityOptions mSecurityOptions;
     /* package */Packetizer mPacketizer;
     private Kex mKexEngine;
+    private volatile AdaptiveCompressor mOutboundCompressor;
 
     // negotiation:
     protected TransportDescription mDescription = null;
@@ -1255,7 +1927,12 @@ abstract class BaseTransport implements Transport {
     /* package */byte[] mSessionID;
     /* package */BigInteger mK;
     /* package */byte[] mH;
-    /* package */Object mLock = new Object();
+    /* package */CraiDigest mKexHash;
+    private boolean mPeerWantsExtInfo;
+    /* package */List<String> mServerSigAlgs; // from the server's EXT_INFO
+    /* package */ReentrantLock mLock = new ReentrantLock();
+    /* package */ReentrantLock mKexLock = new ReentrantLock(); // for handshake tasks
+    private boolean mKexTaskRunning;
 
     // channels:
     /* package */Channel[] mChannels;
@@ -1264,6 +1941,10 @@ abstract class BaseTransport implements Transport {
     /* package */boolean mActive;
     /* package */Event mCompletionEvent;
     private Event mClearToSend;
+    // held while checking mClearToSend and sending, so that a key exchange
+    // can't start half way; a lock rather than a monitor, since it's held
+    // across a socket write
+    private ReentrantLock mClearToSendLock;
     private IOException mSavedException;
     /* package */AuthHandler mAuthHandler;
     private Message mGlobalResponse;
@@ -29,7 +29,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +45,11 @@ import org.slf4j.LoggerFactory;
  *
  * mOutBufferLock protects: mOutWindowSize, outbound packets
  * mLock protects: mActive, mClosed, mEOFReceived, mEOFSent, mCombineStderr
+ *
+ * the locks are ReentrantLocks, so that a reader or writer blocked on the
+ * window doesn't pin a virtual thread to its carrier. mLock is held across
+ * sending requests (and, for sendChannelRequest, waiting for the reply), so
+ * it mustn't be a monitor either.
  */
 
 /**
@@ -70,17 +79,28 @@ public class Channel {
         }
     }
 
+    /*
+     * inbound data is kept in a ring buffer: mBufferStart is the oldest unread
+     * byte, and the mBufferLen bytes after it (wrapping around) are unread. it
+     * grows when a packet won't fit, up to the window we advertised, and drops
+     * back to its initial size when a large buffer is drained.
+     */
     private class ChannelInputStream extends InputStream {
         public ChannelInputStream() {
-            mBuffer = new byte[64];
+            mBuffer = new byte[INITIAL_BUFFER_SIZE];
+            mBufferStart = 0;
             mBufferLen = 0;
-            mBufferLock = new Object();
+            mBufferLock = new ReentrantLock();
+            mDataReady = mBufferLock.newCondition();
         }
 
         @Override
         public int available() {
-            synchronized (mBufferLock) {
+            mBufferLock.lock();
+            try {
                 return mBufferLen;
+            } finally {
+                mBufferLock.unlock();
             }
         }
 
@@ -97,19 +117,27 @@ public class Channel {
         public int read(byte[] buf, int off, int len) throws IOException {
             int ack = 0;
 
-            synchronized (mBufferLock) {
+            mBufferLock.lock();
+            try {
                 if (mBufferLen == 0) {
                     int timeout = mTimeout;
                     while (mBufferLen == 0) {
-                        synchronized (mLock) {
+                        mLock.lock();
+                        try {
                             if (mClosed || mEOFReceived) {
                                 break;
                             }
+                        } finally {
+                            mLock.unlock();
                         }
 
                         long then = System.currentTimeMillis();
                         try {
-                            mBufferLock.wait(timeout);
+                            if (timeout == 0) {
+                                mDataReady.await();
+                            } else {
+                                mDataReady.await(timeout, TimeUnit.MILLISECONDS);
+                            }
                         } catch (InterruptedException x) {}
                         if (mTimeout > 0) {
                             timeout -= System.currentTimeMillis() - then;
@@ -120,29 +148,25 @@ public class Channel {
                     }
 
                     if (mBufferLen == 0) {
-                        synchronized (mLock) {
+                        mLock.lock();
+                        try {
                             if (mEOFReceived) {
                                 return -1;
                             }
                             if (mClosed) {
                                 throw new IOException("Stream closed.");
                             }
+                        } finally {
+                            mLock.unlock();
                         }
                     }
                 }
 
                 // something in the buffer
-                if (mBufferLen <= len) {
-                    System.arraycopy(mBuffer, 0, buf, off, mBufferLen);
-                    len = mBufferLen;
-                    mBufferLen = 0;
-                } else {
-                    System.arraycopy(mBuffer, 0, buf, off, len);
-                    System.arraycopy(mBuffer, len, mBuffer, 0, mBufferLen - len);
-                    mBufferLen -= len;
-                }
-
+                len = take(buf, off, len);
                 ack = checkAddWindow(len);
+            } finally {
+                mBufferLock.unlock();
             }
 
             // can do this outside of the lock
@@ -162,9 +186,70 @@ public class Channel {
             Channel.this.close();
         }
 
+        // copy the oldest len bytes out, without consuming them
+        private void copyOut(byte[] buf, int off, int len) {
+            int first = mBuffer.length - mBufferStart;
+            if (first >= len) {
+                System.arraycopy(mBuffer, mBufferStart, buf, off, len);
+            } else {
+                System.arraycopy(mBuffer, mBufferStart, buf, off, first);
+                System.arraycopy(mBuffer, 0, buf, off + first, len - first);
+            }
+        }
+
+        // remove up to len bytes, returning the number removed.
+        // you're holding mBufferLock.
+        private int take(byte[] buf, int off, int len) {
+            if (len > mBufferLen) {
+                len = mBufferLen;
+            }
+            copyOut(buf, off, len);
+            mBufferStart = (mBufferStart + len) % mBuffer.length;
+            mBufferLen -= len;
+            if (mBufferLen == 0) {
+                mBufferStart = 0;
+                if (mBuffer.length > MAX_IDLE_BUFFER_SIZE) {
+                    mBuffer = new byte[INITIAL_BUFFER_SIZE];
+                }
+            }
+            return len;
+        }
+
+        // append bytes, growing the buffer if necessary.
+        // you're holding mBufferLock.
+        private void put(byte[] data, int off, int len) {
+            int needed = mBufferLen + len;
+            if (needed > mBuffer.length) {
+                int newlen = 2 * mBuffer.length;
+                while (needed > newlen) {
+                    newlen *= 2;
+                }
+                // the remote side shouldn't send more than the window
+                if ((newlen > mInWindowSize) && (needed <= mInWindowSize)) {
+                    newlen = mInWindowSize;
+                }
+                byte[] newbuf = new byte[newlen];
+                copyOut(newbuf, 0, mBufferLen);
+                mBuffer = newbuf;
+                mBufferStart = 0;
+            }
+
+            int end = (mBufferStart + mBufferLen) % mBuffer.length;
+            int first = mBuffer.length - end;
+            if (first >= len) {
+                System.arraycopy(data, off, mBuffer, end, len);
+            } else {
+                System.arraycopy(data, off, mBuffer, end, first);
+                System.arraycopy(data, off + first, mBuffer, 0, len - first);
+            }
+            mBufferLen += len;
+        }
+
         private byte[] mBuffer;
+        private int mBufferStart;
         private int mBufferLen;
-        private Object mBufferLock;
+        private ReentrantLock mBufferLock;
+        private Condition mDataReady;
     }
 
     private class ChannelOutputStream extends OutputStream {
@@ -181,29 +266,49 @@ public class Channel {
 
         @Override
         public void write(byte[] buf, int off, int len) throws IOException {
-            synchronized (mOutBufferLock) {
+            mOutBufferLock.lock();
+            try {
                 while (len > 0) {
+                    if (mTransport.isOutputBacklogged()) {
+                        // the event loop needs this lock to drain the socket
+                        mOutBufferLock.unlock();
+                        try {
+                            mTransport.waitForOutputRoom();
+                        } finally {
+                            mOutBufferLock.lock();
+                        }
+                    }
                     int n = waitForSendWindow(len);
                     if (n == 0) {
                         // closed, or EOF
                         throw new IOException("Stream is closed.");
                     }
 
-                    Message m = new Message();
-                    if (mStderr) {
-                        m.putByte(MessageType.CHANNEL_EXTENDED_DATA);
-                        m.putInt(mRemoteChanID);
-                        m.putInt(1);
+                    // send as much as the window allows right now in one
+                    // batch, so the packets go out in a single socket write
+                    List<Message> batch = new ArrayList<Message>();
+                    int limit = mTransport.getWriteBatchSize();
+                    int batched = 0;
+                    while (n > 0) {
+                        batch.add(makeDataMessage(buf, off, n));
+                        off += n;
+                        len -= n;
+                        batched += n;
+                        if ((len > 0) && (batched < limit)) {
+                            n = allocateSendWindow(len);
+                        } else {
+                            n = 0;
+                        }
+                    }
+                    if (batch.size() == 1) {
+                        mTransport.sendUserMessage(batch.get(0),
+                                DEFAULT_TIMEOUT);
                     } else {
-                        m.putByte(MessageType.CHANNEL_DATA);
-                        m.putInt(mRemoteChanID);
+                        mTransport.sendUserMessages(batch, DEFAULT_TIMEOUT);
                     }
-                    m.putByteString(buf, off, n);
-                    mTransport.sendUserMessage(m, DEFAULT_TIMEOUT);
-
-                    off += n;
-                    len -= n;
                 }
+            } finally {
+                mOutBufferLock.unlock();
             }
         }
 
@@ -212,6 +317,21 @@ public class Channel {
             Channel.this.close();
         }
 
+        // the packetizer returns the buffer to the pool after sending
+        private Message makeDataMessage(byte[] buf, int off, int len) {
+            Message m = Message.obtain(len + 13);
+            if (mStderr) {
+                m.putByte(MessageType.CHANNEL_EXTENDED_DATA);
+                m.putInt(mRemoteChanID);
+                m.putInt(1);
+            } else {
+                m.putByte(MessageType.CHANNEL_DATA);
+                m.putInt(mRemoteChanID);
+            }
+            m.putByteString(buf, off, len);
+            return m;
+        }
+
         private boolean mStderr;
     }
 
@@ -235,7 +355,7 @@ public class Channel {
         mEOFReceived = false;
         mEOFSent = false;
         mCombineStderr = false;
-        mLock = new Object();
+        mLock = new ReentrantLock();
         mEvent = new Event();
         mNotifyObject = null;
 
@@ -243,7 +363,8 @@ public class Channel {
         mStderrInStream = new ChannelInputStream();
         mOutStream = new ChannelOutputStream(false);
         mStderrOutStream = new ChannelOutputStream(true);
-        mOutBufferLock = new Object();
+        mOutBufferLock = new ReentrantLock();
+        mSendWindowReady = mOutBufferLock.newCondition();
 
         mStatusEvent = new Event();
         mTimeout = 0; // infinite, in java-speek
@@ -278,7 +399,8 @@ public class Channel {
      */
     public void getPTY(String term, int width, int height, TerminalModes modes,
             int timeout_ms) throws IOException {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             if (mClosed || mEOFReceived || mEOFSent || !mActive) {
                 throw new SSHException("Channel is not open");
             }
@@ -302,6 +424,8 @@ public class Channel {
 
             mEvent.clear();
             mTransport.sendUserMessage(m, -1);
+        } finally {
+            mLock.unlock();
         }
 
         if (timeout_ms != 0) {
@@ -361,7 +485,8 @@ public class Channel {
      *             if an exception occurred while making the request
      */
     public void invokeShell(int timeout_ms) throws IOException {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             if (mClosed || mEOFReceived || mEOFSent || !mActive) {
                 throw new SSHException("Channel is not open");
             }
@@ -374,6 +499,8 @@ public class Channel {
 
             mEvent.clear();
             mTransport.sendUserMessage(m, -1);
+        } finally {
+            mLock.unlock();
         }
 
         if (timeout_ms != 0) {
@@ -400,7 +527,8 @@ public class Channel {
      *             if an exception occurred while making the request
      */
     public void execCommand(String command, int timeout_ms) throws IOException {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             if (mClosed || mEOFReceived || mEOFSent || !mActive) {
                 throw new SSHException("Channel is not open");
             }
@@ -414,6 +542,8 @@ public class Channel {
 
             mEvent.clear();
             mTransport.sendUserMessage(m, -1);
+        } finally {
+            mLock.unlock();
         }
 
         if (timeout_ms != 0) {
@@ -441,7 +571,8 @@ public class Channel {
      */
     public void invokeSubsystem(String subsystem, int timeout_ms)
             throws IOException {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             if (mClosed || mEOFReceived || mEOFSent || !mActive) {
                 throw new SSHException("Channel is not open");
             }
@@ -455,6 +586,8 @@ public class Channel {
 
             mEvent.clear();
             mTransport.sendUserMessage(m, -1);
+        } finally {
+            mLock.unlock();
         }
 
         if (timeout_ms != 0) {
@@ -484,7 +617,8 @@ public class Channel {
      */
     public void resizePTY(int width, int height, int timeout_ms)
             throws IOException {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             if (mClosed || mEOFReceived || mEOFSent || !mActive) {
                 throw new SSHException("Channel is not open");
             }
@@ -501,6 +635,8 @@ public class Channel {
 
             mEvent.clear();
             mTransport.sendUserMessage(m, timeout_ms);
+        } finally {
+            mLock.unlock();
         }
 
         if (timeout_ms != 0) {
@@ -539,7 +675,8 @@ public class Channel {
      *             if an exception occurred while sending the status code
      */
     public void sendExitStatus(int status) throws IOException {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             // in many cases, the channel will not still be open here. that's
             // fine.
             Message m = new Message();
@@ -549,6 +686,8 @@ public class Channel {
             m.putBoolean(false);
             m.putInt(status);
             mTransport.sendUserMessage(m, DEFAULT_TIMEOUT);
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -575,7 +714,8 @@ public class Channel {
      */
     public void sendChannelRequest(String type, List<Object> data,
             int timeout_ms) throws IOException {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             if (mClosed || mEOFReceived || mEOFSent || !mActive) {
                 throw new SSHException("Channel is not open");
             }
@@ -594,6 +734,8 @@ public class Channel {
             if (timeout_ms != 0) {
                 waitForEvent(mEvent, timeout_ms);
             }
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -637,10 +779,11 @@ public class Channel {
             timeout_ms = 0;
         }
 
-        synchronized (mInStream.mBufferLock) {
-            synchronized (mStderrInStream.mBufferLock) {
-                mTimeout = timeout_ms;
-            }
+        lockInputBuffers();
+        try {
+            mTimeout = timeout_ms;
+        } finally {
+            unlockInputBuffers();
         }
     }
 
@@ -650,10 +793,11 @@ public class Channel {
      * @return timeout (in milliseconds)
      */
     public int getTimeout() {
-        synchronized (mInStream.mBufferLock) {
-            synchronized (mStderrInStream.mBufferLock) {
-                return mTimeout;
-            }
+        lockInputBuffers();
+        try {
+            return mTimeout;
+        } finally {
+            unlockInputBuffers();
         }
     }
 
@@ -726,25 +870,27 @@ public class Channel {
         byte[] data = null;
         boolean old = false;
 
-        synchronized (mInStream.mBufferLock) {
-            synchronized (mStderrInStream.mBufferLock) {
-                synchronized (mLock) {
-                    old = mCombineStderr;
-                    mCombineStderr = combine;
-                }
+        lockInputBuffers();
+        try {
+            mLock.lock();
+            try {
+                old = mCombineStderr;
+                mCombineStderr = combine;
+            } finally {
+                mLock.unlock();
+            }
 
-                if (combine && !old && (mStderrInStream.mBufferLen > 0)) {
-                    // copy old stderr buffer into the primary buffer
-                    data = new byte[mStderrInStream.mBufferLen];
-                    System.arraycopy(mStderrInStream.mBuffer, 0, data, 0,
-                            mStderrInStream.mBufferLen);
-                    mStderrInStream.mBufferLen = 0;
-                }
+            if (combine && !old && (mStderrInStream.mBufferLen > 0)) {
+                // copy old stderr buffer into the primary buffer
+                data = new byte[mStderrInStream.mBufferLen];
+                mStderrInStream.take(data, 0, data.length);
             }
+        } finally {
+            unlockInputBuffers();
         }
 
         if (data != null) {
-            feed(mInStream, data);
+            feed(mInStream, data, 0, data.length);
         }
         return old;
     }
@@ -756,7 +902,8 @@ public class Channel {
      * is closed.
      */
     public void close() {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             if (!mActive || mClosed) {
                 return;
             }
@@ -777,6 +924,8 @@ public class Channel {
              * can't unlink from the Transport yet -- the remote side may still
              * try to send meta-data (exit-status, etc)
              */
+        } finally {
+            mLock.unlock();
         }
 
         notifyClosed();
@@ -789,8 +938,11 @@ public class Channel {
      * @return <code>true</code> if this channel is closed
      */
     public boolean isClosed() {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             return mClosed;
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -801,8 +953,11 @@ public class Channel {
      */
     public void shutdownRead() throws IOException {
         // fake it
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             mEOFReceived = true;
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -815,8 +970,11 @@ public class Channel {
      *             if an exception occurred
      */
     public void shutdownWrite() throws IOException {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             sendEOF();
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -865,7 +1023,7 @@ public class Channel {
      *            channel request type (an arbitrary string)
      * @param message
      *            an SSH Message object which may contain extra parameters for
-     *            this request
+     *            this request (only valid until this method returns)
      * @return true if the request was successful; false if not
      */
     protected boolean handleCustomRequest(String type, Message message) {
@@ -907,7 +1065,7 @@ public class Channel {
     }
 
     /* package */void setWindow(int windowSize, int maxPacketSize) {
-        // mInWindowSize = windowSize;
+        mInWindowSize = windowSize;
         // mInMaxPacketSize = maxPacketSize;
         mInWindowThreshold = windowSize / 10;
         mInWindowSoFar = 0;
@@ -933,26 +1091,33 @@ public class Channel {
     /* package */void unlink() {
         // server connection could die before we become active: still signal the
         // close!
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             if (mClosed) {
                 return;
             }
 
             mClosed = true;
             mTransport.unlinkChannel(mChanID);
+        } finally {
+            mLock.unlock();
         }
         notifyClosed();
     }
 
     private void notifyClosed() {
-        synchronized (mInStream.mBufferLock) {
-            mInStream.mBufferLock.notifyAll();
+        lockInputBuffers();
+        try {
+            mInStream.mDataReady.signalAll();
+            mStderrInStream.mDataReady.signalAll();
+        } finally {
+            unlockInputBuffers();
         }
-        synchronized (mStderrInStream.mBufferLock) {
-            mStderrInStream.mBufferLock.notifyAll();
-        }
-        synchronized (mOutBufferLock) {
-            mOutBufferLock.notifyAll();
+        mOutBufferLock.lock();
+        try {
+            mSendWindowReady.signalAll();
+        } finally {
+            mOutBufferLock.unlock();
         }
         if (mNotifyObject != null) {
             synchronized (mNotifyObject) {
@@ -1009,17 +1174,32 @@ public class Channel {
                 return;
             }
 
-            synchronized (mLock) {
+            mLock.lock();
+            try {
                 if (mClosed) {
                     throw new SSHException("Request failed");
                 }
+            } finally {
+                mLock.unlock();
             }
         }
     }
 
+    // take both input buffer locks, in the documented order
+    private void lockInputBuffers() {
+        mInStream.mBufferLock.lock();
+        mStderrInStream.mBufferLock.lock();
+    }
+
+    private void unlockInputBuffers() {
+        mStderrInStream.mBufferLock.unlock();
+        mInStream.mBufferLock.unlock();
+    }
+
     // you're already holding mInBufferLock
     private int checkAddWindow(int nbytes) {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             if (mClosed || mEOFReceived || !mActive) {
                 return 0;
             }
@@ -1031,6 +1211,8 @@ public class Channel {
             int ack = mInWindowSoFar;
             mInWindowSoFar = 0;
             return ack;
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -1047,21 +1229,44 @@ public class Channel {
      */
     private int waitForSendWindow(int size) {
         while (mOutWindowSize == 0) {
-            synchronized (mLock) {
+            mLock.lock();
+            try {
                 if (mClosed || mEOFSent) {
                     return 0;
                 }
+            } finally {
+                mLock.unlock();
             }
 
             try {
-                mOutBufferLock.wait();
+                mSendWindowReady.await();
             } catch (InterruptedException x) {}
         }
+        return allocateSendWindow(size);
+    }
 
-        synchronized (mLock) {
+    /**
+     * Allocate up to <code>size</code> bytes of whatever send window is open
+     * right now, without waiting. Returns zero if the window is shut, or the
+     * channel is closed.
+     * 
+     * You are holding mOutBufferLock.
+     * 
+     * @param size
+     *            number of bytes desired
+     * @return number of bytes allocated (may be less than requested)
+     */
+    private int allocateSendWindow(int size) {
+        if (mOutWindowSize == 0) {
+            return 0;
+        }
+        mLock.lock();
+        try {
             if (mClosed || mEOFSent) {
                 return 0;
             }
+        } finally {
+            mLock.unlock();
         }
 
         if (mOutWindowSize < size) {
@@ -1074,20 +1279,13 @@ public class Channel {
         return size;
     }
 
-    private void feed(ChannelInputStream is, byte[] data) {
-        synchronized (is.mBufferLock) {
-            if (is.mBufferLen + data.length > is.mBuffer.length) {
-                int newlen = 4 * is.mBuffer.length;
-                while (is.mBufferLen + data.length > newlen) {
-                    newlen *= 4;
-                }
-                byte[] newbuf = new byte[newlen];
-                System.arraycopy(is.mBuffer, 0, newbuf, 0, is.mBufferLen);
-                is.mBuffer = newbuf;
-            }
-            System.arraycopy(data, 0, is.mBuffer, is.mBufferLen, data.length);
-            is.mBufferLen += data.length;
-            is.mBufferLock.notifyAll();
+    private void feed(ChannelInputStream is, byte[] data, int off, int len) {
+        is.mBufferLock.lock();
+        try {
+            is.put(data, off, len);
+            is.mDataReady.signalAll();
+        } finally {
+            is.mBufferLock.unlock();
         }
 
         if (mNotifyObject != null) {
@@ -1099,46 +1297,57 @@ public class Channel {
 
     private boolean handleWindowAdjust(Message m) {
         int nbytes = m.getInt();
-        synchronized (mOutBufferLock) {
+        mOutBufferLock.lock();
+        try {
             mOutWindowSize += nbytes;
-            mOutBufferLock.notifyAll();
+            mSendWindowReady.signalAll();
+        } finally {
+            mOutBufferLock.unlock();
         }
         return true;
     }
 
+    // copy the data straight out of the packetizer's receive buffer
     private boolean handleData(Message m) {
-        feed(mInStream, m.getByteString());
+        int len = m.getInt();
+        int off = m.skipBytes(len);
+        feed(mInStream, m.getBuffer(), off, len);
         return true;
     }
 
     private boolean handleExtendedData(Message m) {
         int code = m.getInt();
-        byte[] data = m.getByteString();
+        int len = m.getInt();
+        int off = m.skipBytes(len);
         if (code != 1) {
             logger.error("Unknown extended_data type {}; discarding", code);
             return true;
         }
 
         if (mCombineStderr) {
-            feed(mInStream, data);
+            feed(mInStream, m.getBuffer(), off, len);
         } else {
-            feed(mStderrInStream, data);
+            feed(mStderrInStream, m.getBuffer(), off, len);
         }
 
         return true;
     }
 
     private boolean handleEOF(Message m) {
-        synchronized (mInStream.mBufferLock) {
-            synchronized (mStderrInStream.mBufferLock) {
-                synchronized (mLock) {
-                    if (!mEOFReceived) {
-                        mEOFReceived = true;
-                        mInStream.mBufferLock.notifyAll();
-                        mStderrInStream.mBufferLock.notifyAll();
-                    }
+        lockInputBuffers();
+        try {
+            mLock.lock();
+            try {
+                if (!mEOFReceived) {
+                    mEOFReceived = true;
+                    mInStream.mDataReady.signalAll();
+                    mStderrInStream.mDataReady.signalAll();
                 }
+            } finally {
+                mLock.unlock();
             }
+        } finally {
+            unlockInputBuffers();
         }
         logger.debug("EOF received");
         return true;
@@ -1146,8 +1355,11 @@ public class Channel {
 
     private boolean handleClose(Message m) {
         close();
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             mTransport.unlinkChannel(mChanID);
+        } finally {
+            mLock.unlock();
         }
         return true;
     }
@@ -1243,12 +1455,13 @@ public class Channel {
     private boolean mEOFReceived;
     private boolean mEOFSent;
     private boolean mCombineStderr;
-    private Object mLock;
+    private ReentrantLock mLock;
     private Event mEvent;
     private BaseTransport mTransport;
     private ServerInterface mServer;
     private Object mNotifyObject;
 
+    private int mInWindowSize;
     private int mInWindowThreshold; // bytes we must receive before we bother to
                                     // send a window update
     private int mInWindowSoFar;
@@ -1260,12 +1473,18 @@ public class Channel {
     private ChannelInputStream mStderrInStream;
     private ChannelOutputStream mOutStream;
     private ChannelOutputStream mStderrOutStream;
-    private Object mOutBufferLock;
+    private ReentrantLock mOutBufferLock;
+    private Condition mSendWindowReady;
 
     private int mExitStatus = -1;
     private Event mStatusEvent;
     private int mTimeout;
 
+    // inbound buffers start out small, and are shrunk back down once they're
+    // drained if they grew larger than this
+    private static final int INITIAL_BUFFER_SIZE = 64;
+    private static final int MAX_IDLE_BUFFER_SIZE = 64 * 1024;
+
     // lower bound on the "max packet size" we'll allow from the server
     private static final int MIN_PACKET_SIZE = 1024;
 
@@ -55,7 +55,8 @@ public interface ChannelFactory {
      * Create a channel from parameters that are in the form of an SSH
      * {@link Message}. This is called from {@link ServerTransport} when the
      * remote client has requested a special channel type. The parameters (if
-     * any) can be retrieved from the Message object.
+     * any) can be retrieved from the Message object. The Message is only
+     * valid until this method returns, so don't hang on to it.
      * 
      * @param kind
      *            arbitrary string (defined by the argument to
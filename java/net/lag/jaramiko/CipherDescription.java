@@ -29,17 +29,27 @@ import net.lag.crai.CraiCipherAlgorithm;
 
 /**
  * Description of ciphers we understand, what crai calls them, and their
- * key/block size parameters.
+ * key/block size parameters. An AEAD cipher authenticates its own packets, so
+ * the negotiated MAC isn't used with it.
  */
 /* package */final class CipherDescription {
     public CipherDescription(CraiCipherAlgorithm algorithm, int keySize,
             int blockSize) {
+        this(algorithm, keySize, blockSize, blockSize, false);
+    }
+
+    public CipherDescription(CraiCipherAlgorithm algorithm, int keySize,
+            int blockSize, int ivSize, boolean aead) {
         mAlgorithm = algorithm;
         mKeySize = keySize;
         mBlockSize = blockSize;
+        mIVSize = ivSize;
+        mAEAD = aead;
     }
 
     public CraiCipherAlgorithm mAlgorithm;
     public int mKeySize; // bytes
     public int mBlockSize; // bytes
+    public int mIVSize; // bytes
+    public boolean mAEAD;
 }
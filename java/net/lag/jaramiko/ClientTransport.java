@@ -32,6 +32,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import net.lag.crai.Crai;
+import net.lag.crai.CraiAEADCipher;
 import net.lag.crai.CraiCipher;
 import net.lag.crai.CraiDigest;
 import net.lag.crai.CraiException;
@@ -87,6 +88,14 @@ public class ClientTransport extends BaseTransport {
             return null;
         }
 
+        public DHKeyPool getDHKeyPool() {
+            return null;
+        }
+
+        public String getServerKeyType() {
+            return mDescription.mServerKeyType;
+        }
+
         public void verifyKey(byte[] hostKey, byte[] sig) throws SSHException {
             ClientTransport.this.verifyKey(hostKey, sig);
         }
@@ -95,9 +104,18 @@ public class ClientTransport extends BaseTransport {
             ClientTransport.this.setKH(k, h);
         }
 
+        public void setKH(BigInteger k, byte[] h, CraiDigest hash) {
+            ClientTransport.this.setKH(k, h, hash);
+        }
+
         public void kexComplete() throws IOException {
             ClientTransport.this.activateOutbound();
         }
+
+        public void runTask(KexTransportInterface.Task task)
+                throws IOException {
+            task.run();
+        }
     }
 
     /**
@@ -151,19 +169,23 @@ public class ClientTransport extends BaseTransport {
 
         if (hostkey != null) {
             // we only want this particular key then
-            mSecurityOptions.setKeys(Arrays.asList(new String[] { hostkey
-                    .getSSHName() }));
+            mSecurityOptions.setKeys(Arrays.asList(hostkey
+                    .getSignatureAlgorithms()));
         }
 
         mCompletionEvent = new Event();
         mActive = true;
-        new Thread(new Runnable() {
-            public void run() {
-                logger.debug("starting thread (client mode): {}",
-                            Integer.toHexString(this.hashCode()));
-                transportRun();
-            }
-        }, "jaramiko client feeder").start();
+        if (mEventLoop != null) {
+            startEventLoop();
+        } else {
+            startFeeder(new Runnable() {
+                public void run() {
+                    logger.debug("starting thread (client mode): {}",
+                                Integer.toHexString(this.hashCode()));
+                    transportRun();
+                }
+            }, "jaramiko client feeder");
+        }
 
         if (!waitForEvent(mCompletionEvent, timeout_ms)) {
             throw new SSHException("Timeout.");
@@ -492,7 +514,8 @@ public class ClientTransport extends BaseTransport {
 
         Event e = null;
         int chanid = 0;
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             chanid = getNextChannel();
 
             Message m = new Message();
@@ -517,13 +540,16 @@ public class ClientTransport extends BaseTransport {
             c.setWindow(mWindowSize, mMaxPacketSize);
 
             sendUserMessage(m, timeout_ms);
+        } finally {
+            mLock.unlock();
         }
 
         if (!waitForEvent(e, timeout_ms)) {
             throw new SSHException("Timeout.");
         }
 
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             Channel c = mChannels[chanid];
             if (c == null) {
                 IOException x = getException();
@@ -533,6 +559,8 @@ public class ClientTransport extends BaseTransport {
                 throw x;
             }
             return c;
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -577,15 +605,30 @@ public class ClientTransport extends BaseTransport {
         return new MyKexTransportInterface();
     }
 
+    /* package */@Override
+    String getExtInfoSignal() {
+        // so the server will tell us which rsa-sha2 signatures it takes
+        return "ext-info-c";
+    }
+
     @Override
     protected final void activateInbound(CipherDescription desc,
             MacDescription mdesc) throws SSHException {
         try {
             // this method shouldn't be so long, but java makes this really
             // difficult and bureaucratic
+            if (desc.mAEAD) {
+                // the cipher authenticates its own packets: no mac
+                CraiAEADCipher inCipher = sCrai.getAEADCipher(desc.mAlgorithm);
+                inCipher.initDecrypt(computeKey((byte) 'D', desc.mKeySize),
+                        computeKey((byte) 'B', desc.mIVSize));
+                mPacketizer.setInboundCipher(inCipher, desc.mBlockSize);
+                return;
+            }
+
             CraiCipher inCipher = sCrai.getCipher(desc.mAlgorithm);
             byte[] key = computeKey((byte) 'D', desc.mKeySize);
-            byte[] iv = computeKey((byte) 'B', desc.mBlockSize);
+            byte[] iv = computeKey((byte) 'B', desc.mIVSize);
             inCipher.initDecrypt(key, iv);
 
             /*
@@ -593,14 +636,9 @@ public class ClientTransport extends BaseTransport {
              * potentially truncated transmission size)
              */
             key = computeKey((byte) 'F', mdesc.mNaturalSize);
-            CraiDigest inMac = null;
-            if (mdesc.mName.equals("MD5")) {
-                inMac = sCrai.makeMD5HMAC(key);
-            } else {
-                inMac = sCrai.makeSHA1HMAC(key);
-            }
+            CraiDigest inMac = makeMac(mdesc, key);
             mPacketizer.setInboundCipher(inCipher, desc.mBlockSize, inMac,
-                    mdesc.mDigestSize);
+                    mdesc.mDigestSize, mdesc.mETM);
         } catch (CraiException x) {
             throw new SSHException("Internal java error: " + x);
         }
@@ -612,9 +650,18 @@ public class ClientTransport extends BaseTransport {
         try {
             // this method shouldn't be so long, but java makes this really
             // difficult and bureaucratic
+            if (desc.mAEAD) {
+                CraiAEADCipher outCipher = sCrai
+                        .getAEADCipher(desc.mAlgorithm);
+                outCipher.initEncrypt(computeKey((byte) 'C', desc.mKeySize),
+                        computeKey((byte) 'A', desc.mIVSize));
+                mPacketizer.setOutboundCipher(outCipher, desc.mBlockSize);
+                return;
+            }
+
             CraiCipher outCipher = sCrai.getCipher(desc.mAlgorithm);
             byte[] key = computeKey((byte) 'C', desc.mKeySize);
-            byte[] iv = computeKey((byte) 'A', desc.mBlockSize);
+            byte[] iv = computeKey((byte) 'A', desc.mIVSize);
             outCipher.initEncrypt(key, iv);
 
             /*
@@ -622,15 +669,10 @@ public class ClientTransport extends BaseTransport {
              * potentially truncated transmission size)
              */
             key = computeKey((byte) 'E', mdesc.mNaturalSize);
-            CraiDigest outMac = null;
-            if (mdesc.mName == "MD5") {
-                outMac = sCrai.makeMD5HMAC(key);
-            } else {
-                outMac = sCrai.makeSHA1HMAC(key);
-            }
+            CraiDigest outMac = makeMac(mdesc, key);
 
             mPacketizer.setOutboundCipher(outCipher, desc.mBlockSize, outMac,
-                    mdesc.mDigestSize);
+                    mdesc.mDigestSize, mdesc.mETM);
         } catch (CraiException x) {
             throw new SSHException("Internal java error: " + x);
         }
@@ -677,7 +719,13 @@ public class ClientTransport extends BaseTransport {
         PKey key = PKey.createFromData(hostKey);
         logger.debug("Server host key: {}",
                      Util.encodeHex(key.getFingerprint()));
-        if (!key.verifySSHSignature(sCrai, mH, new Message(sig))) {
+        Message m = new Message(sig);
+        if (!m.getString().equals(mDescription.mServerKeyType)) {
+            // signed with some algorithm other than the one we agreed on
+            throw new BadSignatureException(key.getSSHName());
+        }
+        m.rewind();
+        if (!key.verifySSHSignature(sCrai, mH, m)) {
             throw new BadSignatureException(key.getSSHName());
         }
         mHostKey = key;
@@ -29,7 +29,24 @@ package net.lag.jaramiko;
  * Interface for a compression engine for the SSH2 protocol.
  */
 /* package */interface Compressor {
-    public byte[] compress(byte[] data, int offset, int length);
+    // zlib level (0-9), which can be changed between packets
+    public void setCompressionLevel(int level);
 
-    public byte[] uncompress(byte[] data, int offset, int length);
+    // the most bytes compress() could write for a packet of this length
+    public int compressBound(int length);
+
+    /*
+     * compress a packet into out, which has room for compressBound(length)
+     * bytes, and return the number of bytes written.
+     */
+    public int compress(byte[] data, int offset, int length, byte[] out,
+            int outOffset);
+
+    /*
+     * uncompress a packet into out, writing at most outLength bytes, and
+     * return the number written. if out was filled, there may be more: call
+     * again with a length of 0 and more room to collect the rest.
+     */
+    public int uncompress(byte[] data, int offset, int length, byte[] out,
+            int outOffset, int outLength) throws SSHException;
 }
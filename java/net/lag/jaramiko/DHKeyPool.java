@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2005-2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package net.lag.jaramiko;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import net.lag.crai.Crai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of precomputed Diffie-Hellman key pairs for server-mode key exchange.
+ *
+ * <p>
+ * For each handshake, the server picks a random exponent x and computes
+ * g<sup>x</sup> mod p, which for the larger group-exchange moduli is the
+ * slowest part of the server's work. A server that expects bursts of
+ * connections can instead share a DHKeyPool between all of its transports
+ * (with {@link ServerTransport#setDHKeyPool}): a background thread keeps a
+ * stock of (x, g<sup>x</sup>) pairs for each group (generator and modulus)
+ * that's been used, and each handshake takes one.
+ *
+ * <p>
+ * Each pair is handed out only once. When the stock for a group falls below
+ * the low watermark, the background thread refills it up to the high
+ * watermark. If the stock runs out anyway, the handshake computes its own pair
+ * as it would without a pool.
+ *
+ * <p>
+ * If generating a pair fails, the background thread logs it, waits a while
+ * (longer after each failure in a row), and tries again. Meanwhile handshakes
+ * compute their own pairs. {@link #getFailureCount} tells how often that's
+ * happened.
+ */
+public final class DHKeyPool {
+    private static final Logger logger = LoggerFactory
+            .getLogger(DHKeyPool.class);
+
+    /**
+     * Create a new key pool and start its background thread.
+     *
+     * @param crai
+     *            the crypto abstraction layer to generate keys with
+     * @param lowWater
+     *            refill the stock for a group when it falls below this many
+     *            pairs
+     * @param highWater
+     *            number of pairs to keep in stock for each group
+     */
+    public DHKeyPool(Crai crai, int lowWater, int highWater) {
+        if ((lowWater < 1) || (lowWater > highWater)) {
+            throw new IllegalArgumentException("bad watermarks");
+        }
+        mCrai = crai;
+        mLowWater = lowWater;
+        mHighWater = highWater;
+        mGroups = new HashMap<List<BigInteger>, Group>();
+        mRunning = true;
+
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                fillLoop();
+            }
+        }, "jaramiko dh key pool");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stop the background thread. Transports that still use the pool will
+     * compute their own keys once the stock runs out.
+     */
+    public void close() {
+        synchronized (this) {
+            mRunning = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Return the number of times the background thread has failed to
+     * generate a key pair.
+     *
+     * @return the number of failures
+     */
+    public synchronized long getFailureCount() {
+        return mFailures;
+    }
+
+    // ----- package
+
+    /*
+     * return a fresh key pair { x, g^x mod p } for this group. the first
+     * request for a group starts stocking it, so the pool only holds pairs
+     * for groups that are actually used.
+     */
+    /* package */BigInteger[] take(BigInteger g, BigInteger p) {
+        BigInteger[] pair;
+        synchronized (this) {
+            List<BigInteger> key = Arrays.asList(g, p);
+            Group group = mGroups.get(key);
+            if (group == null) {
+                group = new Group(g, p);
+                mGroups.put(key, group);
+            }
+            pair = group.mPairs.poll();
+            if (group.mPairs.size() < mLowWater) {
+                notifyAll();
+            }
+        }
+        if (pair == null) {
+            pair = generate(g, p);
+        }
+        return pair;
+    }
+
+    // number of pairs in stock for a group (for tests)
+    /* package */synchronized int available(BigInteger g, BigInteger p) {
+        Group group = mGroups.get(Arrays.asList(g, p));
+        return (group == null) ? 0 : group.mPairs.size();
+    }
+
+    // ----- private
+
+    private static class Group {
+        public Group(BigInteger g, BigInteger p) {
+            mG = g;
+            mP = p;
+            mPairs = new LinkedList<BigInteger[]>();
+        }
+
+        public BigInteger mG;
+        public BigInteger mP;
+        public LinkedList<BigInteger[]> mPairs;
+        public boolean mFilling;
+    }
+
+    // x is picked from 1 < x < q, where q = (p - 1) / 2
+    private BigInteger[] generate(BigInteger g, BigInteger p) {
+        BigInteger q = p.subtract(BigInteger.ONE).shiftRight(1);
+        BigInteger x;
+        do {
+            x = Util.rollRandom(mCrai, q);
+        } while (x.compareTo(BigInteger.ONE) <= 0);
+        return new BigInteger[] { x, mCrai.modPow(g, x, p) };
+    }
+
+    private void fillLoop() {
+        while (true) {
+            Group group = null;
+            synchronized (this) {
+                while (mRunning && ((group = findLowGroup()) == null)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException x) {
+                        // pass
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+                group.mFilling = true;
+            }
+
+            // fill to the high watermark, without holding the lock for the
+            // slow part
+            boolean failed = false;
+            while (true) {
+                BigInteger[] pair;
+                try {
+                    pair = generate(group.mG, group.mP);
+                } catch (RuntimeException x) {
+                    logger.error("Exception generating DH keys: ", x);
+                    failed = true;
+                    synchronized (this) {
+                        group.mFilling = false;
+                    }
+                    break;
+                }
+                synchronized (this) {
+                    group.mPairs.add(pair);
+                    if (!mRunning || (group.mPairs.size() >= mHighWater)) {
+                        group.mFilling = false;
+                        break;
+                    }
+                }
+            }
+            if (failed) {
+                backOff();
+            } else {
+                synchronized (this) {
+                    mBackOff = 0;
+                }
+                logger.debug("Stocked {} DH keys for {}-bit modulus",
+                        mHighWater, group.mP.bitLength());
+            }
+        }
+    }
+
+    // wait before trying again after a failure, doubling the wait each time
+    // it fails in a row. close() cuts the wait short.
+    private synchronized void backOff() {
+        mFailures++;
+        mBackOff = (mBackOff == 0) ? MIN_BACKOFF : Math.min(mBackOff * 2,
+                MAX_BACKOFF);
+        long deadline = System.currentTimeMillis() + mBackOff;
+        long left;
+        while (mRunning
+                && ((left = deadline - System.currentTimeMillis()) > 0)) {
+            try {
+                wait(left);
+            } catch (InterruptedException x) {
+                // pass
+            }
+        }
+    }
+
+    // caller holds the lock
+    private Group findLowGroup() {
+        for (Iterator<Group> i = mGroups.values().iterator(); i.hasNext();) {
+            Group group = i.next();
+            if (!group.mFilling && (group.mPairs.size() < mLowWater)) {
+                return group;
+            }
+        }
+        return null;
+    }
+
+    private Crai mCrai;
+    private int mLowWater;
+    private int mHighWater;
+    private Map<List<BigInteger>, Group> mGroups;
+    private boolean mRunning;
+    private long mFailures;
+    private long mBackOff;
+
+    // wait between retries after a failure (in milliseconds)
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 60000;
+}
@@ -69,7 +69,7 @@ public class DSSKey extends PKey {
     @Override
     public Message signSSHData(Crai crai, byte[] data) throws SSHException {
         try {
-            CraiPrivateKey dsa = crai.makePrivateDSAKey(mX, mP, mQ, mG);
+            CraiPrivateKey dsa = getCraiPrivateKey(crai);
             byte[] sig = dsa.sign(data, 0, data.length);
 
             Message m = new Message();
@@ -95,7 +95,7 @@ public class DSSKey extends PKey {
                         "DSS signature must be exactly 40 bytes! (is: "
                                 + sigData.length + ")");
             }
-            CraiPublicKey dsa = crai.makePublicDSAKey(mY, mP, mQ, mG);
+            CraiPublicKey dsa = getCraiPublicKey(crai);
             return dsa.verify(data, 0, data.length, sigData);
         } catch (CraiException x) {
             throw new SSHException("Java publickey error: " + x);
@@ -123,6 +123,12 @@ public class DSSKey extends PKey {
         mY = m.getMPZ();
     }
 
+    @Override
+    protected void buildFromOpenSSH(Message m) {
+        buildFromMessage(m);
+        mX = m.getMPZ();
+    }
+
     @Override
     public void writePrivateKeyToStream(OutputStream os, String password)
             throws IOException {
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2005-2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package net.lag.jaramiko;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib compression using the JDK's native {@link Deflater} and
+ * {@link Inflater}, which are much faster than jzlib. Each packet is ended
+ * with a sync flush, so the peer can decompress it as soon as it arrives.
+ * Java 7 added the flush modes to Deflater; on older JVMs,
+ * {@link ZlibCompressor} is used instead.
+ */
+/* package */class DeflaterCompressor implements Compressor {
+    public DeflaterCompressor() {
+        mDeflater = new Deflater();
+        mInflater = new Inflater();
+        mPending = new byte[PENDING_SIZE];
+    }
+
+    /**
+     * Return true if this JVM's Deflater can do a sync flush.
+     */
+    public static boolean isSupported() {
+        try {
+            Deflater.class.getMethod("deflate", new Class[] { byte[].class,
+                    int.class, int.class, int.class });
+            return true;
+        } catch (NoSuchMethodException x) {
+            return false;
+        }
+    }
+
+    public void setCompressionLevel(int level) {
+        /*
+         * apply the change now, while there's no input: otherwise the next
+         * deflate() is spent on the change, and may not flush the packet.
+         * anything it writes goes out in front of the next packet.
+         */
+        mDeflater.setLevel(level);
+        mDeflater.setInput(EMPTY);
+        mPendingLength += mDeflater.deflate(mPending, mPendingLength,
+                mPending.length - mPendingLength, Deflater.NO_FLUSH);
+    }
+
+    public int compressBound(int length) {
+        return mPendingLength + length + (length >> 8) + BOUND_SLACK;
+    }
+
+    public int compress(byte[] data, int offset, int length, byte[] out,
+            int outOffset) {
+        int room = compressBound(length);
+        System.arraycopy(mPending, 0, out, outOffset, mPendingLength);
+        int n = mPendingLength;
+        mPendingLength = 0;
+
+        mDeflater.setInput(data, offset, length);
+        n += mDeflater.deflate(out, outOffset + n, room - n,
+                Deflater.SYNC_FLUSH);
+        if (n == room) {
+            // a full buffer means the flush may not have finished
+            throw new IllegalStateException("compressBound too small");
+        }
+        return n;
+    }
+
+    public int uncompress(byte[] data, int offset, int length, byte[] out,
+            int outOffset, int outLength) throws SSHException {
+        if (length > 0) {
+            mInflater.setInput(data, offset, length);
+        }
+        try {
+            return mInflater.inflate(out, outOffset, outLength);
+        } catch (DataFormatException x) {
+            throw new SSHException("Bad compressed data: " + x.getMessage());
+        }
+    }
+
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    // output from a level change, not yet sent
+    private byte[] mPending;
+    private int mPendingLength;
+
+    private static final int PENDING_SIZE = 64;
+    // zlib header, flush markers, and a partial byte or two
+    private static final int BOUND_SLACK = 64;
+    private static final byte[] EMPTY = new byte[0];
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2005-2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package net.lag.jaramiko;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+
+import net.lag.crai.Crai;
+import net.lag.crai.CraiException;
+import net.lag.crai.CraiKeyPair;
+import net.lag.crai.CraiPrivateKey;
+import net.lag.crai.CraiPublicKey;
+
+/**
+ * ECDSA public/private keys over the NIST curves (RFC 5656), signed with the
+ * SHA-2 hash that matches the curve size. Private keys are only read from
+ * and written to the openssh key file format.
+ */
+public class ECDSAKey extends PKey {
+    @Override
+    public String getSSHName() {
+        return "ecdsa-sha2-" + mCurve;
+    }
+
+    @Override
+    public boolean canSign() {
+        return mD != null;
+    }
+
+    @Override
+    public int getBits() {
+        // the point is 0x04 || x || y
+        int size = (mPoint.length - 1) / 2;
+        return (size == 66) ? 521 : size * 8;
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        Message m = new Message();
+        m.putString(getSSHName());
+        m.putString(mCurve);
+        m.putByteString(mPoint);
+        return m.toByteArray();
+    }
+
+    @Override
+    public Message signSSHData(Crai crai, byte[] data) throws SSHException {
+        try {
+            byte[] sig = getCraiPrivateKey(crai).sign(data, 0, data.length);
+
+            // crai gives us r || s, but ssh wants them as mpints
+            int size = sig.length / 2;
+            byte[] buf = new byte[size];
+            Message rs = new Message();
+            System.arraycopy(sig, 0, buf, 0, size);
+            rs.putMPZ(new BigInteger(1, buf));
+            System.arraycopy(sig, size, buf, 0, size);
+            rs.putMPZ(new BigInteger(1, buf));
+
+            Message m = new Message();
+            m.putString(getSSHName());
+            m.putByteString(rs.toByteArray());
+            return m;
+        } catch (CraiException x) {
+            throw new SSHException("Java publickey error: " + x);
+        }
+    }
+
+    @Override
+    public boolean verifySSHSignature(Crai crai, byte[] data, Message sig)
+            throws SSHException {
+        try {
+            if (!sig.getString().equals(getSSHName())) {
+                return false;
+            }
+            Message rs = new Message(sig.getByteString());
+            BigInteger r = rs.getMPZ();
+            BigInteger s = rs.getMPZ();
+            int size = (mPoint.length - 1) / 2;
+            if ((r.signum() <= 0) || (s.signum() <= 0)
+                    || (r.bitLength() > size * 8) || (s.bitLength() > size * 8)) {
+                return false;
+            }
+            byte[] sigData = new byte[2 * size];
+            putUnsigned(r, sigData, 0, size);
+            putUnsigned(s, sigData, size, size);
+
+            return getCraiPublicKey(crai).verify(data, 0, data.length,
+                    sigData);
+        } catch (CraiException x) {
+            throw new SSHException("Java publickey error: " + x);
+        }
+    }
+
+    @Override
+    protected void buildFromBER(BigInteger[] ints) throws SSHException {
+        throw new SSHException("ECDSA keys are only read from openssh key files");
+    }
+
+    @Override
+    protected void buildFromMessage(Message m) throws SSHException {
+        mCurve = m.getString();
+        if (!mCurve.equals("nistp256") && !mCurve.equals("nistp384")
+                && !mCurve.equals("nistp521")) {
+            throw new SSHException("Unknown ECDSA curve " + mCurve);
+        }
+        mPoint = m.getByteString();
+        if ((mPoint.length == 0) || (mPoint[0] != 4)) {
+            throw new SSHException("Unsupported ECDSA point encoding");
+        }
+    }
+
+    @Override
+    protected void buildFromOpenSSH(Message m) throws SSHException {
+        buildFromMessage(m);
+        mD = m.getMPZ();
+    }
+
+    @Override
+    public void writePrivateKeyToStream(OutputStream os, String password)
+            throws IOException {
+        Message m = new Message();
+        m.putString(mCurve);
+        m.putByteString(mPoint);
+        m.putMPZ(mD);
+        writeOpenSSHPrivateKeyToStream(os, m, password);
+    }
+
+    /**
+     * Generate a new ECDSA private/public key pair. The actual key generation
+     * is delegated to {@link Crai}.
+     * 
+     * @param bits
+     *            curve size: 256, 384, or 521
+     * @return a new ECDSA key
+     * @throws SSHException
+     *             if there's an error within the underlying crypto library
+     */
+    public static ECDSAKey generate(Crai crai, int bits) throws SSHException {
+        if ((bits != 256) && (bits != 384) && (bits != 521)) {
+            throw new SSHException("Unsupported ECDSA key size " + bits);
+        }
+        try {
+            CraiKeyPair pair = crai.generateECDSAKeyPair("nistp" + bits);
+            CraiPrivateKey.ECDSAContents priv = (CraiPrivateKey.ECDSAContents) pair
+                    .getPrivateKey().getContents();
+            CraiPublicKey.ECDSAContents pub = (CraiPublicKey.ECDSAContents) pair
+                    .getPublicKey().getContents();
+
+            ECDSAKey key = new ECDSAKey();
+            key.mCurve = pub.getCurve();
+            key.mPoint = pub.getPoint();
+            key.mD = priv.getD();
+            return key;
+        } catch (Exception x) {
+            throw new SSHException("Java publickey error: " + x);
+        }
+    }
+
+    @Override
+    public CraiPrivateKey toPrivateKey(Crai crai) {
+        return crai.makePrivateECDSAKey(mCurve, mD);
+    }
+
+    @Override
+    public CraiPublicKey toPublicKey(Crai crai) {
+        return crai.makePublicECDSAKey(mCurve, mPoint);
+    }
+
+    // write n as exactly len unsigned big-endian bytes
+    private static void putUnsigned(BigInteger n, byte[] out, int off, int len) {
+        byte[] b = n.toByteArray();
+        if (b.length > len) {
+            System.arraycopy(b, b.length - len, out, off, len);
+        } else {
+            System.arraycopy(b, 0, out, off + len - b.length, b.length);
+        }
+    }
+
+    private String mCurve;
+    private byte[] mPoint;
+    private BigInteger mD;
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2005-2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package net.lag.jaramiko;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+
+import net.lag.crai.Crai;
+import net.lag.crai.CraiException;
+import net.lag.crai.CraiKeyPair;
+import net.lag.crai.CraiPrivateKey;
+import net.lag.crai.CraiPublicKey;
+
+/**
+ * Ed25519 public/private keys (RFC 8709). Signing and verifying are much
+ * cheaper than with RSA, and the keys are tiny. Private keys are only stored
+ * in the openssh key file format.
+ */
+public class Ed25519Key extends PKey {
+    @Override
+    public String getSSHName() {
+        return "ssh-ed25519";
+    }
+
+    @Override
+    public boolean canSign() {
+        return mSeed != null;
+    }
+
+    @Override
+    public int getBits() {
+        return 256;
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        Message m = new Message();
+        m.putString(getSSHName());
+        m.putByteString(mPublicKey);
+        return m.toByteArray();
+    }
+
+    @Override
+    public Message signSSHData(Crai crai, byte[] data) throws SSHException {
+        try {
+            CraiPrivateKey ed = getCraiPrivateKey(crai);
+            Message m = new Message();
+            m.putString(getSSHName());
+            m.putByteString(ed.sign(data, 0, data.length));
+            return m;
+        } catch (CraiException x) {
+            throw new SSHException("Java publickey error: " + x);
+        }
+    }
+
+    @Override
+    public boolean verifySSHSignature(Crai crai, byte[] data, Message sig)
+            throws SSHException {
+        try {
+            if (!sig.getString().equals(getSSHName())) {
+                return false;
+            }
+            byte[] sigData = sig.getByteString();
+            if (sigData.length != 64) {
+                return false;
+            }
+            CraiPublicKey ed = getCraiPublicKey(crai);
+            return ed.verify(data, 0, data.length, sigData);
+        } catch (CraiException x) {
+            throw new SSHException("Java publickey error: " + x);
+        }
+    }
+
+    @Override
+    /* package */boolean isSupported(Crai crai) {
+        try {
+            crai.generateEd25519KeyPair();
+            return true;
+        } catch (CraiException x) {
+            return false;
+        }
+    }
+
+    @Override
+    protected void buildFromBER(BigInteger[] ints) throws SSHException {
+        throw new SSHException("Ed25519 keys are only stored in openssh key files");
+    }
+
+    @Override
+    protected void buildFromMessage(Message m) throws SSHException {
+        mPublicKey = m.getByteString();
+        if (mPublicKey.length != 32) {
+            throw new SSHException("Invalid Ed25519 key");
+        }
+    }
+
+    @Override
+    protected void buildFromOpenSSH(Message m) throws SSHException {
+        buildFromMessage(m);
+        // the "private key" is the seed followed by the public key again
+        byte[] priv = m.getByteString();
+        if (priv.length != 64) {
+            throw new SSHException("Invalid Ed25519 private key");
+        }
+        mSeed = new byte[32];
+        System.arraycopy(priv, 0, mSeed, 0, 32);
+    }
+
+    @Override
+    public void writePrivateKeyToStream(OutputStream os, String password)
+            throws IOException {
+        byte[] priv = new byte[64];
+        System.arraycopy(mSeed, 0, priv, 0, 32);
+        System.arraycopy(mPublicKey, 0, priv, 32, 32);
+
+        Message m = new Message();
+        m.putByteString(mPublicKey);
+        m.putByteString(priv);
+        writeOpenSSHPrivateKeyToStream(os, m, password);
+    }
+
+    /**
+     * Generate a new Ed25519 private/public key pair. The actual key
+     * generation is delegated to {@link Crai}.
+     * 
+     * @return a new Ed25519 key
+     * @throws SSHException
+     *             if there's an error within the underlying crypto library
+     */
+    public static Ed25519Key generate(Crai crai) throws SSHException {
+        try {
+            CraiKeyPair pair = crai.generateEd25519KeyPair();
+            CraiPrivateKey.Ed25519Contents priv = (CraiPrivateKey.Ed25519Contents) pair
+                    .getPrivateKey().getContents();
+            CraiPublicKey.Ed25519Contents pub = (CraiPublicKey.Ed25519Contents) pair
+                    .getPublicKey().getContents();
+
+            Ed25519Key key = new Ed25519Key();
+            key.mSeed = priv.getSeed();
+            key.mPublicKey = pub.getKey();
+            return key;
+        } catch (Exception x) {
+            throw new SSHException("Java publickey error: " + x);
+        }
+    }
+
+    @Override
+    public CraiPrivateKey toPrivateKey(Crai crai) {
+        return crai.makePrivateEd25519Key(mSeed);
+    }
+
+    @Override
+    public CraiPublicKey toPublicKey(Crai crai) {
+        return crai.makePublicEd25519Key(mPublicKey);
+    }
+
+    private byte[] mPublicKey;
+    private byte[] mSeed;
+}
@@ -25,6 +25,10 @@
 
 package net.lag.jaramiko;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * A signal between threads, based on the python class of the same name.
  * 
@@ -34,14 +38,17 @@ package net.lag.jaramiko;
  * Unlike condition variables (java's Object.notify and Object.wait), a set
  * event can be detected even if you weren't waiting at the exact moment that it
  * was set.
+ * 
+ * <p>
+ * Waiting is done on a {@link Condition} rather than an object monitor, so a
+ * virtual thread waiting on an event doesn't pin its carrier thread.
  */
 public final class Event {
     /**
      * Create a new Event in the cleared state.
      */
     public Event() {
-        mSet = false;
-        mLock = new Object();
+        this(false);
     }
 
     /**
@@ -53,7 +60,8 @@ public final class Event {
      */
     public Event(boolean isSet) {
         mSet = isSet;
-        mLock = new Object();
+        mLock = new ReentrantLock();
+        mCondition = mLock.newCondition();
     }
 
     /**
@@ -61,8 +69,11 @@ public final class Event {
      * block until {@link #set} is called again.
      */
     public void clear() {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             mSet = false;
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -71,9 +82,12 @@ public final class Event {
      * Subsequently, threads that call {@link #waitFor} will return immediately.
      */
     public void set() {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             mSet = true;
-            mLock.notifyAll();
+            mCondition.signalAll();
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -83,8 +97,11 @@ public final class Event {
      * @return true if the event is set; false if not
      */
     public boolean isSet() {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             return mSet;
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -104,14 +121,21 @@ public final class Event {
      *             if the thread was interrupted while waiting
      */
     public void waitFor(int timeout) throws InterruptedException {
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             if (!mSet) {
-                mLock.wait(timeout);
+                if (timeout == 0) {
+                    mCondition.await();
+                } else {
+                    mCondition.await(timeout, TimeUnit.MILLISECONDS);
+                }
             }
-            return;
+        } finally {
+            mLock.unlock();
         }
     }
 
     private boolean mSet;
-    private Object mLock;
+    private ReentrantLock mLock;
+    private Condition mCondition;
 }
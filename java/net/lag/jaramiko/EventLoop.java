@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2005-2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package net.lag.jaramiko;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small pool of selector threads that can drive many transports at once.
+ * 
+ * <p>
+ * Normally each {@link ClientTransport} or {@link ServerTransport} gets its own
+ * feeder thread, which spends most of its life blocked reading the socket. A
+ * server with thousands of mostly idle sessions can instead share an EventLoop
+ * between all of them: each transport is assigned to one of the loop's
+ * threads, which reads from the socket only when data is waiting and decodes
+ * whole packets as they arrive.
+ * 
+ * <p>
+ * To use an event loop, the transport's socket must come from a
+ * {@link SocketChannel} (for example, <code>SocketChannel.open(addr).socket()</code>
+ * or a socket accepted from a <code>ServerSocketChannel</code>), and
+ * {@link BaseTransport#setEventLoop} must be called before the transport is
+ * started. Callbacks such as {@link ServerInterface} methods are then made
+ * from the event loop's threads, so they should return promptly.
+ * 
+ * <p>
+ * A loop thread never waits for a slow peer: output that the socket won't
+ * take straight away is queued and sent when the socket is writable again.
+ * Threads writing to a channel are held back while the queue is long. A
+ * session whose peer stops reading altogether is closed once its queue
+ * passes a few megabytes.
+ */
+public final class EventLoop {
+    private static final Logger logger = LoggerFactory
+            .getLogger(EventLoop.class);
+
+    /**
+     * Create a new event loop and start its threads.
+     * 
+     * @param threads
+     *            number of selector threads to run
+     * @throws IOException
+     *             if a selector couldn't be opened
+     */
+    public EventLoop(int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("need at least one thread");
+        }
+        mWorkers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            mWorkers[i] = new Worker(Selector.open());
+            Thread t = new Thread(mWorkers[i], "jaramiko event loop " + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        mNext = 0;
+    }
+
+    /**
+     * Stop the event loop's threads. The session of any transport still
+     * attached to the loop is ended, as if the connection had dropped.
+     */
+    public void close() {
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i].shutdown();
+        }
+    }
+
+    // ----- package
+
+    // pick the worker thread for a new transport, which then adds itself
+    /* package */synchronized Worker nextWorker() {
+        Worker w = mWorkers[mNext];
+        mNext = (mNext + 1) % mWorkers.length;
+        return w;
+    }
+
+    // true if the current thread is one of an event loop's, and mustn't block
+    /* package */static boolean inLoopThread() {
+        return sLoopThread.get() != null;
+    }
+
+    /* package */static final class Worker implements Runnable {
+        public Worker(Selector selector) {
+            mSelector = selector;
+            mPending = new ArrayList<BaseTransport>();
+            mUpdates = new ArrayList<BaseTransport>();
+            mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            mRunning = true;
+        }
+
+        public void add(BaseTransport t) {
+            synchronized (mPending) {
+                if (!mStopped) {
+                    mPending.add(t);
+                    mSelector.wakeup();
+                    return;
+                }
+            }
+            t.eventLoopStopped(new SSHException("Event loop closed"));
+        }
+
+        /*
+         * look at a transport again: the handshake task that parked it has
+         * finished, or it has output queued. may be called from any thread.
+         */
+        public void update(BaseTransport t) {
+            synchronized (mPending) {
+                mUpdates.add(t);
+            }
+            mSelector.wakeup();
+        }
+
+        public void shutdown() {
+            mRunning = false;
+            mSelector.wakeup();
+        }
+
+        public void run() {
+            sLoopThread.set(Boolean.TRUE);
+            long lastTick = System.currentTimeMillis();
+            try {
+                while (mRunning) {
+                    mSelector.select(TICK_MS);
+                    registerPending();
+                    updateChanged();
+
+                    Iterator<SelectionKey> iter = mSelector.selectedKeys()
+                            .iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        handleSelected(key);
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastTick >= TICK_MS) {
+                        lastTick = now;
+                        for (Iterator<SelectionKey> i = mSelector.keys()
+                                .iterator(); i.hasNext();) {
+                            SelectionKey key = i.next();
+                            if (!key.isValid()) {
+                                continue;
+                            }
+                            BaseTransport t = (BaseTransport) key.attachment();
+                            if (!t.handleTick()) {
+                                key.cancel();
+                            }
+                        }
+                    }
+                }
+            } catch (IOException x) {
+                logger.error("I/O exception in event loop: ", x);
+            } finally {
+                stopAll(new SSHException(mRunning ? "Event loop failed"
+                        : "Event loop closed"));
+                try {
+                    mSelector.close();
+                } catch (IOException x) {}
+                logger.debug("Event loop thread terminating.");
+            }
+        }
+
+        /*
+         * a failure belongs to the transport it happened on. the worker
+         * carries on with the rest.
+         */
+        private void handleSelected(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            BaseTransport t = (BaseTransport) key.attachment();
+            try {
+                boolean alive = true;
+                if (key.isWritable()) {
+                    alive = t.handleWritable();
+                }
+                if (alive && key.isReadable()) {
+                    alive = t.handleReadable(mReadBuffer);
+                }
+                if (alive) {
+                    key.interestOps(interestOps(t));
+                } else {
+                    key.cancel();
+                }
+            } catch (CancelledKeyException x) {
+                // the session was ended on another thread (by a failed
+                // handshake task), which closed the socket
+            } catch (RuntimeException x) {
+                t.eventLoopException(x);
+                key.cancel();
+            }
+        }
+
+        // nothing will read for these transports again, so end them
+        private void stopAll(IOException reason) {
+            List<BaseTransport> orphans;
+            synchronized (mPending) {
+                mStopped = true;
+                orphans = new ArrayList<BaseTransport>(mPending);
+                mPending.clear();
+            }
+            for (SelectionKey key : mSelector.keys()) {
+                orphans.add((BaseTransport) key.attachment());
+            }
+            for (BaseTransport t : orphans) {
+                try {
+                    t.eventLoopStopped(reason);
+                } catch (RuntimeException x) {
+                    logger.error("Exception ending a session: ", x);
+                }
+            }
+        }
+
+        private void registerPending() {
+            synchronized (mPending) {
+                for (Iterator<BaseTransport> i = mPending.iterator(); i
+                        .hasNext();) {
+                    BaseTransport t = i.next();
+                    try {
+                        t.getSocketChannel().register(mSelector,
+                                interestOps(t), t);
+                    } catch (ClosedChannelException x) {
+                        // let the transport notice, and clean up
+                        t.handleReadable(mReadBuffer);
+                    } catch (RuntimeException x) {
+                        t.eventLoopException(x);
+                    }
+                }
+                mPending.clear();
+            }
+        }
+
+        private void updateChanged() {
+            List<BaseTransport> updates;
+            synchronized (mPending) {
+                if (mUpdates.isEmpty()) {
+                    return;
+                }
+                updates = new ArrayList<BaseTransport>(mUpdates);
+                mUpdates.clear();
+            }
+            for (BaseTransport t : updates) {
+                SelectionKey key = t.getSocketChannel().keyFor(mSelector);
+                if ((key == null) || !key.isValid()) {
+                    // not registered yet, or already gone
+                    continue;
+                }
+                try {
+                    if (t.handleUpdate()) {
+                        key.interestOps(interestOps(t));
+                    } else {
+                        key.cancel();
+                    }
+                } catch (CancelledKeyException x) {
+                    // ended on another thread, as in handleSelected
+                } catch (RuntimeException x) {
+                    t.eventLoopException(x);
+                    key.cancel();
+                }
+            }
+        }
+
+        /*
+         * while a handshake task runs, leave the transport's input in the
+         * socket until it's done; while output is queued, wait for room.
+         */
+        private static int interestOps(BaseTransport t) {
+            int ops = t.isInboundParked() ? 0 : SelectionKey.OP_READ;
+            if (t.hasQueuedOutput()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            return ops;
+        }
+
+        private Selector mSelector;
+        private List<BaseTransport> mPending; // also locks mUpdates
+        private List<BaseTransport> mUpdates;
+        private ByteBuffer mReadBuffer;
+        private volatile boolean mRunning;
+        private boolean mStopped; // locked by mPending
+    }
+
+    private static final ThreadLocal<Boolean> sLoopThread = new ThreadLocal<Boolean>();
+
+    private static final int TICK_MS = 100;
+    private static final int READ_BUFFER_SIZE = 32 * 1024;
+
+    private Worker[] mWorkers;
+    private int mNext;
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2005-2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package net.lag.jaramiko;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of threads for the expensive part of server-mode key
+ * exchange: the Diffie-Hellman (or elliptic curve) math, signing the exchange
+ * hash with the host key, and deriving the session keys.
+ *
+ * <p>
+ * Normally that work is done by the transport's own feeder thread (or its
+ * {@link EventLoop} thread, which other sessions are waiting on too). A server
+ * can instead share a HandshakeExecutor between all of its transports (with
+ * {@link ServerTransport#setHandshakeExecutor}), which caps the number of
+ * handshakes being computed at once. If more handshakes arrive than the queue
+ * will hold, the extra ones are computed on the transport's own thread, which
+ * slows down how fast that thread accepts new work.
+ *
+ * <p>
+ * The executor keeps a few statistics, so a server can tell when its
+ * handshake capacity is running short.
+ */
+public final class HandshakeExecutor {
+    /**
+     * Create a new handshake executor and start its threads.
+     *
+     * @param threads
+     *            number of handshakes to compute at once
+     * @param queueSize
+     *            number of handshakes that can wait for a thread
+     */
+    public HandshakeExecutor(int threads, int queueSize) {
+        if ((threads < 1) || (queueSize < 1)) {
+            throw new IllegalArgumentException(
+                    "need at least one thread and queue slot");
+        }
+        ThreadFactory factory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t;
+                synchronized (HandshakeExecutor.this) {
+                    t = new Thread(r, "jaramiko handshake " + mThreadCount++);
+                }
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        RejectedExecutionHandler overflow = new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                synchronized (HandshakeExecutor.this) {
+                    mCallerRuns++;
+                }
+                r.run();
+            }
+        };
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                        queueSize), factory, overflow);
+    }
+
+    /**
+     * Stop the executor's threads once the handshakes already queued are
+     * done. Transports that still use the executor will compute their
+     * handshakes on their own threads.
+     */
+    public void close() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Return the number of handshakes waiting for a thread.
+     *
+     * @return the current queue depth
+     */
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * Return the number of handshakes that have been computed.
+     *
+     * @return the number of completed handshakes
+     */
+    public synchronized long getCompletedCount() {
+        return mCompleted;
+    }
+
+    /**
+     * Return the number of handshakes that were computed on the transport's
+     * own thread, because the queue was full.
+     *
+     * @return the number of handshakes that overflowed the queue
+     */
+    public synchronized long getOverflowCount() {
+        return mCallerRuns;
+    }
+
+    /**
+     * Return the average time a handshake waited in the queue before a thread
+     * picked it up, in microseconds.
+     *
+     * @return the average queue wait
+     */
+    public synchronized long getAverageWaitMicros() {
+        return (mCompleted == 0) ? 0 : mTotalWait / mCompleted / 1000;
+    }
+
+    /**
+     * Return the average time spent computing a handshake (key agreement,
+     * signature, and session keys), in microseconds.
+     *
+     * @return the average handshake compute time
+     */
+    public synchronized long getAverageRunMicros() {
+        return (mCompleted == 0) ? 0 : mTotalRun / mCompleted / 1000;
+    }
+
+    /**
+     * Return the longest time spent computing a single handshake, in
+     * microseconds.
+     *
+     * @return the longest handshake compute time
+     */
+    public synchronized long getMaxRunMicros() {
+        return mMaxRun / 1000;
+    }
+
+    // ----- package
+
+    /* package */void execute(final Runnable task) {
+        final long queued = System.nanoTime();
+        Runnable timed = new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    long end = System.nanoTime();
+                    synchronized (HandshakeExecutor.this) {
+                        mCompleted++;
+                        mTotalWait += start - queued;
+                        mTotalRun += end - start;
+                        if (end - start > mMaxRun) {
+                            mMaxRun = end - start;
+                        }
+                    }
+                }
+            }
+        };
+        if (mExecutor.isShutdown()) {
+            timed.run();
+        } else {
+            mExecutor.execute(timed);
+        }
+    }
+
+    private ThreadPoolExecutor mExecutor;
+    private int mThreadCount;
+    private long mCompleted;
+    private long mCallerRuns;
+    private long mTotalWait;
+    private long mTotalRun;
+    private long mMaxRun;
+}
@@ -74,13 +74,9 @@ public class HostKeys {
                 throw new SSHException("Invalid line");
             }
 
-            PKey key = null;
-            if (fields[1].equals("ssh-rsa")) {
-                key = PKey.createFromBase64(fields[2]);
-            } else if (fields[1].equals("ssh-dss")) {
-                key = PKey.createFromBase64(fields[2]);
-            } else {
-                throw new SSHException("Unknown key type");
+            PKey key = PKey.createFromBase64(fields[2]);
+            if (!key.getSSHName().equals(fields[1])) {
+                throw new SSHException("Key type doesn't match key data");
             }
 
             Entry entry = new Entry();
@@ -198,9 +194,9 @@ public class HostKeys {
 
     /**
      * Find hostkey entries for a given hostname or IP. A map of keytype to key
-     * is returned. The keytype will be either <code>"ssh-rsa"</code> or
-     * <code>"ssh-dss"</code>. If no keys are found for the given host, an empty
-     * map is returned.
+     * is returned. The keytype will be a key name like <code>"ssh-rsa"</code>
+     * or <code>"ssh-ed25519"</code>. If no keys are found for the given host,
+     * an empty map is returned.
      * 
      * @param hostname
      *            hostname (or IP) to lookup
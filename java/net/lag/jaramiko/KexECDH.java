@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2005-2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package net.lag.jaramiko;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+import net.lag.crai.Crai;
+import net.lag.crai.CraiDigest;
+import net.lag.crai.CraiException;
+import net.lag.crai.CraiKeyAgreement;
+import net.lag.crai.CraiKeyAgreementAlgorithm;
+
+/**
+ * Elliptic-curve Diffie-Hellman key exchange (RFC 5656), and curve25519
+ * (RFC 8731), which is the same exchange over a different curve. Each side
+ * does a couple of scalar multiplications instead of a 1024-bit (or larger)
+ * modPow, so the handshake is much cheaper than the "group1" or "gex"
+ * exchanges.
+ */
+/* package */abstract class KexECDH implements Kex {
+    /* package */static class Curve25519 extends KexECDH {
+        public String getName() {
+            return "curve25519-sha256";
+        }
+
+        protected CraiKeyAgreementAlgorithm getAlgorithm() {
+            return CraiKeyAgreementAlgorithm.X25519;
+        }
+
+        protected CraiDigest makeHash(Crai crai) {
+            return crai.makeSHA256();
+        }
+    }
+
+    // the name it went by before it was standardized
+    /* package */static class Curve25519LibSSH extends Curve25519 {
+        @Override
+        public String getName() {
+            return "curve25519-sha256@libssh.org";
+        }
+    }
+
+    /* package */static class NistP256 extends KexECDH {
+        public String getName() {
+            return "ecdh-sha2-nistp256";
+        }
+
+        protected CraiKeyAgreementAlgorithm getAlgorithm() {
+            return CraiKeyAgreementAlgorithm.ECDH_P256;
+        }
+
+        protected CraiDigest makeHash(Crai crai) {
+            return crai.makeSHA256();
+        }
+    }
+
+    /* package */static class NistP384 extends KexECDH {
+        public String getName() {
+            return "ecdh-sha2-nistp384";
+        }
+
+        protected CraiKeyAgreementAlgorithm getAlgorithm() {
+            return CraiKeyAgreementAlgorithm.ECDH_P384;
+        }
+
+        protected CraiDigest makeHash(Crai crai) {
+            return crai.makeSHA384();
+        }
+    }
+
+    /* package */static class NistP521 extends KexECDH {
+        public String getName() {
+            return "ecdh-sha2-nistp521";
+        }
+
+        protected CraiKeyAgreementAlgorithm getAlgorithm() {
+            return CraiKeyAgreementAlgorithm.ECDH_P521;
+        }
+
+        protected CraiDigest makeHash(Crai crai) {
+            return crai.makeSHA512();
+        }
+    }
+
+    protected abstract CraiKeyAgreementAlgorithm getAlgorithm();
+
+    protected abstract CraiDigest makeHash(Crai crai);
+
+    /**
+     * Return true if the crypto layer can do this exchange. Curve support
+     * varies a lot between java versions.
+     */
+    /* package */boolean isSupported(Crai crai) {
+        try {
+            crai.getKeyAgreement(getAlgorithm()).generateKey();
+            return true;
+        } catch (CraiException x) {
+            return false;
+        }
+    }
+
+    public void startKex(KexTransportInterface t, Crai crai) throws IOException {
+        mTransport = t;
+        mCrai = crai;
+
+        try {
+            mAgreement = mCrai.getKeyAgreement(getAlgorithm());
+            mQ = mAgreement.generateKey();
+        } catch (CraiException x) {
+            throw new SSHException("Unable to start " + getName() + ": " + x);
+        }
+        if (mTransport.getServerKey() != null) {
+            // (server mode)
+            mTransport.registerMessageHandler(KEX_ECDH_INIT, this);
+            mTransport.expectPacket(KEX_ECDH_INIT);
+            return;
+        }
+        Message m = new Message();
+        m.putByte(KEX_ECDH_INIT);
+        m.putByteString(mQ);
+        mTransport.sendMessage(m);
+        mTransport.registerMessageHandler(KEX_ECDH_REPLY, this);
+        mTransport.expectPacket(KEX_ECDH_REPLY);
+    }
+
+    public boolean handleMessage(byte ptype, Message m) throws IOException {
+        if (ptype == KEX_ECDH_INIT) {
+            // server mode
+            handleKexECDHInit(m);
+            return true;
+        } else if (ptype == KEX_ECDH_REPLY) {
+            // client mode
+            handleKexECDHReply(m);
+            return true;
+        }
+        throw new SSHException("KexECDH asked to handle packet type "
+                + MessageType.getDescription(ptype));
+    }
+
+    // server mode
+    private void handleKexECDHInit(Message m) throws IOException {
+        final byte[] qc = m.getByteString();
+        mTransport.runTask(new KexTransportInterface.Task() {
+            public void run() throws IOException {
+                sendKexECDHReply(qc);
+            }
+        });
+    }
+
+    // server mode: everything expensive happens here
+    private void sendKexECDHReply(byte[] qc) throws IOException {
+        BigInteger k = computeK(qc);
+        PKey key = mTransport.getServerKey();
+        byte[] keyBytes = key.toByteArray();
+
+        // build up the hash H of (V_C || V_S || I_C || I_S || K_S || Q_C ||
+        // Q_S || K)
+        Message hm = new Message();
+        hm.putString(mTransport.getRemoteVersion());
+        hm.putString(mTransport.getLocalVersion());
+        hm.putByteString(mTransport.getRemoteKexInit());
+        hm.putByteString(mTransport.getLocalKexInit());
+        hm.putByteString(keyBytes);
+        hm.putByteString(qc);
+        hm.putByteString(mQ);
+        hm.putMPZ(k);
+
+        CraiDigest hash = makeHash(mCrai);
+        byte[] data = hm.toByteArray();
+        hash.update(data, 0, data.length);
+        byte[] h = hash.finish();
+        mTransport.setKH(k, h, hash);
+
+        // sign it
+        byte[] sig = key.signSSHData(mCrai, h, mTransport.getServerKeyType())
+                .toByteArray();
+        Message rm = new Message();
+        rm.putByte(KEX_ECDH_REPLY);
+        rm.putByteString(keyBytes);
+        rm.putByteString(mQ);
+        rm.putByteString(sig);
+        mTransport.sendMessage(rm);
+        mTransport.kexComplete();
+    }
+
+    // client mode
+    private void handleKexECDHReply(Message m) throws IOException {
+        byte[] hostKey = m.getByteString();
+        byte[] qs = m.getByteString();
+        byte[] sig = m.getByteString();
+        BigInteger k = computeK(qs);
+
+        // build up the hash H of (V_C || V_S || I_C || I_S || K_S || Q_C ||
+        // Q_S || K)
+        Message hm = new Message();
+        hm.putString(mTransport.getLocalVersion());
+        hm.putString(mTransport.getRemoteVersion());
+        hm.putByteString(mTransport.getLocalKexInit());
+        hm.putByteString(mTransport.getRemoteKexInit());
+        hm.putByteString(hostKey);
+        hm.putByteString(mQ);
+        hm.putByteString(qs);
+        hm.putMPZ(k);
+
+        CraiDigest hash = makeHash(mCrai);
+        byte[] data = hm.toByteArray();
+        hash.update(data, 0, data.length);
+        mTransport.setKH(k, hash.finish(), hash);
+        mTransport.verifyKey(hostKey, sig);
+        mTransport.kexComplete();
+    }
+
+    // the shared secret goes into the hash as an unsigned mpint
+    private BigInteger computeK(byte[] peerKey) throws SSHException {
+        try {
+            return new BigInteger(1, mAgreement.computeSecret(peerKey));
+        } catch (CraiException x) {
+            throw new SSHException("Invalid " + getName() + " public key: "
+                    + x);
+        }
+    }
+
+    public static final byte KEX_ECDH_INIT = 30;
+    public static final byte KEX_ECDH_REPLY = 31;
+
+    private Crai mCrai;
+    private KexTransportInterface mTransport;
+    private CraiKeyAgreement mAgreement;
+
+    // our ephemeral public key
+    private byte[] mQ;
+}
@@ -51,6 +51,8 @@ class KexGex implements Kex {
 
         if (t.getServerKey() != null) {
             // server mode
+            t.registerMessageHandler(KEX_GEX_REQUEST, this);
+            t.registerMessageHandler(KEX_GEX_REQUEST_OLD, this);
             t.expectPacket(KEX_GEX_REQUEST, KEX_GEX_REQUEST_OLD);
             return;
         }
@@ -72,6 +74,7 @@ class KexGex implements Kex {
             m.putInt(mMaxBits);
         }
         t.sendMessage(m);
+        t.registerMessageHandler(KEX_GEX_GROUP, this);
         t.expectPacket(KEX_GEX_GROUP);
     }
 
@@ -160,6 +163,7 @@ class KexGex implements Kex {
         m.putMPZ(mP);
         m.putMPZ(mG);
         mTransport.sendMessage(m);
+        mTransport.registerMessageHandler(KEX_GEX_INIT, this);
         mTransport.expectPacket(KEX_GEX_INIT);
     }
 
@@ -195,6 +199,7 @@ class KexGex implements Kex {
         m.putMPZ(mP);
         m.putMPZ(mG);
         mTransport.sendMessage(m);
+        mTransport.registerMessageHandler(KEX_GEX_INIT, this);
         mTransport.expectPacket(KEX_GEX_INIT);
         mUseOldStyle = true;
     }
@@ -205,8 +210,23 @@ class KexGex implements Kex {
                 || (mE.compareTo(mP.subtract(BigInteger.ONE)) > 0)) {
             throw new SSHException("Client kex 'e' is out of range");
         }
-        generateX();
-        mF = mG.modPow(mX, mP);
+        mTransport.runTask(new KexTransportInterface.Task() {
+            public void run() throws IOException {
+                sendReply();
+            }
+        });
+    }
+
+    private void sendReply() throws IOException {
+        DHKeyPool pool = mTransport.getDHKeyPool();
+        if (pool != null) {
+            BigInteger[] pair = pool.take(mG, mP);
+            mX = pair[0];
+            mF = pair[1];
+        } else {
+            generateX();
+            mF = mG.modPow(mX, mP);
+        }
         BigInteger k = mE.modPow(mX, mP);
         PKey key = mTransport.getServerKey();
         byte[] keyBytes = key.toByteArray();
@@ -239,7 +259,8 @@ class KexGex implements Kex {
         mTransport.setKH(k, h);
 
         // sign it.
-        byte[] sig = key.signSSHData(mCrai, h).toByteArray();
+        byte[] sig = key.signSSHData(mCrai, h, mTransport.getServerKeyType())
+                .toByteArray();
         Message rm = new Message();
         rm.putByte(KEX_GEX_REPLY);
         rm.putByteString(keyBytes);
@@ -271,6 +292,7 @@ class KexGex implements Kex {
         rm.putByte(KEX_GEX_INIT);
         rm.putMPZ(mE);
         mTransport.sendMessage(rm);
+        mTransport.registerMessageHandler(KEX_GEX_REPLY, this);
         mTransport.expectPacket(KEX_GEX_REPLY);
     }
 
@@ -44,16 +44,14 @@ import net.lag.crai.CraiDigest;
         mTransport = t;
         mCrai = crai;
 
-        generateX();
         if (mTransport.getServerKey() != null) {
             // (server mode)
-            // compute f = g^x mod p, but don't send it yet
-            mF = mCrai.modPow(G, mX, P);
             mTransport.registerMessageHandler(KEXDH_INIT, this);
             mTransport.expectPacket(KEXDH_INIT);
             return;
         }
         // compute e = g^x mod p (where g=2), and send it
+        generateX();
         mE = mCrai.modPow(G, mX, P);
         Message m = new Message();
         m.putByte(KEXDH_INIT);
@@ -106,6 +104,25 @@ import net.lag.crai.CraiDigest;
                 || (mE.compareTo(P.subtract(BigInteger.ONE)) > 0)) {
             throw new SSHException("Client kex 'e' is out of range");
         }
+        mTransport.runTask(new KexTransportInterface.Task() {
+            public void run() throws IOException {
+                sendKexDHReply();
+            }
+        });
+    }
+
+    // server mode: everything expensive happens here
+    private void sendKexDHReply() throws IOException {
+        // compute f = g^x mod p
+        DHKeyPool pool = mTransport.getDHKeyPool();
+        if (pool != null) {
+            BigInteger[] pair = pool.take(G, P);
+            mX = pair[0];
+            mF = pair[1];
+        } else {
+            generateX();
+            mF = mCrai.modPow(G, mX, P);
+        }
         BigInteger k = mCrai.modPow(mE, mX, P);
         PKey key = mTransport.getServerKey();
         byte[] keyBytes = key.toByteArray();
@@ -129,7 +146,8 @@ import net.lag.crai.CraiDigest;
         mTransport.setKH(k, h);
 
         // sign it
-        byte[] sig = key.signSSHData(mCrai, h).toByteArray();
+        byte[] sig = key.signSSHData(mCrai, h, mTransport.getServerKeyType())
+                .toByteArray();
         Message rm = new Message();
         rm.putByte(KEXDH_REPLY);
         rm.putByteString(keyBytes);
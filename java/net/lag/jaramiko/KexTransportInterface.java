@@ -28,11 +28,18 @@ package net.lag.jaramiko;
 import java.io.IOException;
 import java.math.BigInteger;
 
+import net.lag.crai.CraiDigest;
+
 /**
  * This makes it easier to unit-test the Kex implementations, by letting the
  * Transport interface be easily stubbed out.
  */
 interface KexTransportInterface {
+    // the server's half of a kex, which may be handed off to another thread
+    public static interface Task {
+        public void run() throws IOException;
+    }
+
     public String getLocalVersion();
 
     public String getRemoteVersion();
@@ -51,9 +58,21 @@ interface KexTransportInterface {
 
     public PKey getServerKey();
 
+    // precomputed server-mode DH keys, or null
+    public DHKeyPool getDHKeyPool();
+
+    // the signature algorithm agreed on for the server key
+    public String getServerKeyType();
+
     public void verifyKey(byte[] hostKey, byte[] sig) throws SSHException;
 
     public void setKH(BigInteger k, byte[] h);
 
+    // for kex methods whose hash isn't SHA-1
+    public void setKH(BigInteger k, byte[] h, CraiDigest hash);
+
     public void kexComplete() throws IOException;
+
+    // run the task now, or on a handshake thread if the transport has one
+    public void runTask(Task task) throws IOException;
 }
@@ -27,16 +27,23 @@ package net.lag.jaramiko;
 
 /**
  * Description of HMAC algorithms we understand, what java calls them, and their
- * digest sizes.
+ * digest sizes. An encrypt-then-mac algorithm is computed over the encrypted
+ * packet (with its length in the clear) rather than the plaintext.
  */
 /* package */final class MacDescription {
     public MacDescription(String name, int size, int naturalSize) {
+        this(name, size, naturalSize, false);
+    }
+
+    public MacDescription(String name, int size, int naturalSize, boolean etm) {
         mName = name;
         mDigestSize = size;
         mNaturalSize = naturalSize;
+        mETM = etm;
     }
 
     public String mName;
     public int mDigestSize; // bytes
     public int mNaturalSize; // bytes
+    public boolean mETM;
 }
@@ -27,8 +27,10 @@ package net.lag.jaramiko;
 
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 
 import net.lag.crai.CraiRandom;
@@ -44,7 +46,20 @@ public final class Message {
      */
     public Message() {
         // start at position 5 to leave space for packetization
-        init(new byte[DEFAULT_SIZE], 5, 0, 0);
+        init(new byte[DEFAULT_SIZE], HEADER_SIZE, 0, 0);
+    }
+
+    /**
+     * Create a new empty Message, suitable for writing, with room for a
+     * payload of the given size. Space for the packet header, padding, and MAC
+     * is reserved on top of that, so a payload of this size can be written
+     * and sent without growing the buffer.
+     * 
+     * @param size
+     *            the expected size of the payload, in bytes
+     */
+    public Message(int size) {
+        init(new byte[size + HEADER_SIZE + TRAILER_SIZE], HEADER_SIZE, 0, 0);
     }
 
     /**
@@ -349,6 +364,47 @@ public final class Message {
         return Arrays.asList(Util.splitString(getString(), ","));
     }
 
+    /**
+     * Skip over <code>n</code> bytes without copying them, and return the
+     * offset of the skipped bytes within the backing array (see
+     * {@link #getBuffer}). This lets the receive path hand a byte string to
+     * its consumer straight out of the packetizer's buffer.
+     *
+     * @param n
+     *            number of bytes to skip
+     * @return the offset of the skipped bytes in the backing array
+     */
+    /* package */int skipBytes(int n) {
+        ensureSpace(n);
+        int offset = mPosition;
+        mPosition += n;
+        return offset;
+    }
+
+    /**
+     * Return the array backing this Message. Incoming messages are views onto
+     * the packetizer's receive buffer, so the contents are only valid until
+     * the next packet is read.
+     */
+    /* package */byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Return a copy of this Message that owns its own buffer, at the same
+     * position. Incoming messages are only views onto the packetizer's
+     * receive buffer, so anything that outlives the packet handler must hold
+     * a copy instead.
+     */
+    /* package */Message copy() {
+        int length = (mLength > 0) ? mLength : mBuffer.length - mStart;
+        byte[] buf = new byte[length];
+        System.arraycopy(mBuffer, mStart, buf, 0, length);
+        Message m = new Message(buf, 0, length, mSequenceNumber);
+        m.mPosition = mPosition - mStart;
+        return m;
+    }
+
     /**
      * Pack the SSH2 message into a proper SSH2 packet, with its length being a
      * whole multiple of the given block size. Padding is added from the secure
@@ -364,8 +420,30 @@ public final class Message {
      */
     /* package */void packetize(CraiRandom random, int blockSize,
             boolean encrypting) {
+        packetize(random, blockSize, encrypting, false);
+    }
+
+    /**
+     * Pack the SSH2 message into a proper SSH2 packet, optionally leaving the
+     * 4-byte length out of the block size calculation. AEAD ciphers handle
+     * the length field separately, so only the rest of the packet has to be a
+     * whole number of blocks.
+     * 
+     * @param random
+     *            a source of secure random bytes (used for padding)
+     * @param blockSize
+     *            the block size to pad up to
+     * @param encrypting
+     *            true if this packet will be encrypted
+     * @param excludeLength
+     *            true if the length field doesn't count towards the blocks
+     */
+    /* package */void packetize(CraiRandom random, int blockSize,
+            boolean encrypting, boolean excludeLength) {
         // pad up at least 4 bytes, to nearest block-size (usually 8)
-        int padding = 3 + blockSize - ((mPosition - mStart + 8) % blockSize);
+        int header = excludeLength ? 4 : 8;
+        int padding = 3 + blockSize
+                - ((mPosition - mStart + header) % blockSize);
         byte[] pad = new byte[padding];
         if (encrypting) {
             // leave the padding as zero bytes unless we're encrypting
@@ -395,13 +473,96 @@ public final class Message {
         mPosition += padding;
     }
 
-    // call before packetizing
+    /*
+     * return an empty message for writing, with a buffer from the pool that's
+     * big enough for a payload of this size. once the packetizer has written
+     * the message, it calls release() to put the buffer back.
+     */
+    /* package */static Message obtain(int size) {
+        int sizeClass = sizeClass(size + HEADER_SIZE + TRAILER_SIZE);
+        if (sizeClass < 0) {
+            // too big to be worth keeping around
+            return new Message(size);
+        }
+
+        // a bigger buffer will do too: compressing a packet often grows its
+        // buffer into the next class up
+        byte[] buf = null;
+        synchronized (sPool) {
+            for (int i = sizeClass; (buf == null) && (i < POOL_CLASSES); i++) {
+                buf = sPool.get(i).poll();
+            }
+        }
+        if (buf == null) {
+            buf = new byte[POOL_MIN_SIZE << (2 * sizeClass)];
+        }
+        Message m = new Message(buf, HEADER_SIZE, 0, 0);
+        m.mPooled = true;
+        return m;
+    }
+
+    /*
+     * hand this message's buffer back to the pool. the message can't be used
+     * after this. messages that didn't come from obtain() are left alone.
+     */
+    /* package */void release() {
+        if (!mPooled) {
+            return;
+        }
+        byte[] buf = mBuffer;
+        mBuffer = null;
+        mPooled = false;
+
+        // the buffer may have grown since it was obtained. ensureSpace grows
+        // by 4x, so it's usually still the size of one of the classes.
+        int sizeClass = sizeClass(buf.length);
+        if ((sizeClass < 0) || (buf.length != POOL_MIN_SIZE << (2 * sizeClass))) {
+            return;
+        }
+        synchronized (sPool) {
+            LinkedList<byte[]> free = sPool.get(sizeClass);
+            if (free.size() < POOL_DEPTH) {
+                free.add(buf);
+            }
+        }
+    }
+
+    // number of free buffers in the pool for a payload size (for tests)
+    /* package */static int pooled(int size) {
+        int sizeClass = sizeClass(size + HEADER_SIZE + TRAILER_SIZE);
+        if (sizeClass < 0) {
+            return 0;
+        }
+        synchronized (sPool) {
+            return sPool.get(sizeClass).size();
+        }
+    }
+
+    // smallest size class that holds this many bytes, or -1 if none does
+    private static int sizeClass(int n) {
+        for (int i = 0; i < POOL_CLASSES; i++) {
+            if (n <= POOL_MIN_SIZE << (2 * i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // call before packetizing. the payload is compressed into the space
+    // after it, and then slid back down, so the buffer is all we need.
     /* package */void compress(Compressor compressor) {
-        byte[] out = compressor.compress(mBuffer, mStart, mPosition - mStart);
-        mPosition = mStart;
-        ensureSpace(out.length);
-        System.arraycopy(out, 0, mBuffer, mStart, out.length);
-        mPosition = mStart + out.length;
+        int length = mPosition - mStart;
+        ensureSpace(compressor.compressBound(length));
+        int n = compressor.compress(mBuffer, mStart, length, mBuffer,
+                mPosition);
+        System.arraycopy(mBuffer, mPosition, mBuffer, mStart, n);
+        mPosition = mStart + n;
+    }
+
+    // the packetizer encrypts and macs a packetized message where it sits in
+    // getBuffer(): the packet starts here, and is getPosition() bytes long.
+    /* package */int getBufferStart() {
+        return mStart;
     }
 
     /**
@@ -436,7 +597,30 @@ public final class Message {
     private int mStart = 0;
     private int mLength = 0;
     private int mSequenceNumber = 0;
+    private boolean mPooled = false;
 
     // default size of the buffer, expanded as needed
     private static final int DEFAULT_SIZE = 64;
+
+    // space kept in front of the payload for the packet length and padding
+    // length, and after it for the padding (at most 3 + the block size, or 35
+    // bytes) and the mac (at most 64 bytes)
+    private static final int HEADER_SIZE = 5;
+    private static final int TRAILER_SIZE = 128;
+
+    // buffer pool: size classes go up by 4x (the same as ensureSpace) from
+    // 256 bytes to 256K, which is enough for a full-sized data packet even
+    // with compression's scratch space after it.
+    private static final int POOL_MIN_SIZE = 256;
+    private static final int POOL_CLASSES = 6;
+    private static final int POOL_DEPTH = 8;
+
+    private static final List<LinkedList<byte[]>> sPool;
+
+    static {
+        sPool = new ArrayList<LinkedList<byte[]>>(POOL_CLASSES);
+        for (int i = 0; i < POOL_CLASSES; i++) {
+            sPool.add(new LinkedList<byte[]>());
+        }
+    }
 }
@@ -35,6 +35,7 @@ package net.lag.jaramiko;
     public static final byte DEBUG = 4;
     public static final byte SERVICE_REQUEST = 5;
     public static final byte SERVICE_ACCEPT = 6;
+    public static final byte EXT_INFO = 7;
 
     public static final byte KEX_INIT = 20;
     public static final byte NEW_KEYS = 21;
@@ -85,6 +86,8 @@ package net.lag.jaramiko;
             return "service-request";
         case SERVICE_ACCEPT:
             return "service-accept";
+        case EXT_INFO:
+            return "ext-info";
         case KEX_INIT:
             return "kex-init";
         case NEW_KEYS:
@@ -26,7 +26,6 @@
 package net.lag.jaramiko;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -99,6 +98,42 @@ public abstract class PKey {
     public abstract Message signSSHData(Crai crai, byte[] data)
             throws SSHException;
 
+    /**
+     * Return the names of the signature algorithms this key can sign with,
+     * most preferred first. For most keys this is just the key's own
+     * {@link #getSSHName name}, but an RSA key can also sign with SHA-2
+     * (<code>"rsa-sha2-512"</code> and <code>"rsa-sha2-256"</code>).
+     * 
+     * @return the names of the signature algorithms this key can use
+     */
+    public String[] getSignatureAlgorithms() {
+        return new String[] { getSSHName() };
+    }
+
+    /**
+     * Sign a blob of data using this private key and a particular signature
+     * algorithm, and return a {@link Message} representing the signature.
+     * 
+     * @param crai
+     *            the crypto abstraction layer
+     * @param data
+     *            the data to sign
+     * @param algorithm
+     *            one of the names from {@link #getSignatureAlgorithms}
+     * @return a {@link Message} representing the signature
+     * @throws SSHException
+     *             if this key can't sign with that algorithm, or there is an
+     *             error with underlying java crypto libraries
+     */
+    public Message signSSHData(Crai crai, byte[] data, String algorithm)
+            throws SSHException {
+        if (!algorithm.equals(getSSHName())) {
+            throw new SSHException("Can't sign with " + algorithm + " using "
+                    + getSSHName() + " key");
+        }
+        return signSSHData(crai, data);
+    }
+
     /**
      * Verify an SSH2 signature against a blob of data using this public key. If
      * the data appears to have been signed by this key, this method returns
@@ -137,6 +172,40 @@ public abstract class PKey {
      */
     public abstract CraiPrivateKey toPrivateKey(Crai crai);
 
+    /**
+     * Return the {@link CraiPrivateKey} for this key, building it the first
+     * time it's needed from a given crypto layer. A crai key may hang onto
+     * state that's expensive to set up, so signing through the same one
+     * every time saves rebuilding it for each signature.
+     * 
+     * @param crai
+     *            the crypto abstraction layer
+     * @return a private key object
+     */
+    protected synchronized CraiPrivateKey getCraiPrivateKey(Crai crai) {
+        if ((mCraiPrivateKey == null) || (mCraiPrivateSource != crai)) {
+            mCraiPrivateKey = toPrivateKey(crai);
+            mCraiPrivateSource = crai;
+        }
+        return mCraiPrivateKey;
+    }
+
+    /**
+     * Return the {@link CraiPublicKey} for this key, building it the first
+     * time it's needed from a given crypto layer.
+     * 
+     * @param crai
+     *            the crypto abstraction layer
+     * @return a public key object
+     */
+    protected synchronized CraiPublicKey getCraiPublicKey(Crai crai) {
+        if ((mCraiPublicKey == null) || (mCraiPublicSource != crai)) {
+            mCraiPublicKey = toPublicKey(crai);
+            mCraiPublicSource = crai;
+        }
+        return mCraiPublicKey;
+    }
+
     /**
      * Return an MD5 fingerprint of the public part of this key. Nothing secret
      * is revealed. Effectively this is just the MD5 of the result of
@@ -204,6 +273,33 @@ public abstract class PKey {
      */
     protected abstract void buildFromMessage(Message m) throws SSHException;
 
+    /**
+     * Initialize a key from the private section of an openssh-format key
+     * file, starting just after the key type. Key types that can't be stored
+     * this way don't need to override it.
+     * 
+     * @param m
+     *            the private section
+     * @throws SSHException
+     *             if the private section is corrupted
+     */
+    protected void buildFromOpenSSH(Message m) throws SSHException {
+        throw new SSHException("Can't read " + getSSHName()
+                + " keys from an openssh key file");
+    }
+
+    /**
+     * Return true if the crypto layer can use this kind of key. Newer key
+     * types need a fairly recent java.
+     * 
+     * @param crai
+     *            the crypto abstraction layer
+     * @return true if keys of this type can be used
+     */
+    /* package */boolean isSupported(Crai crai) {
+        return true;
+    }
+
     /**
      * Return a public key from base64 data. The base64 encoding of a key is
      * SSH-specific and only contains the public key. It can be fetched from an
@@ -293,6 +389,10 @@ public abstract class PKey {
                     && line.endsWith(" PRIVATE KEY-----")) {
                 String name = line.substring(11, line.length() - 17);
                 keyClass = sBannerMap.get(name);
+                if (name.equals(OPENSSH_BANNER)) {
+                    // the key type is inside
+                    break;
+                }
                 if (keyClass == null) {
                     throw new SSHException("Unknown key type " + name);
                 }
@@ -302,7 +402,7 @@ public abstract class PKey {
 
         boolean inHeaders = true;
         Map<String, String> headers = new HashMap<String, String>();
-        ByteArrayOutputStream keyData = new ByteArrayOutputStream();
+        StringBuffer keyData = new StringBuffer();
 
         while (true) {
             String line = reader.readLine();
@@ -325,10 +425,14 @@ public abstract class PKey {
                 // done!
                 break;
             }
-            keyData.write(Base64.decode(line));
+            keyData.append(line);
         }
 
-        byte[] data = keyData.toByteArray();
+        // decode all at once: openssh wraps its key files at 70 columns
+        byte[] data = Base64.decode(keyData.toString());
+        if (keyClass == null) {
+            return readOpenSSHKey(data, password);
+        }
         if (headers.containsKey("proc-type")) {
             if (password == null) {
                 throw new PasswordRequiredException(
@@ -347,6 +451,100 @@ public abstract class PKey {
         return pkey;
     }
 
+    /*
+     * openssh's own key format ("openssh-key-v1"), which can hold any type of
+     * key: a magic string, the cipher and kdf that protect the private
+     * section, the public key, and then the private section itself. only
+     * unencrypted keys are supported, since encrypted ones use bcrypt as
+     * their kdf.
+     */
+    private static PKey readOpenSSHKey(byte[] data, String password)
+            throws SSHException {
+        Message m = new Message(data);
+        byte[] magic = m.getBytes(OPENSSH_MAGIC.length);
+        if (!Arrays.equals(magic, OPENSSH_MAGIC)) {
+            throw new SSHException("Not an openssh private key");
+        }
+        String cipherName = m.getString();
+        String kdfName = m.getString();
+        m.getByteString(); // kdf options
+        if (!cipherName.equals("none")) {
+            if (password == null) {
+                throw new PasswordRequiredException(
+                        "Private key file is encrypted");
+            }
+            throw new SSHException("Unsupported openssh key encryption "
+                    + cipherName + "/" + kdfName);
+        }
+        if (m.getInt() != 1) {
+            throw new SSHException("Expected one key in openssh key file");
+        }
+        m.getByteString(); // public key, repeated in the private section
+
+        Message priv = new Message(m.getByteString());
+        if (priv.getInt() != priv.getInt()) {
+            throw new SSHException("Corrupted openssh private key");
+        }
+        String name = priv.getString();
+        Class<? extends PKey> keyClass = sNameMap.get(name);
+        if (keyClass == null) {
+            throw new SSHException("Unknown key type " + name);
+        }
+        PKey pkey = null;
+        try {
+            pkey = keyClass.newInstance();
+        } catch (Exception x) {
+            throw new SSHException("Internal java error: " + x);
+        }
+        pkey.buildFromOpenSSH(priv);
+        return pkey;
+    }
+
+    /**
+     * Write a private key in the openssh key file format. The private fields
+     * are the ones that follow the key type in the file, and are specific to
+     * each type of key.
+     * 
+     * @param os
+     *            the stream to write the key file to
+     * @param fields
+     *            the private fields of the key
+     * @param password
+     *            must be null: encrypted openssh key files aren't supported
+     * @throws IOException
+     *             if there was an error writing the key file
+     */
+    protected void writeOpenSSHPrivateKeyToStream(OutputStream os,
+            Message fields, String password) throws IOException {
+        if (password != null) {
+            throw new SSHException(
+                    "Can't write encrypted openssh-format key files");
+        }
+        byte[] check = new byte[4];
+        BaseTransport.getCrai().getPRNG().getBytes(check);
+
+        Message priv = new Message();
+        priv.putBytes(check);
+        priv.putBytes(check);
+        priv.putString(getSSHName());
+        priv.putBytes(fields.toByteArray());
+        priv.putString(""); // comment
+        // pad to the cipher block size (8 for "none") with 1, 2, 3, ...
+        for (int i = 1; priv.getPosition() % 8 != 0; i++) {
+            priv.putByte((byte) i);
+        }
+
+        Message m = new Message();
+        m.putBytes(OPENSSH_MAGIC);
+        m.putString("none");
+        m.putString("none");
+        m.putString("");
+        m.putInt(1);
+        m.putByteString(toByteArray());
+        m.putByteString(priv.toByteArray());
+        writeArmoredKey(OPENSSH_BANNER, os, m.toByteArray(), "");
+    }
+
     /**
      * Write a private key to a standard SSH2 key file (ASCII). If a password is
      * given, the key will be encrypted with that password.
@@ -365,8 +563,7 @@ public abstract class PKey {
             BigInteger[] contents, String password) throws IOException {
         byte[] data = Util.encodeBERSequence(contents);
 
-        StringBuffer sb = new StringBuffer();
-        sb.append("-----BEGIN " + tag + " PRIVATE KEY-----\n");
+        StringBuffer headers = new StringBuffer();
         if (password != null) {
             Crai crai = BaseTransport.getCrai();
 
@@ -378,11 +575,20 @@ public abstract class PKey {
             crai.getPRNG().getBytes(salt);
             data = PKey.encryptKeyFile(data, cipherName, password, salt);
 
-            sb.append("Proc-Type: 4,ENCRYPTED\n");
-            sb.append("DEK-Info: " + cipherName + ","
+            headers.append("Proc-Type: 4,ENCRYPTED\n");
+            headers.append("DEK-Info: " + cipherName + ","
                     + Util.encodeHex(salt).toUpperCase() + "\n");
-            sb.append("\n");
+            headers.append("\n");
         }
+        writeArmoredKey(tag, os, data, headers.toString());
+    }
+
+    // write key data as base64 between BEGIN/END lines
+    private static void writeArmoredKey(String tag, OutputStream os,
+            byte[] data, String headers) throws IOException {
+        StringBuffer sb = new StringBuffer();
+        sb.append("-----BEGIN " + tag + " PRIVATE KEY-----\n");
+        sb.append(headers);
 
         // Base64 would break lines at a different length than 64 :(
         String s = Base64.encodeBytes(data, 0, data.length,
@@ -511,6 +717,14 @@ public abstract class PKey {
         }
     }
 
+    private CraiPrivateKey mCraiPrivateKey;
+    private Crai mCraiPrivateSource;
+    private CraiPublicKey mCraiPublicKey;
+    private Crai mCraiPublicSource;
+
+    private static final String OPENSSH_BANNER = "OPENSSH";
+    private static final byte[] OPENSSH_MAGIC = "openssh-key-v1\0".getBytes();
+
     private static Map<String, Class<? extends PKey>> sNameMap = new HashMap<String, Class<? extends PKey>>();
     private static Map<String, Class<? extends PKey>> sBannerMap = new HashMap<String, Class<? extends PKey>>();
     private static Map<String, CipherDescription> sCipherMap = new HashMap<String, CipherDescription>();
@@ -518,6 +732,10 @@ public abstract class PKey {
     static {
         sNameMap.put("ssh-rsa", RSAKey.class);
         sNameMap.put("ssh-dss", DSSKey.class);
+        sNameMap.put("ssh-ed25519", Ed25519Key.class);
+        sNameMap.put("ecdsa-sha2-nistp256", ECDSAKey.class);
+        sNameMap.put("ecdsa-sha2-nistp384", ECDSAKey.class);
+        sNameMap.put("ecdsa-sha2-nistp521", ECDSAKey.class);
 
         sBannerMap.put("RSA", RSAKey.class);
         sBannerMap.put("DSA", DSSKey.class);
@@ -29,7 +29,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
+import net.lag.crai.CraiAEADCipher;
 import net.lag.crai.CraiCipher;
 import net.lag.crai.CraiDigest;
 import net.lag.crai.CraiException;
@@ -59,8 +63,28 @@ class Packetizer {
         mSequenceNumberOut = 0;
         mSequenceNumberIn = 0;
 
-        mWriteLock = new Object();
+        mWriteLock = new ReentrantLock();
         mReadBuffer = new byte[64];
+        mRecvBuffer = new byte[RECV_BUFFER_SIZE];
+        mRecvPosition = 0;
+        mOutBuffer = new byte[OUT_BUFFER_SIZE];
+        mOutBufferLen = 0;
+        mWriteBatchSize = WRITE_BATCH_SIZE;
+    }
+
+    /**
+     * Set the most data that {@link #write(List)} will collect before handing
+     * it to the socket. A batch larger than this is sent in several writes.
+     * 
+     * @param size
+     *            the batch size (in bytes)
+     */
+    public void setWriteBatchSize(int size) {
+        mWriteBatchSize = size;
+    }
+
+    public int getWriteBatchSize() {
+        return mWriteBatchSize;
     }
 
     public void setDumpPackets(boolean dump) {
@@ -141,24 +165,78 @@ class Packetizer {
 
     public void setOutboundCipher(CraiCipher cipher, int blockSize,
             CraiDigest mac, int macSize) {
-        synchronized (mWriteLock) {
+        setOutboundCipher(cipher, blockSize, mac, macSize, false);
+    }
+
+    /**
+     * Switch outbound packets to a new cipher and MAC.
+     * 
+     * @param cipher
+     *            the initialized cipher
+     * @param blockSize
+     *            the cipher's block size
+     * @param mac
+     *            the initialized MAC
+     * @param macSize
+     *            how many bytes of the MAC to send
+     * @param etm
+     *            true to encrypt-then-mac: the packet length goes in the
+     *            clear, and the MAC covers the encrypted packet
+     */
+    public void setOutboundCipher(CraiCipher cipher, int blockSize,
+            CraiDigest mac, int macSize, boolean etm) {
+        mWriteLock.lock();
+        try {
             mBlockEngineOut = cipher;
+            mAEADEngineOut = null;
             mBlockSizeOut = blockSize;
             mMacEngineOut = mac;
             mMacSizeOut = macSize;
-            mSentBytes = 0;
-            mSentPackets = 0;
+            mETMOut = etm;
+            resetOutbound();
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
 
-            // wait until the reset happens in both directions before clearing
-            // the rekey flag
-            mInitCount |= 1;
-            if (mInitCount == 3) {
-                mInitCount = 0;
-                triggerRekey(false);
-            }
+    /**
+     * Switch outbound packets to an authenticated cipher. Each packet is
+     * followed by the cipher's tag instead of a MAC.
+     * 
+     * @param cipher
+     *            the initialized cipher
+     * @param blockSize
+     *            the block size to pad packets out to
+     */
+    public void setOutboundCipher(CraiAEADCipher cipher, int blockSize) {
+        mWriteLock.lock();
+        try {
+            mBlockEngineOut = null;
+            mAEADEngineOut = cipher;
+            mBlockSizeOut = blockSize;
+            mMacEngineOut = null;
+            mMacSizeOut = cipher.getTagSize();
+            mETMOut = false;
+            resetOutbound();
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    // you're holding mWriteLock.
+    private void resetOutbound() {
+        mSentBytes = 0;
+        mSentPackets = 0;
 
-            mMacBufferOut = new byte[32];
+        // wait until the reset happens in both directions before clearing
+        // the rekey flag
+        mInitCount |= 1;
+        if (mInitCount == 3) {
+            mInitCount = 0;
+            triggerRekey(false);
         }
+
+        mMacBufferOut = new byte[MAX_MAC_SIZE];
     }
 
     public void setOutboundCompressor(Compressor comp) {
@@ -168,10 +246,58 @@ class Packetizer {
     // this is always called from the same thread that would be doing a read().
     public void setInboundCipher(CraiCipher cipher, int blockSize,
             CraiDigest mac, int macSize) {
+        setInboundCipher(cipher, blockSize, mac, macSize, false);
+    }
+
+    /**
+     * Switch inbound packets to a new cipher and MAC. Like the other
+     * <code>setInboundCipher</code> methods, this is always called from the
+     * thread that would be doing a read().
+     * 
+     * @param cipher
+     *            the initialized cipher
+     * @param blockSize
+     *            the cipher's block size
+     * @param mac
+     *            the initialized MAC
+     * @param macSize
+     *            how many bytes of MAC follow each packet
+     * @param etm
+     *            true for encrypt-then-mac: the MAC is checked before
+     *            anything is decrypted
+     */
+    public void setInboundCipher(CraiCipher cipher, int blockSize,
+            CraiDigest mac, int macSize, boolean etm) {
         mBlockEngineIn = cipher;
+        mAEADEngineIn = null;
         mBlockSizeIn = blockSize;
         mMacEngineIn = mac;
         mMacSizeIn = macSize;
+        mETMIn = etm;
+        resetInbound();
+    }
+
+    /**
+     * Switch inbound packets to an authenticated cipher. Like
+     * {@link #setInboundCipher(CraiCipher, int, CraiDigest, int)}, this is
+     * always called from the thread that would be doing a read().
+     * 
+     * @param cipher
+     *            the initialized cipher
+     * @param blockSize
+     *            the block size packets are padded out to
+     */
+    public void setInboundCipher(CraiAEADCipher cipher, int blockSize) {
+        mBlockEngineIn = null;
+        mAEADEngineIn = cipher;
+        mBlockSizeIn = blockSize;
+        mMacEngineIn = null;
+        mMacSizeIn = cipher.getTagSize();
+        mETMIn = false;
+        resetInbound();
+    }
+
+    private void resetInbound() {
         mReceivedBytes = 0;
         mReceivedPackets = 0;
         mReceivedPacketsOverflow = 0;
@@ -184,17 +310,21 @@ class Packetizer {
             triggerRekey(false);
         }
 
-        mMacBufferIn = new byte[32];
+        mMacBufferIn = new byte[MAX_MAC_SIZE];
     }
 
     public void setInboundCompressor(Compressor comp) {
         mCompressIn = comp;
+        if (mUncompressBuffer == null) {
+            mUncompressBuffer = new byte[RECV_BUFFER_SIZE];
+        }
     }
 
     /**
      * Write an SSH2 message to the stream. The message will be packetized
      * (padded up to the block size), and if the outbound cipher is on, the
-     * message will also be enciphered.
+     * message will also be enciphered. A message from the {@link Message}
+     * pool is given back to the pool once it's been written.
      * 
      * @param msg
      *            the message to send
@@ -202,68 +332,293 @@ class Packetizer {
      *             if an exception is thrown while writing data
      */
     public void write(Message msg) throws IOException {
-        synchronized (mWriteLock) {
-            int origLength = msg.getPosition();
-            String desc = msg.getCommandDescription();
-            if (mCompressOut != null) {
-                msg.compress(mCompressOut);
+        mWriteLock.lock();
+        try {
+            writePacket(msg, true);
+            msg.release();
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Write several SSH2 messages to the stream, in order. The packets (and
+     * their MACs) are collected together and handed to the socket in as few
+     * writes as the write batch size allows, instead of two writes per packet.
+     * 
+     * @param msgs
+     *            the messages to send
+     * @throws IOException
+     *             if an exception is thrown while writing data
+     */
+    public void write(List<Message> msgs) throws IOException {
+        mWriteLock.lock();
+        try {
+            for (Iterator<Message> i = msgs.iterator(); i.hasNext();) {
+                Message msg = i.next();
+                writePacket(msg, false);
+                msg.release();
             }
-            int contentLength = msg.getPosition();
-            msg.packetize(mRandom, mBlockSizeOut, (mBlockEngineOut != null));
-            byte[] packet = msg.toByteArray();
-            int length = msg.getPosition();
+            flush();
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
 
-            logger.debug("Write packet '{}', length {} (original length {})",
-                         new Object[] { desc, contentLength, origLength });
+    /**
+     * Keep other threads from writing until {@link #unlockWrites} is called.
+     * This thread can still write, so a message and the cipher change that
+     * follows it can't be split up by another thread's packet.
+     */
+    public void lockWrites() {
+        mWriteLock.lock();
+    }
 
-            // if (mDumpPackets) {
-            //     mLog.dump("OUT", packet, 0, length);
-            // }
+    public void unlockWrites() {
+        mWriteLock.unlock();
+    }
 
-            if (mBlockEngineOut != null) {
-                new Message(mMacBufferOut).putInt(mSequenceNumberOut);
-                mMacEngineOut.reset();
-                mMacEngineOut.update(mMacBufferOut, 0, 4);
-                mMacEngineOut.update(packet, 0, length);
-                try {
-                    mMacEngineOut.finish(mMacBufferOut, 0);
-                } catch (CraiException x) {
-                    throw new IOException("mac error: " + x);
-                }
+    // packetize, encrypt, and queue one message (or write it now, if direct
+    // is set). you're holding mWriteLock.
+    private void writePacket(Message msg, boolean direct) throws IOException {
+        int origLength = msg.getPosition();
+        String desc = msg.getCommandDescription();
+        if (mCompressOut != null) {
+            msg.compress(mCompressOut);
+        }
+        int contentLength = msg.getPosition();
+        boolean aead = (mAEADEngineOut != null);
+        boolean etm = (mBlockEngineOut != null) && mETMOut;
+        msg.packetize(mRandom, mBlockSizeOut, (mBlockEngineOut != null)
+                || aead, aead || etm);
+        int length = msg.getPosition();
 
-                try {
-                    mBlockEngineOut.process(packet, 0, length, packet, 0);
-                } catch (CraiException x) {
-                    throw new IOException("encipher error: " + x);
-                }
-            }
+        logger.debug("Write packet '{}', length {} (original length {})",
+                     new Object[] { desc, contentLength, origLength });
 
-            mSequenceNumberOut++;
-            write(packet, 0, length);
-            if (mBlockEngineOut != null) {
-                write(mMacBufferOut, 0, mMacSizeOut);
-            }
+        // if (mDumpPackets) {
+        //     mLog.dump("OUT", packet, 0, length);
+        // }
 
-            mSentBytes += length;
-            mSentPackets++;
-            if (((mSentPackets >= mRekeyPackets) || (mSentBytes >= mRekeyBytes))
-                    && !needRekey()) {
-                // only ask once for rekeying
-                logger.debug("Rekeying ({} packets and {} bytes sent)",
-                             mSentPackets, mSentBytes);
-                mReceivedPacketsOverflow = 0;
-                triggerRekey(true);
+        // encrypt in place, and put the mac in the space after the packet
+        int macSize = 0;
+        if ((mBlockEngineOut != null) || aead) {
+            macSize = mMacSizeOut;
+            msg.skipBytes(macSize);
+        }
+        byte[] packet = msg.getBuffer();
+        int start = msg.getBufferStart();
+
+        if (aead) {
+            // the tag is the MAC
+            try {
+                mAEADEngineOut.seal(mSequenceNumberOut, packet, start, length,
+                        mMacBufferOut, 0);
+            } catch (CraiException x) {
+                throw new IOException("encipher error: " + x);
+            }
+        } else if (etm) {
+            // encrypt everything but the length, then mac the result
+            try {
+                mBlockEngineOut.process(packet, start + 4, length - 4, packet,
+                        start + 4);
+            } catch (CraiException x) {
+                throw new IOException("encipher error: " + x);
             }
+            computeMac(mMacEngineOut, mSequenceNumberOut, packet, start,
+                    length, mMacBufferOut);
+        } else if (mBlockEngineOut != null) {
+            computeMac(mMacEngineOut, mSequenceNumberOut, packet, start,
+                    length, mMacBufferOut);
+            try {
+                mBlockEngineOut.process(packet, start, length, packet, start);
+            } catch (CraiException x) {
+                throw new IOException("encipher error: " + x);
+            }
+        }
+        if (macSize > 0) {
+            System.arraycopy(mMacBufferOut, 0, packet, start + length, macSize);
+        }
+
+        mSequenceNumberOut++;
+        if (direct || (length + macSize >= mWriteBatchSize)) {
+            // send it straight from the message, instead of copying it into
+            // the batch buffer first
+            flush();
+            mOutStream.write(packet, start, length + macSize);
+        } else {
+            queue(packet, start, length + macSize);
+        }
+
+        mSentBytes += length;
+        mSentPackets++;
+        if (((mSentPackets >= mRekeyPackets) || (mSentBytes >= mRekeyBytes))
+                && !needRekey()) {
+            // only ask once for rekeying
+            logger.debug("Rekeying ({} packets and {} bytes sent)",
+                         mSentPackets, mSentBytes);
+            mReceivedPacketsOverflow = 0;
+            triggerRekey(true);
         }
     }
 
     // only 1 thread will be here at one time
     // return null on EOF
     public Message read() throws IOException {
-        // [ab]use mMacBufferIn for reading the first block
-        if (read(mReadBuffer, 0, mBlockSizeIn, true) < 0) {
+        if (read(mReadBuffer, 0, firstBlockSize(), true) < 0) {
+            return null;
+        }
+        return readPacket(decodeFirstBlock());
+    }
+
+    /**
+     * Switch this packetizer over to a non-blocking socket. Inbound bytes are
+     * no longer read from a stream; instead the owner hands them over with
+     * {@link #feed} as they arrive, and collects whole lines and packets with
+     * {@link #pollLine} and {@link #poll}.
+     * 
+     * @param out
+     *            the stream to write outbound packets to
+     */
+    public void setNonBlocking(OutputStream out) {
+        mWriteLock.lock();
+        try {
+            mOutStream = out;
+        } finally {
+            mWriteLock.unlock();
+        }
+        mInStream = null;
+        mInbound = new byte[INBOUND_BUFFER_SIZE];
+        mInboundStart = 0;
+        mInboundEnd = 0;
+        mPendingLength = -1;
+    }
+
+    /**
+     * Append bytes received from a non-blocking socket to the inbound queue.
+     * 
+     * @param data
+     *            the buffer holding the new bytes
+     * @param offset
+     *            offset of the new bytes within the buffer
+     * @param length
+     *            number of new bytes
+     */
+    public void feed(byte[] data, int offset, int length) {
+        if (mInboundEnd + length > mInbound.length) {
+            int used = mInboundEnd - mInboundStart;
+            byte[] dest = mInbound;
+            if (used + length > mInbound.length) {
+                int newlen = mInbound.length * 2;
+                while (used + length > newlen) {
+                    newlen *= 2;
+                }
+                dest = new byte[newlen];
+            }
+            System.arraycopy(mInbound, mInboundStart, dest, 0, used);
+            mInbound = dest;
+            mInboundStart = 0;
+            mInboundEnd = used;
+        }
+        System.arraycopy(data, offset, mInbound, mInboundEnd, length);
+        mInboundEnd += length;
+    }
+
+    /**
+     * Return the next complete line from the inbound queue (without its line
+     * ending), or null if a whole line hasn't arrived yet. Only used for the
+     * banner at the start of a non-blocking session.
+     * 
+     * @return the next line, or null
+     */
+    public String pollLine() {
+        for (int i = mInboundStart; i < mInboundEnd; i++) {
+            if (mInbound[i] == '\n') {
+                int end = i;
+                if ((end > mInboundStart) && (mInbound[end - 1] == '\r')) {
+                    end--;
+                }
+                // only ASCII is allowed here
+                StringBuffer line = new StringBuffer(end - mInboundStart);
+                for (int j = mInboundStart; j < end; j++) {
+                    line.append((char) (mInbound[j] & 0xff));
+                }
+                consumeInbound(i + 1 - mInboundStart);
+                return line.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the next packet from the inbound queue, or null if the whole
+     * packet hasn't arrived yet. The first block is decoded as soon as it's
+     * available, so the remainder can be collected across several calls. Like
+     * {@link #read}, the returned Message is only valid until the next call.
+     * 
+     * @return the next packet, or null
+     * @throws IOException
+     *             if the packet is corrupt
+     */
+    public Message poll() throws IOException {
+        if (mPendingLength < 0) {
+            if (mInboundEnd - mInboundStart < firstBlockSize()) {
+                return null;
+            }
+            read(mReadBuffer, 0, firstBlockSize(), false);
+            mPendingLength = decodeFirstBlock();
+        }
+        int need = mPendingLength + 4 - firstBlockSize();
+        if ((mBlockEngineIn != null) || (mAEADEngineIn != null)) {
+            need += mMacSizeIn;
+        }
+        if (mInboundEnd - mInboundStart < need) {
             return null;
         }
+        int length = mPendingLength;
+        mPendingLength = -1;
+        return readPacket(length);
+    }
+
+    /*
+     * how much of a packet to read before its length is known. with an AEAD
+     * cipher, that's just the length field: the rest can't be decrypted until
+     * the whole packet (and its tag) has arrived.
+     */
+    private int firstBlockSize() {
+        return lengthInClear() ? 4 : mBlockSizeIn;
+    }
+
+    // true if the packet length isn't encrypted with the rest of the packet
+    private boolean lengthInClear() {
+        return (mAEADEngineIn != null)
+                || ((mBlockEngineIn != null) && mETMIn);
+    }
+
+    // decode the first block (already in mReadBuffer) and return the packet
+    // length it announces
+    private int decodeFirstBlock() throws IOException {
+        if (lengthInClear()) {
+            int length;
+            if (mAEADEngineIn != null) {
+                try {
+                    length = mAEADEngineIn.decryptLength(mSequenceNumberIn,
+                            mReadBuffer, 0);
+                } catch (CraiException x) {
+                    throw new IOException("decode error: " + x);
+                }
+            } else {
+                length = decodeInt(mReadBuffer, 0);
+            }
+            // the length field isn't part of the padded blocks here
+            if (length % mBlockSizeIn != 0) {
+                throw new IOException("Invalid packet blocking");
+            }
+            if ((length < mBlockSizeIn) || (length > MAX_PACKET_SIZE)) {
+                throw new IOException("Invalid packet length");
+            }
+            return length;
+        }
         if (mBlockEngineIn != null) {
             try {
                 mBlockEngineIn.process(mReadBuffer, 0, mBlockSizeIn,
@@ -275,16 +630,34 @@ class Packetizer {
         // if (mDumpPackets) {
         //     mLog.dump("IN", mReadBuffer, 0, mBlockSizeIn);
         // }
-        int length = new Message(mReadBuffer).getInt();
+        int length = decodeInt(mReadBuffer, 0);
         int leftover = mBlockSizeIn - 5;
         if ((length + 4) % mBlockSizeIn != 0) {
             throw new IOException("Invalid packet blocking");
         }
         int padding = mReadBuffer[4] & 255; // all cipher block sizes are >= 8
         // openssh will sometimes use padding of 64 or greater, which is ok
+        if ((length < leftover + 1) || (length > MAX_PACKET_SIZE)
+                || (padding >= length)) {
+            throw new IOException("Invalid packet length");
+        }
+        return length;
+    }
+
+    // read and decode the rest of a packet whose first block is in
+    // mReadBuffer
+    private Message readPacket(int length) throws IOException {
+        if (lengthInClear()) {
+            return readAuthenticatedPacket(length);
+        }
+        int leftover = mBlockSizeIn - 5;
+        int padding = mReadBuffer[4] & 255;
 
-        byte[] packet = new byte[length - 1];
-        System.arraycopy(mReadBuffer, 5, packet, 0, leftover);
+        // decrypt straight into the receive buffer; the Message we hand back
+        // is only a view onto it
+        int packetOffset = reserveInbound(length - 1);
+        byte[] packet = mRecvBuffer;
+        System.arraycopy(mReadBuffer, 5, packet, packetOffset, leftover);
 
         /*
          * don't try to read or process more bytes if we already have the entire
@@ -293,13 +666,13 @@ class Packetizer {
          */
         int remainderLen = length - leftover - 1;
         if (remainderLen > 0) {
-            if (read(packet, leftover, remainderLen, false) < 0) {
+            if (read(packet, packetOffset + leftover, remainderLen, false) < 0) {
                 return null;
             }
             if (mBlockEngineIn != null) {
                 try {
-                    mBlockEngineIn.process(packet, leftover, remainderLen,
-                            packet, leftover);
+                    mBlockEngineIn.process(packet, packetOffset + leftover,
+                            remainderLen, packet, packetOffset + leftover);
                 } catch (CraiException x) {
                     throw new IOException("decode error: " + x);
                 }
@@ -314,11 +687,11 @@ class Packetizer {
 
         if (mBlockEngineIn != null) {
             // now, compute the mac
-            new Message(mMacBufferIn).putInt(mSequenceNumberIn);
+            encodeInt(mMacBufferIn, 0, mSequenceNumberIn);
             mMacEngineIn.reset();
             mMacEngineIn.update(mMacBufferIn, 0, 4);
             mMacEngineIn.update(mReadBuffer, 0, 5);
-            mMacEngineIn.update(packet, 0, length - 1);
+            mMacEngineIn.update(packet, packetOffset, length - 1);
             try {
                 mMacEngineIn.finish(mMacBufferIn, 0);
             } catch (CraiException x) {
@@ -327,30 +700,119 @@ class Packetizer {
             if (read(mReadBuffer, 0, mMacSizeIn, false) < 0) {
                 return null;
             }
+            if (!macEquals(mReadBuffer, 0, mMacBufferIn, mMacSizeIn)) {
+                throw new IOException("mac mismatch");
+            }
+        }
 
-            // i'm pretty mad that there's no more efficient way to do this. >:(
-            for (int i = 0; i < mMacSizeIn; i++) {
-                if (mReadBuffer[i] != mMacBufferIn[i]) {
-                    throw new IOException("mac mismatch");
-                }
+        return finishPacket(packet, packetOffset, length, padding);
+    }
+
+    /*
+     * read the rest of a packet under an AEAD cipher or an encrypt-then-mac
+     * digest, whose length field is in mReadBuffer. the length, body, and tag
+     * (or mac) are laid down together in the receive buffer, and nothing is
+     * decrypted until the tag checks out.
+     */
+    private Message readAuthenticatedPacket(int length) throws IOException {
+        int packetOffset = reserveInbound(4 + length + mMacSizeIn);
+        byte[] packet = mRecvBuffer;
+        System.arraycopy(mReadBuffer, 0, packet, packetOffset, 4);
+        if (read(packet, packetOffset + 4, length + mMacSizeIn, false) < 0) {
+            return null;
+        }
+        if (mAEADEngineIn != null) {
+            try {
+                mAEADEngineIn.open(mSequenceNumberIn, packet, packetOffset,
+                        length + 4, packet, packetOffset + 4 + length);
+            } catch (CraiException x) {
+                throw new IOException("mac mismatch");
             }
+        } else {
+            computeMac(mMacEngineIn, mSequenceNumberIn, packet, packetOffset,
+                    length + 4, mMacBufferIn);
+            if (!macEquals(packet, packetOffset + 4 + length, mMacBufferIn,
+                    mMacSizeIn)) {
+                throw new IOException("mac mismatch");
+            }
+            try {
+                mBlockEngineIn.process(packet, packetOffset + 4, length,
+                        packet, packetOffset + 4);
+            } catch (CraiException x) {
+                throw new IOException("decode error: " + x);
+            }
+        }
+
+        int padding = packet[packetOffset + 4] & 255;
+        if (padding >= length) {
+            throw new IOException("Invalid packet length");
+        }
+        return finishPacket(packet, packetOffset + 5, length, padding);
+    }
+
+    // mac a sequence number and a whole packet into out
+    private void computeMac(CraiDigest mac, int sequence, byte[] packet,
+            int offset, int length, byte[] out) throws IOException {
+        encodeInt(out, 0, sequence);
+        mac.reset();
+        mac.update(out, 0, 4);
+        mac.update(packet, offset, length);
+        try {
+            mac.finish(out, 0);
+        } catch (CraiException x) {
+            throw new IOException("mac error: " + x);
+        }
+    }
+
+    /*
+     * compare a received mac against the one we computed, without bailing at
+     * the first difference: how long the compare takes mustn't tell an
+     * attacker how many leading bytes of a forgery were right.
+     * MessageDigest.isEqual only works on whole arrays, and our macs are
+     * slices of larger buffers (sometimes truncated, like hmac-sha1-96).
+     */
+    /* package */static boolean macEquals(byte[] received, int off,
+            byte[] computed, int len) {
+        int diff = 0;
+        for (int i = 0; i < len; i++) {
+            diff |= received[off + i] ^ computed[i];
         }
+        return diff == 0;
+    }
+
+    private static void encodeInt(byte[] buf, int off, int n) {
+        buf[off] = (byte) (n >>> 24);
+        buf[off + 1] = (byte) (n >>> 16);
+        buf[off + 2] = (byte) (n >>> 8);
+        buf[off + 3] = (byte) n;
+    }
+
+    private static int decodeInt(byte[] buf, int off) {
+        return ((buf[off] & 0xff) << 24) | ((buf[off + 1] & 0xff) << 16)
+                | ((buf[off + 2] & 0xff) << 8) | (buf[off + 3] & 0xff);
+    }
 
+    // uncompress (if necessary) and account for a decoded packet, whose
+    // payload starts at packetOffset
+    private Message finishPacket(byte[] packet, int packetOffset, int length,
+            int padding) throws IOException {
         Message msg = null;
         if (mCompressIn != null) {
-            byte[] expanded = mCompressIn.uncompress(packet, 0, length
-                    - padding - 1);
-            msg = new Message(expanded, 0, expanded.length, mSequenceNumberIn);
+            int n = uncompress(packet, packetOffset, length - padding - 1);
+            // the compressed packet is done with, so it can be overwritten
+            int offset = reserveInbound(n);
+            System.arraycopy(mUncompressBuffer, 0, mRecvBuffer, offset, n);
+            msg = new Message(mRecvBuffer, offset, n, mSequenceNumberIn);
 
             logger.debug("Read packet '{}', length {} (original length {})",
                          new Object[] {
                              msg.getCommandDescription(),
                              length - padding - 1,
-                             expanded.length
+                             n
                          });
 
         } else {
-            msg = new Message(packet, 0, length - padding - 1,
+            msg = new Message(packet, packetOffset, length - padding - 1,
                     mSequenceNumberIn);
 
             logger.debug("Read packet '{}', length {}",
@@ -385,6 +847,16 @@ class Packetizer {
     // do not return until the entire buffer is read, or EOF
     private int read(byte[] buffer, int offset, int length, boolean checkRekey)
             throws IOException {
+        if (mInStream == null) {
+            // non-blocking mode: poll() has already checked that it's here
+            if (mInboundEnd - mInboundStart < length) {
+                return -1;
+            }
+            System.arraycopy(mInbound, mInboundStart, buffer, offset, length);
+            consumeInbound(length);
+            return length;
+        }
+
         int total = 0;
         while (true) {
             try {
@@ -416,14 +888,96 @@ class Packetizer {
         }
     }
 
-    private void write(byte[] buffer, int offset, int length)
+    private void consumeInbound(int length) {
+        mInboundStart += length;
+        if (mInboundStart == mInboundEnd) {
+            mInboundStart = 0;
+            mInboundEnd = 0;
+            // don't hang on to a buffer that grew for one huge burst
+            if (mInbound.length > INBOUND_BUFFER_SIZE) {
+                mInbound = new byte[INBOUND_BUFFER_SIZE];
+            }
+        }
+    }
+
+    // uncompress a packet into mUncompressBuffer, and return its length
+    private int uncompress(byte[] data, int offset, int length)
             throws IOException {
+        int n = mCompressIn.uncompress(data, offset, length,
+                mUncompressBuffer, 0, mUncompressBuffer.length);
+        while (n == mUncompressBuffer.length) {
+            if (n >= MAX_PACKET_SIZE) {
+                throw new SSHException("Uncompressed packet is too big");
+            }
+            byte[] bigger = new byte[mUncompressBuffer.length * 2];
+            System.arraycopy(mUncompressBuffer, 0, bigger, 0, n);
+            mUncompressBuffer = bigger;
+            n += mCompressIn.uncompress(data, offset, 0, mUncompressBuffer, n,
+                    mUncompressBuffer.length - n);
+        }
+        return n;
+    }
+
+    /*
+     * reserve a contiguous region of the receive buffer for the next packet.
+     * packets are laid down one after another, wrapping back to the start when
+     * the tail is too short, so a packet's bytes stay put until the buffer has
+     * come all the way around again. the buffer only grows if a single packet
+     * won't fit in it.
+     */
+    private int reserveInbound(int length) {
+        if (length > mRecvBuffer.length) {
+            int newlen = mRecvBuffer.length * 2;
+            while (length > newlen) {
+                newlen *= 2;
+            }
+            mRecvBuffer = new byte[newlen];
+            mRecvPosition = 0;
+        } else if (mRecvPosition + length > mRecvBuffer.length) {
+            mRecvPosition = 0;
+        }
+        int offset = mRecvPosition;
+        mRecvPosition += length;
+        return offset;
+    }
+
+    // add outbound bytes to the batch, sending what's already there first if
+    // the batch would get too big. you're holding mWriteLock.
+    private void queue(byte[] buffer, int offset, int length)
+            throws IOException {
+        if ((mOutBufferLen > 0) && (mOutBufferLen + length > mWriteBatchSize)) {
+            flush();
+        }
+        if (mOutBufferLen + length > mOutBuffer.length) {
+            int newlen = 2 * mOutBuffer.length;
+            while (mOutBufferLen + length > newlen) {
+                newlen *= 2;
+            }
+            byte[] newbuf = new byte[newlen];
+            System.arraycopy(mOutBuffer, 0, newbuf, 0, mOutBufferLen);
+            mOutBuffer = newbuf;
+        }
+        System.arraycopy(buffer, offset, mOutBuffer, mOutBufferLen, length);
+        mOutBufferLen += length;
+    }
+
+    // you're holding mWriteLock.
+    private void flush() throws IOException {
+        if (mOutBufferLen == 0) {
+            return;
+        }
+        int length = mOutBufferLen;
+        mOutBufferLen = 0;
         // setSoTimeout() does not affect writes in java
-        mOutStream.write(buffer, offset, length);
+        mOutStream.write(mOutBuffer, 0, length);
+        if (mOutBuffer.length > MAX_IDLE_OUT_BUFFER_SIZE) {
+            mOutBuffer = new byte[OUT_BUFFER_SIZE];
+        }
     }
 
-    private void checkKeepAlive() {
-        if ((mKeepAliveInterval == 0) || (mBlockEngineOut == null)
+    /* package */void checkKeepAlive() {
+        if ((mKeepAliveInterval == 0)
+                || ((mBlockEngineOut == null) && (mAEADEngineOut == null))
                 || needRekey()) {
             // wait till we're in a normal state
             return;
@@ -439,6 +993,11 @@ class Packetizer {
         mNeedRekey = rekey;
     }
 
+    // for unit tests
+    /* package */byte[] getReceiveBuffer() {
+        return mRecvBuffer;
+    }
+
     // for unit tests
     /* package */long getBytesSent() {
         return mSentBytes;
@@ -456,6 +1015,18 @@ class Packetizer {
     private final static int REKEY_PACKETS = 0x40000000;
     private final static int REKEY_BYTES = 0x40000000; // 1GB
 
+    // largest packet we'll accept from the remote side (same as openssh)
+    private final static int MAX_PACKET_SIZE = 256 * 1024;
+    // hmac-sha2-512
+    private final static int MAX_MAC_SIZE = 64;
+    private final static int RECV_BUFFER_SIZE = 16 * 1024;
+    private final static int INBOUND_BUFFER_SIZE = 32 * 1024;
+    // outbound batches: the buffer grows to hold a batch, and is dropped
+    // again after a flush if it got very large
+    private final static int OUT_BUFFER_SIZE = 4 * 1024;
+    private final static int MAX_IDLE_OUT_BUFFER_SIZE = 128 * 1024;
+    private final static int WRITE_BATCH_SIZE = 64 * 1024;
+
     private int mRekeyPackets = REKEY_PACKETS;
     private int mRekeyBytes = REKEY_BYTES;
 
@@ -467,13 +1038,31 @@ class Packetizer {
     private boolean mNeedRekey;
     private int mInitCount;
 
-    private Object mWriteLock;
+    // not a monitor: a virtual thread blocked writing to the socket shouldn't
+    // pin its carrier
+    private ReentrantLock mWriteLock;
     private byte[] mReadBuffer; // used for reading the first block of a packet
+    private byte[] mRecvBuffer; // reused ring of inbound packet bodies
+    private byte[] mUncompressBuffer;
+    private int mRecvPosition;
+    private byte[] mOutBuffer; // packets (and MACs) waiting to be written
+    private int mOutBufferLen;
+    private int mWriteBatchSize;
+
+    // non-blocking mode: bytes fed in from the socket, not yet decoded
+    private byte[] mInbound;
+    private int mInboundStart;
+    private int mInboundEnd;
+    private int mPendingLength;
 
     private int mBlockSizeOut = 8;
     private int mBlockSizeIn = 8;
     private CraiCipher mBlockEngineOut;
     private CraiCipher mBlockEngineIn;
+    private CraiAEADCipher mAEADEngineOut;
+    private CraiAEADCipher mAEADEngineIn;
+    private boolean mETMOut;
+    private boolean mETMIn;
     private CraiDigest mMacEngineOut;
     private CraiDigest mMacEngineIn;
     private byte[] mMacBufferOut;
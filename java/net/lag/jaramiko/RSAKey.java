@@ -74,11 +74,36 @@ public final class RSAKey extends PKey {
 
     @Override
     public Message signSSHData(Crai crai, byte[] data) throws SSHException {
+        return signSSHData(crai, data, "ssh-rsa");
+    }
+
+    @Override
+    public String[] getSignatureAlgorithms() {
+        return new String[] { "rsa-sha2-512", "rsa-sha2-256", "ssh-rsa" };
+    }
+
+    @Override
+    public Message signSSHData(Crai crai, byte[] data, String algorithm)
+            throws SSHException {
+        String hash = getHash(algorithm);
+        if (hash == null) {
+            throw new SSHException("Can't sign with " + algorithm
+                    + " using ssh-rsa key");
+        }
         try {
-            CraiPrivateKey rsa = crai.makePrivateRSAKey(mN, mD, mP, mQ);
+            CraiPrivateKey rsa = getCraiPrivateKey(crai);
+            byte[] sig;
+            if (hash.equals("SHA1")) {
+                sig = rsa.sign(data, 0, data.length);
+            } else if (rsa instanceof CraiPrivateKey.RSASigner) {
+                sig = ((CraiPrivateKey.RSASigner) rsa).sign(hash, data, 0,
+                        data.length);
+            } else {
+                throw new SSHException("Crai can't sign with " + algorithm);
+            }
             Message m = new Message();
-            m.putString(getSSHName());
-            m.putByteString(rsa.sign(data, 0, data.length));
+            m.putString(algorithm);
+            m.putByteString(sig);
             return m;
         } catch (CraiException x) {
             x.printStackTrace();
@@ -90,18 +115,37 @@ public final class RSAKey extends PKey {
     public boolean verifySSHSignature(Crai crai, byte[] data, Message sig)
             throws SSHException {
         try {
-            if (!sig.getString().equals("ssh-rsa")) {
+            String hash = getHash(sig.getString());
+            if (hash == null) {
                 return false;
             }
             byte[] sigData = sig.getByteString();
 
-            CraiPublicKey rsa = crai.makePublicRSAKey(mN, mE);
-            return rsa.verify(data, 0, data.length, sigData);
+            CraiPublicKey rsa = getCraiPublicKey(crai);
+            if (hash.equals("SHA1")) {
+                return rsa.verify(data, 0, data.length, sigData);
+            } else if (rsa instanceof CraiPublicKey.RSAVerifier) {
+                return ((CraiPublicKey.RSAVerifier) rsa).verify(hash, data, 0,
+                        data.length, sigData);
+            }
+            return false;
         } catch (CraiException x) {
             throw new SSHException("Java publickey error: " + x);
         }
     }
 
+    // the hash behind each of the RSA signature algorithms (RFC 8332)
+    private static String getHash(String algorithm) {
+        if (algorithm.equals("ssh-rsa")) {
+            return "SHA1";
+        } else if (algorithm.equals("rsa-sha2-256")) {
+            return "SHA256";
+        } else if (algorithm.equals("rsa-sha2-512")) {
+            return "SHA512";
+        }
+        return null;
+    }
+
     @Override
     protected void buildFromBER(BigInteger[] ints) throws SSHException {
         if (ints.length < 6) {
@@ -121,6 +165,16 @@ public final class RSAKey extends PKey {
         mN = m.getMPZ();
     }
 
+    @Override
+    protected void buildFromOpenSSH(Message m) throws SSHException {
+        mN = m.getMPZ();
+        mE = m.getMPZ();
+        mD = m.getMPZ();
+        m.getMPZ(); // iqmp, which we recompute when it's needed
+        mP = m.getMPZ();
+        mQ = m.getMPZ();
+    }
+
     @Override
     public void writePrivateKeyToStream(OutputStream os, String password)
             throws IOException {
@@ -221,7 +275,7 @@ public final class RSAKey extends PKey {
 
     @Override
     public CraiPrivateKey toPrivateKey(Crai crai) {
-        return crai.makePrivateRSAKey(mN, mD, mP, mQ);
+        return crai.makePrivateRSAKey(mN, mE, mD, mP, mQ);
     }
 
     @Override
@@ -42,6 +42,8 @@ import java.util.List;
  * IllegalArgumentException will be thrown.
  */
 public final class SecurityOptions {
+    /* package */static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
     SecurityOptions(String[] knownCiphers, String[] knownMacs,
             String[] knownKeys, String[] knownKex, String[] knownCompressions) {
 
@@ -56,6 +58,8 @@ public final class SecurityOptions {
         mKeys = new ArrayList<String>(Arrays.asList(knownKeys));
         mKex = new ArrayList<String>(Arrays.asList(knownKex));
         mCompressions = new ArrayList<String>(Arrays.asList(knownCompressions));
+        mCompressionLevel = DEFAULT_COMPRESSION_LEVEL;
+        mAdaptiveCompression = true;
     }
 
     public void setCiphers(List<String> ciphers) {
@@ -78,6 +82,33 @@ public final class SecurityOptions {
         setList(mCompressions, compressions, mKnownCompressions);
     }
 
+    /**
+     * Set the zlib compression level (1 to 9) for outbound traffic, if
+     * compression is negotiated. Higher levels compress a little better, but
+     * cost a lot more CPU. The default is 6.
+     * 
+     * @param level
+     *            the compression level
+     */
+    public void setCompressionLevel(int level) {
+        if ((level < 1) || (level > 9)) {
+            throw new IllegalArgumentException();
+        }
+        mCompressionLevel = level;
+    }
+
+    /**
+     * Turn on/off adaptive compression. When it's on (the default), channels
+     * whose data doesn't compress are sent at level 0, which saves the CPU
+     * time of compressing data that's already compressed.
+     * 
+     * @param adaptive
+     *            true to skip compressing incompressible channel data
+     */
+    public void setAdaptiveCompression(boolean adaptive) {
+        mAdaptiveCompression = adaptive;
+    }
+
     public List<String> getCiphers() {
         return new ArrayList<String>(mCiphers);
     }
@@ -98,6 +129,14 @@ public final class SecurityOptions {
         return new ArrayList<String>(mCompressions);
     }
 
+    public int getCompressionLevel() {
+        return mCompressionLevel;
+    }
+
+    public boolean getAdaptiveCompression() {
+        return mAdaptiveCompression;
+    }
+
     private void setList(List<String> mine, List<String> theirs, String[] valid) {
         mine.clear();
         for (Iterator<String> i = theirs.iterator(); i.hasNext();) {
@@ -120,4 +159,6 @@ public final class SecurityOptions {
     private List<String> mKeys;
     private List<String> mKex;
     private List<String> mCompressions;
+    private int mCompressionLevel;
+    private boolean mAdaptiveCompression;
 }
@@ -162,7 +162,7 @@ public interface ServerInterface {
      * Handle a global request of the given kind. This method is called in
      * server mode and client mode, whenever the remote host makes a global
      * request. If there are any arguments to the request, they will be in
-     * <code>m</code>.
+     * <code>m</code>, which is only valid until this method returns.
      * 
      * <p>
      * There aren'y any useful global requests defined in the SSH2 protocol,
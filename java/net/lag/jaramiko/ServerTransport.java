@@ -33,8 +33,12 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.lag.crai.Crai;
+import net.lag.crai.CraiAEADCipher;
 import net.lag.crai.CraiCipher;
 import net.lag.crai.CraiDigest;
 import net.lag.crai.CraiException;
@@ -89,6 +93,14 @@ public class ServerTransport extends BaseTransport {
             return ServerTransport.this.getServerKey();
         }
 
+        public DHKeyPool getDHKeyPool() {
+            return mDHKeyPool;
+        }
+
+        public String getServerKeyType() {
+            return mDescription.mServerKeyType;
+        }
+
         public void verifyKey(byte[] hostKey, byte[] sig) throws SSHException {
             // no remote server key in server mode
             throw new SSHException("internal jaramiko error");
@@ -98,15 +110,25 @@ public class ServerTransport extends BaseTransport {
             ServerTransport.this.setKH(k, h);
         }
 
+        public void setKH(BigInteger k, byte[] h, CraiDigest hash) {
+            ServerTransport.this.setKH(k, h, hash);
+        }
+
         public void kexComplete() throws IOException {
             ServerTransport.this.activateOutbound();
         }
+
+        public void runTask(KexTransportInterface.Task task)
+                throws IOException {
+            runKexTask(task);
+        }
     }
 
     public ServerTransport(Socket socket) throws IOException {
         super(socket);
 
-        mServerAcceptLock = new Object();
+        mServerAcceptLock = new ReentrantLock();
+        mServerAcceptReady = mServerAcceptLock.newCondition();
         mServerAccepts = new ArrayList<Channel>();
         mServerKeyMap = new HashMap<String, PKey>();
     }
@@ -143,19 +165,50 @@ public class ServerTransport extends BaseTransport {
         mServer = server;
         mCompletionEvent = new Event();
         mActive = true;
-        new Thread(new Runnable() {
-            public void run() {
-                logger.debug("starting thread (server mode): {}",
-                            Integer.toHexString(this.hashCode()));
-                transportRun();
-            }
-        }, "jaramiko server feeder").start();
+        if (mEventLoop != null) {
+            startEventLoop();
+        } else {
+            startFeeder(new Runnable() {
+                public void run() {
+                    logger.debug("starting thread (server mode): {}",
+                                Integer.toHexString(this.hashCode()));
+                    transportRun();
+                }
+            }, "jaramiko server feeder");
+        }
 
         if (!waitForEvent(mCompletionEvent, timeout_ms)) {
             throw new SSHException("Timeout.");
         }
     }
 
+    /**
+     * Take Diffie-Hellman keys for key exchange from a shared pool of
+     * precomputed keys, instead of generating them during each handshake. The
+     * same pool can be used by any number of transports. This should be
+     * called before {@link #start}.
+     * 
+     * @param pool
+     *            the key pool to use, or null to generate keys as needed
+     */
+    public void setDHKeyPool(DHKeyPool pool) {
+        mDHKeyPool = pool;
+    }
+
+    /**
+     * Compute the server's half of each key exchange on a shared, bounded set
+     * of handshake threads, instead of on this transport's own thread. The
+     * same executor can be used by any number of transports. This should be
+     * called before {@link #start}.
+     * 
+     * @param executor
+     *            the handshake executor to use, or null to compute key
+     *            exchanges on this transport's thread
+     */
+    public void setHandshakeExecutor(HandshakeExecutor executor) {
+        mHandshakeExecutor = executor;
+    }
+
     /**
      * Set a banner to be sent during authentication in server mode. This method
      * should be called before {@link #start} in order to guarantee that it gets
@@ -182,7 +235,11 @@ public class ServerTransport extends BaseTransport {
      *            the host key to add
      */
     public void addServerKey(PKey key) {
-        mServerKeyMap.put(key.getSSHName(), key);
+        // the key can be used for any of its signature algorithms
+        String[] algorithms = key.getSignatureAlgorithms();
+        for (int i = 0; i < algorithms.length; i++) {
+            mServerKeyMap.put(algorithms[i], key);
+        }
     }
 
     /**
@@ -211,13 +268,18 @@ public class ServerTransport extends BaseTransport {
      * @return a new Channel opened by the client
      */
     public Channel accept(int timeout_ms) {
-        synchronized (mServerAcceptLock) {
+        mServerAcceptLock.lock();
+        try {
             if (mServerAccepts.size() > 0) {
                 return mServerAccepts.remove(0);
             }
 
             try {
-                mServerAcceptLock.wait(timeout_ms);
+                if (timeout_ms == 0) {
+                    mServerAcceptReady.await();
+                } else {
+                    mServerAcceptReady.await(timeout_ms, TimeUnit.MILLISECONDS);
+                }
             } catch (InterruptedException x) {
                 Thread.currentThread().interrupt();
             }
@@ -230,14 +292,19 @@ public class ServerTransport extends BaseTransport {
                 return mServerAccepts.remove(0);
             }
             return null;
+        } finally {
+            mServerAcceptLock.unlock();
         }
     }
 
     @Override
     public void close() {
         super.close();
-        synchronized (mServerAcceptLock) {
-            mServerAcceptLock.notifyAll();
+        mServerAcceptLock.lock();
+        try {
+            mServerAcceptReady.signalAll();
+        } finally {
+            mServerAcceptLock.unlock();
         }
     }
 
@@ -279,9 +346,18 @@ public class ServerTransport extends BaseTransport {
         try {
             // this method shouldn't be so long, but java makes this really
             // difficult and bureaucratic
+            if (desc.mAEAD) {
+                // the cipher authenticates its own packets: no mac
+                CraiAEADCipher inCipher = sCrai.getAEADCipher(desc.mAlgorithm);
+                inCipher.initDecrypt(computeKey((byte) 'C', desc.mKeySize),
+                        computeKey((byte) 'A', desc.mIVSize));
+                mPacketizer.setInboundCipher(inCipher, desc.mBlockSize);
+                return;
+            }
+
             CraiCipher inCipher = sCrai.getCipher(desc.mAlgorithm);
             byte[] key = computeKey((byte) 'C', desc.mKeySize);
-            byte[] iv = computeKey((byte) 'A', desc.mBlockSize);
+            byte[] iv = computeKey((byte) 'A', desc.mIVSize);
             inCipher.initDecrypt(key, iv);
 
             /*
@@ -289,14 +365,9 @@ public class ServerTransport extends BaseTransport {
              * potentially truncated transmission size)
              */
             key = computeKey((byte) 'E', mdesc.mNaturalSize);
-            CraiDigest inMac = null;
-            if (mdesc.mName.equals("MD5")) {
-                inMac = sCrai.makeMD5HMAC(key);
-            } else {
-                inMac = sCrai.makeSHA1HMAC(key);
-            }
+            CraiDigest inMac = makeMac(mdesc, key);
             mPacketizer.setInboundCipher(inCipher, desc.mBlockSize, inMac,
-                    mdesc.mDigestSize);
+                    mdesc.mDigestSize, mdesc.mETM);
         } catch (CraiException x) {
             throw new SSHException("Internal java error: " + x);
         }
@@ -308,9 +379,18 @@ public class ServerTransport extends BaseTransport {
         try {
             // this method shouldn't be so long, but java makes this really
             // difficult and bureaucratic
+            if (desc.mAEAD) {
+                CraiAEADCipher outCipher = sCrai
+                        .getAEADCipher(desc.mAlgorithm);
+                outCipher.initEncrypt(computeKey((byte) 'D', desc.mKeySize),
+                        computeKey((byte) 'B', desc.mIVSize));
+                mPacketizer.setOutboundCipher(outCipher, desc.mBlockSize);
+                return;
+            }
+
             CraiCipher outCipher = sCrai.getCipher(desc.mAlgorithm);
             byte[] key = computeKey((byte) 'D', desc.mKeySize);
-            byte[] iv = computeKey((byte) 'B', desc.mBlockSize);
+            byte[] iv = computeKey((byte) 'B', desc.mIVSize);
             outCipher.initEncrypt(key, iv);
 
             /*
@@ -318,20 +398,26 @@ public class ServerTransport extends BaseTransport {
              * potentially truncated transmission size)
              */
             key = computeKey((byte) 'F', mdesc.mNaturalSize);
-            CraiDigest outMac = null;
-            if (mdesc.mName == "MD5") {
-                outMac = sCrai.makeMD5HMAC(key);
-            } else {
-                outMac = sCrai.makeSHA1HMAC(key);
-            }
+            CraiDigest outMac = makeMac(mdesc, key);
 
             mPacketizer.setOutboundCipher(outCipher, desc.mBlockSize, outMac,
-                    mdesc.mDigestSize);
+                    mdesc.mDigestSize, mdesc.mETM);
         } catch (CraiException x) {
             throw new SSHException("Internal java error: " + x);
         }
     }
 
+    /* package */@Override
+    void endSessionHook() {
+        // nothing more will arrive for accept()
+        mServerAcceptLock.lock();
+        try {
+            mServerAcceptReady.signalAll();
+        } finally {
+            mServerAcceptLock.unlock();
+        }
+    }
+
     /* package */@Override
     void sendKexInitHook() {
         // need to remove key-types from the SecurityOptions if we don't have
@@ -406,10 +492,13 @@ public class ServerTransport extends BaseTransport {
         int myChanID = 0;
         Channel c = null;
 
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             myChanID = getNextChannel();
             c = getChannelForKind(myChanID, kind, m);
             mChannels[myChanID] = c;
+        } finally {
+            mLock.unlock();
         }
 
         reason = mServer.checkChannelRequest(kind, myChanID);
@@ -420,8 +509,11 @@ public class ServerTransport extends BaseTransport {
 
         if (reject) {
             if (c != null) {
-                synchronized (mLock) {
+                mLock.lock();
+                try {
                     mChannels[myChanID] = null;
+                } finally {
+                    mLock.unlock();
                 }
             }
 
@@ -435,11 +527,14 @@ public class ServerTransport extends BaseTransport {
             return;
         }
 
-        synchronized (mLock) {
+        mLock.lock();
+        try {
             c.setTransport(this);
             c.setWindow(mWindowSize, mMaxPacketSize);
             c.setRemoteChannel(chanID, initialWindowSize, maxPacketSize);
             c.setServer(mServer);
+        } finally {
+            mLock.unlock();
         }
 
         Message mx = new Message();
@@ -452,10 +547,45 @@ public class ServerTransport extends BaseTransport {
 
         logger.info("Secsh channel {} opened.", myChanID);
 
-        synchronized (mServerAcceptLock) {
+        mServerAcceptLock.lock();
+        try {
             mServerAccepts.add(c);
-            mServerAcceptLock.notify();
+            mServerAcceptReady.signal();
+        } finally {
+            mServerAcceptLock.unlock();
+        }
+    }
+
+    /*
+     * the peer can answer our kex reply before the task has finished switching
+     * on our own new keys, so incoming packets are held back until the task is
+     * done: the feeder waits for mKexLock, and an event loop stops reading
+     * this transport until it's resumed.
+     */
+    private void runKexTask(final KexTransportInterface.Task task)
+            throws IOException {
+        HandshakeExecutor executor = mHandshakeExecutor;
+        if (executor == null) {
+            task.run();
+            return;
         }
+        setKexTaskRunning(true);
+        executor.execute(new Runnable() {
+            public void run() {
+                mKexLock.lock();
+                try {
+                    task.run();
+                } catch (IOException x) {
+                    kexTaskFailed(x);
+                } catch (RuntimeException x) {
+                    kexTaskFailed(new SSHException("Key exchange failed: "
+                            + x));
+                } finally {
+                    mKexLock.unlock();
+                    setKexTaskRunning(false);
+                }
+            }
+        });
     }
 
     private ServerInterface mServer;
@@ -463,7 +593,12 @@ public class ServerTransport extends BaseTransport {
                                              // keys
     private PKey mServerKey; // server key that was used for this session
     private String mBanner;
+    private DHKeyPool mDHKeyPool;
+    private HandshakeExecutor mHandshakeExecutor;
 
-    private Object mServerAcceptLock;
+    // a lock rather than a monitor, so that a virtual thread blocked in
+    // accept() doesn't pin its carrier
+    private ReentrantLock mServerAcceptLock;
+    private Condition mServerAcceptReady;
     private List<Channel> mServerAccepts;
 }
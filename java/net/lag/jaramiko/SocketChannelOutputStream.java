@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2005-2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package net.lag.jaramiko;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * OutputStream over a non-blocking SocketChannel, for a transport driven by
+ * an {@link EventLoop}. Writes never block: whatever the socket won't take
+ * straight away is queued, and the loop sends it once the socket is writable
+ * again.
+ * 
+ * <p>
+ * Threads other than the loop's should call {@link #waitForRoom} before
+ * writing bulk data (while holding no lock the loop needs), so that a peer
+ * which stops reading slows them down instead of growing the queue. The loop
+ * itself can't wait, so if the queue grows past a hard limit anyway, the
+ * stream fails, and takes the session with it.
+ */
+class SocketChannelOutputStream extends OutputStream {
+    /**
+     * @param channel
+     *            the socket, already in non-blocking mode
+     * @param backlogged
+     *            called (without any lock held) when bytes are first queued,
+     *            or the stream fails, so the loop can watch for the socket
+     *            becoming writable
+     */
+    public SocketChannelOutputStream(SocketChannel channel, Runnable backlogged) {
+        mChannel = channel;
+        mBacklogged = backlogged;
+        mSingle = new byte[1];
+        mQueue = new LinkedList<ByteBuffer>();
+        mLock = new ReentrantLock();
+        mRoom = mLock.newCondition();
+    }
+
+    public void write(int b) throws IOException {
+        mSingle[0] = (byte) b;
+        write(mSingle, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        boolean backlogged = false;
+        mLock.lock();
+        try {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            if (mClosed) {
+                throw new IOException("Socket closed");
+            }
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            if (mQueue.isEmpty()) {
+                mChannel.write(buf);
+                if (!buf.hasRemaining()) {
+                    return;
+                }
+                backlogged = true;
+            }
+            if (mQueued + buf.remaining() > MAX_QUEUED) {
+                mFailure = new IOException("Peer stopped reading (over "
+                        + MAX_QUEUED + " bytes queued)");
+                mRoom.signalAll();
+                backlogged = true;
+                throw mFailure;
+            }
+            // the caller may reuse its buffer as soon as we return
+            byte[] copy = new byte[buf.remaining()];
+            buf.get(copy);
+            mQueue.addLast(ByteBuffer.wrap(copy));
+            mQueued += copy.length;
+        } finally {
+            mLock.unlock();
+            if (backlogged) {
+                mBacklogged.run();
+            }
+        }
+    }
+
+    /**
+     * Send everything that was queued and then close the socket. Only what
+     * the socket will take without blocking is sent.
+     */
+    public void close() throws IOException {
+        mLock.lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mRoom.signalAll();
+            if (mFailure == null) {
+                try {
+                    drain();
+                } catch (IOException x) {
+                    // closing anyway
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        mChannel.close();
+    }
+
+    /**
+     * Block until the queue is small enough to add more to it. Returns
+     * straight away if the stream has failed or been closed, so that the
+     * next write can report it.
+     */
+    public void waitForRoom() throws IOException {
+        mLock.lock();
+        try {
+            while ((mQueued >= HIGH_WATER) && (mFailure == null) && !mClosed) {
+                mRoom.await();
+            }
+        } catch (InterruptedException x) {
+            throw new InterruptedIOException("interrupted");
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public boolean isBacklogged() {
+        mLock.lock();
+        try {
+            return mQueued >= HIGH_WATER;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // true if the loop should wait for the socket to be writable
+    public boolean hasQueued() {
+        mLock.lock();
+        try {
+            return !mQueue.isEmpty() || (mFailure != null);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Write as much of the queue as the socket will take. Called by the
+     * event loop when the socket is writable.
+     * 
+     * @throws IOException
+     *             if the stream has failed, or the socket did
+     */
+    public void drain() throws IOException {
+        mLock.lock();
+        try {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            while (!mQueue.isEmpty()) {
+                ByteBuffer buf = mQueue.getFirst();
+                mQueued -= mChannel.write(buf);
+                if (buf.hasRemaining()) {
+                    break;
+                }
+                mQueue.removeFirst();
+            }
+            if (mQueued < LOW_WATER) {
+                mRoom.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // writers wait above HIGH_WATER until the loop gets it below LOW_WATER
+    private static final int HIGH_WATER = 256 * 1024;
+    private static final int LOW_WATER = 64 * 1024;
+    private static final int MAX_QUEUED = 8 * 1024 * 1024;
+
+    private SocketChannel mChannel;
+    private Runnable mBacklogged;
+    private byte[] mSingle;
+
+    private ReentrantLock mLock; // protects everything below
+    private Condition mRoom;
+    private LinkedList<ByteBuffer> mQueue;
+    private int mQueued;
+    private IOException mFailure;
+    private boolean mClosed;
+}
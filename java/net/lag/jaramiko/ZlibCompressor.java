@@ -33,8 +33,8 @@ import com.jcraft.jzlib.ZStream;
         mInflateStream = new ZStream();
         mInflateStream.inflateInit();
         mDeflateStream = new ZStream();
-        mDeflateStream.deflateInit(9);
-        mBuffer = new byte[BUFFER_SIZE];
+        mDeflateStream.deflateInit(SecurityOptions.DEFAULT_COMPRESSION_LEVEL);
+        mPending = new byte[PENDING_SIZE];
     }
 
     @Override
@@ -45,77 +45,67 @@ import com.jcraft.jzlib.ZStream;
         mDeflateStream.free();
     }
 
-    /**
-     * Create a byte[] by appending two existing buffers. The <code>orig</code>
-     * buffer may be <code>null</code>, in which case the <code>add</code>
-     * buffer is copied to a new buffer. The returned buffer is always exactly
-     * the size of both buffers combined.
-     */
-    private static byte[] appendBytes(byte[] orig, byte[] add, int offset,
-            int length) {
-        byte[] out = null;
-        int x = 0;
-        if (orig == null) {
-            out = new byte[length];
-            x = 0;
-        } else {
-            x = orig.length;
-            out = new byte[x + length];
-            System.arraycopy(orig, 0, out, 0, x);
-        }
-        System.arraycopy(add, offset, out, x, length);
-        return out;
+    public void setCompressionLevel(int level) {
+        // changing levels may flush a little output, which goes out in front
+        // of the next packet
+        mDeflateStream.next_out = mPending;
+        mDeflateStream.next_out_index = mPendingLength;
+        mDeflateStream.avail_out = PENDING_SIZE - mPendingLength;
+        mDeflateStream.deflateParams(level, JZlib.Z_DEFAULT_STRATEGY);
+        mPendingLength = mDeflateStream.next_out_index;
+    }
+
+    public int compressBound(int length) {
+        return mPendingLength + length + (length >> 8) + BOUND_SLACK;
     }
 
-    public byte[] compress(byte[] data, int offset, int length) {
-        byte[] out = null;
+    public int compress(byte[] data, int offset, int length, byte[] out,
+            int outOffset) {
+        int room = compressBound(length);
+        System.arraycopy(mPending, 0, out, outOffset, mPendingLength);
+        int n = mPendingLength;
+        mPendingLength = 0;
 
         /* i'm not a big fan of the ZStream API here. */
         mDeflateStream.next_in = data;
         mDeflateStream.next_in_index = offset;
         mDeflateStream.avail_in = length;
-
-        do {
-            mDeflateStream.next_out = mBuffer;
-            mDeflateStream.next_out_index = 0;
-            mDeflateStream.avail_out = BUFFER_SIZE;
-            int status = mDeflateStream.deflate(JZlib.Z_PARTIAL_FLUSH);
-            out = appendBytes(out, mBuffer, 0, BUFFER_SIZE
-                    - mDeflateStream.avail_out);
-            if (status != JZlib.Z_OK) {
-                return out;
-            }
-        } while ((mDeflateStream.avail_in > 0)
-                || (mDeflateStream.avail_out == 0));
-        return out;
+        mDeflateStream.next_out = out;
+        mDeflateStream.next_out_index = outOffset + n;
+        mDeflateStream.avail_out = room - n;
+        mDeflateStream.deflate(JZlib.Z_PARTIAL_FLUSH);
+        if (mDeflateStream.avail_out == 0) {
+            // a full buffer means the flush may not have finished
+            throw new IllegalStateException("compressBound too small");
+        }
+        return mDeflateStream.next_out_index - outOffset;
     }
 
-    public byte[] uncompress(byte[] data, int offset, int length) {
-        byte[] out = null;
-
-        /* i'm not a big fan of the ZStream API here. */
-        mInflateStream.next_in = data;
-        mInflateStream.next_in_index = offset;
-        mInflateStream.avail_in = length;
-
-        do {
-            mInflateStream.next_out = mBuffer;
-            mInflateStream.next_out_index = 0;
-            mInflateStream.avail_out = BUFFER_SIZE;
-            int status = mInflateStream.inflate(JZlib.Z_PARTIAL_FLUSH);
-            out = appendBytes(out, mBuffer, 0, BUFFER_SIZE
-                    - mInflateStream.avail_out);
-            if (status != JZlib.Z_OK) {
-                return out;
-            }
-        } while ((mInflateStream.avail_in > 0)
-                || (mInflateStream.avail_out == 0));
-        return out;
+    public int uncompress(byte[] data, int offset, int length, byte[] out,
+            int outOffset, int outLength) throws SSHException {
+        if (length > 0) {
+            mInflateStream.next_in = data;
+            mInflateStream.next_in_index = offset;
+            mInflateStream.avail_in = length;
+        }
+        mInflateStream.next_out = out;
+        mInflateStream.next_out_index = outOffset;
+        mInflateStream.avail_out = outLength;
+        int status = mInflateStream.inflate(JZlib.Z_PARTIAL_FLUSH);
+        if ((status == JZlib.Z_DATA_ERROR)
+                || (status == JZlib.Z_STREAM_ERROR)) {
+            throw new SSHException("Bad compressed data");
+        }
+        return mInflateStream.next_out_index - outOffset;
     }
 
     private ZStream mDeflateStream;
     private ZStream mInflateStream;
-    private byte[] mBuffer;
+    // output from a level change, not yet sent
+    private byte[] mPending;
+    private int mPendingLength;
 
-    private static final int BUFFER_SIZE = 4096;
+    private static final int PENDING_SIZE = 64;
+    // zlib header, flush markers, and a partial byte or two
+    private static final int BOUND_SLACK = 64;
 }
@@ -1,5 +1,6 @@
 package net.lag.jaramiko.sftp;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -21,15 +22,18 @@ public class Base {
     protected void sendPacket(Command command, Message message)
             throws IOException {
         byte[] data = message.toByteArray();
-        OutputStream stream = channel.getOutputStream();
-        // FIXME do this in 1 step.
         int len = data.length + 1;
-        stream.write((len >> 24) & 0xFF);
-        stream.write((len >> 16) & 0xFF);
-        stream.write((len >> 8) & 0xFF);
-        stream.write((len >> 0) & 0xFF);
-        stream.write(command.getBinaryCode());
-        stream.write(data);
+        // length, command, and body go out in one write, so that several
+        // threads can send requests without their packets interleaving
+        byte[] packet = new byte[data.length + 5];
+        packet[0] = (byte) ((len >> 24) & 0xFF);
+        packet[1] = (byte) ((len >> 16) & 0xFF);
+        packet[2] = (byte) ((len >> 8) & 0xFF);
+        packet[3] = (byte) ((len >> 0) & 0xFF);
+        packet[4] = (byte) command.getBinaryCode();
+        System.arraycopy(data, 0, packet, 5, data.length);
+        OutputStream stream = channel.getOutputStream();
+        stream.write(packet);
         stream.flush();
     }
 
@@ -41,13 +45,10 @@ public class Base {
     protected Message readPacket() throws IOException {
         InputStream stream = channel.getInputStream();
         byte[] lenBytes = new byte[4];
-        if (stream.read(lenBytes) != 4) {
-            throw new RuntimeException(
-                    "unexpected end of file on SFTP channel."); // FIXME.
-        }
+        readFully(stream, lenBytes);
 
         if (lenBytes[0] != 0) {
-            throw new RuntimeException("unexpected data byte."); // FIXME
+            throw new IOException("unexpected data byte.");
         }
 
         int len = ((lenBytes[0] & 0xff) << 24) | ((lenBytes[1] & 0xff) << 16)
@@ -58,13 +59,24 @@ public class Base {
          * RuntimeException("unexpected end of file on SFTP."); }
          */
 
+        // a large response (like READ data) may arrive in several pieces
         byte[] data = new byte[len];
-        if (stream.read(data) != len) {
-            throw new RuntimeException(
-                    "unexpected end of file on SFTP channel."); // FIXME.
-        }
+        readFully(stream, data);
 
         return new Message(data);
     }
 
+    private static void readFully(InputStream stream, byte[] data)
+            throws IOException {
+        int total = 0;
+        while (total < data.length) {
+            int n = stream.read(data, total, data.length - total);
+            if (n < 0) {
+                throw new EOFException(
+                        "unexpected end of file on SFTP channel.");
+            }
+            total += n;
+        }
+    }
+
 }
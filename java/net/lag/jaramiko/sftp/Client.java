@@ -3,31 +3,88 @@ package net.lag.jaramiko.sftp;
 import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.lang.reflect.Array;
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.lag.jaramiko.Channel;
 import net.lag.jaramiko.ClientTransport;
 import net.lag.jaramiko.Message;
 
+/**
+ * SFTP client. Requests are tagged with an ID and may be outstanding several
+ * at a time: the <code>...Async</code> methods send a request and return a
+ * {@link CompletableFuture} for its response straight away, and the blocking
+ * methods are built on top of them. Responses are delivered to their requests
+ * in whatever order they arrive.
+ *
+ * <p>
+ * While any request is outstanding, a reader thread reads responses from the
+ * channel and completes their futures, so callbacks attached to a future run
+ * on that thread. A thread waiting for a response reads it itself if the
+ * reader isn't already busy, which saves a thread handoff on the blocking
+ * calls.
+ */
 public class Client extends Base {
     private int requestID;
     private int serverVersion;
+    private int maxOutstanding;
     private static final int VERSION = 3;
-
-    private static final int SFTP_FLAG_READ = 0x1;
-    private static final int SFTP_FLAG_WRITE = 0x2;
-    private static final int SFTP_FLAG_APPEND = 0x4;
-    private static final int SFTP_FLAG_CREATE = 0x8;
-    private static final int SFTP_FLAG_TRUNC = 0x10;
-    private static final int SFTP_FLAG_EXCL = 0x20;
+    private static final int DEFAULT_MAX_OUTSTANDING = 16;
+    private static final int DEFAULT_READ_AHEAD = 8;
+    private static final int MAX_REQUESTED_READ = 32768;
+    private static final int DEFAULT_WRITE_AHEAD = 8;
+    private static final int MAX_REQUESTED_WRITE = 32768;
+    private static final int DEFAULT_READDIR_AHEAD = 4;
+
+    public static final int SFTP_FLAG_READ = 0x1;
+    public static final int SFTP_FLAG_WRITE = 0x2;
+    public static final int SFTP_FLAG_APPEND = 0x4;
+    public static final int SFTP_FLAG_CREATE = 0x8;
+    public static final int SFTP_FLAG_TRUNC = 0x10;
+    public static final int SFTP_FLAG_EXCL = 0x20;
+
+    // requests waiting for a response, by request ID. lock protects this,
+    // the reading and closed flags, failure, and the state of every Pending.
+    // stateChanged is signalled when a response arrives, a request is sent,
+    // or the client is closed.
+    private Map<Integer, Pending<?>> pending;
+    private ReentrantLock lock;
+    private Condition stateChanged;
+    private boolean reading;
+    private boolean closed;
+    private IOException failure;
+    // held while writing a request to the channel
+    private ReentrantLock sendLock;
 
     public Client(Channel channel) throws IOException {
         super(channel);
         this.requestID = 1;
+        this.maxOutstanding = DEFAULT_MAX_OUTSTANDING;
+        this.pending = new HashMap<Integer, Pending<?>>();
+        this.lock = new ReentrantLock();
+        this.stateChanged = this.lock.newCondition();
+        this.reading = false;
+        this.closed = false;
+        this.sendLock = new ReentrantLock();
         this.serverVersion = sendVersion();
+
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                readLoop();
+            }
+        }, "jaramiko sftp reader");
+        t.setDaemon(true);
+        t.start();
     }
 
     protected int sendVersion() throws IOException {
@@ -58,33 +115,248 @@ public class Client extends Base {
     }
 
     public void close() {
+        lock.lock();
+        try {
+            this.closed = true;
+            stateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
         this.channel.close();
     }
 
+    /**
+     * Set how many requests may be waiting for a response at once. When the
+     * limit is reached, sending another request blocks until a response
+     * arrives. On a high-latency link, more outstanding requests means more
+     * data in flight; the channel window is the other limit.
+     * 
+     * @param max
+     *            the most requests to have outstanding
+     */
+    public void setMaxOutstandingRequests(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be at least 1");
+        }
+        this.maxOutstanding = max;
+    }
+
+    public int getMaxOutstandingRequests() {
+        return this.maxOutstanding;
+    }
+
+    /**
+     * Open a remote file.
+     * 
+     * @param path
+     *            the remote path
+     * @param flags
+     *            a combination of the <code>SFTP_FLAG_</code> constants
+     * @param attributes
+     *            attributes for a newly created file
+     * @return the file handle
+     * @throws IOException
+     *             if the server refused, or the channel failed
+     */
+    public String open(String path, int flags, Attributes attributes)
+            throws IOException {
+        Message request = newRequest();
+        request.putString(path);
+        request.putInt(flags);
+        attributes.toMessage(request);
+        HandleResponse p = new HandleResponse();
+        send(p, Command.Open, request);
+        return p.await();
+    }
+
+    /**
+     * Close a handle returned by {@link #open}.
+     * 
+     * @param handle
+     *            the file handle
+     * @throws IOException
+     *             if the server refused, or the channel failed
+     */
+    public void closeHandle(String handle) throws IOException {
+        sendHandleRequest(new StatusResponse(), Command.Close, handle).await();
+    }
+
+    /**
+     * Ask for a chunk of an open file without waiting for it. At the end of
+     * the file, the future fails with an {@link EOFException}. The server
+     * may return less data than requested.
+     * 
+     * @param handle
+     *            the file handle
+     * @param offset
+     *            where in the file to read from
+     * @param length
+     *            the most data to return
+     * @return a future for the data
+     * @throws IOException
+     *             if the request couldn't be sent
+     */
+    public CompletableFuture<byte[]> readAsync(String handle, long offset,
+            int length) throws IOException {
+        Message request = newRequest();
+        request.putString(handle);
+        request.putInt64(offset);
+        request.putInt(length);
+        DataResponse p = new DataResponse();
+        send(p, Command.Read, request);
+        return p;
+    }
+
+    /**
+     * Write a chunk of an open file without waiting for the server to
+     * acknowledge it.
+     * 
+     * @param handle
+     *            the file handle
+     * @param offset
+     *            where in the file to write
+     * @param data
+     *            the data to write
+     * @return a future that completes once the server has written the data
+     * @throws IOException
+     *             if the request couldn't be sent
+     */
+    public CompletableFuture<Void> writeAsync(String handle, long offset,
+            byte[] data) throws IOException {
+        return writeAsync(handle, offset, data, 0, data.length);
+    }
+
+    /**
+     * Write part of a buffer to an open file without waiting for the server
+     * to acknowledge it. The data is copied into the request before this
+     * returns, so the buffer may be reused straight away.
+     * 
+     * @param handle
+     *            the file handle
+     * @param offset
+     *            where in the file to write
+     * @param data
+     *            the buffer holding the data
+     * @param off
+     *            where the data starts in <code>data</code>
+     * @param len
+     *            how many bytes to write
+     * @return a future that completes once the server has written the data
+     * @throws IOException
+     *             if the request couldn't be sent
+     */
+    public CompletableFuture<Void> writeAsync(String handle, long offset,
+            byte[] data, int off, int len) throws IOException {
+        Message request = newRequest();
+        request.putString(handle);
+        request.putInt64(offset);
+        request.putByteString(data, off, len);
+        StatusResponse p = new StatusResponse();
+        send(p, Command.Write, request);
+        return p;
+    }
+
+    /**
+     * Get the attributes of a remote file, following symbolic links.
+     * 
+     * @param path
+     *            the remote path
+     * @return the file's attributes
+     * @throws IOException
+     *             if the server refused, or the channel failed
+     */
+    public Attributes stat(String path) throws IOException {
+        return sendPathRequest(new AttrsResponse(), Command.STAT, path).await();
+    }
+
+    /**
+     * Get the attributes of a remote file, without following symbolic links.
+     * 
+     * @param path
+     *            the remote path
+     * @return the file's attributes
+     * @throws IOException
+     *             if the server refused, or the channel failed
+     */
+    public Attributes lstat(String path) throws IOException {
+        return sendPathRequest(new AttrsResponse(), Command.LSTAT, path)
+                .await();
+    }
+
     public List<String> listdir(String path) throws IOException {
         List<String> result = new ArrayList<String>();
 
-        for (DirectoryEntry entry : listdirAttr(path)) {
-            result.add(entry.getFilename());
+        DirectoryReader reader = openDirectory(path);
+        try {
+            while (reader.hasNext()) {
+                result.add(reader.next().getFilename());
+            }
+        } finally {
+            reader.close();
         }
         return result;
     }
 
     public DirectoryEntry[] listdirAttr(String path) throws IOException {
-        // path = adjustCWD(path);
-        String handle = (String) (call(Command.Handle,
-                new Class[] { String.class }, Command.OpenDir, path).get(0));
+        List<DirectoryEntry> result = new ArrayList<DirectoryEntry>();
 
+        DirectoryReader reader = openDirectory(path);
         try {
-            return (DirectoryEntry[]) call(Command.Name,
-                    new Class[] { DirectoryEntry[].class }, Command.ReadDir,
-                    handle).get(0);
-
-            // cmd ReadDir
-            // cmd Close
+            while (reader.hasNext()) {
+                result.add(reader.next());
+            }
         } finally {
-            call(Command.Status, new Class[] {}, Command.Close, handle);
+            reader.close();
+        }
+        return result.toArray(new DirectoryEntry[result.size()]);
+    }
+
+    public DirectoryReader openDirectory(String path) throws IOException {
+        return openDirectory(path, DEFAULT_READDIR_AHEAD);
+    }
+
+    /**
+     * Open a remote directory for reading its entries a batch at a time.
+     * The reader keeps up to <code>readAhead</code> READDIR requests
+     * outstanding, and only holds those batches in memory, so it suits
+     * directories too big to list in one go.
+     * 
+     * @param path
+     *            the remote path
+     * @param readAhead
+     *            how many batches to request ahead of the reader (at least 1)
+     * @return a reader over the directory's entries
+     * @throws IOException
+     *             if the directory couldn't be opened
+     */
+    public DirectoryReader openDirectory(String path, int readAhead)
+            throws IOException {
+        if (readAhead < 1) {
+            throw new IllegalArgumentException(
+                    "readAhead must be at least 1");
         }
+        // path = adjustCWD(path);
+        String handle = sendPathRequest(new HandleResponse(),
+                Command.OpenDir, path).await();
+        return new DirectoryReader(this, handle, readAhead);
+    }
+
+    /**
+     * Ask for the next batch of entries from an open directory without
+     * waiting for it. Once every entry has been returned, the future fails
+     * with an {@link EOFException}.
+     * 
+     * @param handle
+     *            the directory handle
+     * @return a future for the entries
+     * @throws IOException
+     *             if the request couldn't be sent
+     */
+    public CompletableFuture<DirectoryEntry[]> readdirAsync(String handle)
+            throws IOException {
+        NameResponse p = sendHandleRequest(new NameResponse(),
+                Command.ReadDir, handle);
+        return p;
     }
 
     // public open(String filename, mode, bufferSize)
@@ -93,8 +365,6 @@ public class Client extends Base {
     // rename(oldPath, newPath)
     // mkdir(path, mode)
     // rmdir(path)
-    // STAT(path)
-    // LSTAT(path)
     // symlink(sourcePath, destinationPath)
     // XX chmod(path, mode)
     // XX chown(path, uid, gid)
@@ -104,121 +374,376 @@ public class Client extends Base {
     // normalize(path)
     // XXX chdir(path)
 
-    protected List<Object> call(Command expectedResultKind,
-            Class[] expectedResultTypes, Command command, Object... args)
+    // a request body, with room at the front for the request ID
+    private Message newRequest() {
+        Message request = new Message();
+        request.putInt(0);
+        return request;
+    }
+
+    // send a request whose only argument is a path
+    private <P extends Pending<?>> P sendPathRequest(P p, Command command,
+            String path) throws IOException {
+        Message request = newRequest();
+        request.putString(path);
+        send(p, command, request);
+        return p;
+    }
+
+    // send a request whose only argument is a handle
+    private <P extends Pending<?>> P sendHandleRequest(P p, Command command,
+            String handle) throws IOException {
+        Message request = newRequest();
+        request.putString(handle);
+        send(p, command, request);
+        return p;
+    }
+
+    /**
+     * Send a request, once there's room for another outstanding request.
+     * The response will be delivered to <code>p</code>. The request body
+     * comes from {@link #newRequest}, and its ID is filled in here.
+     */
+    private void send(Pending<?> p, Command command, Message request)
             throws IOException {
-        Message message = new Message();
-        message.putInt(this.requestID);
-
-        for (int i = 0; i < args.length; ++i) {
-            Object value = args[i];
-            if (value instanceof Integer) message.putInt((Integer) value);
-            else if (value instanceof Long) message.putInt64((Long) value);
-            else if (value instanceof String) message.putString((String) value);
-            else if (value instanceof byte[]) message
-                    .putByteString((byte[]) value);
-            else {
-                try {
-                    value.getClass()
-                            .getDeclaredMethod("toMessage", Message.class)
-                            .invoke(value, message);
-                } catch (IllegalArgumentException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                    throw new RuntimeException("illegal argument"); // FIXME
-                } catch (SecurityException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                    throw new RuntimeException("security"); // FIXME
-                } catch (IllegalAccessException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                    throw new RuntimeException("illegal access"); // FIXME
-                } catch (InvocationTargetException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                    throw new RuntimeException("invocation target"); // FIXME
-                } catch (NoSuchMethodException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                    throw new RuntimeException("no such method"); // FIXME
-                }
-                // throw new
-                // RuntimeException(String.format("unknown argument type: %s",
-                // value.getClass())); // FIXME.
+        int id;
+        lock.lock();
+        try {
+            while ((failure == null) && (pending.size() >= maxOutstanding)) {
+                pump();
+            }
+            if (failure != null) {
+                throw failure;
             }
+            id = this.requestID++;
+            pending.put(id, p);
+            stateChanged.signalAll();
+        } finally {
+            lock.unlock();
         }
 
-        ++this.requestID;
-        sendPacket(command, message);
-        // FIXME async I/O.
-        Message result = readPacket();
+        int end = request.getPosition();
+        request.setPosition(0);
+        request.putInt(id);
+        request.setPosition(end);
+        sendLock.lock();
+        try {
+            sendPacket(command, request);
+        } catch (IOException x) {
+            List<Pending<?>> failed;
+            lock.lock();
+            try {
+                failed = failAll(x);
+            } finally {
+                lock.unlock();
+            }
+            publish(failed);
+            throw x;
+        } finally {
+            sendLock.unlock();
+        }
+    }
 
-        int gotResultKind = result.getByte();
-        int responseID = result.getInt();
-        assert (responseID == this.requestID - 1);
+    /*
+     * make progress towards some response arriving: if no other thread is
+     * reading from the channel, read and deliver one response; otherwise wait
+     * for the thread that is. you're holding lock.
+     */
+    private void pump() throws IOException {
+        if (reading) {
+            stateChanged.awaitUninterruptibly();
+            return;
+        }
 
-        if (gotResultKind == Command.Status.getBinaryCode()) {
-            parseStatus(result);
-            return null;
+        reading = true;
+        Message m = null;
+        IOException error = null;
+        lock.unlock();
+        try {
+            m = readPacket();
+        } catch (IOException x) {
+            error = x;
+        } catch (RuntimeException x) {
+            error = new IOException(x.toString());
+        } finally {
+            lock.lock();
+            reading = false;
+            stateChanged.signalAll();
         }
 
-        if (gotResultKind != expectedResultKind.getBinaryCode()) {
-            throw new RuntimeException("received unknown response.");
+        if (error != null) {
+            publishUnlocked(failAll(error));
+            throw error;
         }
-        List<Object> resultList = new ArrayList<Object>();
+        int kind = m.getByte();
+        int id = m.getInt();
+        Pending<?> p = pending.remove(id);
+        if (p == null) {
+            publishUnlocked(failAll(new IOException(
+                    "response to unknown request " + id)));
+            throw failure;
+        }
+        p.deliver(kind, m);
+        publishUnlocked(Collections.<Pending<?>> singletonList(p));
+    }
 
-        for (Class kind : expectedResultTypes) {
-            if (String.class.isAssignableFrom(kind)) resultList.add(result
-                    .getString());
-            else if (Integer.class.isAssignableFrom(kind)) resultList
-                    .add(result.getInt());
-            else if (kind.isArray()) { // Array.class.isAssignableFrom(kind)) {
-                Class<?> componentType = kind.getComponentType();
+    // the reader thread: read responses while there are requests waiting for
+    // them, until the client is closed or the channel fails
+    private void readLoop() {
+        lock.lock();
+        try {
+            while (!closed && (failure == null)) {
+                if (reading || pending.isEmpty()) {
+                    stateChanged.awaitUninterruptibly();
+                    continue;
+                }
+                pump();
+            }
+        } catch (IOException x) {
+            // the outstanding requests have failed with it
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the channel is dead: fail every outstanding request, and return them
+    // so they can be published. you're holding lock.
+    private List<Pending<?>> failAll(IOException x) {
+        if (failure == null) {
+            failure = x;
+        }
+        List<Pending<?>> failed = new ArrayList<Pending<?>>(pending.values());
+        for (Pending<?> p : failed) {
+            p.fail(x);
+        }
+        pending.clear();
+        return failed;
+    }
+
+    /*
+     * complete the futures of requests that have been answered. this runs
+     * any callbacks attached to them, so it's done without holding lock.
+     */
+    private void publish(List<Pending<?>> done) {
+        for (Pending<?> p : done) {
+            p.publish();
+        }
+    }
+
+    // like publish(), but you're holding lock (once), and still will be after
+    private void publishUnlocked(List<Pending<?>> done) {
+        lock.unlock();
+        try {
+            publish(done);
+        } finally {
+            lock.lock();
+        }
+    }
 
-                if (byte.class.isAssignableFrom(componentType)) {
-                    byte[] array = result.getByteString();
-                    resultList.add(array);
+    /**
+     * A request waiting for its response. Getting the result of a request
+     * that hasn't been answered yet reads responses from the channel (or
+     * waits for another thread to) until it is.
+     *
+     * <p>
+     * Whether a request has been answered is tracked under lock, apart from
+     * the future's own state: the future is completed just after, once lock
+     * is released, so that its callbacks don't run while holding it.
+     */
+    private abstract class Pending<T> extends CompletableFuture<T> {
+        public Pending(Command expected) {
+            this.expected = expected;
+        }
+
+        // turn the body of the expected kind of response into a result
+        protected abstract T parse(Message m) throws IOException;
+
+        // you're holding lock.
+        void deliver(int kind, Message m) {
+            try {
+                if (kind == Command.Status.getBinaryCode()) {
+                    parseStatus(m);
+                    this.result = null;
+                } else if (kind != expected.getBinaryCode()) {
+                    throw new IOException("received unknown response.");
                 } else {
-                    int count = result.getInt();
-
-                    Object array = Array.newInstance(componentType, count);
-                    for (int i = 0; i < count; ++i) {
-                        Object element;
-                        try {
-                            element = componentType.getDeclaredMethod(
-                                    "fromMessage", Message.class).invoke(null,
-                                    result);
-                        } catch (IllegalArgumentException e) {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
-                            throw new RuntimeException("illegal argument"); // FIXME
-                        } catch (SecurityException e) {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
-                            throw new RuntimeException("security"); // FIXME
-                        } catch (IllegalAccessException e) {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
-                            throw new RuntimeException("illegal access"); // FIXME
-                        } catch (InvocationTargetException e) {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
-                            throw new RuntimeException("invocation"); // FIXME
-                        } catch (NoSuchMethodException e) {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
-                            throw new RuntimeException("no such method"); // FIXME
-                        }
-                        Array.set(array, i, element);
+                    this.result = parse(m);
+                }
+            } catch (IOException x) {
+                this.error = x;
+            } catch (RuntimeException x) {
+                this.error = new IOException(x.toString());
+            }
+            this.done = true;
+        }
+
+        // you're holding lock.
+        void fail(IOException x) {
+            this.error = x;
+            this.done = true;
+        }
+
+        // complete the future itself. don't hold lock.
+        void publish() {
+            if (this.error != null) {
+                completeExceptionally(this.error);
+            } else {
+                complete(this.result);
+            }
+        }
+
+        // like get(), but throws the request's own exception
+        T await() throws IOException {
+            lock.lock();
+            try {
+                while (!this.done) {
+                    pump();
+                }
+            } catch (IOException x) {
+                // fall through: this request has failed too
+            } finally {
+                lock.unlock();
+            }
+            if (this.error != null) {
+                throw this.error;
+            }
+            return this.result;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            try {
+                return await();
+            } catch (IOException x) {
+                throw new ExecutionException(x);
+            }
+        }
+
+        @Override
+        public T join() {
+            try {
+                return await();
+            } catch (IOException x) {
+                throw new CompletionException(x);
+            }
+        }
+
+        /*
+         * the timeout only covers waiting for another thread to read a
+         * response: if this thread has to read from the channel itself, the
+         * channel's own timeout applies.
+         */
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            lock.lock();
+            try {
+                while (!this.done) {
+                    if (!reading) {
+                        pump();
+                        continue;
+                    }
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        throw new TimeoutException();
                     }
-                    resultList.add(array);
+                    stateChanged.awaitNanos(left);
                 }
-            } else
-                throw new RuntimeException("unknown type " + kind); // FIXME.
+            } catch (IOException x) {
+                // fall through: this request has failed too
+            } finally {
+                lock.unlock();
+            }
+            if (this.error != null) {
+                throw new ExecutionException(this.error);
+            }
+            return this.result;
+        }
+
+        @Override
+        public boolean isDone() {
+            lock.lock();
+            try {
+                return this.done;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // a request can't be taken back once it's sent
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        private Command expected;
+        private boolean done;
+        private T result;
+        private IOException error;
+    }
+
+    // the kinds of response a request can expect, besides a status
+
+    private class HandleResponse extends Pending<String> {
+        public HandleResponse() {
+            super(Command.Handle);
         }
 
-        return resultList;
+        @Override
+        protected String parse(Message m) {
+            return m.getString();
+        }
+    }
+
+    private class DataResponse extends Pending<byte[]> {
+        public DataResponse() {
+            super(Command.Data);
+        }
+
+        @Override
+        protected byte[] parse(Message m) {
+            return m.getByteString();
+        }
+    }
+
+    private class NameResponse extends Pending<DirectoryEntry[]> {
+        public NameResponse() {
+            super(Command.Name);
+        }
+
+        @Override
+        protected DirectoryEntry[] parse(Message m) {
+            int count = m.getInt();
+            DirectoryEntry[] entries = new DirectoryEntry[count];
+            for (int i = 0; i < count; ++i) {
+                entries[i] = DirectoryEntry.fromMessage(m);
+            }
+            return entries;
+        }
+    }
+
+    private class AttrsResponse extends Pending<Attributes> {
+        public AttrsResponse() {
+            super(Command.Attrs);
+        }
+
+        @Override
+        protected Attributes parse(Message m) {
+            return Attributes.fromMessage(m);
+        }
+    }
+
+    // for requests that only get a status back
+    private class StatusResponse extends Pending<Void> {
+        public StatusResponse() {
+            super(Command.Status);
+        }
+
+        @Override
+        protected Void parse(Message m) {
+            return null;
+        }
     }
 
     /**
@@ -245,88 +770,103 @@ public class Client extends Base {
     }
 
     // TODO: "File" abstraction?
-    public java.io.InputStream openInputStream(final String path/*
-                                                                 * , Attributes
-                                                                 * attributes
-                                                                 */)
-            throws IOException {
-        final Attributes attributes = new Attributes();
-        final int mode = SFTP_FLAG_READ; // FIXME other flags.
-        final int MAX_REQUESTED_READ = 32768;
-
-        final String handle = (String) (call(Command.Handle,
-                new Class[] { String.class }, Command.Open, path, mode,
-                attributes).get(0));
-        return new java.io.InputStream() {
-            private boolean autoClose = true;
-            private long offset = 0;
-
-            @Override
-            public int read() throws IOException {
-                byte[] result = read(offset, 1);
-                if (result.length == 0) return -1;
-                ++offset;
-                return result[0];
-            }
-
-            @Override
-            public void close() throws IOException {
-                if (autoClose) {
-                    call(Command.Status, null, Command.Close, handle);
-                    autoClose = false;
-                }
-                // TODO Auto-generated method stub
-                super.close();
-            }
+    public java.io.InputStream openInputStream(String path) throws IOException {
+        return openInputStream(path, DEFAULT_READ_AHEAD);
+    }
 
-            protected byte[] read(long position, int size) throws IOException {
-                if (size > MAX_REQUESTED_READ) size = MAX_REQUESTED_READ;
+    /**
+     * Open a remote file for reading. The stream keeps up to
+     * <code>readAhead</code> READ requests outstanding ahead of the reader,
+     * so sequential reads aren't limited by the round-trip time.
+     * 
+     * @param path
+     *            the remote path
+     * @param readAhead
+     *            how many chunks to request ahead of the reader (at least 1)
+     * @return a stream over the file's contents
+     * @throws IOException
+     *             if the file couldn't be opened
+     */
+    public java.io.InputStream openInputStream(String path, int readAhead)
+            throws IOException {
+        if (readAhead < 1) {
+            throw new IllegalArgumentException(
+                    "readAhead must be at least 1");
+        }
+        String handle = open(path, SFTP_FLAG_READ, new Attributes());
+        return new PrefetchInputStream(this, handle, MAX_REQUESTED_READ,
+                readAhead);
+    }
 
-                /*
-                 * if (size == 0) { return new byte[0]; }
-                 */
+    public java.io.OutputStream openOutputStream(String path)
+            throws IOException {
+        return openOutputStream(path, DEFAULT_WRITE_AHEAD);
+    }
 
-                // t, msg = self.sftp._request(CMD_READ, self.handle,
-                // long(self._realpos), int(size))
-                byte[] data = (byte[]) call(Command.Data,
-                        new Class[] { byte[].class }, Command.Read, handle,
-                        position, size).get(0);
+    /**
+     * Open a remote file for writing, creating it or truncating it. The
+     * stream keeps up to <code>writeAhead</code> WRITE requests in flight,
+     * so a bulk upload isn't limited by the round-trip time. Errors from the
+     * server are thrown from a later call to <code>write</code>,
+     * <code>flush</code>, or <code>close</code>; <code>flush</code> waits for
+     * every outstanding write to be acknowledged.
+     * 
+     * @param path
+     *            the remote path
+     * @param writeAhead
+     *            how many chunks may be waiting for acknowledgement (at least
+     *            1)
+     * @return a stream that writes to the file
+     * @throws IOException
+     *             if the file couldn't be opened
+     */
+    public java.io.OutputStream openOutputStream(String path, int writeAhead)
+            throws IOException {
+        return openPipelinedOutputStream(path, writeAhead);
+    }
 
-                return data;
+    /**
+     * Copy a stream into a remote file, creating it or truncating it.
+     * 
+     * @param in
+     *            the data to upload
+     * @param path
+     *            the remote path
+     * @return the number of bytes written
+     * @throws IOException
+     *             if reading the stream or writing the file failed
+     */
+    public long put(java.io.InputStream in, String path) throws IOException {
+        PipelinedOutputStream out = openPipelinedOutputStream(path,
+                DEFAULT_WRITE_AHEAD);
+        try {
+            byte[] buffer = new byte[MAX_REQUESTED_WRITE];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
             }
+        } finally {
+            out.close();
+        }
+        return out.getBytesWritten();
+    }
 
-            /*
-             * protected void write(long position, int size, byte[] data) throws
-             * IOException { call(Command.Status, null, Command.Write, handle,
-             * position, data).get(0); }
-             */
-
-            @Override
-            public int read(byte b[], int b_off, int len) throws IOException {
-                if (b == null) {
-                    throw new NullPointerException();
-                } else if (b_off < 0 || len < 0 || len > b.length - b_off) {
-                    throw new IndexOutOfBoundsException();
-                } else if (len == 0) {
-                    return 0;
-                }
-
-                try {
-                    byte[] data = read(offset, len);
-
-                    /*
-                     * if (data.length == 0) return -1;
-                     */
-                    for (int i = 0; i < data.length; ++i)
-                        b[b_off + i] = data[i];
-
-                    offset += data.length;
+    private PipelinedOutputStream openPipelinedOutputStream(String path,
+            int writeAhead) throws IOException {
+        if (writeAhead < 1) {
+            throw new IllegalArgumentException(
+                    "writeAhead must be at least 1");
+        }
+        String handle = open(path, SFTP_FLAG_WRITE | SFTP_FLAG_CREATE
+                | SFTP_FLAG_TRUNC, new Attributes());
+        return new PipelinedOutputStream(this, handle, MAX_REQUESTED_WRITE,
+                writeAhead);
+    }
 
-                    return data.length;
-                } catch (EOFException exception) {
-                    return -1;
-                }
-            }
-        };
+    // wait for a future from one of the ...Async methods, throwing its own
+    // exception instead of an ExecutionException
+    @SuppressWarnings("unchecked")
+    <T> T await(CompletableFuture<T> f) throws IOException {
+        return ((Pending<T>) f).await();
     }
 }
@@ -0,0 +1,118 @@
+package net.lag.jaramiko.sftp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reads the entries of a remote directory a batch at a time, keeping several
+ * READDIR requests outstanding ahead of the reader. Only the batches in
+ * flight are held in memory, so a directory of any size can be listed, and a
+ * caller who has seen enough can {@link #close} the reader without fetching
+ * the rest.
+ *
+ * <p>
+ * The handle is closed automatically once the last entry has been read, but
+ * a reader that's abandoned part way through must be closed.
+ */
+public class DirectoryReader {
+    DirectoryReader(Client client, String handle, int readAhead) {
+        this.client = client;
+        this.handle = handle;
+        this.readAhead = readAhead;
+        this.requests = new LinkedList<CompletableFuture<DirectoryEntry[]>>();
+        this.batch = new DirectoryEntry[0];
+        this.batchPos = 0;
+        this.eof = false;
+        this.closed = false;
+    }
+
+    /**
+     * Return true if there's another entry, waiting for the next batch from
+     * the server if necessary.
+     *
+     * @return true if {@link #next} will return an entry
+     * @throws IOException
+     *             if the server refused, or the channel failed
+     */
+    public boolean hasNext() throws IOException {
+        while (this.batchPos == this.batch.length) {
+            if (this.eof) {
+                return false;
+            }
+            if (this.closed) {
+                throw new IOException("Reader closed.");
+            }
+            sendRequests();
+
+            try {
+                this.batch = this.client.await(this.requests.removeFirst());
+            } catch (EOFException x) {
+                this.eof = true;
+                close();
+                return false;
+            }
+            this.batchPos = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Return the next entry in the directory, in the order the server sent
+     * them.
+     *
+     * @return the next entry, or null if there are no more
+     * @throws IOException
+     *             if the server refused, or the channel failed
+     */
+    public DirectoryEntry next() throws IOException {
+        if (!hasNext()) {
+            return null;
+        }
+        DirectoryEntry entry = this.batch[this.batchPos];
+        // let the entry go as soon as it's been handed over
+        this.batch[this.batchPos++] = null;
+        return entry;
+    }
+
+    /**
+     * Stop reading and close the directory handle. Requests that are still
+     * outstanding are waited for, so this costs at most one round trip.
+     *
+     * @throws IOException
+     *             if the handle couldn't be closed
+     */
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+
+        while (!this.requests.isEmpty()) {
+            try {
+                this.client.await(this.requests.removeFirst());
+            } catch (IOException x) {
+                // don't care
+            }
+        }
+        this.client.closeHandle(this.handle);
+    }
+
+    // top up the read-ahead. the server hands out batches in the order the
+    // requests arrive, so the futures are consumed in the same order.
+    private void sendRequests() throws IOException {
+        while (this.requests.size() < this.readAhead) {
+            this.requests.addLast(this.client.readdirAsync(this.handle));
+        }
+    }
+
+    private Client client;
+    private String handle;
+    private int readAhead;
+    private LinkedList<CompletableFuture<DirectoryEntry[]>> requests;
+    private DirectoryEntry[] batch;
+    private int batchPos;
+    private boolean eof;
+    private boolean closed;
+}
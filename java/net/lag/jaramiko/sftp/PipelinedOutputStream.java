@@ -0,0 +1,168 @@
+package net.lag.jaramiko.sftp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * OutputStream over a remote file that doesn't wait for each WRITE to be
+ * acknowledged before sending the next one. Data is cut into chunks, and up
+ * to a fixed number of chunks may be in flight at once; acknowledgements are
+ * collected in whatever order they arrive. The first error the server
+ * reports is thrown from the next call to <code>write</code>,
+ * <code>flush</code>, or <code>close</code>.
+ */
+class PipelinedOutputStream extends OutputStream {
+    public PipelinedOutputStream(Client client, String handle, int chunkSize,
+            int writeAhead) {
+        this.client = client;
+        this.handle = handle;
+        this.writeAhead = writeAhead;
+        this.writes = new LinkedList<CompletableFuture<Void>>();
+        this.buffer = new byte[chunkSize];
+        this.bufferLen = 0;
+        this.offset = 0;
+        this.closed = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        this.buffer[this.bufferLen++] = (byte) b;
+        if (this.bufferLen == this.buffer.length) {
+            sendChunk();
+        }
+    }
+
+    @Override
+    public void write(byte b[], int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException();
+        } else if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        checkOpen();
+
+        while (len > 0) {
+            int n = Math.min(len, this.buffer.length - this.bufferLen);
+            System.arraycopy(b, off, this.buffer, this.bufferLen, n);
+            this.bufferLen += n;
+            off += n;
+            len -= n;
+            if (this.bufferLen == this.buffer.length) {
+                sendChunk();
+            }
+        }
+    }
+
+    /**
+     * Send any buffered data, and wait until the server has acknowledged
+     * every write so far.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        if (this.bufferLen > 0) {
+            sendChunk();
+        }
+        while (!this.writes.isEmpty()) {
+            finish(this.writes.removeFirst());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        IOException failure = null;
+        try {
+            flush();
+        } catch (IOException x) {
+            failure = x;
+            throw x;
+        } finally {
+            this.closed = true;
+            // collect whatever is still outstanding after an error
+            while (!this.writes.isEmpty()) {
+                try {
+                    this.client.await(this.writes.removeFirst());
+                } catch (IOException x) {
+                    // already reporting the first one
+                }
+            }
+            try {
+                this.client.closeHandle(this.handle);
+            } catch (IOException x) {
+                if (failure == null) {
+                    throw x;
+                }
+                // the write error is the one that matters
+                failure.addSuppressed(x);
+            }
+        }
+    }
+
+    public long getBytesWritten() {
+        return this.offset + this.bufferLen;
+    }
+
+    private void checkOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed.");
+        }
+        if (this.error != null) {
+            throw this.error;
+        }
+    }
+
+    // send the buffer as one WRITE, first making room in the window
+    private void sendChunk() throws IOException {
+        collectFinished();
+        while (this.writes.size() >= this.writeAhead) {
+            finish(this.writes.removeFirst());
+        }
+
+        // the request is encoded before writeAsync returns, so the buffer
+        // can be reused straight away
+        this.writes.addLast(this.client.writeAsync(this.handle, this.offset,
+                this.buffer, 0, this.bufferLen));
+        this.offset += this.bufferLen;
+        this.bufferLen = 0;
+    }
+
+    // pick up acknowledgements that have already arrived, in any order
+    private void collectFinished() throws IOException {
+        for (Iterator<CompletableFuture<Void>> i = this.writes.iterator(); i
+                .hasNext();) {
+            CompletableFuture<Void> f = i.next();
+            if (f.isDone()) {
+                i.remove();
+                finish(f);
+            }
+        }
+    }
+
+    private void finish(CompletableFuture<Void> f) throws IOException {
+        try {
+            this.client.await(f);
+        } catch (IOException x) {
+            if (this.error == null) {
+                this.error = x;
+            }
+            throw x;
+        }
+    }
+
+    private Client client;
+    private String handle;
+    private int writeAhead;
+    private LinkedList<CompletableFuture<Void>> writes;
+    private byte[] buffer;
+    private int bufferLen;
+    private long offset;
+    private boolean closed;
+    private IOException error;
+}
@@ -0,0 +1,156 @@
+package net.lag.jaramiko.sftp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * InputStream over a remote file that keeps several READ requests
+ * outstanding ahead of the reader. Responses are buffered in file order, so
+ * small reads (even single bytes) are served from memory, and a sequential
+ * read of a big file costs one round trip per window of requests rather than
+ * one per chunk.
+ */
+class PrefetchInputStream extends InputStream {
+    public PrefetchInputStream(Client client, String handle, int chunkSize,
+            int readAhead) {
+        this.client = client;
+        this.handle = handle;
+        this.chunkSize = chunkSize;
+        this.readAhead = readAhead;
+        this.requests = new LinkedList<Request>();
+        this.nextOffset = 0;
+        this.buffer = new byte[0];
+        this.bufferPos = 0;
+        this.eof = false;
+        this.closed = false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillBuffer()) {
+            return -1;
+        }
+        return this.buffer[this.bufferPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte b[], int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException();
+        } else if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        } else if (len == 0) {
+            return 0;
+        }
+
+        if (!fillBuffer()) {
+            return -1;
+        }
+        int n = Math.min(len, this.buffer.length - this.bufferPos);
+        System.arraycopy(this.buffer, this.bufferPos, b, off, n);
+        this.bufferPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return this.buffer.length - this.bufferPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+
+        // collect the answers to any reads still in flight, so that they
+        // don't outlive the handle
+        while (!this.requests.isEmpty()) {
+            try {
+                this.client.await(this.requests.removeFirst().data);
+            } catch (IOException x) {
+                // don't care
+            }
+        }
+        this.client.closeHandle(this.handle);
+    }
+
+    /*
+     * make sure there's something in the buffer, waiting for the next chunk
+     * if necessary. returns false at EOF.
+     */
+    private boolean fillBuffer() throws IOException {
+        while (this.bufferPos == this.buffer.length) {
+            if (this.closed) {
+                throw new IOException("Stream closed.");
+            }
+            if (this.eof) {
+                return false;
+            }
+            sendRequests();
+
+            Request r = this.requests.removeFirst();
+            byte[] data;
+            try {
+                data = this.client.await(r.data);
+            } catch (EOFException x) {
+                this.eof = true;
+                return false;
+            }
+            if (data.length == 0) {
+                this.eof = true;
+                return false;
+            }
+            if (data.length < r.length) {
+                // short read: fetch the rest of this chunk before anything
+                // that was already requested after it
+                this.requests.addFirst(request(r.offset + data.length,
+                        r.length - data.length));
+            }
+            this.buffer = data;
+            this.bufferPos = 0;
+        }
+        return true;
+    }
+
+    // top up the read-ahead
+    private void sendRequests() throws IOException {
+        while (this.requests.size() < this.readAhead) {
+            this.requests.addLast(request(this.nextOffset, this.chunkSize));
+            this.nextOffset += this.chunkSize;
+        }
+    }
+
+    private Request request(long offset, int length) throws IOException {
+        return new Request(offset, length, this.client.readAsync(this.handle,
+                offset, length));
+    }
+
+    private static class Request {
+        public Request(long offset, int length,
+                CompletableFuture<byte[]> data) {
+            this.offset = offset;
+            this.length = length;
+            this.data = data;
+        }
+
+        public long offset;
+        public int length;
+        public CompletableFuture<byte[]> data;
+    }
+
+    private Client client;
+    private String handle;
+    private int chunkSize;
+    private int readAhead;
+    private LinkedList<Request> requests;
+    private long nextOffset;
+    private byte[] buffer;
+    private int bufferPos;
+    private boolean eof;
+    private boolean closed;
+}
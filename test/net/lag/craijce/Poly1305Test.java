@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2005-2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package net.lag.craijce;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.ChaCha20ParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import junit.framework.TestCase;
+import net.lag.crai.CraiAEADCipher;
+import net.lag.crai.CraiCipherAlgorithm;
+import net.lag.crai.CraiException;
+import net.lag.jaramiko.Util;
+
+/**
+ * Known answers for Poly1305 and the openssh chacha20-poly1305 packet
+ * format, so that a change which still round-trips with itself can't quietly
+ * stop talking to everyone else.
+ */
+public class Poly1305Test extends TestCase {
+
+    // RFC 8439, section 2.5.2
+    public void testRFC8439() throws Exception {
+        checkTag("85d6be7857556d337f4452fe42d506a80103808afb0db2fd4abff6af4149f51b",
+                "Cryptographic Forum Research Group".getBytes("US-ASCII"),
+                "a8061dc1305136c6c22b8baf0c0127a9");
+    }
+
+    // RFC 8439, appendix A.3: the vectors that push the limb carries and the
+    // final reduction mod 2^130 - 5 into their corners
+    public void testCarries() throws Exception {
+        checkTag(R2 + ZERO, FF, "03000000000000000000000000000000");
+        checkTag(R2 + FF, "02000000000000000000000000000000",
+                "03000000000000000000000000000000");
+        checkTag(R1 + ZERO, FF + "f0ffffffffffffffffffffffffffffff"
+                + "11000000000000000000000000000000",
+                "05000000000000000000000000000000");
+        checkTag(R1 + ZERO, FF + "fbfefefefefefefefefefefefefefefe"
+                + "01010101010101010101010101010101",
+                "00000000000000000000000000000000");
+        checkTag(R2 + ZERO, "fdffffffffffffffffffffffffffffff",
+                "faffffffffffffffffffffffffffffff");
+        checkTag(R4 + ZERO, "e33594d7505e43b900000000000000003394d7505e4379cd"
+                + "010000000000000000000000000000000000000000000000"
+                + "01000000000000000000000000000000",
+                "14000000000000005500000000000000");
+        checkTag(R4 + ZERO, "e33594d7505e43b900000000000000003394d7505e4379cd"
+                + "010000000000000000000000000000000000000000000000",
+                "13000000000000000000000000000000");
+    }
+
+    /*
+     * the JDK's ChaCha20-Poly1305 (RFC 8439 AEAD) tags the ciphertext with
+     * Poly1305 under the first keystream block, so ours has to agree with it
+     * for every length and any key.
+     */
+    public void testAgainstJDK() throws Exception {
+        Random r = new Random(8439);
+        for (int len = 0; len < 300; len += 1 + len / 4) {
+            byte[] key = new byte[32];
+            byte[] nonce = new byte[12];
+            byte[] data = new byte[len];
+            r.nextBytes(key);
+            r.nextBytes(nonce);
+            r.nextBytes(data);
+
+            Cipher aead = Cipher.getInstance("ChaCha20-Poly1305");
+            aead.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "ChaCha20"),
+                    new IvParameterSpec(nonce));
+            byte[] sealed = aead.doFinal(data);
+
+            Cipher chacha = Cipher.getInstance("ChaCha20");
+            chacha.init(Cipher.ENCRYPT_MODE,
+                    new SecretKeySpec(key, "ChaCha20"),
+                    new ChaCha20ParameterSpec(nonce, 0));
+            byte[] polyKey = chacha.doFinal(new byte[Poly1305.KEY_SIZE]);
+
+            // no AAD: ciphertext, padding to 16, then both lengths
+            int padded = (len + 15) & ~15;
+            byte[] msg = new byte[padded + 16];
+            System.arraycopy(sealed, 0, msg, 0, len);
+            msg[padded + 8] = (byte) len;
+            msg[padded + 9] = (byte) (len >> 8);
+
+            byte[] tag = new byte[Poly1305.TAG_SIZE];
+            Poly1305.mac(polyKey, msg, 0, msg.length, tag, 0);
+            assertTrue("length " + len, Arrays.equals(Arrays.copyOfRange(
+                    sealed, len, sealed.length), tag));
+        }
+    }
+
+    // the first packet an OpenSSH 9 client sent after NEWKEYS
+    public void testOpenSSHPacket() throws Exception {
+        CraiAEADCipher c = new CraiJCE()
+                .getAEADCipher(CraiCipherAlgorithm.CHACHA20_POLY1305);
+        c.initDecrypt(Util.decodeHex(SSH_KEY), new byte[0]);
+        byte[] packet = Util.decodeHex(SSH_PACKET);
+        byte[] tag = Util.decodeHex(SSH_TAG);
+        assertEquals(24, c.decryptLength(SSH_SEQUENCE, packet, 0));
+        c.open(SSH_SEQUENCE, packet, 0, packet.length, tag, 0);
+        // only the body is decrypted; the length was already read
+        assertEquals(SSH_PACKET.substring(0, 8), toHex(packet).substring(0, 8));
+        assertEquals(SSH_PLAIN.substring(8), toHex(packet).substring(8));
+
+        // and sealing it again gives back exactly what was on the wire
+        c = new CraiJCE().getAEADCipher(CraiCipherAlgorithm.CHACHA20_POLY1305);
+        c.initEncrypt(Util.decodeHex(SSH_KEY), new byte[0]);
+        packet = Util.decodeHex(SSH_PLAIN);
+        byte[] out = new byte[16];
+        c.seal(SSH_SEQUENCE, packet, 0, packet.length, out, 0);
+        assertEquals(SSH_PACKET, toHex(packet));
+        assertEquals(SSH_TAG, toHex(out));
+
+        // the sequence number is part of the nonce
+        c = new CraiJCE().getAEADCipher(CraiCipherAlgorithm.CHACHA20_POLY1305);
+        c.initDecrypt(Util.decodeHex(SSH_KEY), new byte[0]);
+        try {
+            c.open(SSH_SEQUENCE + 1, packet, 0, packet.length, tag, 0);
+            fail("expected mac mismatch");
+        } catch (CraiException x) {
+            // pass
+        }
+        assertEquals(SSH_PACKET, toHex(packet));
+    }
+
+    private void checkTag(String key, String msg, String tag) {
+        checkTag(key, Util.decodeHex(msg), tag);
+    }
+
+    private void checkTag(String key, byte[] msg, String tag) {
+        byte[] out = new byte[Poly1305.TAG_SIZE + 2];
+        Poly1305.mac(Util.decodeHex(key), msg, 0, msg.length, out, 1);
+        assertEquals(tag, toHex(Arrays.copyOfRange(out, 1, 17)));
+        assertEquals(0, out[0]);
+        assertEquals(0, out[17]);
+    }
+
+    private static String toHex(byte[] x) {
+        return Util.encodeHex(x).toLowerCase();
+    }
+
+    private static final String ZERO = "00000000000000000000000000000000";
+    private static final String FF = "ffffffffffffffffffffffffffffffff";
+    private static final String R1 = "01000000000000000000000000000000";
+    private static final String R2 = "02000000000000000000000000000000";
+    private static final String R4 = "01000000000000000400000000000000";
+
+    // captured from a live session: the client-to-server 64-byte key,
+    // and its SERVICE_REQUEST for "ssh-userauth" (sequence 3, after the
+    // KEXINIT, ECDH_INIT, and NEWKEYS)
+    private static final int SSH_SEQUENCE = 3;
+    private static final String SSH_KEY = "056e61af7f3f2d5e923c4af91a00ec2c"
+            + "32788c56940331a0a432fa6c2fef741a2b5489e4e0fe804803047db6b91f4778"
+            + "d212b0c0fdfbb3371c556aba84803f90";
+    private static final String SSH_PACKET = "72e370bbff7956a21a2b13f317fbd328"
+            + "1e1d306d86c900120d0c7bdc";
+    private static final String SSH_TAG = "e736364aceb283ca08d6ed37678d25d7";
+    private static final String SSH_PLAIN = "0000001806050000000c7373682d7573"
+            + "6572617574681bd71ac1c85f";
+}
@@ -31,9 +31,11 @@ import junit.framework.TestListener;
 import junit.framework.TestResult;
 import junit.framework.TestSuite;
 import net.lag.craijce.CraiJCE;
+import net.lag.craijce.Poly1305Test;
 import net.lag.jaramiko.ber.BERInputStreamTest;
 import net.lag.jaramiko.ber.BEROutputStreamTest;
 import net.lag.jaramiko.ber.TagTest;
+import net.lag.jaramiko.sftp.ClientTest;
 
 public class AllTests {
 
@@ -45,17 +47,23 @@ public class AllTests {
 
         ts.addTestSuite(MessageTest.class);
         ts.addTestSuite(PacketizerTest.class);
+        ts.addTestSuite(Poly1305Test.class);
+        ts.addTestSuite(CompressorTest.class);
         ts.addTestSuite(KexTest.class);
         ts.addTestSuite(PKeyTest.class);
         ts.addTestSuite(TransportTest.class);
         ts.addTestSuite(ChannelTest.class);
         ts.addTestSuite(ModulusPackTest.class);
+        ts.addTestSuite(DHKeyPoolTest.class);
+        ts.addTestSuite(HandshakeExecutorTest.class);
         ts.addTestSuite(HostKeysTest.class);
 
         ts.addTestSuite(TagTest.class);
         ts.addTestSuite(BERInputStreamTest.class);
         ts.addTestSuite(BEROutputStreamTest.class);
 
+        ts.addTestSuite(ClientTest.class);
+
         return ts;
     }
 
@@ -343,6 +343,67 @@ public class ChannelTest extends TestCase {
         schan.close();
     }
 
+    // verify that data survives being read back in small, uneven pieces
+    public void testPartialReads() throws Exception {
+        PKey hostKey = PKey.readPrivateKeyFromStream(new FileInputStream(
+                "test/test_rsa.key"), null);
+        PKey publicHostKey = PKey.createFromBase64(hostKey.getBase64());
+        mTS.addServerKey(hostKey);
+        final FakeServer server = new FakeServer();
+
+        final Event sync = new Event();
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    mTS.start(server, 15000);
+                    sync.set();
+                } catch (IOException x) {}
+            }
+        }).start();
+
+        mTC.start(publicHostKey, 15000);
+        mTC.authPassword("slowdive", "pygmalion", 15000);
+
+        sync.waitFor(5000);
+        assertTrue(sync.isSet());
+        assertTrue(mTS.isActive());
+
+        Channel chan = mTC.openSession(5000);
+        chan.execCommand("yes", 5000);
+        final Channel schan = mTS.accept(5000);
+
+        final byte[] data = new byte[200000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < data.length; i += 1000) {
+                        schan.getOutputStream().write(data, i, 1000);
+                    }
+                    schan.close();
+                } catch (IOException x) {}
+            }
+        }).start();
+
+        byte[] buffer = new byte[data.length];
+        int total = 0;
+        int size = 1;
+        while (total < buffer.length) {
+            int n = chan.getInputStream().read(buffer, total,
+                    Math.min(size, buffer.length - total));
+            assertTrue(n > 0);
+            total += n;
+            size = (size * 7 + 3) % 4001;
+        }
+        assertEquals(-1, chan.getInputStream().read());
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], buffer[i]);
+        }
+        chan.close();
+    }
+
     private Socket mSocketC;
     private Socket mSocketS;
     private ClientTransport mTC;
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package net.lag.jaramiko;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class CompressorTest extends TestCase {
+
+    // each flushed packet must decode on its own, in either direction
+    public void testInterop() throws Exception {
+        checkStream(new DeflaterCompressor(), new ZlibCompressor());
+        checkStream(new ZlibCompressor(), new DeflaterCompressor());
+        checkStream(new DeflaterCompressor(), new DeflaterCompressor());
+    }
+
+    public void testLevel() throws Exception {
+        byte[] data = makePacket(new Random(1), 32768);
+        DeflaterCompressor fast = new DeflaterCompressor();
+        fast.setCompressionLevel(1);
+        DeflaterCompressor best = new DeflaterCompressor();
+        best.setCompressionLevel(9);
+        byte[] a = compress(fast, data, 0, data.length);
+        byte[] b = compress(best, data, 0, data.length);
+        assertTrue(b.length <= a.length);
+        byte[] d = uncompress(new DeflaterCompressor(), a, 0, a.length);
+        assertTrue(Arrays.equals(data, d));
+    }
+
+    // the level can change between packets without breaking the stream
+    public void testSwitchLevels() throws Exception {
+        Compressor[] out = { new DeflaterCompressor(), new ZlibCompressor() };
+        for (int k = 0; k < out.length; k++) {
+            Compressor in = new DeflaterCompressor();
+            Random r = new Random(5);
+            int[] levels = { 6, 0, 0, 9, 1, 0, 6 };
+            for (int i = 0; i < levels.length; i++) {
+                out[k].setCompressionLevel(levels[i]);
+                byte[] data = makePacket(r, 20000);
+                byte[] c = compress(out[k], data, 0, data.length);
+                if (levels[i] == 0) {
+                    assertTrue(c.length > data.length);
+                } else {
+                    assertTrue(c.length < data.length * 3 / 4);
+                }
+                byte[] d = uncompress(in, c, 0, c.length);
+                assertTrue(Arrays.equals(data, d));
+            }
+        }
+    }
+
+    // random channel data stops being compressed; text keeps going
+    public void testAdaptive() throws Exception {
+        AdaptiveCompressor out = new AdaptiveCompressor(true);
+        out.setCompressor(new DeflaterCompressor());
+        Compressor in = new DeflaterCompressor();
+        Random r = new Random(11);
+
+        byte[] text = new byte[4096];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ("all work and no play ".charAt(i % 21));
+        }
+        for (int i = 0; i < 40; i++) {
+            byte[] noise = new byte[4096];
+            r.nextBytes(noise);
+            sendData(out, in, 1, noise);
+            sendData(out, in, 2, text);
+        }
+        // the first 32K of noise were compressed, then it's all bypassed
+        assertEquals(32 * (4096 + 9), out.getBytesBypassed());
+        assertEquals(80 * (4096 + 9), out.getBytesIn());
+        assertTrue(out.getBytesOut() < out.getBytesIn());
+
+        // closing the channel forgets it, so noise gets a fresh sample
+        Message m = new Message();
+        m.putByte(MessageType.CHANNEL_CLOSE);
+        m.putInt(1);
+        compress(out, m.toByteArray(), 0, m.getPosition());
+        long bypassed = out.getBytesBypassed();
+        byte[] noise = new byte[4096];
+        r.nextBytes(noise);
+        sendData(out, in, 1, noise);
+        assertEquals(bypassed, out.getBytesBypassed());
+
+        AdaptiveCompressor plain = new AdaptiveCompressor(false);
+        plain.setCompressor(new DeflaterCompressor());
+        in = new DeflaterCompressor();
+        for (int i = 0; i < 20; i++) {
+            sendData(plain, in, 1, noise);
+        }
+        assertEquals(0, plain.getBytesBypassed());
+    }
+
+    public void testBadData() throws Exception {
+        byte[] junk = new byte[64];
+        Arrays.fill(junk, (byte) 0x55);
+        try {
+            uncompress(new DeflaterCompressor(), junk, 0, junk.length);
+            fail("expected SSHException");
+        } catch (SSHException x) {
+            // pass
+        }
+    }
+
+    private void checkStream(Compressor out, Compressor in) throws Exception {
+        Random r = new Random(23);
+        // small packets, and a couple bigger than the compressors' buffers
+        int[] sizes = { 1, 50, 1000, 100000, 3, 70000, 20 };
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] data = makePacket(r, sizes[i]);
+            byte[] packet = new byte[data.length + 10];
+            System.arraycopy(data, 0, packet, 5, data.length);
+            byte[] c = compress(out, packet, 5, data.length);
+
+            byte[] wire = new byte[c.length + 7];
+            System.arraycopy(c, 0, wire, 7, c.length);
+            byte[] d = uncompress(in, wire, 7, c.length);
+            assertTrue(Arrays.equals(data, d));
+        }
+    }
+
+    private void sendData(Compressor out, Compressor in, int chanID,
+            byte[] data) throws Exception {
+        Message m = new Message();
+        m.putByte(MessageType.CHANNEL_DATA);
+        m.putInt(chanID);
+        m.putByteString(data);
+        byte[] packet = m.toByteArray();
+        byte[] c = compress(out, packet, 0, m.getPosition());
+        byte[] d = uncompress(in, c, 0, c.length);
+        assertEquals(m.getPosition(), d.length);
+        for (int i = 0; i < d.length; i++) {
+            assertEquals(packet[i], d[i]);
+        }
+    }
+
+    private byte[] compress(Compressor c, byte[] data, int offset,
+            int length) {
+        byte[] out = new byte[3 + c.compressBound(length)];
+        int n = c.compress(data, offset, length, out, 3);
+        byte[] ret = new byte[n];
+        System.arraycopy(out, 3, ret, 0, n);
+        return ret;
+    }
+
+    // collect the output a piece at a time, to check picking up where it left
+    // off
+    private byte[] uncompress(Compressor c, byte[] data, int offset,
+            int length) throws SSHException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        while (true) {
+            int n = c.uncompress(data, offset, length, buf, 0, buf.length);
+            out.write(buf, 0, n);
+            if (n < buf.length) {
+                return out.toByteArray();
+            }
+            length = 0;
+        }
+    }
+
+    // half random, half repetitive
+    private byte[] makePacket(Random r, int size) {
+        byte[] data = new byte[size];
+        r.nextBytes(data);
+        for (int i = size / 2; i < size; i++) {
+            data[i] = (byte) (i % 13);
+        }
+        return data;
+    }
+}
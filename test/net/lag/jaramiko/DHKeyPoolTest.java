@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package net.lag.jaramiko;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import net.lag.craijce.CraiJCE;
+
+public class DHKeyPoolTest extends TestCase {
+
+    public void testTake() throws Exception {
+        BigInteger p = BigInteger.probablePrime(512, new Random(23));
+        BigInteger g = BigInteger.valueOf(2);
+        BigInteger q = p.subtract(BigInteger.ONE).shiftRight(1);
+        DHKeyPool pool = new DHKeyPool(new CraiJCE(), 2, 4);
+        try {
+            // nothing stocked until the modulus is used
+            assertEquals(0, pool.available(g, p));
+            Set<BigInteger> seen = new HashSet<BigInteger>();
+            checkPair(g, p, q, pool.take(g, p), seen);
+
+            // the background thread fills up to the high watermark
+            for (int i = 0; (i < 100) && (pool.available(g, p) < 4); i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(4, pool.available(g, p));
+
+            // each pair is only handed out once
+            for (int i = 0; i < 8; i++) {
+                checkPair(g, p, q, pool.take(g, p), seen);
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    public void testGenerators() throws Exception {
+        BigInteger p = BigInteger.probablePrime(512, new Random(23));
+        BigInteger q = p.subtract(BigInteger.ONE).shiftRight(1);
+        BigInteger g2 = BigInteger.valueOf(2);
+        BigInteger g5 = BigInteger.valueOf(5);
+        DHKeyPool pool = new DHKeyPool(new CraiJCE(), 2, 4);
+        try {
+            Set<BigInteger> seen = new HashSet<BigInteger>();
+            checkPair(g2, p, q, pool.take(g2, p), seen);
+            for (int i = 0; (i < 100) && (pool.available(g2, p) < 4); i++) {
+                Thread.sleep(50);
+            }
+
+            // the same modulus with another generator is a different group
+            assertEquals(0, pool.available(g5, p));
+            for (int i = 0; i < 6; i++) {
+                checkPair(g5, p, q, pool.take(g5, p), seen);
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    public void testFailure() throws Exception {
+        BigInteger p = BigInteger.probablePrime(512, new Random(23));
+        BigInteger g = BigInteger.valueOf(2);
+        BigInteger q = p.subtract(BigInteger.ONE).shiftRight(1);
+        // the background thread fails twice before it gets going
+        final int[] failures = { 2 };
+        CraiJCE crai = new CraiJCE() {
+            @Override
+            public BigInteger modPow(BigInteger b, BigInteger e, BigInteger m) {
+                synchronized (failures) {
+                    if ((failures[0] > 0)
+                            && Thread.currentThread().getName().equals(
+                                    "jaramiko dh key pool")) {
+                        failures[0]--;
+                        throw new IllegalStateException("no keys for you");
+                    }
+                }
+                return super.modPow(b, e, m);
+            }
+        };
+        DHKeyPool pool = new DHKeyPool(crai, 2, 4);
+        try {
+            Set<BigInteger> seen = new HashSet<BigInteger>();
+            checkPair(g, p, q, pool.take(g, p), seen);
+
+            // it backs off, tries again, and fills the stock anyway
+            for (int i = 0; (i < 100) && (pool.available(g, p) < 4); i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(4, pool.available(g, p));
+            assertEquals(2, pool.getFailureCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+    public void testWatermarks() throws Exception {
+        try {
+            new DHKeyPool(new CraiJCE(), 0, 4);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException x) {
+            // pass
+        }
+        try {
+            new DHKeyPool(new CraiJCE(), 5, 4);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException x) {
+            // pass
+        }
+    }
+
+    private void checkPair(BigInteger g, BigInteger p, BigInteger q,
+            BigInteger[] pair, Set<BigInteger> seen) {
+        assertTrue(pair[0].compareTo(BigInteger.ONE) > 0);
+        assertTrue(pair[0].compareTo(q) < 0);
+        assertEquals(g.modPow(pair[0], p), pair[1]);
+        assertTrue(seen.add(pair[0]));
+    }
+}
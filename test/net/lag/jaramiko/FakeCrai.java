@@ -28,10 +28,13 @@ package net.lag.jaramiko;
 import java.math.BigInteger;
 
 import net.lag.crai.Crai;
+import net.lag.crai.CraiAEADCipher;
 import net.lag.crai.CraiCipher;
 import net.lag.crai.CraiCipherAlgorithm;
 import net.lag.crai.CraiDigest;
 import net.lag.crai.CraiException;
+import net.lag.crai.CraiKeyAgreement;
+import net.lag.crai.CraiKeyAgreementAlgorithm;
 import net.lag.crai.CraiKeyPair;
 import net.lag.crai.CraiPrivateKey;
 import net.lag.crai.CraiPublicKey;
@@ -52,9 +55,9 @@ public class FakeCrai implements Crai {
         return new FakeRandom();
     }
 
-    public CraiPrivateKey makePrivateRSAKey(BigInteger n, BigInteger d,
-            BigInteger p, BigInteger q) {
-        return mCraiJCE.makePrivateRSAKey(n, d, p, q);
+    public CraiPrivateKey makePrivateRSAKey(BigInteger n, BigInteger e,
+            BigInteger d, BigInteger p, BigInteger q) {
+        return mCraiJCE.makePrivateRSAKey(n, e, d, p, q);
     }
 
     public CraiPrivateKey makePrivateDSAKey(BigInteger x, BigInteger p,
@@ -79,6 +82,30 @@ public class FakeCrai implements Crai {
         return mCraiJCE.generateDSAKeyPair(bits);
     }
 
+    public CraiPrivateKey makePrivateEd25519Key(byte[] seed) {
+        return mCraiJCE.makePrivateEd25519Key(seed);
+    }
+
+    public CraiPublicKey makePublicEd25519Key(byte[] key) {
+        return mCraiJCE.makePublicEd25519Key(key);
+    }
+
+    public CraiKeyPair generateEd25519KeyPair() throws CraiException {
+        return mCraiJCE.generateEd25519KeyPair();
+    }
+
+    public CraiPrivateKey makePrivateECDSAKey(String curve, BigInteger d) {
+        return mCraiJCE.makePrivateECDSAKey(curve, d);
+    }
+
+    public CraiPublicKey makePublicECDSAKey(String curve, byte[] point) {
+        return mCraiJCE.makePublicECDSAKey(curve, point);
+    }
+
+    public CraiKeyPair generateECDSAKeyPair(String curve) throws CraiException {
+        return mCraiJCE.generateECDSAKeyPair(curve);
+    }
+
     public CraiDigest makeSHA1() {
         return mCraiJCE.makeSHA1();
     }
@@ -87,6 +114,18 @@ public class FakeCrai implements Crai {
         return mCraiJCE.makeMD5();
     }
 
+    public CraiDigest makeSHA256() {
+        return mCraiJCE.makeSHA256();
+    }
+
+    public CraiDigest makeSHA384() {
+        return mCraiJCE.makeSHA384();
+    }
+
+    public CraiDigest makeSHA512() {
+        return mCraiJCE.makeSHA512();
+    }
+
     public CraiDigest makeSHA1HMAC(byte[] key) {
         return mCraiJCE.makeSHA1HMAC(key);
     }
@@ -95,11 +134,29 @@ public class FakeCrai implements Crai {
         return mCraiJCE.makeMD5HMAC(key);
     }
 
+    public CraiDigest makeSHA256HMAC(byte[] key) {
+        return mCraiJCE.makeSHA256HMAC(key);
+    }
+
+    public CraiDigest makeSHA512HMAC(byte[] key) {
+        return mCraiJCE.makeSHA512HMAC(key);
+    }
+
     public CraiCipher getCipher(CraiCipherAlgorithm algorithm)
             throws CraiException {
         return mCraiJCE.getCipher(algorithm);
     }
 
+    public CraiAEADCipher getAEADCipher(CraiCipherAlgorithm algorithm)
+            throws CraiException {
+        return mCraiJCE.getAEADCipher(algorithm);
+    }
+
+    public CraiKeyAgreement getKeyAgreement(
+            CraiKeyAgreementAlgorithm algorithm) throws CraiException {
+        return mCraiJCE.getKeyAgreement(algorithm);
+    }
+
     public BigInteger modPow(BigInteger b, BigInteger e, BigInteger m) {
         return mCraiJCE.modPow(b, e, m);
     }
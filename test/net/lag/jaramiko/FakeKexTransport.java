@@ -25,8 +25,11 @@
 
 package net.lag.jaramiko;
 
+import java.io.IOException;
 import java.math.BigInteger;
 
+import net.lag.crai.CraiDigest;
+
 /**
  * Stubbed-out KexTransportInterface for testing key-exchange implementations.
  */
@@ -73,6 +76,14 @@ public class FakeKexTransport implements KexTransportInterface {
         }
     }
 
+    public DHKeyPool getDHKeyPool() {
+        return mDHKeyPool;
+    }
+
+    public String getServerKeyType() {
+        return "none";
+    }
+
     public void verifyKey(byte[] key, byte[] sig) {
         mVerifyKey = key;
         mVerifySig = sig;
@@ -83,10 +94,18 @@ public class FakeKexTransport implements KexTransportInterface {
         mH = h;
     }
 
+    public void setKH(BigInteger k, byte[] h, CraiDigest hash) {
+        setKH(k, h);
+    }
+
     public void kexComplete() {
         mActivated = true;
     }
 
+    public void runTask(KexTransportInterface.Task task) throws IOException {
+        task.run();
+    }
+
     public Message mMessage;
     public Message mUserMessage;
     public byte mExpect1;
@@ -97,4 +116,5 @@ public class FakeKexTransport implements KexTransportInterface {
     public byte[] mVerifySig;
     public boolean mActivated = false;
     public boolean mServerMode = false;
+    public DHKeyPool mDHKeyPool = null;
 }
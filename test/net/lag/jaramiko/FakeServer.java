@@ -38,6 +38,8 @@ public class FakeServer implements ServerInterface {
         mParanoidDidPublicKey = false;
         mParanoidKey = PKey.readPrivateKeyFromStream(new FileInputStream(
                 "test/test_dss.key"), null);
+        mRSAKey = PKey.readPrivateKeyFromStream(new FileInputStream(
+                "test/test_rsa.key"), null);
     }
 
     public int checkChannelRequest(String kind, int chanID) {
@@ -94,6 +96,9 @@ public class FakeServer implements ServerInterface {
             }
             return AuthError.PARTIAL_SUCCESS;
         }
+        if (username.equals("slowdive") && key.equals(mRSAKey)) {
+            return AuthError.SUCCESS;
+        }
         return AuthError.FAILED;
     }
 
@@ -159,6 +164,7 @@ public class FakeServer implements ServerInterface {
     public boolean mParanoidDidPassword;
     public boolean mParanoidDidPublicKey;
     public PKey mParanoidKey;
+    public PKey mRSAKey;
     public String mGlobalRequest;
     public String mUsername;
 
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2007 Robey Pointer <robey@lag.net>
+ *
+ * This file is part of jaramiko.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package net.lag.jaramiko;
+
+import junit.framework.TestCase;
+
+public class HandshakeExecutorTest extends TestCase {
+
+    public void testExecute() throws Exception {
+        HandshakeExecutor executor = new HandshakeExecutor(2, 4);
+        try {
+            final Thread caller = Thread.currentThread();
+            final boolean[] elsewhere = new boolean[3];
+            final Event done = new Event();
+            for (int i = 0; i < 3; i++) {
+                final int n = i;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        elsewhere[n] = (Thread.currentThread() != caller);
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException x) {}
+                        if (n == 2) {
+                            done.set();
+                        }
+                    }
+                });
+            }
+            done.waitFor(5000);
+            for (int i = 0; i < 100; i++) {
+                if (executor.getCompletedCount() == 3) {
+                    break;
+                }
+                Thread.sleep(10);
+            }
+
+            assertTrue(elsewhere[0] && elsewhere[1] && elsewhere[2]);
+            assertEquals(3, executor.getCompletedCount());
+            assertEquals(0, executor.getOverflowCount());
+            assertEquals(0, executor.getQueueDepth());
+            assertTrue(executor.getAverageRunMicros() >= 20000);
+            assertTrue(executor.getMaxRunMicros() >= executor
+                    .getAverageRunMicros());
+        } finally {
+            executor.close();
+        }
+    }
+
+    // once the thread is busy and the queue is full, the caller does the work
+    public void testOverflow() throws Exception {
+        HandshakeExecutor executor = new HandshakeExecutor(1, 1);
+        try {
+            final Event started = new Event();
+            final Event release = new Event();
+            executor.execute(new Runnable() {
+                public void run() {
+                    started.set();
+                    try {
+                        release.waitFor(5000);
+                    } catch (InterruptedException x) {}
+                }
+            });
+            started.waitFor(5000);
+            executor.execute(new Runnable() {
+                public void run() {
+                    // pass
+                }
+            });
+            assertEquals(1, executor.getQueueDepth());
+
+            final Thread caller = Thread.currentThread();
+            final boolean[] here = new boolean[1];
+            executor.execute(new Runnable() {
+                public void run() {
+                    here[0] = (Thread.currentThread() == caller);
+                }
+            });
+            assertTrue(here[0]);
+            assertEquals(1, executor.getOverflowCount());
+
+            release.set();
+            for (int i = 0; i < 100; i++) {
+                if (executor.getCompletedCount() == 3) {
+                    break;
+                }
+                Thread.sleep(10);
+            }
+            assertEquals(3, executor.getCompletedCount());
+            assertEquals(0, executor.getQueueDepth());
+        } finally {
+            executor.close();
+        }
+    }
+
+    public void testBadSize() throws Exception {
+        try {
+            new HandshakeExecutor(0, 4);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException x) {
+            // pass
+        }
+        try {
+            new HandshakeExecutor(1, 0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException x) {
+            // pass
+        }
+    }
+}
@@ -98,4 +98,30 @@ public class HostKeysTest extends TestCase {
         assertEquals(Util.encodeHex((m.get("ssh-dss")).getFingerprint()),
                 Util.encodeHex(dkey.getFingerprint()));
     }
+
+    public void testLoadNewKeyTypes() throws Exception {
+        String file = "new.example.com ssh-ed25519 AAAAC3NzaC1lZDI1NTE5AAAAIEAw7"
+                + "HPivw/Qn20L7fD4Sl1rrs7N8zYgB68Ag6thFjyw\n"
+                + "new.example.com ecdsa-sha2-nistp256 AAAAE2VjZHNhLXNoYTItbmlzdH"
+                + "AyNTYAAAAIbmlzdHAyNTYAAABBBDtDebo/yoqQgIGZUDhcAG0M2kCod4sLsNaH"
+                + "3mUwpEKjbp15bAyKfI3QNlk7XnlKTwhdfzB4D157HYyrjjCyu5o=\n";
+        HostKeys hk = new HostKeys();
+        hk.load(new ByteArrayInputStream(file.getBytes()));
+        assertEquals(2, hk.size());
+        Map<String, PKey> m = hk.lookup("new.example.com");
+        assertEquals("B2F7E6142BE8D5D6EDA00A21FB42F4D4", Util.encodeHex(m.get(
+                "ssh-ed25519").getFingerprint()));
+        assertEquals("6855EC16AD0B9C549058E87FD775374A", Util.encodeHex(m.get(
+                "ecdsa-sha2-nistp256").getFingerprint()));
+
+        // type field doesn't match the key blob
+        String bad = "bad.example.com ssh-rsa AAAAC3NzaC1lZDI1NTE5AAAAIEAw7HPivw"
+                + "/Qn20L7fD4Sl1rrs7N8zYgB68Ag6thFjyw\n";
+        try {
+            new HostKeys().load(new ByteArrayInputStream(bad.getBytes()));
+            fail("expected exception");
+        } catch (SSHException x) {
+            // pass
+        }
+    }
 }
@@ -29,6 +29,7 @@ import java.math.BigInteger;
 import java.util.Arrays;
 
 import junit.framework.TestCase;
+import net.lag.craijce.CraiJCE;
 
 /**
  * Test key-exchange implementations.
@@ -191,6 +192,131 @@ public class KexTest extends TestCase {
 
     }
 
+    public void testCurve25519() throws Exception {
+        checkECDH(new KexECDH.Curve25519(), new KexECDH.Curve25519());
+    }
+
+    public void testECDHNistP256() throws Exception {
+        checkECDH(new KexECDH.NistP256(), new KexECDH.NistP256());
+    }
+
+    public void testECDHNistP384() throws Exception {
+        checkECDH(new KexECDH.NistP384(), new KexECDH.NistP384());
+    }
+
+    public void testECDHNistP521() throws Exception {
+        checkECDH(new KexECDH.NistP521(), new KexECDH.NistP521());
+    }
+
+    public void testECDHBadPoint() throws Exception {
+        FakeKexTransport t = new FakeKexTransport();
+        t.mServerMode = true;
+        KexECDH kex = new KexECDH.NistP256();
+        kex.startKex(t, new FakeCrai());
+
+        // right size, but not on the curve
+        byte[] q = new byte[65];
+        q[0] = 4;
+        q[64] = 1;
+        Message m = new Message();
+        m.putByteString(q);
+        m.rewind();
+        try {
+            kex.handleMessage(KexECDH.KEX_ECDH_INIT, m);
+            fail("expected bad point to be rejected");
+        } catch (SSHException x) {
+            // pass
+        }
+        assertFalse(t.mActivated);
+    }
+
+    // a server taking its keys from a pool still agrees with the client
+    public void testGroup1ServerPool() throws Exception {
+        DHKeyPool pool = new DHKeyPool(new CraiJCE(), 1, 2);
+        try {
+            for (int i = 0; i < 3; i++) {
+                FakeKexTransport ct = new FakeKexTransport();
+                KexGroup1 client = new KexGroup1();
+                client.startKex(ct, new CraiJCE());
+
+                FakeKexTransport st = makeServerTransport();
+                st.mDHKeyPool = pool;
+                KexGroup1 server = new KexGroup1();
+                server.startKex(st, new CraiJCE());
+
+                Message m = ct.mMessage;
+                m.rewind();
+                assertEquals(KexGroup1.KEXDH_INIT, m.getByte());
+                server.handleMessage(KexGroup1.KEXDH_INIT, m);
+                m = st.mMessage;
+                m.rewind();
+                assertEquals(KexGroup1.KEXDH_REPLY, m.getByte());
+                client.handleMessage(KexGroup1.KEXDH_REPLY, m);
+
+                assertEquals(st.mK, ct.mK);
+                assertTrue(Arrays.equals(st.mH, ct.mH));
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    // the server sees the versions and kex-init from the other side
+    private FakeKexTransport makeServerTransport() {
+        FakeKexTransport st = new FakeKexTransport() {
+            @Override
+            public String getRemoteVersion() {
+                return super.getLocalVersion();
+            }
+
+            @Override
+            public String getLocalVersion() {
+                return super.getRemoteVersion();
+            }
+
+            @Override
+            public byte[] getRemoteKexInit() {
+                return super.getLocalKexInit();
+            }
+
+            @Override
+            public byte[] getLocalKexInit() {
+                return super.getRemoteKexInit();
+            }
+        };
+        st.mServerMode = true;
+        return st;
+    }
+
+    // run a client and server against each other, and check they agree
+    private void checkECDH(KexECDH client, KexECDH server) throws Exception {
+        FakeKexTransport ct = new FakeKexTransport();
+        ct.mServerMode = false;
+        client.startKex(ct, new FakeCrai());
+        assertEquals(KexECDH.KEX_ECDH_REPLY, ct.mExpect1);
+
+        FakeKexTransport st = makeServerTransport();
+        server.startKex(st, new CraiJCE());
+        assertEquals(KexECDH.KEX_ECDH_INIT, st.mExpect1);
+
+        Message m = ct.mMessage;
+        m.rewind();
+        assertEquals(KexECDH.KEX_ECDH_INIT, m.getByte());
+        server.handleMessage(KexECDH.KEX_ECDH_INIT, m);
+        assertTrue(st.mActivated);
+
+        m = st.mMessage;
+        m.rewind();
+        assertEquals(KexECDH.KEX_ECDH_REPLY, m.getByte());
+        client.handleMessage(KexECDH.KEX_ECDH_REPLY, m);
+        assertTrue(ct.mActivated);
+        assertTrue(Arrays.equals(new FakeKey().toByteArray(), ct.mVerifyKey));
+        assertTrue(Arrays.equals("fake-sig".getBytes(), ct.mVerifySig));
+
+        assertEquals(st.mK, ct.mK);
+        assertTrue(Arrays.equals(st.mH, ct.mH));
+    }
+
     private static final byte[] EXP1 = Util
             .decodeHex("1E000000807E2DDB1743F3487D6545F04F1C8476092FB912B013"
                     + "626AB5BCEB764257D88BBA64243B9F348DF7B41B8C814A995E00"
@@ -81,6 +81,22 @@ public class MessageTest extends TestCase {
         assertEquals(mKiloX, m.getString());
     }
 
+    public void testViewAndCopy() {
+        byte[] buf = new byte[EXP2.length + 8];
+        System.arraycopy(EXP2, 0, buf, 4, EXP2.length);
+        Message m = new Message(buf, 4, EXP2.length, 7);
+        assertEquals(true, m.getBoolean());
+        assertEquals(5, m.skipBytes(1));
+        assertSame(buf, m.getBuffer());
+
+        Message c = m.copy();
+        Arrays.fill(buf, (byte) 0);
+        assertEquals(2, c.getPosition());
+        assertEquals(7, c.getSequence());
+        assertEquals((byte) 0xf3, c.getByte());
+        assertEquals(3, c.getList().size());
+    }
+
     public void testEncode2() {
         Message m = new Message();
         m.putBoolean(true);
@@ -166,6 +182,47 @@ public class MessageTest extends TestCase {
         }
     }
 
+    public void testPresized() {
+        byte[] data = new byte[1000];
+        Message m = new Message(data.length);
+        m.putBytes(data);
+        m.packetize(new FakeRandom(), 16, true);
+
+        // packetized in place, without growing the buffer
+        byte[] buf = m.toByteArray();
+        assertEquals(1024, m.getPosition());
+        assertEquals(1000 + 5 + 128, buf.length);
+        assertEquals(0x3fc, ((buf[2] & 0xff) << 8) | (buf[3] & 0xff));
+    }
+
+    public void testPool() {
+        Message m = Message.obtain(5000);
+        int free = Message.pooled(5000);
+        m.putInt(23);
+        m.putBytes(new byte[5000]);
+        assertEquals(5004, m.getPosition());
+        m.release();
+        assertEquals(free + 1, Message.pooled(5000));
+
+        // the buffer comes back out, and starts out empty
+        m = Message.obtain(5000);
+        assertEquals(free, Message.pooled(5000));
+        assertEquals(0, m.getPosition());
+        m.putInt(23);
+        m.packetize(new FakeRandom(), 8, true);
+        assertEquals(16, m.getPosition());
+        byte[] buf = m.toByteArray();
+        for (int i = 0; i < EXP4.length; i++) {
+            assertEquals(EXP4[i], buf[i]);
+        }
+        m.release();
+
+        // ordinary messages aren't pooled
+        m = new Message(5000);
+        m.release();
+        assertEquals(free + 1, Message.pooled(5000));
+    }
+
     private String mKiloX;
 
     private static final byte[] EXP1 = { 0, 0, 0, 0x17, 7, 0x60, (byte) 0xe0,
@@ -196,6 +196,38 @@ public class PKeyTest extends TestCase {
                 "ice weasels".getBytes(), m));
     }
 
+    public void testSignRSASHA2() throws Exception {
+        PKey rsa = PKey.readPrivateKeyFromStream(new FileInputStream(
+                "test/test_rsa.key"), null);
+        assertEquals("rsa-sha2-512", rsa.getSignatureAlgorithms()[0]);
+        PKey pub = PKey.createFromData(rsa.toByteArray());
+
+        String[] algorithms = { "rsa-sha2-256", "rsa-sha2-512" };
+        String[] expected = { SIGNED_RSA_SHA256, SIGNED_RSA_SHA512 };
+        for (int i = 0; i < algorithms.length; i++) {
+            Message m = rsa.signSSHData(new CraiJCE(), "ice weasels".getBytes(),
+                    algorithms[i]);
+            m.rewind();
+            assertEquals(algorithms[i], m.getString());
+            assertEquals(expected[i], Util.encodeHex(m.getByteString()));
+
+            m.rewind();
+            assertTrue(pub.verifySSHSignature(new CraiJCE(), "ice weasels"
+                    .getBytes(), m));
+        }
+
+        // a key type that doesn't have the SHA-2 variants
+        PKey ed = PKey.readPrivateKeyFromStream(new FileInputStream(
+                "test/test_ed25519.key"), null);
+        try {
+            ed.signSSHData(new CraiJCE(), "ice weasels".getBytes(),
+                    "rsa-sha2-256");
+            fail("expected exception");
+        } catch (SSHException x) {
+            // pass
+        }
+    }
+
     public void testSignDSS() throws Exception {
         PKey dss = PKey.readPrivateKeyFromStream(new FileInputStream(
                 "test/test_dss.key"), null);
@@ -263,8 +295,138 @@ public class PKeyTest extends TestCase {
         assertTrue(pubkey.verifySSHSignature(crai, "jerri blank".getBytes(), m));
     }
 
+    public void testLoadEd25519() throws Exception {
+        PKey ed = PKey.readPrivateKeyFromStream(new FileInputStream(
+                "test/test_ed25519.key"), null);
+        assertEquals("ssh-ed25519", ed.getSSHName());
+        assertEquals(ED25519_FINGERPRINT, Util.encodeHex(ed.getFingerprint()));
+        assertEquals(PUB_ED25519, ed.getBase64());
+        assertEquals(256, ed.getBits());
+        assertTrue(ed.canSign());
+    }
+
+    public void testSignEd25519() throws Exception {
+        PKey ed = PKey.readPrivateKeyFromStream(new FileInputStream(
+                "test/test_ed25519.key"), null);
+        Message m = ed.signSSHData(new CraiJCE(), "ice weasels".getBytes());
+        m.rewind();
+        assertEquals("ssh-ed25519", m.getString());
+        // ed25519 signatures are deterministic
+        assertEquals(SIGNED_ED25519, Util.encodeHex(m.getByteString()));
+
+        m.rewind();
+        PKey pub = PKey.createFromBase64(PUB_ED25519);
+        assertFalse(pub.canSign());
+        assertTrue(pub.verifySSHSignature(new CraiJCE(),
+                "ice weasels".getBytes(), m));
+        m.rewind();
+        assertFalse(pub.verifySSHSignature(new CraiJCE(),
+                "ice weasel".getBytes(), m));
+    }
+
+    public void testSaveEd25519() throws Exception {
+        PKey ed = PKey.readPrivateKeyFromStream(new FileInputStream(
+                "test/test_ed25519.key"), null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ed.writePrivateKeyToStream(out, null);
+
+        PKey ed2 = PKey.readPrivateKeyFromStream(new ByteArrayInputStream(out
+                .toByteArray()), null);
+        assertEquals(ed, ed2);
+        Message m = ed2.signSSHData(new CraiJCE(), "ice weasels".getBytes());
+        m.rewind();
+        m.getString();
+        assertEquals(SIGNED_ED25519, Util.encodeHex(m.getByteString()));
+    }
+
+    public void testGenerateEd25519() throws Exception {
+        Crai crai = new CraiJCE();
+        Ed25519Key ed = Ed25519Key.generate(crai);
+
+        Message m = ed.signSSHData(crai, "jerri blank".getBytes());
+        m.rewind();
+        assertTrue(ed.verifySSHSignature(crai, "jerri blank".getBytes(), m));
+    }
+
+    public void testLoadECDSA() throws Exception {
+        PKey ec = PKey.readPrivateKeyFromStream(new FileInputStream(
+                "test/test_ecdsa_256.key"), null);
+        assertEquals("ecdsa-sha2-nistp256", ec.getSSHName());
+        assertEquals(ECDSA_FINGERPRINT, Util.encodeHex(ec.getFingerprint()));
+        assertEquals(PUB_ECDSA, ec.getBase64());
+        assertEquals(256, ec.getBits());
+        assertTrue(ec.canSign());
+    }
+
+    public void testSignECDSA() throws Exception {
+        PKey ec = PKey.readPrivateKeyFromStream(new FileInputStream(
+                "test/test_ecdsa_256.key"), null);
+        Message m = ec.signSSHData(new CraiJCE(), "ice weasels".getBytes());
+        m.rewind();
+        assertEquals("ecdsa-sha2-nistp256", m.getString());
+
+        m.rewind();
+        PKey pub = PKey.createFromBase64(PUB_ECDSA);
+        assertTrue(pub.verifySSHSignature(new CraiJCE(),
+                "ice weasels".getBytes(), m));
+
+        // and a signature made elsewhere
+        Message rs = new Message();
+        rs.putMPZ(new BigInteger(SIGNED_ECDSA_R, 16));
+        rs.putMPZ(new BigInteger(SIGNED_ECDSA_S, 16));
+        m = new Message();
+        m.putString("ecdsa-sha2-nistp256");
+        m.putByteString(rs.toByteArray());
+        m.rewind();
+        assertTrue(pub.verifySSHSignature(new CraiJCE(),
+                "ice weasels".getBytes(), m));
+    }
+
+    public void testGenerateECDSA() throws Exception {
+        Crai crai = new CraiJCE();
+        int[] sizes = { 256, 384, 521 };
+        for (int i = 0; i < sizes.length; i++) {
+            ECDSAKey ec = ECDSAKey.generate(crai, sizes[i]);
+            assertEquals(sizes[i], ec.getBits());
+
+            Message m = ec.signSSHData(crai, "jerri blank".getBytes());
+            m.rewind();
+            assertTrue(ec.verifySSHSignature(crai, "jerri blank".getBytes(), m));
+
+            // round trip through a key file
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ec.writePrivateKeyToStream(out, null);
+            PKey ec2 = PKey.readPrivateKeyFromStream(new ByteArrayInputStream(
+                    out.toByteArray()), null);
+            assertEquals(ec, ec2);
+            m.rewind();
+            assertTrue(ec2.verifySSHSignature(crai, "jerri blank".getBytes(),
+                    m));
+        }
+    }
+
     private static final String RSA_FINGERPRINT = "60733844CB5186657FDEDAA22B5A57D5";
     private static final String DSS_FINGERPRINT = "4478F0B9A23CC5182009FF755BC1D26C";
+    private static final String ED25519_FINGERPRINT = "B2F7E6142BE8D5D6EDA00A21FB42F4D4";
+    private static final String ECDSA_FINGERPRINT = "6855EC16AD0B9C549058E87FD775374A";
+
+    private static final String PUB_ED25519 = "AAAAC3NzaC1lZDI1NTE5AAAAIEAw7HPivw/Qn20L7fD4Sl1rrs7N8zYgB68Ag6thFjyw";
+    private static final String PUB_ECDSA = "AAAAE2VjZHNhLXNoYTItbmlzdHAyNTYAAAAIbmlzdHAyNTYAAABBBDtDebo/yoqQ"
+            + "gIGZUDhcAG0M2kCod4sLsNaH3mUwpEKjbp15bAyKfI3QNlk7XnlKTwhdfzB4D157"
+            + "HYyrjjCyu5o=";
+
+    private static final String SIGNED_RSA_SHA256 = "CC0660E0002CAC9E26BCD568643F9FA7E5AA41EB884A25059C938466EFEF60F4"
+            + "34FBF4C83D55336A77BDB2EE830F7127417EF5070500A94C07806FBE7667CB58"
+            + "35B92BF3C2D33CEEE13F59E0FAE45C92EDAE74DE0DD627168F84A386680C9490"
+            + "7D6ECC8112D8B6ADAA31A8133D63813EBB05B6384D020D1B5B70DE83CC3ACB31";
+    private static final String SIGNED_RSA_SHA512 = "87468B75923378A02235323923C6ABE10692ADBC7F6EAB1932E478B22C8F1D0C"
+            + "65DAFCA507CAB655553183B1A0AFD195C52EAF56BAF541640F399DAF8243228F"
+            + "90529D89E74597DFF3F2BC7B3ADB890E34FD1862251BEF77AAC66C99363A84D6"
+            + "9C2A348C7FF4BBC9A59A6C11F2CFDA515E1E7F902734DEB2F3154FDB47326BA7";
+    private static final String SIGNED_ED25519 = "6E1D62CB5B443207749A9FA45BC6B2CBE25876B6651FE71CD5D12EAE1E785049"
+            + "F10A3A011947080E14BB71606F39EE4DB7805356D2513D472B1CBBFE4028F70C";
+    private static final String SIGNED_ECDSA_R = "A07F696F83A7CA1476906898C7550F283644A5888BFDA66A246C34F0ABEB3B1D";
+    private static final String SIGNED_ECDSA_S = "0330714AD092E29D7285A7650892A129973F991D25AE8AA794A452A17C30412D";
 
     private static final String PUB_RSA = "AAAAB3NzaC1yc2EAAAABIwAAAIEA049W6geFpmsljTwfvI1UmKWWJPNFI74+vNKT"
             + "k4dmzkQY2yAMs6FhlvhlI8ysU4oj71ZsRYMecHbBbxdN79+JRFVYTKaLqjwGENeT"
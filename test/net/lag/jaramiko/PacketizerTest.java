@@ -30,12 +30,17 @@ package net.lag.jaramiko;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import junit.framework.TestCase;
+import net.lag.crai.CraiAEADCipher;
 import net.lag.crai.CraiCipher;
 import net.lag.crai.CraiCipherAlgorithm;
 import net.lag.crai.CraiDigest;
+import net.lag.crai.CraiException;
 
 /**
  * @author robey
@@ -86,10 +91,340 @@ public class PacketizerTest extends TestCase {
         assertEquals(900, m.getInt());
     }
 
+    public void testReadBadMac() throws Exception {
+        byte[] data = (byte[]) DATA_READ.clone();
+        data[data.length - 1] ^= 1;
+        Packetizer p = new Packetizer(new ByteArrayInputStream(data),
+                new ByteArrayOutputStream(), new FakeRandom());
+
+        CraiCipher c = new FakeCrai().getCipher(CraiCipherAlgorithm.AES_CBC);
+        c.initDecrypt(KEY, IV);
+        p.setInboundCipher(c, 16, new FakeCrai().makeSHA1HMAC(MAC_KEY), 12);
+        try {
+            p.read();
+            fail("expected mac mismatch");
+        } catch (IOException x) {
+            assertEquals("mac mismatch", x.getMessage());
+        }
+    }
+
+    public void testMacEquals() throws Exception {
+        byte[] computed = new byte[] { 1, 2, 3, 4, 5, 6 };
+        byte[] received = new byte[] { 9, 9, 1, 2, 3, 4, 9 };
+        assertTrue(Packetizer.macEquals(received, 2, computed, 4));
+        assertFalse(Packetizer.macEquals(received, 2, computed, 5));
+        assertFalse(Packetizer.macEquals(received, 1, computed, 4));
+    }
+
+    public void testReadIntoReceiveBuffer() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Packetizer p = new Packetizer(new ByteArrayInputStream(new byte[0]),
+                os, new FakeRandom());
+        for (int i = 0; i < 50; i++) {
+            Message m = new Message();
+            m.putByte((byte) 100);
+            m.putInt(i);
+            m.putByteString(new byte[1000]);
+            p.write(m);
+        }
+
+        p = new Packetizer(new ByteArrayInputStream(os.toByteArray()),
+                new ByteArrayOutputStream(), new FakeRandom());
+        for (int i = 0; i < 50; i++) {
+            Message m = p.read();
+            // no copy: the message is a view onto the packetizer's buffer
+            assertSame(p.getReceiveBuffer(), m.getBuffer());
+            assertEquals(100, m.getByte());
+            assertEquals(i, m.getInt());
+            assertEquals(1000, m.getByteString().length);
+        }
+        assertNull(p.read());
+    }
+
+    public void testWriteBatch() throws Exception {
+        CountingOutputStream os = new CountingOutputStream();
+        Packetizer p = new Packetizer(new ByteArrayInputStream(new byte[0]),
+                os, new FakeRandom());
+        CraiCipher c = new FakeCrai().getCipher(CraiCipherAlgorithm.AES_CBC);
+        c.initEncrypt(KEY, IV);
+        p.setOutboundCipher(c, 16, new FakeCrai().makeSHA1HMAC(MAC_KEY), 12);
+
+        List<Message> batch = new ArrayList<Message>();
+        for (int i = 0; i < 10; i++) {
+            Message m = new Message();
+            m.putByte((byte) 100);
+            m.putInt(i);
+            m.putByteString(new byte[1000]);
+            batch.add(m);
+        }
+        p.write(batch);
+        // one write for all ten packets and their MACs
+        assertEquals(1, os.mWrites);
+
+        // the same packets, written one at a time, look identical
+        ByteArrayOutputStream os2 = new ByteArrayOutputStream();
+        Packetizer p2 = new Packetizer(new ByteArrayInputStream(new byte[0]),
+                os2, new FakeRandom());
+        c = new FakeCrai().getCipher(CraiCipherAlgorithm.AES_CBC);
+        c.initEncrypt(KEY, IV);
+        p2.setOutboundCipher(c, 16, new FakeCrai().makeSHA1HMAC(MAC_KEY), 12);
+        for (int i = 0; i < 10; i++) {
+            Message m = new Message();
+            m.putByte((byte) 100);
+            m.putInt(i);
+            m.putByteString(new byte[1000]);
+            p2.write(m);
+        }
+        assertTrue(Arrays.equals(os2.toByteArray(), os.toByteArray()));
+
+        // a small batch size splits it up
+        os.mWrites = 0;
+        p.setWriteBatchSize(4000);
+        batch.clear();
+        for (int i = 0; i < 10; i++) {
+            Message m = new Message();
+            m.putByte((byte) 100);
+            m.putByteString(new byte[1000]);
+            batch.add(m);
+        }
+        p.write(batch);
+        assertTrue(os.mWrites > 1);
+        assertTrue(os.mWrites < 10);
+    }
+
+    public void testWriteInPlace() throws Exception {
+        CountingOutputStream os = new CountingOutputStream();
+        Packetizer p = new Packetizer(new ByteArrayInputStream(new byte[0]),
+                os, new FakeRandom());
+        CraiCipher c = new FakeCrai().getCipher(CraiCipherAlgorithm.AES_CBC);
+        c.initEncrypt(KEY, IV);
+        p.setOutboundCipher(c, 16, new FakeCrai().makeSHA1HMAC(MAC_KEY), 12);
+
+        Message m = new Message(32768 + 9);
+        m.putByte(MessageType.CHANNEL_DATA);
+        m.putInt(0);
+        m.putByteString(new byte[32768]);
+        byte[] buf = m.getBuffer();
+        p.write(m);
+
+        // encrypted and mac'd in the message's own buffer, and sent from
+        // there in one write
+        assertEquals(1, os.mWrites);
+        assertSame(buf, os.mLastBuffer);
+        assertSame(buf, m.getBuffer());
+        assertEquals(m.getPosition(), os.size());
+        assertEquals(0, (os.size() - 12) % 16);
+    }
+
+    public void testGCMRoundTrip() throws Exception {
+        checkAEADRoundTrip(CraiCipherAlgorithm.AES_GCM, KEY, NONCE, 16);
+    }
+
+    public void testChaChaPolyRoundTrip() throws Exception {
+        checkAEADRoundTrip(CraiCipherAlgorithm.CHACHA20_POLY1305, KEY64,
+                new byte[0], 8);
+    }
+
+    private void checkAEADRoundTrip(CraiCipherAlgorithm alg, byte[] key,
+            byte[] iv, int blockSize) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Packetizer p = new Packetizer(new ByteArrayInputStream(new byte[0]),
+                os, new FakeRandom());
+        CraiAEADCipher c = new FakeCrai().getAEADCipher(alg);
+        c.initEncrypt(key, iv);
+        p.setOutboundCipher(c, blockSize);
+        for (int i = 0; i < 3; i++) {
+            Message m = new Message();
+            m.putByte((byte) 100);
+            m.putInt(i);
+            m.putByteString(new byte[100 * i]);
+            p.write(m);
+        }
+        byte[] data = os.toByteArray();
+
+        c = new FakeCrai().getAEADCipher(alg);
+        c.initDecrypt(key, iv);
+        p = new Packetizer(new ByteArrayInputStream(data),
+                new ByteArrayOutputStream(), new FakeRandom());
+        p.setInboundCipher(c, blockSize);
+        for (int i = 0; i < 3; i++) {
+            Message m = p.read();
+            assertEquals(100, m.getByte());
+            assertEquals(i, m.getInt());
+            assertEquals(100 * i, m.getByteString().length);
+        }
+        assertNull(p.read());
+
+        // a flipped bit anywhere is caught before decrypting
+        data[data.length - 20] ^= 1;
+        c = new FakeCrai().getAEADCipher(alg);
+        c.initDecrypt(key, iv);
+        p = new Packetizer(new ByteArrayInputStream(data),
+                new ByteArrayOutputStream(), new FakeRandom());
+        p.setInboundCipher(c, blockSize);
+        p.read();
+        p.read();
+        try {
+            p.read();
+            fail("expected mac mismatch");
+        } catch (IOException x) {
+            // pass
+        }
+    }
+
+    // compressed packets land in the receive buffer too, even big ones
+    public void testCompressedRoundTrip() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Packetizer p = new Packetizer(new ByteArrayInputStream(new byte[0]),
+                os, new FakeRandom());
+        p.setOutboundCompressor(new DeflaterCompressor());
+        int[] sizes = { 10, 1000, 100000, 50 };
+        for (int i = 0; i < sizes.length; i++) {
+            Message m = new Message();
+            m.putByte((byte) 100);
+            m.putInt(i);
+            m.putByteString(new byte[sizes[i]]);
+            p.write(m);
+        }
+        assertTrue(os.size() < 2000);
+
+        p = new Packetizer(new ByteArrayInputStream(os.toByteArray()),
+                new ByteArrayOutputStream(), new FakeRandom());
+        p.setInboundCompressor(new ZlibCompressor());
+        for (int i = 0; i < sizes.length; i++) {
+            Message m = p.read();
+            assertSame(p.getReceiveBuffer(), m.getBuffer());
+            assertEquals(100, m.getByte());
+            assertEquals(i, m.getInt());
+            assertTrue(Arrays.equals(new byte[sizes[i]], m.getByteString()));
+        }
+        assertNull(p.read());
+    }
+
+    public void testCTRRoundTrip() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Packetizer p = new Packetizer(new ByteArrayInputStream(new byte[0]),
+                os, new FakeRandom());
+        CraiCipher c = new FakeCrai().getCipher(CraiCipherAlgorithm.AES_CTR);
+        c.initEncrypt(KEY, IV);
+        p.setOutboundCipher(c, 16, new FakeCrai().makeSHA1HMAC(MAC_KEY), 20);
+        for (int i = 0; i < 3; i++) {
+            Message m = new Message();
+            m.putByte((byte) 100);
+            m.putInt(i);
+            m.putByteString(new byte[100 * i]);
+            p.write(m);
+        }
+
+        c = new FakeCrai().getCipher(CraiCipherAlgorithm.AES_CTR);
+        c.initDecrypt(KEY, IV);
+        p = new Packetizer(new ByteArrayInputStream(os.toByteArray()),
+                new ByteArrayOutputStream(), new FakeRandom());
+        p.setInboundCipher(c, 16, new FakeCrai().makeSHA1HMAC(MAC_KEY), 20);
+        for (int i = 0; i < 3; i++) {
+            Message m = p.read();
+            assertEquals(100, m.getByte());
+            assertEquals(i, m.getInt());
+            assertEquals(100 * i, m.getByteString().length);
+        }
+    }
+
+    public void testEncryptThenMac() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Packetizer p = new Packetizer(new ByteArrayInputStream(new byte[0]),
+                os, new FakeRandom());
+        CraiCipher c = new FakeCrai().getCipher(CraiCipherAlgorithm.AES_CBC);
+        c.initEncrypt(KEY, IV);
+        p.setOutboundCipher(c, 16, new FakeCrai().makeSHA256HMAC(MAC_KEY), 32,
+                true);
+        for (int i = 0; i < 3; i++) {
+            Message m = new Message();
+            m.putByte((byte) 100);
+            m.putInt(i);
+            m.putByteString(new byte[100 * i]);
+            p.write(m);
+        }
+        byte[] data = os.toByteArray();
+        // the length goes in the clear, and the rest is whole blocks
+        int length = new Message(data).getInt();
+        assertEquals(0, length % 16);
+        assertEquals(16, length);
+
+        CountingCipher cc = new CountingCipher(new FakeCrai()
+                .getCipher(CraiCipherAlgorithm.AES_CBC));
+        cc.initDecrypt(KEY, IV);
+        p = new Packetizer(new ByteArrayInputStream(data),
+                new ByteArrayOutputStream(), new FakeRandom());
+        p.setInboundCipher(cc, 16, new FakeCrai().makeSHA256HMAC(MAC_KEY), 32,
+                true);
+        for (int i = 0; i < 3; i++) {
+            Message m = p.read();
+            assertEquals(100, m.getByte());
+            assertEquals(i, m.getInt());
+            assertEquals(100 * i, m.getByteString().length);
+        }
+        assertNull(p.read());
+
+        // a corrupt packet is turned away without being decrypted
+        data[10] ^= 1;
+        cc = new CountingCipher(new FakeCrai()
+                .getCipher(CraiCipherAlgorithm.AES_CBC));
+        cc.initDecrypt(KEY, IV);
+        p = new Packetizer(new ByteArrayInputStream(data),
+                new ByteArrayOutputStream(), new FakeRandom());
+        p.setInboundCipher(cc, 16, new FakeCrai().makeSHA256HMAC(MAC_KEY), 32,
+                true);
+        try {
+            p.read();
+            fail("expected mac mismatch");
+        } catch (IOException x) {
+            // pass
+        }
+        assertEquals(0, cc.mBytes);
+    }
+
+    private static class CountingCipher implements CraiCipher {
+        public CountingCipher(CraiCipher cipher) {
+            mCipher = cipher;
+        }
+
+        public void initEncrypt(byte[] key, byte[] iv) throws CraiException {
+            mCipher.initEncrypt(key, iv);
+        }
+
+        public void initDecrypt(byte[] key, byte[] iv) throws CraiException {
+            mCipher.initDecrypt(key, iv);
+        }
+
+        public void process(byte[] in, int off, int len, byte[] out,
+                int off_out) throws CraiException {
+            mBytes += len;
+            mCipher.process(in, off, len, out, off_out);
+        }
+
+        private CraiCipher mCipher;
+        public int mBytes;
+    }
+
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            mWrites++;
+            mLastBuffer = b;
+            super.write(b, off, len);
+        }
+
+        public int mWrites;
+        public byte[] mLastBuffer;
+    }
+
     private final static byte[] KEY = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
             0, 0, 0 };
     private final static byte[] IV = { 0x55, 0x55, 0x55, 0x55, 0x55, 0x55,
             0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55 };
+    private final static byte[] KEY64 = new byte[64];
+    private final static byte[] NONCE = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11,
+            12 };
     private final static byte[] MAC_KEY = { 31, 31, 31, 31, 31, 31, 31, 31, 31,
             31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31 };
 
@@ -27,13 +27,18 @@ package net.lag.jaramiko;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
 import junit.framework.TestCase;
 
@@ -53,6 +58,19 @@ public class TransportTest extends TestCase implements BannerListener {
         return new Socket[] { client2, client };
     }
 
+    private static Socket[] makeChannelSocketPair() throws IOException {
+        ServerSocketChannel serv = ServerSocketChannel.open();
+        serv.socket().bind(
+                new InetSocketAddress(InetAddress.getByName("localhost"), 0));
+
+        SocketChannel client = SocketChannel.open(new InetSocketAddress(
+                InetAddress.getByName("localhost"), serv.socket()
+                        .getLocalPort()));
+        SocketChannel client2 = serv.accept();
+        serv.close();
+        return new Socket[] { client2.socket(), client.socket() };
+    }
+
     @Override
     public void setUp() throws Exception {
         Socket[] pair = makeSocketPair();
@@ -151,6 +169,48 @@ public class TransportTest extends TestCase implements BannerListener {
         assertEquals("Hello there!", mBanner);
     }
 
+    // verify that feeder threads come from the thread factory, if one is set
+    public void testThreadFactory() throws Exception {
+        PKey hostKey = PKey.readPrivateKeyFromStream(new FileInputStream(
+                "test/test_rsa.key"), null);
+        PKey publicHostKey = PKey.createFromBase64(hostKey.getBase64());
+        mTS.addServerKey(hostKey);
+        final FakeServer server = new FakeServer();
+
+        final int[] count = new int[1];
+        ThreadFactory factory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                synchronized (count) {
+                    count[0]++;
+                }
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        mTS.setThreadFactory(factory);
+        mTC.setThreadFactory(factory);
+
+        final Event sync = new Event();
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    mTS.start(server, 15000);
+                    sync.set();
+                } catch (IOException x) {}
+            }
+        }).start();
+        mTC.start(publicHostKey, 15000);
+        mTC.authPassword("slowdive", "pygmalion", 15000);
+        sync.waitFor(5000);
+
+        assertTrue(sync.isSet());
+        assertTrue(mTS.isAuthenticated());
+        synchronized (count) {
+            assertEquals(2, count[0]);
+        }
+    }
+
     /*
      * verify that the client can demand odd handshake settings, and can
      * renegotiate keys in mid-stream.
@@ -192,6 +252,48 @@ public class TransportTest extends TestCase implements BannerListener {
         mTC.sendIgnore(1024, 15000);
     }
 
+    /*
+     * verify that an AEAD cipher works in both directions, and across a
+     * rekey.
+     */
+    public void testAEADCipher() throws Exception {
+        PKey hostKey = PKey.readPrivateKeyFromStream(new FileInputStream(
+                "test/test_rsa.key"), null);
+        PKey publicHostKey = PKey.createFromBase64(hostKey.getBase64());
+        mTS.addServerKey(hostKey);
+        final FakeServer server = new FakeServer();
+
+        final Event sync = new Event();
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    mTS.start(server, 15000);
+                    sync.set();
+                } catch (IOException x) {}
+            }
+        }).start();
+
+        SecurityOptions o = mTC.getSecurityOptions();
+        o.setCiphers(Arrays.asList(new String[] { "aes256-gcm@openssh.com" }));
+        mTC.start(publicHostKey, 15000);
+        mTC.authPassword("slowdive", "pygmalion", 15000);
+        sync.waitFor(5000);
+
+        assertTrue(mTS.isActive());
+        assertEquals("aes256-gcm@openssh.com", mTC.mDescription
+                .getLocalCipherName());
+        assertEquals("aes256-gcm@openssh.com", mTC.mDescription
+                .getRemoteCipherName());
+        // the tag takes the place of the mac
+        assertEquals(16, mTC.mPacketizer.mMacSizeOut);
+        assertEquals(16, mTC.mPacketizer.mMacSizeIn);
+
+        mTC.sendIgnore(1024, 15000);
+        mTC.renegotiateKeys(15000);
+        mTC.sendIgnore(1024, 15000);
+        assertTrue(mTC.isActive());
+    }
+
     /*
      * verify that the server doesn't offer a key type it doesn't have.
      */
@@ -226,6 +328,37 @@ public class TransportTest extends TestCase implements BannerListener {
         assertEquals("ssh-dss", mTS.getDescription().getServerKeyType());
     }
 
+    // verify that RSA keys sign with SHA-2 when both sides can
+    public void testRSASHA2() throws Exception {
+        PKey hostKey = PKey.readPrivateKeyFromStream(new FileInputStream(
+                "test/test_rsa.key"), null);
+        PKey publicHostKey = PKey.createFromBase64(hostKey.getBase64());
+        mTS.addServerKey(hostKey);
+        final FakeServer server = new FakeServer();
+
+        final Event sync = new Event();
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    mTS.start(server, 15000);
+                    sync.set();
+                } catch (IOException x) {}
+            }
+        }).start();
+
+        mTC.start(publicHostKey, 15000);
+        assertEquals("rsa-sha2-512", mTC.getDescription().getServerKeyType());
+        assertEquals("rsa-sha2-512", mTS.getDescription().getServerKeyType());
+
+        String[] remain = mTC.authPrivateKey("slowdive", hostKey, 15000);
+        assertEquals(0, remain.length);
+        // the server's EXT_INFO said which signatures it takes
+        assertTrue(mTC.mServerSigAlgs.contains("rsa-sha2-512"));
+        sync.waitFor(5000);
+        assertTrue(sync.isSet());
+        assertTrue(mTS.isAuthenticated());
+    }
+
     // verify that the keepalive will be sent
     public void testKeepalive() throws Exception {
         PKey hostKey = PKey.readPrivateKeyFromStream(new FileInputStream(
@@ -477,6 +610,326 @@ public class TransportTest extends TestCase implements BannerListener {
         schan.close();
     }
 
+    /*
+     * verify that the server's key exchanges can be computed on a handshake
+     * executor, including a renegotiation while data is moving.
+     */
+    public void testHandshakeExecutor() throws Exception {
+        PKey hostKey = PKey.readPrivateKeyFromStream(new FileInputStream(
+                "test/test_rsa.key"), null);
+        PKey publicHostKey = PKey.createFromBase64(hostKey.getBase64());
+        mTS.addServerKey(hostKey);
+        HandshakeExecutor executor = new HandshakeExecutor(1, 4);
+        mTS.setHandshakeExecutor(executor);
+        final FakeServer server = new FakeServer();
+
+        try {
+            final Event sync = new Event();
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        mTS.start(server, 15000);
+                        sync.set();
+                    } catch (IOException x) {}
+                }
+            }).start();
+
+            mTC.start(publicHostKey, 15000);
+            mTC.authPassword("slowdive", "pygmalion", 15000);
+            sync.waitFor(5000);
+            assertTrue(sync.isSet());
+            assertTrue(mTS.isActive());
+            assertEquals(1, executor.getCompletedCount());
+
+            Channel chan = mTC.openSession(5000);
+            chan.execCommand("yes", 5000);
+            Channel schan = mTS.accept(5000);
+
+            mTC.mPacketizer.setRekeyBytes(16384);
+            byte[] sessionID = mTC.mSessionID;
+            OutputStream out = chan.getOutputStream();
+            InputStream in = schan.getInputStream();
+            byte[] buf = new byte[1024];
+            for (int i = 0; i < 40; i++) {
+                out.write(buf);
+                int got = 0;
+                while (got < buf.length) {
+                    got += in.read(buf, got, buf.length - got);
+                }
+            }
+
+            for (int i = 0; i < 50; i++) {
+                if (executor.getCompletedCount() >= 2) {
+                    break;
+                }
+                Thread.sleep(100);
+            }
+            assertTrue(executor.getCompletedCount() >= 2);
+            assertFalse(Arrays.equals(mTC.mH, sessionID));
+            assertEquals(0, executor.getOverflowCount());
+            assertTrue(mTS.isActive());
+            assertTrue(mTC.isActive());
+            chan.close();
+            schan.close();
+        } finally {
+            executor.close();
+        }
+    }
+
+    /*
+     * verify that both ends of a session can be driven from a shared event
+     * loop, including data transfer and renegotiating keys.
+     */
+    public void testEventLoop() throws Exception {
+        checkEventLoop(null);
+    }
+
+    /*
+     * same, with the server's key exchanges on a handshake executor: the
+     * loop holds back the server's inbound packets while each one runs.
+     */
+    public void testEventLoopHandshakeExecutor() throws Exception {
+        HandshakeExecutor executor = new HandshakeExecutor(1, 4);
+        try {
+            checkEventLoop(executor);
+            assertEquals(2, executor.getCompletedCount());
+            assertEquals(0, executor.getOverflowCount());
+        } finally {
+            executor.close();
+        }
+    }
+
+    private void checkEventLoop(HandshakeExecutor executor) throws Exception {
+        useChannelSockets();
+
+        EventLoop loop = new EventLoop(2);
+        try {
+            PKey hostKey = PKey.readPrivateKeyFromStream(new FileInputStream(
+                    "test/test_rsa.key"), null);
+            PKey publicHostKey = PKey.createFromBase64(hostKey.getBase64());
+            mTS.addServerKey(hostKey);
+            mTS.setEventLoop(loop);
+            mTC.setEventLoop(loop);
+            if (executor != null) {
+                mTS.setHandshakeExecutor(executor);
+            }
+            final FakeServer server = new FakeServer();
+
+            final Event sync = new Event();
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        mTS.start(server, 15000);
+                        sync.set();
+                    } catch (IOException x) {}
+                }
+            }).start();
+
+            mTC.start(publicHostKey, 15000);
+            mTC.authPassword("slowdive", "pygmalion", 15000);
+            sync.waitFor(5000);
+            assertTrue(sync.isSet());
+            assertTrue(mTS.isAuthenticated());
+
+            Channel chan = mTC.openSession(5000);
+            chan.execCommand("yes", 5000);
+            Channel schan = mTS.accept(5000);
+            assertNotNull(schan);
+
+            byte[] data = new byte[1024];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            assertEquals(mTC.mH, mTC.mSessionID);
+            checkTransfer(chan, schan, data);
+            mTC.renegotiateKeys(5000);
+            checkTransfer(chan, schan, data);
+            assertFalse(mTC.mH.equals(mTC.mSessionID));
+
+            chan.close();
+            schan.close();
+        } finally {
+            mTC.close();
+            mTS.close();
+            loop.close();
+        }
+    }
+
+    /*
+     * a peer that stops reading mustn't hold up the event loop thread: the
+     * replies owed to it queue up (until there are far too many), while
+     * another session on the same thread carries on.
+     */
+    public void testEventLoopSlowPeer() throws Exception {
+        useChannelSockets();
+        Socket[] pair = makeChannelSocketPair();
+        Socket otherS = pair[0];
+        Socket otherC = pair[1];
+        ServerTransport ts = new ServerTransport(otherS);
+        ClientTransport tc = new ClientTransport(otherC);
+
+        EventLoop loop = new EventLoop(1);
+        try {
+            // the slow session's server runs on the loop, and its client on
+            // a feeder thread that we can stall
+            mTS.setEventLoop(loop);
+            ts.setEventLoop(loop);
+            Channel[] chans = startLoopSession(mTS, mTC);
+            Channel[] others = startLoopSession(ts, tc);
+
+            // the client's feeder thread blocks delivering this byte, and
+            // stops reading the socket
+            final Object stall = new Object();
+            chans[0].setNotifyObject(stall);
+            byte[] data = new byte[1024];
+            synchronized (stall) {
+                chans[1].getOutputStream().write(1);
+                Thread.sleep(200);
+
+                // every one of these gets a REQUEST_FAILURE reply, which
+                // backs up once the socket buffers are full
+                for (int i = 0; (i < 100) && !mTS.hasQueuedOutput(); i++) {
+                    for (int j = 0; j < 5000; j++) {
+                        mTC.sendMessage(makeGlobalRequest());
+                    }
+                    Thread.sleep(100);
+                }
+                assertTrue(mTS.hasQueuedOutput());
+                checkTransfer(others[0], others[1], data);
+
+                // until the queue is too long to be worth keeping, and the
+                // server drops the session
+                try {
+                    for (int i = 0; (i < 1000000) && mTS.isActive(); i++) {
+                        mTC.sendMessage(makeGlobalRequest());
+                    }
+                } catch (IOException x) {
+                    // pass
+                }
+                for (int i = 0; (i < 50) && mTS.isActive(); i++) {
+                    Thread.sleep(100);
+                }
+                assertFalse(mTS.isActive());
+                checkTransfer(others[0], others[1], data);
+            }
+            assertTrue(ts.isActive());
+        } finally {
+            tc.close();
+            ts.close();
+            otherC.close();
+            otherS.close();
+            loop.close();
+        }
+    }
+
+    public void testEventLoopClose() throws Exception {
+        useChannelSockets();
+        EventLoop loop = new EventLoop(1);
+        mTS.setEventLoop(loop);
+        final Channel[] chans = startLoopSession(mTS, mTC);
+
+        // a reader and an accept, both waiting on the server's side
+        final int[] read = new int[] { 0 };
+        final Channel[] accepted = new Channel[] { chans[1] };
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    read[0] = chans[1].getInputStream().read();
+                } catch (IOException x) {
+                    read[0] = -2;
+                }
+            }
+        });
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accepted[0] = mTS.accept(0);
+            }
+        });
+        reader.start();
+        acceptor.start();
+        Thread.sleep(200);
+
+        // the session can't go on without the loop, and everyone is told
+        loop.close();
+        reader.join(5000);
+        acceptor.join(5000);
+        assertFalse(reader.isAlive());
+        assertFalse(acceptor.isAlive());
+        assertTrue(read[0] < 0);
+        assertNull(accepted[0]);
+        assertFalse(mTS.isActive());
+        assertNotNull(mTS.getException());
+    }
+
+    // replace the plain sockets with ones that an event loop can use
+    private void useChannelSockets() throws Exception {
+        mTC.close();
+        mTS.close();
+        mSocketC.close();
+        mSocketS.close();
+        Socket[] pair = makeChannelSocketPair();
+        mSocketS = pair[0];
+        mSocketC = pair[1];
+        mTS = new ServerTransport(mSocketS);
+        mTC = new ClientTransport(mSocketC);
+    }
+
+    private static Message makeGlobalRequest() {
+        Message m = new Message();
+        m.putByte(MessageType.GLOBAL_REQUEST);
+        m.putString("nothing@example.com");
+        m.putBoolean(true);
+        return m;
+    }
+
+    // returns the client's and server's ends of a new session channel
+    private Channel[] startLoopSession(final ServerTransport ts,
+            ClientTransport tc) throws Exception {
+        PKey hostKey = PKey.readPrivateKeyFromStream(new FileInputStream(
+                "test/test_rsa.key"), null);
+        ts.addServerKey(hostKey);
+        final FakeServer server = new FakeServer();
+        final Event sync = new Event();
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    ts.start(server, 15000);
+                    sync.set();
+                } catch (IOException x) {}
+            }
+        }).start();
+
+        tc.start(PKey.createFromBase64(hostKey.getBase64()), 15000);
+        tc.authPassword("slowdive", "pygmalion", 15000);
+        sync.waitFor(5000);
+        assertTrue(sync.isSet());
+
+        Channel chan = tc.openSession(5000);
+        chan.execCommand("yes", 5000);
+        Channel schan = ts.accept(5000);
+        assertNotNull(schan);
+        return new Channel[] { chan, schan };
+    }
+
+    private void checkTransfer(Channel chan, Channel schan, byte[] data)
+            throws IOException {
+        for (int i = 0; i < 16; i++) {
+            chan.getOutputStream().write(data);
+        }
+
+        byte[] buffer = new byte[data.length];
+        for (int i = 0; i < 16; i++) {
+            int n = 0;
+            while (n < buffer.length) {
+                int got = schan.getInputStream().read(buffer, n,
+                        buffer.length - n);
+                assertTrue(got > 0);
+                n += got;
+            }
+            assertTrue(Arrays.equals(data, buffer));
+        }
+    }
+
     // verify that zlib compression is basically working
     public void testCompression() throws Exception {
         PKey hostKey = PKey.readPrivateKeyFromStream(new FileInputStream(
@@ -487,6 +940,9 @@ public class TransportTest extends TestCase implements BannerListener {
         mTS.useCompression(true);
         mTC.getSecurityOptions().setCompressions(
                 Arrays.asList(new String[] { "zlib" }));
+        // the packet size below assumes the length is encrypted with the rest
+        mTC.getSecurityOptions().setDigests(
+                Arrays.asList(new String[] { "hmac-sha1" }));
         final FakeServer server = new FakeServer();
 
         final Event sync = new Event();
@@ -519,6 +975,8 @@ public class TransportTest extends TestCase implements BannerListener {
         long bytes2 = mTC.mPacketizer.getBytesSent();
         assertTrue(bytes2 - bytes < 1024);
         assertEquals(32, bytes2 - bytes);
+        assertTrue(mTC.getCompressionRatio() < 1.0);
+        assertEquals(0, mTC.getCompressionBypassedBytes());
 
         chan.close();
         schan.close();
@@ -0,0 +1,264 @@
+package net.lag.jaramiko.sftp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+import junit.framework.TestCase;
+
+public class ClientTest extends TestCase {
+    @Override
+    public void setUp() {
+        this.file = new byte[300000];
+        new Random(23).nextBytes(this.file);
+        this.server = new FakeSFTPServer(this.file);
+    }
+
+    @Override
+    public void tearDown() {
+        this.server.close();
+    }
+
+    public void testReadOutOfOrder() throws Exception {
+        Client client = new Client(this.server.getChannel());
+        InputStream in = client.openInputStream("file", 8);
+        assertTrue(Arrays.equals(this.file, readAll(in)));
+        in.close();
+
+        assertTrue(this.server.getReordered() > 0);
+        assertEquals(1, this.server.getClosedHandles());
+    }
+
+    public void testShortRead() throws Exception {
+        this.server.maxRead = 20000;
+        Client client = new Client(this.server.getChannel());
+        InputStream in = client.openInputStream("file", 4);
+        assertTrue(Arrays.equals(this.file, readAll(in)));
+        in.close();
+
+        assertTrue(this.server.getShortReads() > 0);
+    }
+
+    public void testEOFDuringReadAhead() throws Exception {
+        this.file = new byte[40000];
+        new Random(5).nextBytes(this.file);
+        this.server.close();
+        this.server = new FakeSFTPServer(this.file);
+
+        // most of the read-ahead is past the end of the file
+        Client client = new Client(this.server.getChannel());
+        InputStream in = client.openInputStream("file", 8);
+        assertTrue(Arrays.equals(this.file, readAll(in)));
+        assertEquals(-1, in.read());
+        in.close();
+        assertEquals(1, this.server.getClosedHandles());
+
+        // the client is still usable afterwards
+        assertEquals("file", client.open("file", Client.SFTP_FLAG_READ,
+                new Attributes()));
+    }
+
+    public void testFutures() throws Exception {
+        Client client = new Client(this.server.getChannel());
+        String handle = client.open("file", Client.SFTP_FLAG_READ,
+                new Attributes());
+        CompletableFuture<byte[]> a = client.readAsync(handle, 0, 1000);
+        CompletableFuture<byte[]> b = client.readAsync(handle, 1000, 500);
+        CompletableFuture<Integer> length = b
+                .thenApply(new Function<byte[], Integer>() {
+                    public Integer apply(byte[] data) {
+                        return data.length;
+                    }
+                });
+
+        // the reader thread completes dependent futures too
+        assertEquals(500, length.get().intValue());
+        assertEquals(1000, a.join().length);
+        assertTrue(a.isDone());
+
+        CompletableFuture<byte[]> eof = client.readAsync(handle, 500000, 10);
+        try {
+            eof.get();
+            fail("expected EOF");
+        } catch (ExecutionException x) {
+            assertTrue(x.getCause() instanceof java.io.EOFException);
+        }
+    }
+
+    public void testChannelDies() throws Exception {
+        // the open is answered, and then the channel drops with three reads
+        // outstanding
+        this.server.dieAfter = 4;
+        Client client = new Client(this.server.getChannel());
+        String handle = client.open("file", Client.SFTP_FLAG_READ,
+                new Attributes());
+        CompletableFuture<byte[]> a = client.readAsync(handle, 0, 1000);
+        CompletableFuture<byte[]> b = client.readAsync(handle, 1000, 1000);
+        CompletableFuture<byte[]> c = client.readAsync(handle, 2000, 1000);
+
+        assertFailed(b);
+        // all the others failed with it
+        assertFailed(a);
+        assertFailed(c);
+        try {
+            client.readAsync(handle, 3000, 1000);
+            fail("expected failure");
+        } catch (IOException x) {
+            // pass
+        }
+    }
+
+    public void testWriteOutOfOrder() throws Exception {
+        Client client = new Client(this.server.getChannel());
+        long n = client.put(new ByteArrayInputStream(this.file), "file");
+        assertEquals(this.file.length, n);
+        assertTrue(Arrays.equals(this.file, this.server.getWritten()));
+        assertTrue(this.server.getReordered() > 0);
+        assertEquals(1, this.server.getClosedHandles());
+    }
+
+    public void testWriteFailure() throws Exception {
+        this.server.failWritesFrom = 100000;
+        Client client = new Client(this.server.getChannel());
+        OutputStream out = client.openOutputStream("file", 4);
+        try {
+            for (int i = 0; i < this.file.length; i += 10000) {
+                out.write(this.file, i, 10000);
+            }
+            out.flush();
+            fail("expected failure");
+        } catch (IOException x) {
+            assertEquals("disk full", x.getMessage());
+        }
+
+        // the error sticks, and closing still closes the handle
+        try {
+            out.write(1);
+            fail("expected failure");
+        } catch (IOException x) {
+            assertEquals("disk full", x.getMessage());
+        }
+        try {
+            out.close();
+            fail("expected failure");
+        } catch (IOException x) {
+            assertEquals("disk full", x.getMessage());
+        }
+        assertEquals(1, this.server.getClosedHandles());
+
+        // everything before the failure made it
+        byte[] written = this.server.getWritten();
+        assertTrue(written.length <= 100000);
+        for (int i = 0; i < written.length; i++) {
+            assertEquals(this.file[i], written[i]);
+        }
+    }
+
+    public void testCloseFailsAfterWriteFailure() throws Exception {
+        this.server.failWritesFrom = 0;
+        this.server.failClose = true;
+        Client client = new Client(this.server.getChannel());
+        OutputStream out = client.openOutputStream("file", 4);
+        out.write(this.file, 0, 10000);
+
+        // the write error is reported, not the close error after it
+        try {
+            out.close();
+            fail("expected failure");
+        } catch (IOException x) {
+            assertEquals("disk full", x.getMessage());
+            assertEquals(1, x.getSuppressed().length);
+            assertEquals("close failed", x.getSuppressed()[0].getMessage());
+        }
+        assertEquals(1, this.server.getClosedHandles());
+
+        // with nothing else wrong, the close error itself
+        this.server.failWritesFrom = -1;
+        out = client.openOutputStream("file", 4);
+        out.write(this.file, 0, 10000);
+        try {
+            out.close();
+            fail("expected failure");
+        } catch (IOException x) {
+            assertEquals("close failed", x.getMessage());
+        }
+        assertEquals(2, this.server.getClosedHandles());
+    }
+
+    public void testDirectory() throws Exception {
+        for (int i = 0; i < 1050; i++) {
+            this.server.entries.add("file" + i);
+        }
+        Client client = new Client(this.server.getChannel());
+
+        // the last READDIRs in flight come back EOF
+        DirectoryReader reader = client.openDirectory("dir", 4);
+        for (int i = 0; i < 1050; i++) {
+            assertTrue(reader.hasNext());
+            assertEquals("file" + i, reader.next().getFilename());
+        }
+        assertFalse(reader.hasNext());
+        assertNull(reader.next());
+        assertEquals(1, this.server.getClosedHandles());
+
+        // closed part way through
+        reader = client.openDirectory("dir", 4);
+        assertEquals("file0", reader.next().getFilename());
+        reader.close();
+        assertEquals(2, this.server.getClosedHandles());
+    }
+
+    public void testBadReadAhead() throws Exception {
+        Client client = new Client(this.server.getChannel());
+        try {
+            client.openInputStream("file", 0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException x) {
+            // pass
+        }
+        try {
+            client.openOutputStream("file", 0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException x) {
+            // pass
+        }
+        try {
+            client.openDirectory("dir", 0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException x) {
+            // pass
+        }
+        // nothing was opened
+        assertEquals(0, this.server.getRequests());
+    }
+
+    private static void assertFailed(CompletableFuture<?> f)
+            throws InterruptedException {
+        try {
+            f.get();
+            fail("expected failure");
+        } catch (ExecutionException x) {
+            assertTrue(x.getCause() instanceof IOException);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[7000];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] file;
+    private FakeSFTPServer server;
+}
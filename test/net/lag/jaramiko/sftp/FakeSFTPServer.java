@@ -0,0 +1,386 @@
+package net.lag.jaramiko.sftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.lag.jaramiko.Channel;
+import net.lag.jaramiko.Message;
+
+/**
+ * An SFTP server on the far end of a fake channel, for testing the client
+ * without a transport. It serves one file (and one directory listing) from
+ * memory, and can be told to misbehave: answer requests out of order, return
+ * short reads, fail writes or closes, or drop the channel with requests
+ * unanswered.
+ *
+ * <p>
+ * Requests that arrive together are answered in reverse order, so a client
+ * that keeps several requests outstanding sees its responses out of order.
+ */
+class FakeSFTPServer implements Runnable {
+    public FakeSFTPServer(byte[] file) {
+        this.file = file;
+        this.written = new byte[0];
+        this.maxRead = Integer.MAX_VALUE;
+        this.failWritesFrom = -1;
+        this.dieAfter = -1;
+        this.entries = new ArrayList<String>();
+        this.entryBatch = 100;
+        this.toServer = new Pipe();
+        this.toClient = new Pipe();
+        this.channel = new FakeChannel();
+
+        Thread t = new Thread(this, "fake sftp server");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public Channel getChannel() {
+        return this.channel;
+    }
+
+    public void close() {
+        this.toServer.close();
+        this.toClient.close();
+    }
+
+    // ----- settings, made before the client starts
+
+    // the most data to return from one READ
+    public int maxRead;
+    // fail WRITEs that reach past this offset (if not -1)
+    public long failWritesFrom;
+    // fail CLOSE (after closing the handle anyway)
+    public boolean failClose;
+    // drop the channel, without answering, on receiving this many requests
+    public int dieAfter;
+    // the directory listing, and how many entries to return per READDIR
+    public List<String> entries;
+    public int entryBatch;
+
+    // ----- what happened
+
+    public synchronized byte[] getWritten() {
+        return this.written;
+    }
+
+    public synchronized int getReordered() {
+        return this.reordered;
+    }
+
+    public synchronized int getShortReads() {
+        return this.shortReads;
+    }
+
+    public synchronized int getClosedHandles() {
+        return this.closedHandles;
+    }
+
+    public synchronized int getRequests() {
+        return this.requests;
+    }
+
+    public void run() {
+        try {
+            Message init = readPacket();
+            if (init.getByte() != Command.Init.getBinaryCode()) {
+                return;
+            }
+            Message version = new Message();
+            version.putByte((byte) Command.Version.getBinaryCode());
+            version.putInt(3);
+            sendPacket(version);
+
+            while (true) {
+                // collect whatever arrives together, then answer it backwards
+                List<Message> batch = new ArrayList<Message>();
+                batch.add(readPacket());
+                while (this.toServer.waitForData(20)) {
+                    batch.add(readPacket());
+                }
+                synchronized (this) {
+                    this.requests += batch.size();
+                    this.reordered += batch.size() - 1;
+                    if ((this.dieAfter >= 0)
+                            && (this.requests >= this.dieAfter)) {
+                        this.toClient.close();
+                        return;
+                    }
+                }
+                // handle them in order (like a real server would), but send
+                // the responses backwards
+                List<Message> responses = new ArrayList<Message>();
+                for (Message request : batch) {
+                    responses.add(handle(request));
+                }
+                for (int i = responses.size() - 1; i >= 0; i--) {
+                    sendPacket(responses.get(i));
+                }
+            }
+        } catch (IOException x) {
+            // channel closed
+        }
+    }
+
+    private Message handle(Message request) {
+        int kind = request.getByte();
+        int id = request.getInt();
+
+        if (kind == Command.Open.getBinaryCode()) {
+            request.getString();
+            return handleResponse(id, "file");
+        } else if (kind == Command.OpenDir.getBinaryCode()) {
+            request.getString();
+            this.entryPos = 0;
+            return handleResponse(id, "dir");
+        } else if (kind == Command.Close.getBinaryCode()) {
+            synchronized (this) {
+                this.closedHandles++;
+            }
+            if (this.failClose) {
+                return status(id, Status.Failure, "close failed");
+            }
+            return status(id, Status.OK, "");
+        } else if (kind == Command.Read.getBinaryCode()) {
+            request.getString();
+            long offset = request.getInt64();
+            int length = request.getInt();
+            if (offset >= this.file.length) {
+                return status(id, Status.EOF, "eof");
+            }
+            int n = (int) Math.min(Math.min(length, this.maxRead),
+                    this.file.length - offset);
+            if (n < length) {
+                synchronized (this) {
+                    this.shortReads++;
+                }
+            }
+            Message m = response(Command.Data, id);
+            m.putByteString(this.file, (int) offset, n);
+            return m;
+        } else if (kind == Command.Write.getBinaryCode()) {
+            request.getString();
+            long offset = request.getInt64();
+            byte[] data = request.getByteString();
+            if ((this.failWritesFrom >= 0)
+                    && (offset + data.length > this.failWritesFrom)) {
+                return status(id, Status.Failure, "disk full");
+            }
+            write((int) offset, data);
+            return status(id, Status.OK, "");
+        } else if (kind == Command.ReadDir.getBinaryCode()) {
+            if (this.entryPos >= this.entries.size()) {
+                return status(id, Status.EOF, "eof");
+            }
+            int n = Math.min(this.entryBatch, this.entries.size()
+                    - this.entryPos);
+            Message m = response(Command.Name, id);
+            m.putInt(n);
+            for (int i = 0; i < n; i++) {
+                String name = this.entries.get(this.entryPos++);
+                m.putString(name);
+                m.putString("-rw-r--r-- " + name);
+                m.putInt(0);
+            }
+            return m;
+        }
+        return status(id, Status.OPUnsupported, "unsupported");
+    }
+
+    private synchronized void write(int offset, byte[] data) {
+        if (offset + data.length > this.written.length) {
+            byte[] grown = new byte[offset + data.length];
+            System.arraycopy(this.written, 0, grown, 0, this.written.length);
+            this.written = grown;
+        }
+        System.arraycopy(data, 0, this.written, offset, data.length);
+    }
+
+    private Message response(Command command, int id) {
+        Message m = new Message();
+        m.putByte((byte) command.getBinaryCode());
+        m.putInt(id);
+        return m;
+    }
+
+    private Message handleResponse(int id, String handle) {
+        Message m = response(Command.Handle, id);
+        m.putString(handle);
+        return m;
+    }
+
+    private Message status(int id, Status status, String text) {
+        Message m = response(Command.Status, id);
+        m.putInt(status.getBinaryCode());
+        m.putString(text);
+        m.putString("");
+        return m;
+    }
+
+    private Message readPacket() throws IOException {
+        InputStream in = this.toServer.getInputStream();
+        byte[] len = new byte[4];
+        readFully(in, len);
+        byte[] data = new byte[((len[0] & 0xff) << 24)
+                | ((len[1] & 0xff) << 16) | ((len[2] & 0xff) << 8)
+                | (len[3] & 0xff)];
+        readFully(in, data);
+        return new Message(data);
+    }
+
+    private void sendPacket(Message m) throws IOException {
+        byte[] data = m.toByteArray();
+        byte[] packet = new byte[data.length + 4];
+        packet[0] = (byte) (data.length >> 24);
+        packet[1] = (byte) (data.length >> 16);
+        packet[2] = (byte) (data.length >> 8);
+        packet[3] = (byte) data.length;
+        System.arraycopy(data, 0, packet, 4, data.length);
+        this.toClient.getOutputStream().write(packet);
+    }
+
+    private static void readFully(InputStream in, byte[] data)
+            throws IOException {
+        int total = 0;
+        while (total < data.length) {
+            int n = in.read(data, total, data.length - total);
+            if (n < 0) {
+                throw new IOException("closed");
+            }
+            total += n;
+        }
+    }
+
+    // the client's end
+    private class FakeChannel extends Channel {
+        public FakeChannel() {
+            super(0, "session", null);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return toClient.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return toServer.getOutputStream();
+        }
+    }
+
+    /**
+     * A one-way pipe between threads, with no size limit. Unlike
+     * PipedInputStream, it doesn't care which threads use it.
+     */
+    private static class Pipe {
+        public synchronized void close() {
+            this.closed = true;
+            notifyAll();
+        }
+
+        // wait up to timeout milliseconds for data, returning true if any
+        public synchronized boolean waitForData(long timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+            long left;
+            while ((this.length == 0) && !this.closed
+                    && ((left = deadline - System.currentTimeMillis()) > 0)) {
+                try {
+                    wait(left);
+                } catch (InterruptedException x) {
+                    return false;
+                }
+            }
+            return this.length > 0;
+        }
+
+        public InputStream getInputStream() {
+            return this.in;
+        }
+
+        public OutputStream getOutputStream() {
+            return this.out;
+        }
+
+        private synchronized int read(byte[] b, int off, int len)
+                throws IOException {
+            while ((this.length == 0) && !this.closed) {
+                try {
+                    wait();
+                } catch (InterruptedException x) {
+                    throw new IOException("interrupted");
+                }
+            }
+            if (this.length == 0) {
+                return -1;
+            }
+            int n = Math.min(len, this.length);
+            System.arraycopy(this.buffer, this.start, b, off, n);
+            this.start += n;
+            this.length -= n;
+            return n;
+        }
+
+        private synchronized void write(byte[] b, int off, int len)
+                throws IOException {
+            if (this.closed) {
+                throw new IOException("Pipe closed.");
+            }
+            if (this.start + this.length + len > this.buffer.length) {
+                byte[] grown = new byte[Math.max(this.buffer.length,
+                        2 * (this.length + len))];
+                System.arraycopy(this.buffer, this.start, grown, 0,
+                        this.length);
+                this.buffer = grown;
+                this.start = 0;
+            }
+            System.arraycopy(b, off, this.buffer, this.start + this.length,
+                    len);
+            this.length += len;
+            notifyAll();
+        }
+
+        private byte[] buffer = new byte[1024];
+        private int start;
+        private int length;
+        private boolean closed;
+
+        private InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+        };
+
+        private OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+        };
+    }
+
+    private byte[] file;
+    private byte[] written;
+    private int entryPos;
+    private int reordered;
+    private int shortReads;
+    private int closedHandles;
+    private int requests;
+    private Pipe toServer;
+    private Pipe toClient;
+    private FakeChannel channel;
+}